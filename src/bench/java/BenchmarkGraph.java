@@ -0,0 +1,61 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// graph shared by the JMH benchmarks - a temporary copy of the test fixture graph, or the graph at
+//  -Dbench.graphDbLocation (opened in place) to benchmark against a larger graph
+public class BenchmarkGraph {
+
+  public static final String OSM_ID = "sfpotrero";
+
+  private Path graphDirectory;
+
+  private GraphDb graphDb;
+
+  public BenchmarkGraph() throws Exception {
+    String graphDbLocation = System.getProperty("bench.graphDbLocation");
+    if (graphDbLocation != null) {
+      this.graphDb = new GraphDb(graphDbLocation);
+    } else {
+      // copy graph db from resource into temporary (to avoid persisting changes)
+      this.graphDirectory = Files.createTempDirectory("osm2graph-bench");
+      ClassLoader classLoader = BenchmarkGraph.class.getClassLoader();
+      FileUtils.copyDirectory(new File(classLoader.getResource("neo4j/graph.db").getFile()), this.graphDirectory.toFile());
+      this.graphDb = new GraphDb(this.graphDirectory.toFile().getAbsolutePath());
+    }
+  }
+
+  public GraphDb getGraphDb() {
+    return this.graphDb;
+  }
+
+  // every associatedData relationship - only usable while tx is open
+  public List<Relationship> readAssociatedDataRelationships(Transaction tx) {
+    Result result = tx.execute(String.format("MATCH ()-[r]->() WHERE r.%s IS NOT NULL RETURN r AS way",
+        RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+    List<Relationship> relationships = new ArrayList<>();
+    while (result.hasNext()) {
+      relationships.add((Relationship) result.next().get("way"));
+    }
+    result.close();
+    return relationships;
+  }
+
+  public void close() throws Exception {
+    this.graphDb.shutdown();
+    if (this.graphDirectory != null) {
+      FileUtils.deleteDirectory(this.graphDirectory.toFile());
+    }
+  }
+
+}
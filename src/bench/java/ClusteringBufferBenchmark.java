@@ -0,0 +1,86 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+
+// buffer benchmark for Hilbert clustering - copies a loaded visualization table once in random row order and
+//  once in hilbert_key order, then runs the same GetMap-style bbox queries against both and reports shared
+//  buffers (hit + read) touched per query. Built in the bench profile, execute against the PostGIS
+//  configured in CONFIG_PATH with:
+//   mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ClusteringBufferBenchmark -Dexec.args="<table>"
+public class ClusteringBufferBenchmark {
+
+  private static final int QUERY_COUNT = 200;
+
+  // bbox edge length as a fraction of the table extent - roughly one tile a few zoom levels below full extent
+  private static final double BBOX_FRACTION = 1.0 / 16;
+
+  public static void main(String[] args) throws Exception {
+
+    Config appConfig = new Config();
+    JSONObject dbConfig = appConfig.getDbConfig();
+    String schema = dbConfig.getString("schema");
+    String tableName = args[0];
+
+    String postgisUrl = "jdbc:postgresql://" + dbConfig.getString("host") + ":" + dbConfig.getString("port") + "/" + dbConfig.getString("database");
+    try (Connection conn = DriverManager.getConnection(postgisUrl, dbConfig.getString("user"), dbConfig.getString("password"));
+        Statement st = conn.createStatement()) {
+
+      String randomTable = createOrderedCopy(st, schema, tableName, "random", "random()");
+      String hilbertTable = createOrderedCopy(st, schema, tableName, "hilbert", "hilbert_key");
+
+      ResultSet extent = st.executeQuery(String.format("SELECT ST_XMin(e), ST_YMin(e), ST_XMax(e), ST_YMax(e) FROM (SELECT ST_Extent(geom)::box3d AS e FROM %s.\"%s\") x",
+          schema, tableName));
+      extent.next();
+      double minX = extent.getDouble(1);
+      double minY = extent.getDouble(2);
+      double width = extent.getDouble(3) - minX;
+      double height = extent.getDouble(4) - minY;
+      extent.close();
+
+      System.out.println(String.format("%s bbox queries of %s x %s against %s", QUERY_COUNT, width * BBOX_FRACTION, height * BBOX_FRACTION, tableName));
+      for (String benchmarkTable : new String[] { randomTable, hilbertTable }) {
+
+        // same query boxes for both tables
+        Random random = new Random(42);
+        long bufferCount = 0;
+        long rowCount = 0;
+        for (int i = 0; i < QUERY_COUNT; ++i) {
+          double queryMinX = minX + random.nextDouble() * width * (1 - BBOX_FRACTION);
+          double queryMinY = minY + random.nextDouble() * height * (1 - BBOX_FRACTION);
+
+          ResultSet plan = st.executeQuery(String.format("EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) SELECT geom, \"associatedData\", \"relationshipData\" FROM %s.\"%s\" WHERE geom && ST_MakeEnvelope(%s, %s, %s, %s, 4326)",
+              schema, benchmarkTable, queryMinX, queryMinY, queryMinX + width * BBOX_FRACTION, queryMinY + height * BBOX_FRACTION));
+          plan.next();
+          JSONObject planNode = new JSONArray(plan.getString(1)).getJSONObject(0).getJSONObject("Plan");
+          plan.close();
+
+          bufferCount += planNode.getLong("Shared Hit Blocks") + planNode.getLong("Shared Read Blocks");
+          rowCount += planNode.getLong("Actual Rows");
+        }
+
+        System.out.println(String.format("%-48s %8s buffers/query %8s rows/query", benchmarkTable,
+            bufferCount / QUERY_COUNT, rowCount / QUERY_COUNT));
+      }
+
+      st.executeUpdate(String.format("DROP TABLE %s.\"%s\"", schema, randomTable));
+      st.executeUpdate(String.format("DROP TABLE %s.\"%s\"", schema, hilbertTable));
+    }
+  }
+
+  private static String createOrderedCopy(Statement st, String schema, String tableName, String suffix, String orderBy) throws Exception {
+    String copyName = String.format("%s_bench_%s", tableName, suffix);
+    st.executeUpdate(String.format("DROP TABLE IF EXISTS %s.\"%s\"", schema, copyName));
+    st.executeUpdate(String.format("CREATE TABLE %s.\"%s\" AS SELECT * FROM %s.\"%s\" ORDER BY %s", schema, copyName, schema, tableName, orderBy));
+    st.executeUpdate(String.format("CREATE INDEX ON %s.\"%s\" USING GIST (geom)", schema, copyName));
+    st.executeUpdate(String.format("ANALYZE %s.\"%s\"", schema, copyName));
+    return copyName;
+  }
+
+}
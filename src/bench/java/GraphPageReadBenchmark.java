@@ -0,0 +1,126 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// cost of reading associatedData relationships page by page through GraphDb, by page size and page number -
+//  each operation reads pages 0 to pageNumber. With SKIP/LIMIT (as the reader originally paged) each page
+//  re-scans every relationship before it, so the score grows quadratically with pageNumber. Through a single
+//  cursor (as GraphRelationshipReader reads), or a query per window of ids sought by id, it grows linearly.
+//  Pages past the end of the benchmark graph are empty - use -Dbench.graphDbLocation and -p pageNumber=... to
+//  go further on a larger graph. ShardedReadBenchmark compares whole graph reads on a sparse graph.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphPageReadBenchmark {
+
+  @Param({ "50", "200" })
+  public int pageSize;
+
+  @Param({ "0", "1", "3" })
+  public int pageNumber;
+
+  private static final String QUERY = String.format("MATCH ()-[r]->() WHERE r.%s IS NOT NULL RETURN r AS way",
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+
+  private static final String ID_WINDOW_QUERY = String.format(
+      "UNWIND range($windowStartId, $windowEndId - 1) AS relId MATCH ()-[r]->() WHERE id(r) = relId AND r.%s IS NOT NULL RETURN r AS way ORDER BY id(r)",
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+
+  private BenchmarkGraph graph;
+
+  private GraphDb graphDb;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.graph = new BenchmarkGraph();
+    this.graphDb = this.graph.getGraphDb();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.graph.close();
+  }
+
+  // a query per page, as the reader originally paged
+  @Benchmark
+  public void skipLimitPages(Blackhole blackhole) {
+    for (int page = 0; page <= this.pageNumber; ++page) {
+      Map<String, Object> parameters = new HashMap<>();
+      parameters.put("skip", (long) page * this.pageSize);
+      parameters.put("limit", this.pageSize);
+
+      try (Transaction tx = this.graphDb.getTransaction()) {
+        Result result = tx.execute(QUERY + " SKIP $skip LIMIT $limit", parameters);
+        while (result.hasNext()) {
+          readRelationship(blackhole, (Relationship) result.next().get("way"));
+        }
+        result.close();
+        tx.commit();
+      }
+    }
+  }
+
+  // one cursor held open across pages, as GraphRelationshipReader reads
+  @Benchmark
+  public void cursorPages(Blackhole blackhole) {
+    try (Transaction tx = this.graphDb.getTransaction()) {
+      Result result = tx.execute(QUERY);
+      long relationshipsToRead = (long) (this.pageNumber + 1) * this.pageSize;
+      for (long i = 0; i < relationshipsToRead && result.hasNext(); ++i) {
+        readRelationship(blackhole, (Relationship) result.next().get("way"));
+      }
+      result.close();
+      tx.commit();
+    }
+  }
+
+  // a query per window of pageSize relationship ids, as GraphRelationshipReader read shards before
+  @Benchmark
+  public void idWindowPages(Blackhole blackhole) {
+    for (int page = 0; page <= this.pageNumber; ++page) {
+      Map<String, Object> parameters = new HashMap<>();
+      parameters.put("windowStartId", (long) page * this.pageSize);
+      parameters.put("windowEndId", (long) (page + 1) * this.pageSize);
+
+      try (Transaction tx = this.graphDb.getTransaction()) {
+        Result result = tx.execute(ID_WINDOW_QUERY, parameters);
+        while (result.hasNext()) {
+          readRelationship(blackhole, (Relationship) result.next().get("way"));
+        }
+        result.close();
+        tx.commit();
+      }
+    }
+  }
+
+  // touch the properties every row serializer reads first
+  private static void readRelationship(Blackhole blackhole, Relationship relationship) {
+    blackhole.consume(relationship.getId());
+    blackhole.consume(relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+  }
+
+}
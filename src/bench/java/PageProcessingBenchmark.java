@@ -0,0 +1,86 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.LoadRun;
+import me.callsen.taylor.osm2graph_geoserver.Main;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// per relationship bookkeeping of LoadRun.processRelationshipPage - deduplicating a relationship's associatedData
+//  property names and resolving each property's table name - against the original per relationship HashSet
+//  and String.format. Each operation handles every relationship of the benchmark graph once.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageProcessingBenchmark {
+
+  private BenchmarkGraph graph;
+
+  private Transaction tx;
+
+  private List<Relationship> relationships;
+
+  private LoadRun run;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.run = new LoadRun(new Config(new JSONObject().put("osmId", BenchmarkGraph.OSM_ID)));
+    this.graph = new BenchmarkGraph();
+    this.tx = this.graph.getGraphDb().getTransaction();
+    this.relationships = this.graph.readAssociatedDataRelationships(this.tx);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.tx.close();
+    this.graph.close();
+  }
+
+  // as done in LoadRun.processRelationshipPage
+  @Benchmark
+  public void resolveTableNames(Blackhole blackhole) {
+    for (Relationship relationship : this.relationships) {
+      String[] associatedDataProperties = (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+      for (int i = 0; i < associatedDataProperties.length; ++i) {
+        if (Main.isRepeatedProperty(associatedDataProperties, i)) continue;
+        blackhole.consume(this.run.getVisualizationTableName(associatedDataProperties[i]));
+      }
+    }
+  }
+
+  // baseline - as originally done, a set and a formatted table name per relationship
+  @Benchmark
+  public void resolveTableNamesLegacy(Blackhole blackhole) {
+    for (Relationship relationship : this.relationships) {
+      Set<String> associatedDataPropertySet = new HashSet<>(
+          Arrays.asList((String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)));
+      for (String associatedDataProperty : associatedDataPropertySet) {
+        blackhole.consume(String.format("%s_vis_%s", BenchmarkGraph.OSM_ID, associatedDataProperty));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowFormat;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowSerializer;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// row serialization without the database - the per row work of writeVisualizationTableRow / the load
+//  pipeline, i.e. every associatedData row of the benchmark graph serialized into COPY text once per
+//  operation. Run with -prof gc to see bytes allocated per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowSerializationBenchmark {
+
+  @Param({ "VISUALIZATION", "WAY", "ATTRIBUTE" })
+  public VisualizationRowFormat format;
+
+  // promote scalar associatedData fields to typed columns (postgis.typedColumns)
+  @Param({ "false", "true" })
+  public boolean typedColumns;
+
+  private BenchmarkGraph graph;
+
+  // relationships are only readable while the transaction they were read in is open
+  private Transaction tx;
+
+  private List<Relationship> relationships;
+
+  private VisualizationRowSerializer serializer;
+
+  private StringBuilder buffer = new StringBuilder();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.graph = new BenchmarkGraph();
+    AssociatedDataSchema associatedDataSchema = this.typedColumns
+        ? AssociatedDataSchema.infer(new GraphRelationshipReader(this.graph.getGraphDb(), 10000), 10000)
+        : new AssociatedDataSchema();
+    this.serializer = new VisualizationRowSerializer(associatedDataSchema);
+
+    this.tx = this.graph.getGraphDb().getTransaction();
+    this.relationships = this.graph.readAssociatedDataRelationships(this.tx);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.tx.close();
+    this.graph.close();
+  }
+
+  // returns the combined content hash so no row can be optimized away
+  @Benchmark
+  public long serializeRows() {
+    long contentHash = 0;
+    this.buffer.setLength(0);
+    for (Relationship relationship : this.relationships) {
+      if (this.format == VisualizationRowFormat.WAY) {
+        contentHash ^= this.serializer.appendRow(this.buffer, this.format, null, relationship);
+        continue;
+      }
+      for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+        contentHash ^= this.serializer.appendRow(this.buffer, this.format, associatedDataProperty, relationship);
+      }
+    }
+    return contentHash;
+  }
+
+}
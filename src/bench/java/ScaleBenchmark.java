@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.Main;
+import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.lib.HttpClient;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// end to end scale benchmark - runs Main.loadGeoServerData over synthetic graphs (see SyntheticGraphGenerator)
+//  of increasing size, against the PostGIS configured in CONFIG_PATH and a stub GeoServer that accepts every
+//  request. Reports rows/sec and peak heap per graph size, plus each run's report (see RunReport) written to
+//  the graph directory. Generated graphs are kept in -Dscale.graphDirectory (default the temp directory)
+//  and reused by later runs. Built in the bench profile, execute with:
+//   mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ScaleBenchmark -Dexec.args="[ways,...] [verticesPerWay] [properties] [payloadSize]"
+public class ScaleBenchmark {
+
+  private static final String DEFAULT_SCALES = "10000,1000000,10000000";
+
+  // every run loads (and replaces) the same tables
+  private static final String OSM_ID = "synthetic";
+
+  public static void main(String[] args) throws Exception {
+
+    SyntheticGraphGenerator generator = new SyntheticGraphGenerator();
+    if (args.length > 1) generator.setVerticesPerWay(Integer.parseInt(args[1]));
+    if (args.length > 2) generator.setPropertyCount(Integer.parseInt(args[2]));
+    if (args.length > 3) generator.setPayloadSize(Integer.parseInt(args[3]));
+    String graphShape = String.join("_", args.length > 1 ? args[1] : "" + SyntheticGraphGenerator.DEFAULT_VERTICES_PER_WAY,
+        args.length > 2 ? args[2] : "" + SyntheticGraphGenerator.DEFAULT_PROPERTY_COUNT,
+        args.length > 3 ? args[3] : "" + SyntheticGraphGenerator.DEFAULT_PAYLOAD_SIZE);
+
+    Path graphBaseDirectory = Paths.get(System.getProperty("scale.graphDirectory", System.getProperty("java.io.tmpdir")));
+    List<String> results = new ArrayList<>();
+
+    for (String scale : (args.length > 0 ? args[0] : DEFAULT_SCALES).split(",")) {
+      long wayCount = Long.parseLong(scale.trim());
+
+      // graphs are generated once per size and shape
+      Path graphDirectory = graphBaseDirectory.resolve(String.format("osm2graph-scale-%s-%s", wayCount, graphShape));
+      if (!Files.exists(graphDirectory)) {
+        GraphDb graphDb = new GraphDb(graphDirectory.toFile().getAbsolutePath());
+        try {
+          generator.generate(graphDb, wayCount);
+        } finally {
+          graphDb.shutdown();
+        }
+      }
+
+      results.add(runLoad(wayCount, graphDirectory));
+    }
+
+    System.out.println();
+    System.out.println(String.format("%12s %14s %12s %10s %14s", "ways", "rows", "duration s", "rows/sec", "peak heap MB"));
+    results.forEach(System.out::println);
+  }
+
+  private static String runLoad(long wayCount, Path graphDirectory) throws Exception {
+
+    // configured app config, pointed at the synthetic graph
+    Config appConfig = new Config();
+    appConfig.put("osmId", OSM_ID);
+    appConfig.put("graphDbLocation", graphDirectory.toFile().getAbsolutePath());
+    Path reportPath = graphDirectory.resolve("run-report.json");
+    appConfig.put("runReportPath", reportPath.toFile().getAbsolutePath());
+
+    JSONObject dbConfig = appConfig.getDbConfig();
+    Class.forName("org.postgresql.Driver");
+    String postgisUrl = "jdbc:postgresql://" + dbConfig.getString("host") + ":" + dbConfig.getString("port") + "/" + dbConfig.getString("database");
+
+    System.gc();
+    for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+      memoryPool.resetPeakUsage();
+    }
+
+    Main.loadGeoServerData(appConfig, new GraphDb(appConfig.getString("graphDbLocation")), new PostgisDb(appConfig, postgisUrl),
+        new GeoServerRestApi(appConfig, new StubHttpClient()), Main.GRAPH_RELATIONSHIP_PAGE_SIZE);
+
+    // peak of each heap pool - pools peak at different times, so the sum is an upper bound
+    long peakHeapBytes = 0;
+    for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (memoryPool.getType() == MemoryType.HEAP) {
+        peakHeapBytes += memoryPool.getPeakUsage().getUsed();
+      }
+    }
+
+    JSONObject report = new JSONObject(new String(Files.readAllBytes(reportPath), StandardCharsets.UTF_8));
+    return String.format("%12s %14s %12s %10s %14s", wayCount, report.getLong("rowsWritten"), report.getLong("durationMs") / 1000,
+        report.getLong("rowsPerSecond"), peakHeapBytes / (1024 * 1024));
+  }
+
+  // GeoServer stand in - accepts every request without sending it
+  private static class StubHttpClient extends HttpClient {
+
+    @Override
+    public String invokePost(String url, String authHeader, String postBody, String contentType) {
+      return "";
+    }
+
+  }
+
+}
@@ -0,0 +1,228 @@
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+
+import com.sun.management.ThreadMXBean;
+
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowFormat;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowSerializer;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// allocation/GC benchmark for row serialization - compares the original JSONArray/JSONObject + replaceAll
+//  row building against VisualizationRowSerializer using the fixture graph, without and with typed columns
+//  (postgis.typedColumns, inferred from the fixture). Typed column values were taken from a JSONArray parsed
+//  per row before the serializer scanned the json in place - that extraction is measured as well, on top of
+//  streaming rows without typed columns. Built in the bench profile,
+//  execute with:
+//   mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=SerializationAllocationBenchmark
+public class SerializationAllocationBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 200;
+
+  private static final int MEASURED_ITERATIONS = 1000;
+
+  private static final String OSM_ID = "sfpotrero";
+
+  public static void main(String[] args) throws Exception {
+
+    // copy graph db from resource into temporary (to avoid persisting changes)
+    Path graphDirectory = Files.createTempDirectory("osm2graph-benchmark");
+    ClassLoader classLoader = SerializationAllocationBenchmark.class.getClassLoader();
+    FileUtils.copyDirectory(new File(classLoader.getResource("neo4j/graph.db").getFile()), graphDirectory.toFile());
+
+    GraphDb graphDb = new GraphDb(graphDirectory.toFile().getAbsolutePath());
+    try {
+      GraphRelationshipReader reader = new GraphRelationshipReader(graphDb, 100000);
+      reader.readAssociatedDataRelationships((shard, pageNumber, relationships) -> runBenchmark(relationships));
+    } finally {
+      graphDb.shutdown();
+      FileUtils.deleteDirectory(graphDirectory.toFile());
+    }
+  }
+
+  private static void runBenchmark(List<Relationship> relationships) {
+
+    VisualizationRowSerializer serializer = new VisualizationRowSerializer();
+
+    AssociatedDataSchema associatedDataSchema = new AssociatedDataSchema();
+    for (Relationship relationship : relationships) {
+      for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+        associatedDataSchema.sample(associatedDataProperty, (String) relationship.getProperty(associatedDataProperty));
+      }
+    }
+    associatedDataSchema.finishInference();
+    VisualizationRowSerializer typedSerializer = new VisualizationRowSerializer(associatedDataSchema);
+    StringBuilder buffer = new StringBuilder();
+    List<String> legacyRows = new ArrayList<>();
+
+    Runnable legacy = () -> {
+      legacyRows.clear();
+      for (Relationship relationship : relationships) {
+        Set<String> associatedDataPropertySet = new HashSet<>(
+            Arrays.asList((String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)));
+        for (String associatedDataProperty : associatedDataPropertySet) {
+          String tableName = String.format("%s_vis_%s", OSM_ID, associatedDataProperty);
+          legacyRows.add(legacyRow(tableName, associatedDataProperty, relationship));
+        }
+      }
+    };
+
+    Runnable streaming = () -> {
+      for (Relationship relationship : relationships) {
+        for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+          serializer.appendRow(buffer, VisualizationRowFormat.VISUALIZATION, associatedDataProperty, relationship);
+        }
+      }
+      buffer.setLength(0);
+    };
+
+    Runnable streamingTyped = () -> {
+      for (Relationship relationship : relationships) {
+        for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+          typedSerializer.appendRow(buffer, VisualizationRowFormat.VISUALIZATION, associatedDataProperty, relationship);
+        }
+      }
+      buffer.setLength(0);
+    };
+
+    Runnable streamingJsonArrayTyped = () -> {
+      for (Relationship relationship : relationships) {
+        for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+          serializer.appendRow(buffer, VisualizationRowFormat.VISUALIZATION, associatedDataProperty, relationship);
+          legacyTypedColumns(buffer, associatedDataSchema.getColumns(associatedDataProperty), (String) relationship.getProperty(associatedDataProperty));
+        }
+      }
+      buffer.setLength(0);
+    };
+
+    long rowsPerIteration = 0;
+    for (Relationship relationship : relationships) {
+      rowsPerIteration += ((String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)).length;
+    }
+
+    System.out.println(String.format("serializing %s rows per iteration, %s iterations", rowsPerIteration, MEASURED_ITERATIONS));
+    measure("legacy JSONObject + replaceAll", legacy, rowsPerIteration);
+    measure("streaming serializer", streaming, rowsPerIteration);
+    measure("streaming + typed columns", streamingTyped, rowsPerIteration);
+    measure("streaming + JSONArray typed cols", streamingJsonArrayTyped, rowsPerIteration);
+  }
+
+  private static void measure(String name, Runnable iteration, long rowsPerIteration) {
+
+    for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+      iteration.run();
+    }
+
+    ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long gcCountBefore = getGcCount();
+    long gcTimeBefore = getGcTimeMs();
+    long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+    long startTime = System.nanoTime();
+
+    for (int i = 0; i < MEASURED_ITERATIONS; ++i) {
+      iteration.run();
+    }
+
+    long durationNs = System.nanoTime() - startTime;
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+    long rows = rowsPerIteration * MEASURED_ITERATIONS;
+
+    System.out.println(String.format("%-32s %8s bytes/row %8s ns/row   gc: %s collections, %s ms",
+        name,
+        allocatedBytes / rows,
+        durationNs / rows,
+        getGcCount() - gcCountBefore,
+        getGcTimeMs() - gcTimeBefore));
+  }
+
+  // row building as originally done in PostgisDb.writeVisualizationTableRow
+  private static String legacyRow(String associatedDataPropertyTableName, String associatedDataProperty, Relationship rel) {
+    long rel_osm_id = rel.getProperty("osm_id") instanceof Integer ? (Integer) rel.getProperty("osm_id") : (Long)rel.getProperty("osm_id");
+    JSONArray associatedData = new JSONArray( (String) rel.getProperty(associatedDataProperty) );
+    String wayGeometry = (String) rel.getProperty("way");
+
+    JSONArray associdatedDataArray = new JSONArray();
+    for (int i=0; i < associatedData.length(); ++i) {
+      associdatedDataArray.put(associatedData.getJSONObject(i));
+    }
+
+    JSONObject relationshipJson = new JSONObject();
+    for (Map.Entry<String, Object> entry : rel.getAllProperties().entrySet()) {
+      String propertyName = entry.getKey();
+      if (propertyName.equals(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA) ||
+          propertyName.equals(associatedDataPropertyTableName) ||
+          propertyName.equals("way")) {
+        continue;
+      }
+      relationshipJson.put(propertyName, entry.getValue());
+    }
+
+    String associatedDataJsonString = associdatedDataArray.toString().replaceAll("'","''");
+    String relationshipJsonString = relationshipJson.toString().replaceAll("'","''");
+
+    return String.format("INSERT INTO %s.%s (osm_id, geom, \"%s\", \"relationshipData\") VALUES (%s, ST_GeomFromText('%s',4326), '%s'::json, '%s'::json);",
+      "benchmark",
+      associatedDataPropertyTableName,
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+      rel_osm_id,
+      wayGeometry,
+      associatedDataJsonString,
+      relationshipJsonString);
+  }
+
+  // typed column values as taken from a JSONArray parsed per row, before the serializer scanned the json
+  private static void legacyTypedColumns(StringBuilder buffer, List<AssociatedDataSchema.TypedColumn> typedColumns, String associatedDataJson) {
+    if (typedColumns.isEmpty()) return;
+
+    JSONObject entry = null;
+    try {
+      entry = new JSONArray(associatedDataJson).optJSONObject(0);
+    } catch (Exception e) {
+      // invalid json - every value \N
+    }
+
+    for (AssociatedDataSchema.TypedColumn typedColumn : typedColumns) {
+      buffer.append('\t');
+      Object value = entry != null ? entry.opt(typedColumn.field) : null;
+      if (value == null || value == JSONObject.NULL) {
+        buffer.append("\\N");
+      } else {
+        buffer.append(value);
+      }
+    }
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gcBean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcTimeMs() {
+    long time = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gcBean.getCollectionTime());
+    }
+    return time;
+  }
+
+}
@@ -0,0 +1,158 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import me.callsen.taylor.osm2graph_geoserver.Main;
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// reading every associatedData relationship of a graph where associatedData is sparse, as on a routing graph
+//  where most ways carry none - GraphRelationshipReader's single cursor against its shards (a cursor per id
+//  range cut from sampled ids, ranges included), and against the id windows shards were read by before (a
+//  query per window of page size ids, each id sought). Each operation reads the whole graph. The graph is
+//  generated once per trial (see SyntheticGraphGenerator) - use -p wayCount=... -p associatedDataFraction=...
+//  to change its shape.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedReadBenchmark {
+
+  @Param({ "200000" })
+  public long wayCount;
+
+  @Param({ "0.05" })
+  public double associatedDataFraction;
+
+  @Param({ "4" })
+  public int shardCount;
+
+  private static final String ID_WINDOW_QUERY = String.format(
+      "UNWIND range($windowStartId, $windowEndId - 1) AS relId MATCH ()-[r]->() WHERE id(r) = relId AND r.%s IS NOT NULL RETURN r AS way ORDER BY id(r)",
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+
+  private Path graphDirectory;
+
+  private GraphDb graphDb;
+
+  private GraphRelationshipReader reader;
+
+  // associatedData relationship id span, split evenly as id window shards were
+  private long minId;
+
+  private long maxId;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    this.graphDirectory = Files.createTempDirectory("osm2graph-bench-sparse");
+    this.graphDb = new GraphDb(this.graphDirectory.toFile().getAbsolutePath());
+
+    SyntheticGraphGenerator generator = new SyntheticGraphGenerator();
+    generator.setAssociatedDataFraction(this.associatedDataFraction);
+    generator.generate(this.graphDb, this.wayCount);
+
+    this.reader = new GraphRelationshipReader(this.graphDb, Main.GRAPH_RELATIONSHIP_PAGE_SIZE);
+    List<GraphRelationshipReader.ShardRange> idSpan = this.reader.getShardRanges(1);
+    this.minId = idSpan.get(0).startId;
+    this.maxId = idSpan.get(0).endId - 1;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.graphDb.shutdown();
+    FileUtils.deleteDirectory(this.graphDirectory.toFile());
+  }
+
+  @Benchmark
+  public long singleCursor(Blackhole blackhole) throws Exception {
+    return this.reader.readAssociatedDataRelationships((shard, pageNumber, relationships) -> readRelationships(blackhole, relationships));
+  }
+
+  // as GraphRelationshipReader reads graphDbShards
+  @Benchmark
+  public long shards(Blackhole blackhole) throws Exception {
+    return this.reader.readAssociatedDataRelationships(this.shardCount,
+        (shard, pageNumber, relationships) -> readRelationships(blackhole, relationships));
+  }
+
+  // as shards were read before - every id of the span sought, in a transaction per window
+  @Benchmark
+  public long idWindows(Blackhole blackhole) throws Exception {
+    long shardSize = (this.maxId - this.minId + this.shardCount) / this.shardCount;
+    ExecutorService shardExecutor = Executors.newFixedThreadPool(this.shardCount);
+    try {
+      List<Future<Long>> shardResults = new ArrayList<>();
+      for (int shard = 0; shard < this.shardCount; ++shard) {
+        long shardStartId = this.minId + shard * shardSize;
+        long shardEndId = Math.min(shardStartId + shardSize, this.maxId + 1);
+        shardResults.add(shardExecutor.submit(() -> readIdWindows(blackhole, shardStartId, shardEndId)));
+      }
+
+      long relationshipCount = 0;
+      for (Future<Long> shardResult : shardResults) {
+        relationshipCount += shardResult.get();
+      }
+      return relationshipCount;
+    } finally {
+      shardExecutor.shutdownNow();
+    }
+  }
+
+  private long readIdWindows(Blackhole blackhole, long startId, long endId) {
+    long relationshipCount = 0;
+    for (long windowStartId = startId; windowStartId < endId; windowStartId += Main.GRAPH_RELATIONSHIP_PAGE_SIZE) {
+      Map<String, Object> parameters = new HashMap<>();
+      parameters.put("windowStartId", windowStartId);
+      parameters.put("windowEndId", Math.min(windowStartId + Main.GRAPH_RELATIONSHIP_PAGE_SIZE, endId));
+
+      try (Transaction tx = this.graphDb.getTransaction()) {
+        Result result = tx.execute(ID_WINDOW_QUERY, parameters);
+        while (result.hasNext()) {
+          Relationship relationship = (Relationship) result.next().get("way");
+          blackhole.consume(relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+          ++relationshipCount;
+        }
+        result.close();
+        tx.commit();
+      }
+    }
+    return relationshipCount;
+  }
+
+  // touch the property every row serializer reads first
+  private static void readRelationships(Blackhole blackhole, List<Relationship> relationships) {
+    for (Relationship relationship : relationships) {
+      blackhole.consume(relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+    }
+  }
+
+}
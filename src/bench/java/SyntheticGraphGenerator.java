@@ -0,0 +1,200 @@
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.values.storable.CoordinateReferenceSystem;
+import org.neo4j.values.storable.Values;
+
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// builds a synthetic graph shaped like the fixture graph (INTERSECTION nodes joined by CONNECTS way
+//  relationships carrying a LINESTRING, OSM tags and associatedData payloads) at any size. Intersections
+//  are laid out on a square grid over San Francisco; each way joins an intersection to its neighbour. Every
+//  way carries every associatedData property, or only associatedDataFraction of ways do (e.g. to model a
+//  routing graph where associatedData is sparse). Output is deterministic for a given seed. Built in the bench
+//  profile, execute with:
+//   mvn -Pbench test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=SyntheticGraphGenerator -Dexec.args="<directory> <ways> [verticesPerWay] [properties] [payloadSize]"
+public class SyntheticGraphGenerator {
+
+  public static final int DEFAULT_VERTICES_PER_WAY = 8;
+
+  public static final int DEFAULT_PROPERTY_COUNT = 4;
+
+  // approximate characters of associatedData json per property
+  public static final int DEFAULT_PAYLOAD_SIZE = 200;
+
+  // ways and intersections created per transaction - keeps transaction state bounded at any graph size
+  private static final int TRANSACTION_SIZE = 10000;
+
+  private static final double MIN_LON = -122.52;
+
+  private static final double MIN_LAT = 37.70;
+
+  private static final double EXTENT = 0.12;
+
+  private static final String[] HIGHWAY_TYPES = { "residential", "secondary", "primary", "tertiary", "service", "footway" };
+
+  private int verticesPerWay = DEFAULT_VERTICES_PER_WAY;
+
+  private int propertyCount = DEFAULT_PROPERTY_COUNT;
+
+  private int payloadSize = DEFAULT_PAYLOAD_SIZE;
+
+  // share of ways carrying associatedData - the others only carry OSM tags
+  private double associatedDataFraction = 1;
+
+  private long seed = 42;
+
+  public static void main(String[] args) throws Exception {
+    SyntheticGraphGenerator generator = new SyntheticGraphGenerator();
+    if (args.length > 2) generator.setVerticesPerWay(Integer.parseInt(args[2]));
+    if (args.length > 3) generator.setPropertyCount(Integer.parseInt(args[3]));
+    if (args.length > 4) generator.setPayloadSize(Integer.parseInt(args[4]));
+
+    GraphDb graphDb = new GraphDb(args[0]);
+    try {
+      generator.generate(graphDb, Long.parseLong(args[1]));
+    } finally {
+      graphDb.shutdown();
+    }
+  }
+
+  public void setVerticesPerWay(int verticesPerWay) {
+    this.verticesPerWay = Math.max(2, verticesPerWay);
+  }
+
+  public void setPropertyCount(int propertyCount) {
+    this.propertyCount = Math.max(1, propertyCount);
+  }
+
+  public void setPayloadSize(int payloadSize) {
+    this.payloadSize = payloadSize;
+  }
+
+  public void setAssociatedDataFraction(double associatedDataFraction) {
+    this.associatedDataFraction = associatedDataFraction;
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  // names of the associatedData properties every way carries
+  public String[] getPropertyNames() {
+    String[] propertyNames = new String[this.propertyCount];
+    for (int i = 0; i < this.propertyCount; ++i) {
+      propertyNames[i] = String.format("synthetic_%s", i);
+    }
+    return propertyNames;
+  }
+
+  // adds wayCount ways (plus their intersections) to an empty graph
+  public void generate(GraphDb graphDb, long wayCount) {
+
+    long startTime = System.currentTimeMillis();
+    Random random = new Random(this.seed);
+    String[] propertyNames = getPropertyNames();
+
+    // ways run along grid rows, the last way of each row turns up to the next row - so intersection n is
+    //  joined to n + 1 or n + columns
+    long columns = Math.max(2, (long) Math.ceil(Math.sqrt(wayCount)));
+    long intersectionCount = wayCount + columns + 1;
+    double gridStep = EXTENT / columns;
+
+    // node ids of every intersection - looked up by id when ways are created in later transactions
+    long[] nodeIds = new long[(int) intersectionCount];
+    for (long batchStart = 0; batchStart < intersectionCount; batchStart += TRANSACTION_SIZE) {
+      try (Transaction tx = graphDb.getTransaction()) {
+        for (long n = batchStart; n < Math.min(intersectionCount, batchStart + TRANSACTION_SIZE); ++n) {
+          double lon = MIN_LON + (n % columns) * gridStep;
+          double lat = MIN_LAT + (n / columns) * gridStep;
+
+          Node intersection = tx.createNode(Label.label("INTERSECTION"));
+          intersection.setProperty("osm_id", n + 1);
+          intersection.setProperty("geom", Values.pointValue(CoordinateReferenceSystem.WGS84, lon, lat));
+          intersection.setProperty("geom_wkt", String.format("POINT(%s %s)", lon, lat));
+          nodeIds[(int) n] = intersection.getId();
+        }
+        tx.commit();
+      }
+    }
+
+    StringBuilder wkt = new StringBuilder();
+    for (long batchStart = 0; batchStart < wayCount; batchStart += TRANSACTION_SIZE) {
+      try (Transaction tx = graphDb.getTransaction()) {
+        for (long w = batchStart; w < Math.min(wayCount, batchStart + TRANSACTION_SIZE); ++w) {
+          long to = w % columns == columns - 1 ? w + columns : w + 1;
+          Node fromNode = tx.getNodeById(nodeIds[(int) w]);
+          Node toNode = tx.getNodeById(nodeIds[(int) to]);
+
+          Relationship way = fromNode.createRelationshipTo(toNode, RelationshipType.withName("CONNECTS"));
+          way.setProperty("osm_id", 1000000000L + w);
+          way.setProperty("way", getWayWkt(wkt, random, w, to, columns, gridStep));
+          way.setProperty("name", String.format("Synthetic Street %s", w / columns));
+          way.setProperty("highway", HIGHWAY_TYPES[(int) (w % HIGHWAY_TYPES.length)]);
+
+          // no draw at the default fraction, so full graphs are generated as before
+          if (this.associatedDataFraction < 1 && random.nextDouble() >= this.associatedDataFraction) continue;
+          way.setProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA, propertyNames);
+          for (String propertyName : propertyNames) {
+            way.setProperty(propertyName, getAssociatedDataJson(random, w));
+          }
+        }
+        tx.commit();
+      }
+
+      if ((batchStart / TRANSACTION_SIZE) % 100 == 99) {
+        System.out.println(String.format("generated %s of %s ways", batchStart + TRANSACTION_SIZE, wayCount));
+      }
+    }
+
+    System.out.println(String.format("generated %s ways (%s vertices, %s associatedData properties of ~%s characters each) in %s ms",
+        wayCount, this.verticesPerWay, this.propertyCount, this.payloadSize, System.currentTimeMillis() - startTime));
+  }
+
+  // straight line between the intersections with jittered interior vertices
+  private String getWayWkt(StringBuilder wkt, Random random, long from, long to, long columns, double gridStep) {
+    double fromLon = MIN_LON + (from % columns) * gridStep;
+    double fromLat = MIN_LAT + (from / columns) * gridStep;
+    double toLon = MIN_LON + (to % columns) * gridStep;
+    double toLat = MIN_LAT + (to / columns) * gridStep;
+
+    wkt.setLength(0);
+    wkt.append("LINESTRING(");
+    for (int v = 0; v < this.verticesPerWay; ++v) {
+      double fraction = (double) v / (this.verticesPerWay - 1);
+      boolean interior = v > 0 && v < this.verticesPerWay - 1;
+      double jitter = interior ? (random.nextDouble() - 0.5) * gridStep * 0.2 : 0;
+      if (v > 0) wkt.append(',');
+      wkt.append(fromLon + (toLon - fromLon) * fraction + jitter).append(' ').append(fromLat + (toLat - fromLat) * fraction + jitter);
+    }
+    return wkt.append(')').toString();
+  }
+
+  // single entry array with a field of each scalar type, padded to roughly payloadSize characters
+  private String getAssociatedDataJson(Random random, long w) {
+    JSONObject entry = new JSONObject();
+    entry.put("id", w);
+    entry.put("score", random.nextInt(10000) / 100.0);
+    entry.put("verified", random.nextBoolean());
+    entry.put("category", HIGHWAY_TYPES[random.nextInt(HIGHWAY_TYPES.length)]);
+
+    int paddingLength = this.payloadSize - entry.toString().length() - 14;
+    if (paddingLength > 0) {
+      StringBuilder padding = new StringBuilder(paddingLength);
+      for (int i = 0; i < paddingLength; ++i) {
+        padding.append((char) ('a' + random.nextInt(26)));
+      }
+      entry.put("description", padding.toString());
+    }
+
+    return new JSONArray().put(entry).toString();
+  }
+
+}
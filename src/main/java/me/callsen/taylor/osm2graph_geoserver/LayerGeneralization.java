@@ -0,0 +1,136 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+
+import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+
+// optional post-load stage - builds simplified copies of every published table at the tolerances configured
+//  in postgis.generalizationTolerances (degrees, finest first) and publishes each table with its copies as
+//  a `<table>_multires` layer group. Each layer in the group is styled to draw only within its scale range,
+//  so small scale (low zoom) GetMap requests render the coarse linework instead of full resolution.
+public class LayerGeneralization {
+
+  // OGC standardized rendering pixel size used by scale denominators
+  private static final double STANDARD_PIXEL_SIZE_METERS = 0.00028;
+
+  private static final double METERS_PER_DEGREE = 111319.49;
+
+  private double[] tolerances;
+
+  public LayerGeneralization(Config appConfig) {
+    JSONArray configuredTolerances = appConfig.getDbConfig().optJSONArray("generalizationTolerances");
+    this.tolerances = new double[configuredTolerances != null ? configuredTolerances.length() : 0];
+    for (int i = 0; i < this.tolerances.length; ++i) {
+      this.tolerances[i] = configuredTolerances.getDouble(i);
+    }
+  }
+
+  public boolean isEnabled() {
+    return this.tolerances.length > 0;
+  }
+
+  public void buildGeneralizedTables(PostgisDb postgisDb, Collection<String> tableNames,
+      Map<String, VisualizationTableStats> tableStats) throws Exception {
+
+    for (String tableName : tableNames) {
+      VisualizationTableStats stats = tableStats.get(tableName);
+      for (int level = 0; level < this.tolerances.length; ++level) {
+        long startTime = System.currentTimeMillis();
+        long vertexCount = postgisDb.createGeneralizedTable(tableName, getGeneralizedTableName(tableName, level), this.tolerances[level]);
+
+        System.out.println(String.format("generalized %s at tolerance %s in %s ms: %s vertices%s", tableName, this.tolerances[level],
+            System.currentTimeMillis() - startTime, vertexCount,
+            stats != null && stats.getVertexCount() > 0 ? String.format(" (%s%% of full resolution)", vertexCount * 100 / stats.getVertexCount()) : ""));
+      }
+    }
+  }
+
+  // publishes the generalized tables and one layer group per table - the full resolution feature types must
+  //  already exist
+  public void publish(GeoServerRestApi geoServer, Collection<String> tableNames, Map<String, VisualizationTableStats> tableStats,
+      int concurrency) throws Exception {
+
+    // simplification stays within the source envelope, so the source bounding box is reused
+    List<String> generalizedTableNames = new ArrayList<>();
+    Map<String, VisualizationTableStats> generalizedTableStats = new HashMap<>();
+    for (Map.Entry<String, List<String>> generalizedTables : getGeneralizedTableNames(tableNames).entrySet()) {
+      generalizedTableNames.addAll(generalizedTables.getValue());
+      for (String generalizedTableName : generalizedTables.getValue()) {
+        if (tableStats.containsKey(generalizedTables.getKey())) {
+          generalizedTableStats.put(generalizedTableName, tableStats.get(generalizedTables.getKey()));
+        }
+      }
+    }
+    geoServer.createFeatureTypes(generalizedTableNames, generalizedTableStats, concurrency);
+
+    // one style per scale band - full resolution below the first band, each copy up to the next band
+    List<String> styleNames = new ArrayList<>();
+    for (int level = -1; level < this.tolerances.length; ++level) {
+      String styleName = getScaleBandStyleName(level);
+      double minScaleDenominator = level < 0 ? 0 : getMinScaleDenominator(this.tolerances[level]);
+      double maxScaleDenominator = level + 1 < this.tolerances.length ? getMinScaleDenominator(this.tolerances[level + 1]) : Double.POSITIVE_INFINITY;
+      geoServer.createStyle(styleName, getScaleBandSld(styleName, minScaleDenominator, maxScaleDenominator));
+      styleNames.add(styleName);
+    }
+
+    for (String tableName : tableNames) {
+      List<String> layerNames = new ArrayList<>();
+      layerNames.add(tableName);
+      for (int level = 0; level < this.tolerances.length; ++level) {
+        layerNames.add(getGeneralizedTableName(tableName, level));
+      }
+      System.out.println("creating geoserver layer group '" + tableName + "_multires'");
+      geoServer.createLayerGroup(tableName + "_multires", layerNames, styleNames);
+    }
+  }
+
+  // table name -> its generalized table names, finest first (none if generalization is disabled)
+  public Map<String, List<String>> getGeneralizedTableNames(Collection<String> tableNames) {
+    Map<String, List<String>> generalizedTableNames = new LinkedHashMap<>();
+    for (String tableName : tableNames) {
+      List<String> levelTableNames = new ArrayList<>();
+      for (int level = 0; level < this.tolerances.length; ++level) {
+        levelTableNames.add(getGeneralizedTableName(tableName, level));
+      }
+      generalizedTableNames.put(tableName, levelTableNames);
+    }
+    return generalizedTableNames;
+  }
+
+  public static String getGeneralizedTableName(String tableName, int level) {
+    return PostgisDb.getIdentifier(tableName, "gen" + (level + 1));
+  }
+
+  // smallest scale at which a tolerance stays below one rendered pixel
+  static double getMinScaleDenominator(double tolerance) {
+    return tolerance * METERS_PER_DEGREE / STANDARD_PIXEL_SIZE_METERS;
+  }
+
+  private String getScaleBandStyleName(int level) {
+    return level < 0 ? "multires_full" : String.format("multires_gen%s_%s", level + 1, Math.round(getMinScaleDenominator(this.tolerances[level])));
+  }
+
+  private static String getScaleBandSld(String styleName, double minScaleDenominator, double maxScaleDenominator) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<StyledLayerDescriptor version=\"1.0.0\" xmlns=\"http://www.opengis.net/sld\" xmlns:ogc=\"http://www.opengis.net/ogc\">" +
+        "<NamedLayer><Name>" + styleName + "</Name><UserStyle><Title>" + styleName + "</Title><FeatureTypeStyle><Rule>" +
+          (minScaleDenominator > 0 ? "<MinScaleDenominator>" + minScaleDenominator + "</MinScaleDenominator>" : "") +
+          (Double.isFinite(maxScaleDenominator) ? "<MaxScaleDenominator>" + maxScaleDenominator + "</MaxScaleDenominator>" : "") +
+          "<LineSymbolizer><Stroke>" +
+            "<CssParameter name=\"stroke\">#3366CC</CssParameter>" +
+            "<CssParameter name=\"stroke-width\">1</CssParameter>" +
+          "</Stroke></LineSymbolizer>" +
+        "</Rule></FeatureTypeStyle></UserStyle></NamedLayer>" +
+      "</StyledLayerDescriptor>";
+  }
+
+}
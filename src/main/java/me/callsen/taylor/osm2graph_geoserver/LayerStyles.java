@@ -0,0 +1,221 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+import me.callsen.taylor.osm2graph_geoserver.lib.QuantileSketch;
+
+// optional post-publish stage - generates a data driven default style for every published layer from the value
+//  sketches gathered while loading (geoserver.styles), so no table is scanned to class it. Layers are classed
+//  into quantile breaks of one numeric typed column - a plain column compared by the filters, never the json.
+//  Each class has a detail and an overview rule split at detailScaleDenominator, drawn thinner at small
+//  scales, and nothing is drawn beyond maxScaleDenominator if set. Layers without a numeric typed column (or
+//  stats) get a single class style.
+public class LayerStyles {
+
+  public static final int DEFAULT_CLASS_COUNT = 5;
+
+  public static final double DEFAULT_DETAIL_SCALE_DENOMINATOR = 50000;
+
+  // sequential yellow - red ramp, interpolated to the class count
+  private static final String[] DEFAULT_PALETTE = { "#ffffb2", "#fecc5c", "#fd8d3c", "#f03b20", "#bd0026" };
+
+  private static final String SINGLE_CLASS_COLOR = "#3366cc";
+
+  private static final String NO_VALUE_COLOR = "#999999";
+
+  private static final double DETAIL_STROKE_WIDTH = 2.5;
+
+  private static final double OVERVIEW_STROKE_WIDTH = 1;
+
+  private int classCount;
+
+  private double detailScaleDenominator;
+
+  private double maxScaleDenominator;
+
+  private String[] palette;
+
+  // layer name -> column (or associatedData field) to class by
+  private JSONObject fields;
+
+  public LayerStyles(Config appConfig) {
+    JSONObject stylesConfig = appConfig.getGeoServerConfig().optJSONObject("styles");
+    if (stylesConfig == null) stylesConfig = new JSONObject();
+
+    this.classCount = Math.max(1, stylesConfig.optInt("classes", DEFAULT_CLASS_COUNT));
+    this.detailScaleDenominator = stylesConfig.optDouble("detailScaleDenominator", DEFAULT_DETAIL_SCALE_DENOMINATOR);
+    this.maxScaleDenominator = stylesConfig.optDouble("maxScaleDenominator", Double.POSITIVE_INFINITY);
+    this.fields = stylesConfig.optJSONObject("fields");
+    if (this.fields == null) this.fields = new JSONObject();
+
+    JSONArray configuredPalette = stylesConfig.optJSONArray("palette");
+    this.palette = new String[configuredPalette != null && configuredPalette.length() > 0 ? configuredPalette.length() : DEFAULT_PALETTE.length];
+    for (int i = 0; i < this.palette.length; ++i) {
+      this.palette[i] = configuredPalette != null && configuredPalette.length() > 0 ? configuredPalette.getString(i) : DEFAULT_PALETTE[i];
+    }
+  }
+
+  public static boolean isEnabled(Config appConfig) {
+    return appConfig.getGeoServerConfig().optJSONObject("styles") != null;
+  }
+
+  // uploads a `<layer>_auto` style per layer and makes it the layer's default style - returns the number of
+  //  layers styled. Generalized copies of a layer (see LayerGeneralization) are classed as the layer is.
+  public int publish(GeoServerRestApi geoServer, Collection<String> layerNames, Map<String, VisualizationTableStats> layerStats,
+      Map<String, List<String>> generalizedLayerNames) {
+
+    int layersStyled = 0;
+    for (String layerName : layerNames) {
+      VisualizationTableStats stats = layerStats.get(layerName);
+      Map<String, QuantileSketch> sketches = stats != null ? stats.getValueSketches() : null;
+      String columnName = sketches != null ? getClassifiedColumn(layerName, sketches) : null;
+      double[] breaks = columnName != null ? getClassBreaks(sketches.get(columnName)) : new double[0];
+      // a single repeated value (below every quantile) can not be classed
+      if (breaks.length == 0) columnName = null;
+
+      List<String> styledLayerNames = new ArrayList<>();
+      styledLayerNames.add(layerName);
+      styledLayerNames.addAll(generalizedLayerNames.getOrDefault(layerName, Collections.emptyList()));
+      for (String styledLayerName : styledLayerNames) {
+        String styleName = styledLayerName + "_auto";
+        if (!geoServer.uploadStyle(styleName, getSld(styleName, columnName, breaks))) continue;
+        if (!geoServer.assignDefaultStyle(styledLayerName, styleName)) continue;
+        ++layersStyled;
+
+        System.out.println(String.format("styled geoserver layer '%s' with %s", styledLayerName,
+            columnName != null ? String.format("%s classes of %s", breaks.length + 1, columnName) : "a single class"));
+      }
+    }
+    return layersStyled;
+  }
+
+  // the configured column, otherwise the numeric column with the most values
+  String getClassifiedColumn(String layerName, Map<String, QuantileSketch> sketches) {
+    String configuredField = this.fields.optString(layerName, null);
+    if (configuredField != null) {
+      if (sketches.containsKey(configuredField)) return configuredField;
+      if (sketches.containsKey(AssociatedDataSchema.COLUMN_PREFIX + configuredField)) return AssociatedDataSchema.COLUMN_PREFIX + configuredField;
+      System.out.println(String.format("no value stats for column '%s' of layer '%s' - classing by another column", configuredField, layerName));
+    }
+
+    String classifiedColumn = null;
+    long classifiedCount = 0;
+    for (Map.Entry<String, QuantileSketch> sketch : sketches.entrySet()) {
+      if (sketch.getValue().getMin() < sketch.getValue().getMax() && sketch.getValue().getCount() > classifiedCount) {
+        classifiedColumn = sketch.getKey();
+        classifiedCount = sketch.getValue().getCount();
+      }
+    }
+    return classifiedColumn;
+  }
+
+  // ascending, distinct quantile breaks between classCount classes - fewer if values repeat
+  public double[] getClassBreaks(QuantileSketch sketch) {
+    double[] fractions = new double[this.classCount - 1];
+    for (int i = 0; i < fractions.length; ++i) {
+      fractions[i] = (double) (i + 1) / this.classCount;
+    }
+
+    List<Double> breaks = new ArrayList<>();
+    for (double quantile : sketch.getQuantiles(fractions)) {
+      // a break at the min would leave the first class empty
+      if (quantile > sketch.getMin() && (breaks.isEmpty() || quantile > breaks.get(breaks.size() - 1))) {
+        breaks.add(quantile);
+      }
+    }
+
+    double[] classBreaks = new double[breaks.size()];
+    for (int i = 0; i < classBreaks.length; ++i) {
+      classBreaks[i] = breaks.get(i);
+    }
+    return classBreaks;
+  }
+
+  // columnName null for a single class style, otherwise breaks holds at least one break
+  public String getSld(String styleName, String columnName, double[] breaks) {
+    StringBuilder rules = new StringBuilder();
+
+    // detail rules up to detailScaleDenominator, overview rules beyond it
+    double[][] scaleBands = {
+      { 0, this.detailScaleDenominator, DETAIL_STROKE_WIDTH },
+      { this.detailScaleDenominator, this.maxScaleDenominator, OVERVIEW_STROKE_WIDTH }
+    };
+    for (double[] scaleBand : scaleBands) {
+      if (scaleBand[0] >= scaleBand[1]) continue;
+
+      if (columnName == null) {
+        appendRule(rules, styleName, null, scaleBand, SINGLE_CLASS_COLOR);
+        continue;
+      }
+      for (int i = 0; i <= breaks.length; ++i) {
+        String filter = i == 0 ? getComparison("PropertyIsLessThan", columnName, breaks[0])
+            : i == breaks.length ? getComparison("PropertyIsGreaterThanOrEqualTo", columnName, breaks[i - 1])
+            : "<ogc:And>" + getComparison("PropertyIsGreaterThanOrEqualTo", columnName, breaks[i - 1]) +
+                getComparison("PropertyIsLessThan", columnName, breaks[i]) + "</ogc:And>";
+        String title = i == 0 ? "< " + breaks[0] : i == breaks.length ? ">= " + breaks[i - 1] : breaks[i - 1] + " - " + breaks[i];
+        appendRule(rules, title, filter, scaleBand, getClassColor(i, breaks.length + 1));
+      }
+      // rows without a value
+      appendRule(rules, "no " + columnName, "<ogc:PropertyIsNull><ogc:PropertyName>" + columnName + "</ogc:PropertyName></ogc:PropertyIsNull>",
+          scaleBand, NO_VALUE_COLOR);
+    }
+
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+      "<StyledLayerDescriptor version=\"1.0.0\" xmlns=\"http://www.opengis.net/sld\" xmlns:ogc=\"http://www.opengis.net/ogc\">" +
+        "<NamedLayer><Name>" + styleName + "</Name><UserStyle><Title>" + styleName + "</Title><FeatureTypeStyle>" +
+          rules +
+        "</FeatureTypeStyle></UserStyle></NamedLayer>" +
+      "</StyledLayerDescriptor>";
+  }
+
+  private static void appendRule(StringBuilder rules, String title, String filter, double[] scaleBand, String color) {
+    rules.append("<Rule><Title>").append(title.replace("<", "&lt;").replace(">", "&gt;")).append("</Title>");
+    if (filter != null) {
+      rules.append("<ogc:Filter>").append(filter).append("</ogc:Filter>");
+    }
+    if (scaleBand[0] > 0) {
+      rules.append("<MinScaleDenominator>").append(scaleBand[0]).append("</MinScaleDenominator>");
+    }
+    if (Double.isFinite(scaleBand[1])) {
+      rules.append("<MaxScaleDenominator>").append(scaleBand[1]).append("</MaxScaleDenominator>");
+    }
+    rules.append("<LineSymbolizer><Stroke>")
+        .append("<CssParameter name=\"stroke\">").append(color).append("</CssParameter>")
+        .append("<CssParameter name=\"stroke-width\">").append(scaleBand[2]).append("</CssParameter>")
+        .append("</Stroke></LineSymbolizer></Rule>");
+  }
+
+  private static String getComparison(String operator, String columnName, double value) {
+    return "<ogc:" + operator + "><ogc:PropertyName>" + columnName + "</ogc:PropertyName><ogc:Literal>" + value + "</ogc:Literal></ogc:" + operator + ">";
+  }
+
+  // palette color of class index out of classes, interpolated between palette entries
+  private String getClassColor(int index, int classes) {
+    if (classes == 1 || this.palette.length == 1) return this.palette[this.palette.length - 1];
+
+    double position = (double) index / (classes - 1) * (this.palette.length - 1);
+    int lower = Math.min(this.palette.length - 2, (int) position);
+    double weight = position - lower;
+    int lowerColor = Integer.parseInt(this.palette[lower].substring(1), 16);
+    int upperColor = Integer.parseInt(this.palette[lower + 1].substring(1), 16);
+
+    int color = 0;
+    for (int shift = 16; shift >= 0; shift -= 8) {
+      int lowerChannel = (lowerColor >> shift) & 0xFF;
+      int upperChannel = (upperColor >> shift) & 0xFF;
+      color |= (int) Math.round(lowerChannel + (upperChannel - lowerChannel) * weight) << shift;
+    }
+    return String.format("#%06x", color);
+  }
+
+}
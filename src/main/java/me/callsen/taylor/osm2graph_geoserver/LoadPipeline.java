@@ -0,0 +1,686 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.LoadCheckpoint;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisCopyWriter;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowBatch;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowFormat;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowSerializer;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableSync;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+
+// producer/consumer load pipeline - graph readers serialize relationships into per table row batches,
+//  which are queued for a pool of PostGIS writers that each hold their own connection. Tables are striped
+//  across writers by name so a table is only ever created and written by one writer. Writer queues are
+//  bounded, so readers block (backpressure) once PostGIS ingest falls behind.
+public class LoadPipeline {
+
+  // batch size in characters of COPY text
+  public static final int DEFAULT_BATCH_SIZE = 4 * 1024 * 1024;
+
+  // batches queued per writer before the reader blocks
+  public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+  // rows with invalid associatedData json are logged individually up to this many, then only counted
+  private static final int MAX_REJECTED_ROWS_LOGGED = 10;
+
+  // time abort waits for each writer to stop
+  private static final long ABORT_TIMEOUT_MS = 10000;
+
+  // marks the end of input on a writer queue
+  private static final VisualizationRowBatch END_OF_INPUT = new VisualizationRowBatch(null, null, null, null);
+
+  // layer (table or view) names to publish to GeoServer
+  private Set<String> visDataTablesCreated;
+
+  // layer name -> envelope, row and vertex count of the rows written
+  private Map<String, VisualizationTableStats> visDataTableStats;
+
+  // every table created by the pipeline's writers
+  private Set<String> tablesCreated = ConcurrentHashMap.newKeySet();
+
+  private List<RowProducer> producers = new ArrayList<>();
+
+  private int batchSize;
+
+  // incremental sync: skip unchanged rows, upsert changed rows and delete rows no longer in the graph
+  private boolean incrementalSync;
+
+  // normalized layout: shared ways table plus slim per property tables published through views - null
+  //  for the default layout of one full table per associatedData property
+  private String waysTableName;
+
+  // staged table lifecycle (full sync only): rows are loaded into UNLOGGED staging tables, which are
+  //  indexed, analyzed, set LOGGED and then swapped in for the live tables in a single transaction
+  private boolean stagedLoad;
+
+  // full sync only: rows are rewritten in Hilbert curve order once loaded (see PostgisDb.finishVisualizationTableLoad)
+  private boolean clusterRows;
+
+  // partitioned layout: visualization tables are split into partitions of partitionCellSize degree grid cells,
+  //  each loaded as a table of its own (in parallel across writers, and replaced one at a time when staged) -
+  //  0 when not partitioned
+  private double partitionCellSize;
+
+  // partition table name -> partition, added by producers as partitions are first seen
+  private Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+  // live table names of staging tables loaded during this run
+  private Set<String> stagedTables = ConcurrentHashMap.newKeySet();
+
+  // normalized layout - attribute table -> view, recreated after the swap drops them
+  private Map<String, String> attributeViews = new ConcurrentHashMap<>();
+
+  // typed columns promoted out of the associatedData json - empty unless postgis.typedColumns is enabled
+  private AssociatedDataSchema associatedDataSchema;
+
+  // sketch typed column values into the table stats for generated layer styles (see LayerStyles)
+  private boolean collectValueStats;
+
+  // records tables written for resumed loads - null when the load is not checkpointed
+  private LoadCheckpoint checkpoint;
+
+  // resumed load: rows past the checkpoint are deleted from each table before it is written to, and staging
+  //  tables of the failed run are loaded into rather than replaced
+  private String unwrittenRowsPredicate;
+
+  private Config appConfig;
+
+  private String postgisUrl;
+
+  // the run's metrics - handed on to the writers' connections
+  private Metrics metrics;
+
+  private List<BlockingQueue<VisualizationRowBatch>> writerQueues = new ArrayList<>();
+
+  private List<Thread> writerThreads = new ArrayList<>();
+
+  // connection of each writer - closed by the writer once its queue ends, or by abort
+  private List<PostgisDb> writerDbs = new ArrayList<>();
+
+  // written batches are handed back to producers for reuse - avoids reallocating multi-megabyte buffers
+  private Queue<VisualizationRowBatch> recycledBatches = new ConcurrentLinkedQueue<>();
+
+  private AtomicLong rowsWritten = new AtomicLong();
+
+  // rows left out because PostgreSQL would reject their associatedData json
+  private AtomicLong rowsRejected = new AtomicLong();
+
+  private volatile Exception writerFailure;
+
+  // set by abort - writers stop without finishing their tables
+  private volatile boolean aborted;
+
+  // visDataTablesCreated and visDataTableStats must be safe for concurrent use - writers add to them as they
+  //  create and write tables
+  public LoadPipeline(Config appConfig, String postgisUrl, Set<String> visDataTablesCreated,
+      Map<String, VisualizationTableStats> visDataTableStats, AssociatedDataSchema associatedDataSchema, Metrics metrics) throws Exception {
+
+    JSONObject dbConfig = appConfig.getDbConfig();
+    int writerCount = dbConfig.optInt("writerThreads", 1);
+    int queueCapacity = dbConfig.optInt("queueCapacity", DEFAULT_QUEUE_CAPACITY);
+    this.batchSize = dbConfig.optInt("copyBatchSize", DEFAULT_BATCH_SIZE);
+    this.incrementalSync = dbConfig.optString("syncMode", "full").equals("incremental");
+    this.stagedLoad = !this.incrementalSync && dbConfig.optString("tableLifecycle", "staged").equals("staged");
+    this.clusterRows = !this.incrementalSync && isHilbertClustered(appConfig);
+    this.visDataTablesCreated = visDataTablesCreated;
+    this.visDataTableStats = visDataTableStats;
+    this.associatedDataSchema = associatedDataSchema != null ? associatedDataSchema : new AssociatedDataSchema();
+    this.collectValueStats = LayerStyles.isEnabled(appConfig);
+    this.appConfig = appConfig;
+    this.postgisUrl = postgisUrl;
+    this.metrics = metrics;
+
+    if (dbConfig.optString("layout", "denormalized").equals("normalized")) {
+      this.waysTableName = String.format("%s_ways", appConfig.getString("osmId"));
+      PostgisDb.checkTableName(this.waysTableName);
+    }
+
+    // options are validated up front by Main.checkLoadOptions, before any writer is started
+    this.partitionCellSize = dbConfig.optDouble("partitionCellSize", 0);
+
+    System.out.println(String.format("starting load pipeline with %s PostGIS writer(s)%s%s%s%s%s", writerCount,
+        this.waysTableName != null ? ", normalized layout" : "",
+        this.partitionCellSize > 0 ? String.format(", partitioned by %s degree cells", this.partitionCellSize) : "",
+        this.stagedLoad ? ", staged tables" : "",
+        this.clusterRows ? ", Hilbert clustered" : "",
+        this.incrementalSync ? ", incremental sync mode" : ""));
+
+    try {
+      for (int i = 0; i < writerCount; ++i) {
+        PostgisDb writerDb = new PostgisDb(appConfig, postgisUrl);
+        writerDb.setMetrics(metrics);
+        this.writerDbs.add(writerDb);
+      }
+
+      // shared ways table is created up front - attribute table views of every writer depend on it
+      if (this.waysTableName != null) {
+        this.writerDbs.get(0).createWaysTable(this.waysTableName);
+        this.tablesCreated.add(this.waysTableName);
+      }
+    } catch (Exception e) {
+      closeWriterDbs();
+      throw e;
+    }
+
+    for (int i = 0; i < writerCount; ++i) {
+      BlockingQueue<VisualizationRowBatch> writerQueue = new ArrayBlockingQueue<>(queueCapacity);
+      PostgisDb writerDb = this.writerDbs.get(i);
+
+      // daemon threads, so a writer left waiting on its queue can never keep the JVM alive - failed loads stop
+      //  their writers through abort
+      Thread writerThread = new Thread(() -> runWriter(writerDb, writerQueue), "postgis-writer-" + i);
+      writerThread.setDaemon(true);
+      writerThread.start();
+
+      this.writerQueues.add(writerQueue);
+      this.writerThreads.add(writerThread);
+      this.metrics.registerGauge(String.format("pipeline.writer%s.queued_batches", i), writerQueue::size);
+    }
+  }
+
+  // checkpointed load - must be set before any rows are added. When resuming, every table written by the
+  //  failed run is registered, so tables without rows left to load are still finished and swapped in.
+  public void setCheckpoint(LoadCheckpoint checkpoint) throws Exception {
+    this.checkpoint = checkpoint;
+    this.unwrittenRowsPredicate = checkpoint.getUnwrittenRowsPredicate();
+
+    if (this.unwrittenRowsPredicate != null) {
+      RowProducer producer = createProducer();
+      for (LoadCheckpoint.TableEntry table : checkpoint.getTables()) {
+        producer.addTable(table);
+      }
+    }
+  }
+
+  // each reader thread takes its own producer
+  public synchronized RowProducer createProducer() {
+    RowProducer producer = new RowProducer();
+    this.producers.add(producer);
+    return producer;
+  }
+
+  // flushes remaining batches and waits for writers to drain - returns the number of rows written
+  //  (must only be called once all readers are done with their producers)
+  public long finish() throws Exception {
+
+    for (RowProducer producer : this.producers) {
+      producer.flush();
+    }
+
+    for (BlockingQueue<VisualizationRowBatch> writerQueue : this.writerQueues) {
+      writerQueue.put(END_OF_INPUT);
+    }
+    for (Thread writerThread : this.writerThreads) {
+      writerThread.join();
+    }
+    for (int i = 0; i < this.writerQueues.size(); ++i) {
+      this.metrics.unregisterGauge(String.format("pipeline.writer%s.queued_batches", i));
+    }
+
+    if (this.writerFailure != null) {
+      throw this.writerFailure;
+    }
+
+    if (this.rowsRejected.get() > 0) {
+      System.out.println(String.format("skipped %s row(s) with invalid associatedData json", this.rowsRejected.get()));
+    }
+
+    if (this.stagedLoad) {
+      swapStagingTables();
+    }
+    if (this.checkpoint != null) {
+      this.checkpoint.clear();
+    }
+
+    return this.rowsWritten.get();
+  }
+
+  // stops the writers of a failed load - queued batches are discarded, tables are left unfinished (staging
+  //  tables are not swapped in) and the writer connections are closed. Producers blocked on a full queue or
+  //  waiting for a checkpoint are released. Safe to call at any point, and more than once.
+  public void abort() {
+
+    if (this.aborted) return;
+    this.aborted = true;
+
+    // queues are cleared until the end of input fits - producers may still be adding batches
+    for (BlockingQueue<VisualizationRowBatch> writerQueue : this.writerQueues) {
+      do {
+        List<VisualizationRowBatch> discarded = new ArrayList<>();
+        writerQueue.drainTo(discarded);
+        for (VisualizationRowBatch batch : discarded) {
+          if (batch instanceof CheckpointBarrier) {
+            ((CheckpointBarrier) batch).written.countDown();
+          }
+        }
+      } while (!writerQueue.offer(END_OF_INPUT));
+    }
+
+    // a writer busy with a COPY stops once its connection is closed
+    for (Thread writerThread : this.writerThreads) {
+      writerThread.interrupt();
+    }
+    closeWriterDbs();
+    for (Thread writerThread : this.writerThreads) {
+      try {
+        writerThread.join(ABORT_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    for (int i = 0; i < this.writerQueues.size(); ++i) {
+      this.metrics.unregisterGauge(String.format("pipeline.writer%s.queued_batches", i));
+    }
+
+    System.out.println(String.format("FAILED load - stopped %s PostGIS writer(s) without finishing their tables", this.writerThreads.size()));
+  }
+
+  private void closeWriterDbs() {
+    for (PostgisDb writerDb : this.writerDbs) {
+      try {
+        writerDb.close();
+      } catch (SQLException e) {
+        System.out.println("FAILED to close PostGIS writer connection: " + e.getMessage());
+      }
+    }
+  }
+
+  // replaces every live table with its staging table in one transaction - GeoServer either sees the previous
+  //  run's tables or the fully loaded and indexed new ones, never a partially loaded table
+  private void swapStagingTables() throws Exception {
+
+    if (this.stagedTables.isEmpty()) return;
+
+    PostgisDb postgisDb = new PostgisDb(this.appConfig, this.postgisUrl);
+    postgisDb.setMetrics(this.metrics);
+    try {
+      List<String> tableSwapSql = new ArrayList<>();
+      Set<String> droppedTables = new HashSet<>(this.stagedTables);
+      Set<String> partitionedTables = new HashSet<>();
+      for (String tableName : this.stagedTables) {
+        Partition partition = this.partitions.get(tableName);
+        if (partition != null) {
+          tableSwapSql.addAll(postgisDb.getStagingPartitionSwapSql(getStagingTableName(tableName), tableName, partition.tableName, partition.gridCell));
+          partitionedTables.add(partition.tableName);
+        } else {
+          tableSwapSql.addAll(postgisDb.getStagingTableSwapSql(getStagingTableName(tableName), tableName));
+        }
+      }
+
+      // partitions without rows in this run would otherwise keep the previous run's rows
+      for (String tableName : partitionedTables) {
+        for (String partitionTableName : postgisDb.getPartitionTableNames(tableName)) {
+          if (!this.stagedTables.contains(partitionTableName)) {
+            tableSwapSql.add(String.format("DROP TABLE %s.\"%s\"", postgisDb.getPostgisSchema(), partitionTableName));
+            droppedTables.add(partitionTableName);
+          }
+        }
+      }
+
+      // tables are dropped without CASCADE - normalized layout views over the live ways and attribute tables
+      //  are dropped first and recreated, any other dependent object fails the swap
+      List<String> swapSql = new ArrayList<>(postgisDb.getAttributeViewDropSql(droppedTables));
+      swapSql.addAll(tableSwapSql);
+      for (Map.Entry<String, String> attributeView : this.attributeViews.entrySet()) {
+        swapSql.add(postgisDb.getVisualizationAttributeViewSql(attributeView.getKey(), this.waysTableName, attributeView.getValue()));
+      }
+
+      // a swapped load must not be resumed - its staging tables are gone
+      if (this.checkpoint != null) {
+        swapSql.addAll(this.checkpoint.getClearSql());
+      }
+
+      long startTime = System.currentTimeMillis();
+      postgisDb.executeTransaction(swapSql);
+      System.out.println(String.format("swapped %s staging table(s) into place in %s ms", this.stagedTables.size(),
+          System.currentTimeMillis() - startTime));
+    } finally {
+      postgisDb.close();
+    }
+  }
+
+  public static boolean isHilbertClustered(Config appConfig) {
+    return appConfig.getDbConfig().optString("clusterOrder", "none").equals("hilbert");
+  }
+
+  private static String getStagingTableName(String tableName) {
+    return PostgisDb.getIdentifier(tableName, "staging");
+  }
+
+  private static String getPartitionTableName(String tableName, long gridCell) {
+    return PostgisDb.getIdentifier(tableName, gridCell < 0 ? "pnull" : "p" + gridCell);
+  }
+
+  // partitions of one table are spread across writers - the first writer to load a partition creates the
+  //  partitioned table
+  private void createPartitionedTable(PostgisDb postgisDb, VisualizationRowBatch batch) throws SQLException {
+    synchronized (this.tablesCreated) {
+      if (this.tablesCreated.contains(batch.getLayerName())) return;
+
+      postgisDb.createVisualizationTable(batch.getAssociatedDataProperty(), batch.getLayerName(), true, batch.getTypedColumns());
+      if (this.stagedLoad && this.unwrittenRowsPredicate == null) {
+        postgisDb.restartVisualizationTableSequence(batch.getLayerName());
+      }
+      this.tablesCreated.add(batch.getLayerName());
+    }
+  }
+
+  private void submit(VisualizationRowBatch batch) throws InterruptedException {
+    int stripe = Math.floorMod(batch.getAssociatedDataPropertyTableName().hashCode(), this.writerQueues.size());
+    BlockingQueue<VisualizationRowBatch> writerQueue = this.writerQueues.get(stripe);
+
+    // queue depth seen by producers, and time spent blocked on a full queue (backpressure)
+    this.metrics.recordValue("pipeline.queue_depth", writerQueue.size());
+    long startTime = System.nanoTime();
+    writerQueue.put(batch);
+    this.metrics.recordTime("pipeline.submit_wait", startTime);
+  }
+
+  private void runWriter(PostgisDb postgisDb, BlockingQueue<VisualizationRowBatch> writerQueue) {
+
+    PostgisCopyWriter copyWriter = null;
+    try {
+      copyWriter = new PostgisCopyWriter(postgisDb);
+    } catch (SQLException e) {
+      recordFailure(e);
+    }
+
+    // tables owned by this writer and the sync state of each (incremental sync only)
+    Map<String, VisualizationRowFormat> writerTables = new HashMap<>();
+    Map<String, VisualizationTableSync> tableSyncs = new HashMap<>();
+
+    try {
+      VisualizationRowBatch batch;
+      while ((batch = writerQueue.take()) != END_OF_INPUT) {
+
+        if (batch instanceof CheckpointBarrier) {
+          ((CheckpointBarrier) batch).written.countDown();
+          continue;
+        }
+
+        // after a failure keep draining the queue so the reader never blocks on a dead writer
+        if (this.writerFailure != null || this.aborted) continue;
+
+        try {
+          writeBatch(postgisDb, copyWriter, writerTables, tableSyncs, batch);
+        } catch (Exception e) {
+          recordFailure(e);
+        }
+      }
+
+      // deletes are only safe once every row of the run has been seen - indexes are built once the table
+      //  is fully loaded, which is considerably cheaper than maintaining them row by row
+      if (this.writerFailure == null && !this.aborted) {
+        for (Map.Entry<String, VisualizationRowFormat> writerTable : writerTables.entrySet()) {
+          String tableName = writerTable.getKey();
+          if (this.incrementalSync) {
+            tableSyncs.get(tableName).finish(copyWriter);
+          }
+          if (this.stagedLoad && this.partitions.containsKey(tableName)) {
+            postgisDb.createPartitionGridCellCheck(getStagingTableName(tableName), this.partitions.get(tableName).gridCell);
+          }
+          postgisDb.finishVisualizationTableLoad(this.stagedLoad ? getStagingTableName(tableName) : tableName,
+              writerTable.getValue(), this.stagedLoad, this.clusterRows);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      recordFailure(e);
+    } finally {
+      try {
+        postgisDb.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void writeBatch(PostgisDb postgisDb, PostgisCopyWriter copyWriter, Map<String, VisualizationRowFormat> writerTables,
+      Map<String, VisualizationTableSync> tableSyncs, VisualizationRowBatch batch) throws Exception {
+
+    String associatedDataPropertyTableName = batch.getAssociatedDataPropertyTableName();
+
+    // create table in PostGIS if it has not already been created - tables are striped by name, so no other
+    //  writer will attempt to create this table
+    Partition partition = this.partitions.get(associatedDataPropertyTableName);
+    if (!this.tablesCreated.contains(associatedDataPropertyTableName)) {
+      if (batch.getFormat() == VisualizationRowFormat.ATTRIBUTE) {
+        postgisDb.createVisualizationAttributeTable(batch.getAssociatedDataProperty(), associatedDataPropertyTableName,
+            this.waysTableName, batch.getLayerName());
+      } else if (partition != null) {
+        createPartitionedTable(postgisDb, batch);
+        // staged partitions are attached once loaded
+        if (!this.stagedLoad) {
+          postgisDb.createVisualizationTablePartition(partition.tableName, associatedDataPropertyTableName, partition.gridCell);
+        }
+      } else {
+        postgisDb.createVisualizationTable(batch.getAssociatedDataProperty(), associatedDataPropertyTableName, false, batch.getTypedColumns());
+      }
+      this.tablesCreated.add(associatedDataPropertyTableName);
+      this.visDataTablesCreated.add(batch.getLayerName());
+    }
+
+    if (!writerTables.containsKey(associatedDataPropertyTableName)) {
+      writerTables.put(associatedDataPropertyTableName, batch.getFormat());
+
+      if (this.checkpoint != null) {
+        this.checkpoint.recordTable(new LoadCheckpoint.TableEntry(associatedDataPropertyTableName, batch.getLayerName(),
+            batch.getAssociatedDataProperty(), batch.getFormat(), partition != null ? partition.gridCell : null));
+      }
+
+      // the live table is created regardless, so the staging table can copy its definition
+      boolean resumed = this.unwrittenRowsPredicate != null;
+      if (this.stagedLoad) {
+        String stagingTableName = getStagingTableName(associatedDataPropertyTableName);
+        if (partition != null) {
+          postgisDb.createStagingTable(partition.tableName, stagingTableName, resumed);
+          postgisDb.setPartitionGridCell(stagingTableName, partition.gridCell);
+        } else {
+          postgisDb.createStagingTable(associatedDataPropertyTableName, stagingTableName, resumed);
+          if (batch.getFormat() == VisualizationRowFormat.VISUALIZATION && !resumed) {
+            postgisDb.restartVisualizationTableSequence(associatedDataPropertyTableName);
+          }
+        }
+        this.stagedTables.add(associatedDataPropertyTableName);
+        if (batch.getFormat() == VisualizationRowFormat.ATTRIBUTE) {
+          this.attributeViews.put(associatedDataPropertyTableName, batch.getLayerName());
+        }
+      }
+
+      // rows the failed run may have written past its checkpoint are loaded again
+      if (resumed) {
+        int deletedCount = postgisDb.execute(String.format("DELETE FROM %s.\"%s\" WHERE %s", postgisDb.getPostgisSchema(),
+            this.stagedLoad ? getStagingTableName(associatedDataPropertyTableName) : associatedDataPropertyTableName,
+            this.unwrittenRowsPredicate));
+        System.out.println(String.format("resuming %s - removed %s row(s) written past the checkpoint", associatedDataPropertyTableName, deletedCount));
+      }
+    }
+
+    long batchRowsWritten = batch.getRowCount();
+    if (this.incrementalSync) {
+      VisualizationTableSync tableSync = tableSyncs.get(associatedDataPropertyTableName);
+      if (tableSync == null) {
+        tableSync = new VisualizationTableSync(postgisDb, associatedDataPropertyTableName, batch.getFormat(), batch.getTypedColumns());
+        tableSyncs.put(associatedDataPropertyTableName, tableSync);
+      }
+      long upsertsBefore = tableSync.getUpsertCount();
+      tableSync.writeChanges(copyWriter, batch);
+      batchRowsWritten = tableSync.getUpsertCount() - upsertsBefore;
+    } else if (this.stagedLoad) {
+      copyWriter.copyRows(String.format("%s.\"%s\"", postgisDb.getPostgisSchema(), getStagingTableName(associatedDataPropertyTableName)), batch);
+    } else {
+      copyWriter.copyRows(batch);
+    }
+    this.rowsWritten.addAndGet(batchRowsWritten);
+    this.metrics.increment("postgis.rows_written", batchRowsWritten);
+
+    if (batch.getLayerName() != null) {
+      this.visDataTableStats.computeIfAbsent(batch.getLayerName(), layerName -> new VisualizationTableStats()).merge(batch.getStats());
+    }
+
+    this.recycledBatches.offer(batch);
+  }
+
+  // producer side of the pipeline - not thread safe, each reader thread uses its own producer
+  public class RowProducer {
+
+    private VisualizationRowSerializer serializer = new VisualizationRowSerializer(associatedDataSchema, collectValueStats);
+
+    private Map<String, VisualizationRowBatch> pendingBatches = new HashMap<>();
+
+    // normalized layout only - shared ways table row, written once per relationship
+    public void addWay(Relationship rel) throws InterruptedException {
+      if (waysTableName != null) {
+        addRow(waysTableName, null, null, VisualizationRowFormat.WAY, rel);
+      }
+    }
+
+    public void addRow(String associatedDataPropertyTableName, String associatedDataProperty, Relationship rel) throws InterruptedException {
+      if (waysTableName != null) {
+        // normalized layout - the visualization table name is taken by the view over the attribute table
+        addRow(PostgisDb.getIdentifier(associatedDataPropertyTableName, "data"), associatedDataPropertyTableName, associatedDataProperty,
+            VisualizationRowFormat.ATTRIBUTE, rel);
+      } else if (partitionCellSize > 0) {
+        // partitioned layout - rows are batched per partition, so each partition is written as its own table
+        long gridCell = this.serializer.getGridCell(rel, partitionCellSize);
+        String partitionTableName = getPartitionTableName(associatedDataPropertyTableName, gridCell);
+        if (!partitions.containsKey(partitionTableName)) {
+          partitions.putIfAbsent(partitionTableName, new Partition(associatedDataPropertyTableName, gridCell));
+        }
+        addRow(partitionTableName, associatedDataPropertyTableName, associatedDataProperty, VisualizationRowFormat.VISUALIZATION, rel);
+      } else {
+        addRow(associatedDataPropertyTableName, associatedDataPropertyTableName, associatedDataProperty,
+            VisualizationRowFormat.VISUALIZATION, rel);
+      }
+    }
+
+    private void addRow(String tableName, String layerName, String associatedDataProperty, VisualizationRowFormat format,
+        Relationship rel) throws InterruptedException {
+
+      // a value PostgreSQL rejects would fail the row's whole batch, and with it the load
+      if (!this.serializer.isValidRow(format, associatedDataProperty, rel)) {
+        if (rowsRejected.incrementAndGet() <= MAX_REJECTED_ROWS_LOGGED) {
+          System.out.println(String.format("skipping relationship %s - %s is not valid json", rel.getId(), associatedDataProperty));
+        }
+        metrics.increment("postgis.rows_rejected", 1);
+        return;
+      }
+
+      VisualizationRowBatch batch = this.pendingBatches.get(tableName);
+      if (batch == null) {
+        batch = recycledBatches.poll();
+        if (batch != null) {
+          batch.reset(tableName, layerName, associatedDataProperty, format);
+        } else {
+          batch = new VisualizationRowBatch(tableName, layerName, associatedDataProperty, format);
+        }
+        batch.setTypedColumns(this.serializer.getTypedColumns(format, associatedDataProperty));
+        this.pendingBatches.put(tableName, batch);
+      }
+
+      batch.addRow(this.serializer, rel);
+
+      if (batch.length() >= batchSize) {
+        this.pendingBatches.remove(tableName);
+        submit(batch);
+      }
+    }
+
+    // resumed loads - queues an empty batch for a table written by the failed run
+    private void addTable(LoadCheckpoint.TableEntry table) throws InterruptedException {
+      if (table.gridCell != null) {
+        partitions.putIfAbsent(table.tableName, new Partition(table.layerName, table.gridCell));
+      }
+      if (!this.pendingBatches.containsKey(table.tableName)) {
+        VisualizationRowBatch batch = new VisualizationRowBatch(table.tableName, table.layerName, table.associatedDataProperty, table.format);
+        batch.setTypedColumns(this.serializer.getTypedColumns(table.format, table.associatedDataProperty));
+        this.pendingBatches.put(table.tableName, batch);
+      }
+    }
+
+    // checkpointed loads - blocks until every row added so far has been written, so the rows are committed
+    //  before the checkpoint covering them is recorded
+    public void awaitWritten() throws Exception {
+      flush();
+
+      CountDownLatch written = new CountDownLatch(writerQueues.size());
+      for (BlockingQueue<VisualizationRowBatch> writerQueue : writerQueues) {
+        writerQueue.put(new CheckpointBarrier(written));
+      }
+      written.await();
+
+      if (writerFailure != null) {
+        throw writerFailure;
+      }
+    }
+
+    private void flush() throws InterruptedException {
+      for (VisualizationRowBatch batch : this.pendingBatches.values()) {
+        submit(batch);
+      }
+      this.pendingBatches.clear();
+    }
+
+  }
+
+  // queued behind a producer's batches - each writer counts down once it has written everything queued before it
+  private static class CheckpointBarrier extends VisualizationRowBatch {
+
+    private final CountDownLatch written;
+
+    private CheckpointBarrier(CountDownLatch written) {
+      super(null, null, null, null);
+      this.written = written;
+    }
+
+  }
+
+  // grid cell partition of a partitioned visualization table
+  private static class Partition {
+
+    private final String tableName;
+
+    private final long gridCell;
+
+    private Partition(String tableName, long gridCell) {
+      this.tableName = tableName;
+      this.gridCell = gridCell;
+    }
+
+  }
+
+  private synchronized void recordFailure(Exception e) {
+    // failures of an aborted load's writers follow from their connection being closed
+    if (this.aborted) return;
+
+    System.out.println("ERROR in PostGIS writer " + Thread.currentThread().getName() + ": " + e.getMessage());
+    e.printStackTrace();
+    if (this.writerFailure == null) {
+      this.writerFailure = e;
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.data.FlatGeobufWriter;
+import me.callsen.taylor.osm2graph_geoserver.data.LoadCheckpoint;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// state of a single load or export run - tables created, their stats and the file writers rows go to. Each
+//  call to Main.loadGeoServerData / Main.exportFiles uses its own run, so several runs (e.g. with different
+//  osmIds) can follow each other in one JVM.
+public class LoadRun {
+
+  private Config appConfig;
+
+  private String osmId;
+
+  // keep track of which visualization tables have been created (prevent extra calls to DB)
+  // - concurrent set since tables are created by the load pipeline's writer threads
+  private Set<String> visDataTablesCreated = ConcurrentHashMap.newKeySet();
+
+  // envelope, row and vertex count per published table - gathered while loading so GeoServer does not have to
+  //  scan tables for bounding boxes
+  private Map<String, VisualizationTableStats> visDataTableStats = new ConcurrentHashMap<>();
+
+  // visualization table name per associatedData property of this run's osmId (avoids formatting a name per
+  //  relationship)
+  private Map<String, String> visDataTableNames = new ConcurrentHashMap<>();
+
+  // FlatGeobuf file writer per visualization table when exporting to flatGeobufDirectory instead of PostGIS
+  private Map<String, FlatGeobufWriter> flatGeobufWriters = new ConcurrentHashMap<>();
+
+  private Path flatGeobufDirectory;
+
+  // vector tile features collected while loading, if vectorTiles is configured
+  private VectorTilePyramid vectorTilePyramid;
+
+  // PostGIS loads only - kept so a failed load's writers can be stopped and its checkpoint closed
+  private LoadPipeline loadPipeline;
+
+  private LoadCheckpoint checkpoint;
+
+  // recorded by every component of the run, and reported on (see RunReport)
+  private Metrics metrics = new Metrics();
+
+  public LoadRun(Config appConfig) {
+    this.appConfig = appConfig;
+    this.osmId = appConfig.getString("osmId");
+  }
+
+  public Set<String> getVisDataTablesCreated() {
+    return this.visDataTablesCreated;
+  }
+
+  public Map<String, VisualizationTableStats> getVisDataTableStats() {
+    return this.visDataTableStats;
+  }
+
+  public Map<String, FlatGeobufWriter> getFlatGeobufWriters() {
+    return this.flatGeobufWriters;
+  }
+
+  public void setFlatGeobufDirectory(Path flatGeobufDirectory) {
+    this.flatGeobufDirectory = flatGeobufDirectory;
+  }
+
+  public VectorTilePyramid getVectorTilePyramid() {
+    return this.vectorTilePyramid;
+  }
+
+  // null if vector tiles are not built
+  public void setVectorTilePyramid(VectorTilePyramid vectorTilePyramid) {
+    this.vectorTilePyramid = vectorTilePyramid;
+  }
+
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
+  // null for INSERT loads and exports
+  public LoadPipeline getLoadPipeline() {
+    return this.loadPipeline;
+  }
+
+  public void setLoadPipeline(LoadPipeline loadPipeline) {
+    this.loadPipeline = loadPipeline;
+  }
+
+  // null unless the load is checkpointed
+  public LoadCheckpoint getCheckpoint() {
+    return this.checkpoint;
+  }
+
+  public void setCheckpoint(LoadCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  public String getVisualizationTableName(String associatedDataProperty) {
+    String associatedDataPropertyTableName = this.visDataTableNames.get(associatedDataProperty);
+    if (associatedDataPropertyTableName == null) {
+      associatedDataPropertyTableName = Main.getVisualizationTableName(this.osmId, associatedDataProperty);
+      // exported files are not limited to PostgreSQL identifier lengths
+      if (this.flatGeobufDirectory == null) {
+        PostgisDb.checkTableName(associatedDataPropertyTableName);
+      }
+      this.visDataTableNames.put(associatedDataProperty, associatedDataPropertyTableName);
+    }
+    return associatedDataPropertyTableName;
+  }
+
+  // returns the number of visualization rows written for the page
+  // - rows are queued on the pipeline producer if given, written to FlatGeobuf files when exporting, otherwise
+  //   INSERTed through postgisDb (if given) - and collected for vector tiles if configured
+  public int processRelationshipPage(PostgisDb postgisDb, LoadPipeline.RowProducer producer, List<Relationship> relationships)
+      throws Exception {
+
+    int rowCount = 0;
+
+    // loop through relationships returned in page
+    for (Relationship relationship : relationships) {
+
+      // normalized layout writes geometry and relationshipData once to the shared ways table
+      if (producer != null) {
+        producer.addWay(relationship);
+      }
+
+      // loop through property names in associatedData
+      String[] associatedDataProperties = (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+      for (int i = 0; i < associatedDataProperties.length; ++i) {
+
+        String associatedDataProperty = associatedDataProperties[i];
+
+        // ensure uniqueness of property names
+        if (Main.isRepeatedProperty(associatedDataProperties, i)) continue;
+
+        String associatedDataPropertyTableName = getVisualizationTableName(associatedDataProperty);
+
+        // features are kept in memory until the pyramid is built
+        if (this.vectorTilePyramid != null) {
+          this.vectorTilePyramid.addRow(associatedDataPropertyTableName, associatedDataProperty, relationship);
+        }
+
+        if (producer != null) {
+
+          // queue row for the pipeline's PostGIS writers - these also create the vis table
+          producer.addRow(associatedDataPropertyTableName, associatedDataProperty, relationship);
+
+        } else if (this.flatGeobufDirectory != null) {
+
+          // features are spilled by the layer's writer until it is finished
+          this.flatGeobufWriters.computeIfAbsent(associatedDataPropertyTableName, tableName ->
+              new FlatGeobufWriter(this.flatGeobufDirectory.resolve(tableName + ".fgb"), tableName, associatedDataProperty))
+              .addRow(associatedDataProperty, relationship);
+
+        } else if (postgisDb != null) {
+
+          // create vis table in PostGIS if it has not already been created
+          if (!this.visDataTablesCreated.contains(associatedDataPropertyTableName)) {
+            postgisDb.createVisualizationTable(associatedDataProperty, associatedDataPropertyTableName);
+            this.visDataTablesCreated.add(associatedDataPropertyTableName);
+          }
+
+          // write relationship to Postgis visualization table
+          postgisDb.writeVisualizationTableRow(associatedDataPropertyTableName, associatedDataProperty, relationship,
+              this.visDataTableStats.computeIfAbsent(associatedDataPropertyTableName, tableName -> new VisualizationTableStats()));
+        }
+        ++rowCount;
+      }
+
+    }
+
+    return rowCount;
+  }
+
+}
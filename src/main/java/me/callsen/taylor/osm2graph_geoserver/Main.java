@@ -1,17 +1,30 @@
 package me.callsen.taylor.osm2graph_geoserver;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Result;
-import org.neo4j.graphdb.Transaction;
+import org.json.JSONObject;
 
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.BoltRelationshipSource;
+import me.callsen.taylor.osm2graph_geoserver.data.EmbeddedRelationshipSource;
+import me.callsen.taylor.osm2graph_geoserver.data.FlatGeobufWriter;
 import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader;
+import me.callsen.taylor.osm2graph_geoserver.data.LoadCheckpoint;
 import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
-import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.osm2graph_geoserver.data.RelationshipSource;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowFormat;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+import me.callsen.taylor.osm2graph_geoserver.data.WayDeduplication;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
 import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
 
 public class Main {
@@ -19,9 +32,6 @@ public class Main {
   // shared static objects
   private static Config appConfig;
 
-  // keep track of which visualization tables have been created (prevent extra calls to DB)
-  private static Set<String> visDataTablesCreated = new HashSet<>();
-
   public static final int GRAPH_RELATIONSHIP_PAGE_SIZE = 5000;
 
   // standard entry - app config read from CONFIG_PATH and used to config objects
@@ -30,6 +40,20 @@ public class Main {
     // instantiate Config variables - must do in main because of exception handling
     appConfig = new Config();
 
+    // relationships are streamed from a Neo4j server over Bolt if configured, otherwise read from the
+    //  embedded store through the GraphDB wrapper
+    RelationshipSource relationshipSource = appConfig.has("bolt")
+        ? new BoltRelationshipSource(appConfig.getJSONObject("bolt"))
+        : new EmbeddedRelationshipSource(new GraphDb(appConfig.getString("graphDbLocation")), appConfig.getString("graphDbLocation"));
+
+    // offline export - layers are written to FlatGeobuf files and/or vector tiles, PostGIS and GeoServer are
+    //  not contacted
+    VectorTilePyramid tilePyramid = new VectorTilePyramid(appConfig);
+    if (appConfig.has("flatGeobufDirectory") || tilePyramid.isEnabled() && !tilePyramid.isPostgisLoaded()) {
+      exportFiles(appConfig, relationshipSource, GRAPH_RELATIONSHIP_PAGE_SIZE);
+      return;
+    }
+
     Class.forName("org.postgresql.Driver");
     String postgisUrl = "jdbc:postgresql://" + appConfig.getDbConfig().getString("host") + ":"
         + appConfig.getDbConfig().getString("port") + "/" + appConfig.getDbConfig().getString("database");
@@ -37,79 +61,357 @@ public class Main {
     // initialize PostGis
     PostgisDb postgisDb = new PostgisDb(appConfig, postgisUrl);
 
-    // initialize GraphDB wrapper - facilitates loading of data into Neo4j Graph
-    GraphDb graphDb = new GraphDb(appConfig.getString("graphDbLocation"));
-
     // initialize GeoServer wrapper
     GeoServerRestApi geoServer = new GeoServerRestApi(appConfig); // create workspace and store
 
-    loadGeoServerData(appConfig, graphDb, postgisDb, geoServer, GRAPH_RELATIONSHIP_PAGE_SIZE);
+    loadGeoServerData(appConfig, relationshipSource, postgisDb, geoServer, GRAPH_RELATIONSHIP_PAGE_SIZE);
   }
 
   public static void loadGeoServerData(Config appConfig, GraphDb graphDb, PostgisDb postgisDb,
       GeoServerRestApi geoServer, int graphRelationshipPageSize) throws Exception {
+    loadGeoServerData(appConfig, new EmbeddedRelationshipSource(graphDb, appConfig.getString("graphDbLocation")), postgisDb, geoServer,
+        graphRelationshipPageSize);
+  }
+
+  // closes relationshipSource, postgisDb and geoServer once done
+  public static void loadGeoServerData(Config appConfig, RelationshipSource relationshipSource, PostgisDb postgisDb,
+      GeoServerRestApi geoServer, int graphRelationshipPageSize) throws Exception {
 
     System.out.println("OSM To Geoserver (via Postgis) initialized with following parameters: ");
-    System.out.println("   graphDb: " + appConfig.getString("graphDbLocation"));
+    System.out.println("   graphDb: " + relationshipSource.getLocation());
     System.out.println("   postgis: " + postgisDb.getPostgisUrl());
     System.out.println(" geoserver: " + geoServer.getBaseUrl());
 
-    // retrieve number of relationships
-    long wayCount = graphDb.getAssociatedDataRelationshipCount();
+    LoadRun run = new LoadRun(appConfig);
+    RunReport runReport = null;
+    try {
+      // options are validated before anything is written or any writer thread started
+      checkLoadOptions(appConfig);
+
+      // periodic progress lines and the final run report (see RunReport)
+      runReport = new RunReport(appConfig, run.getMetrics());
+
+      load(appConfig, run, relationshipSource, postgisDb, geoServer, graphRelationshipPageSize);
+      runReport.finish();
+    } catch (Exception e) {
+      // writers of a failed load wait for input that never comes - stopped so the JVM can exit
+      if (run.getLoadPipeline() != null) {
+        run.getLoadPipeline().abort();
+      }
+      throw e;
+    } finally {
+      if (runReport != null) {
+        runReport.stop();
+      }
 
-    for (int pageNumber = 0; pageNumber * graphRelationshipPageSize < wayCount; ++pageNumber) {
-      System.out.println(String.format("Processing page %s, up to relationship %s", pageNumber,
-          (pageNumber + 1) * graphRelationshipPageSize));
-      processRelationshipPage(appConfig, graphDb, postgisDb, pageNumber, graphRelationshipPageSize);
+      // Close database and GeoServer connections
+      if (run.getCheckpoint() != null) {
+        close("checkpoint connection", run.getCheckpoint()::close);
+      }
+      close("PostGIS connection", postgisDb::close);
+      close("graph", relationshipSource::close);
+      close("GeoServer connections", geoServer::close);
     }
 
-    // create featureType / layer in GeoServer
-    // - this is done after PostGIS data as been loaded so accurate bounding boxes can be computed
-    for (String associatedDataPropertyTableName : visDataTablesCreated) {
-      System.out.println("creating geoserver featureType '" + associatedDataPropertyTableName + "'");
-      geoServer.createFeatureType(associatedDataPropertyTableName);
+    System.out.println("Task complete");
+  }
+
+  // combinations of options a load can not run with
+  static void checkLoadOptions(Config appConfig) {
+
+    JSONObject dbConfig = appConfig.getDbConfig();
+    boolean copyBulkLoad = dbConfig.optBoolean("copyBulkLoad", true);
+    boolean normalized = dbConfig.optString("layout", "denormalized").equals("normalized");
+    boolean incrementalSync = dbConfig.optString("syncMode", "full").equals("incremental");
+
+    if (dbConfig.optBoolean("typedColumns", false) && (!copyBulkLoad || normalized)) {
+      throw new IllegalArgumentException("postgis.typedColumns requires postgis.copyBulkLoad and the denormalized layout");
+    }
+    if (!copyBulkLoad && incrementalSync) {
+      throw new IllegalArgumentException("postgis.syncMode 'incremental' requires postgis.copyBulkLoad");
+    }
+    if (!copyBulkLoad && normalized) {
+      throw new IllegalArgumentException("postgis.layout 'normalized' requires postgis.copyBulkLoad");
+    }
+    if (dbConfig.optDouble("partitionCellSize", 0) > 0 && (normalized || incrementalSync)) {
+      throw new IllegalArgumentException("postgis.partitionCellSize requires the denormalized layout and full sync mode");
     }
 
-    // Close database connections
-    postgisDb.close();
-    graphDb.shutdown();
+    int checkpointInterval = dbConfig.optInt("checkpointInterval", 0);
+    if (checkpointInterval > 0 || dbConfig.optBoolean("resume", false)) {
+      if (!copyBulkLoad || checkpointInterval <= 0) {
+        throw new IllegalArgumentException("postgis.resume requires postgis.copyBulkLoad and a postgis.checkpointInterval above 0");
+      }
+      if (incrementalSync) {
+        throw new IllegalArgumentException("checkpointed loads require full sync mode - incremental sync skips unchanged rows on a rerun instead");
+      }
 
-    System.out.println("Task complete");
+      // relationships merged by way are only written once the way's last relationship is read, so pages can
+      //  not be checkpointed as they are read - checked before a previous run's checkpoint is replaced
+      if (appConfig.optBoolean("deduplicateWays", false)) {
+        throw new IllegalArgumentException("deduplicateWays can not be combined with postgis.checkpointInterval or postgis.resume");
+      }
+    }
+  }
+
+  // failures to close are printed - they must not hide the exception of a failed load
+  private static void close(String resourceName, Closer closer) {
+    try {
+      closer.close();
+    } catch (Exception e) {
+      System.out.println(String.format("FAILED to close %s: %s", resourceName, e.getMessage()));
+    }
+  }
+
+  private interface Closer {
+    void close() throws Exception;
   }
 
-  public static void processRelationshipPage(Config appConfig, GraphDb graphDb, PostgisDb postgisDb, int pageNumber, int graphRelationshipPageSize) {
+  // options must have been checked (see checkLoadOptions) - the pipeline and checkpoint are kept on the run,
+  //  to be stopped and closed by the caller
+  private static void load(Config appConfig, LoadRun run, RelationshipSource relationshipSource, PostgisDb postgisDb,
+      GeoServerRestApi geoServer, int graphRelationshipPageSize) throws Exception {
 
-    Transaction tx = graphDb.getTransaction();
-    Result result = graphDb.getAssociatedDataRelationshipPage(tx, pageNumber, graphRelationshipPageSize);
+    // everything the load records goes to the run's own metrics
+    Metrics metrics = run.getMetrics();
+    postgisDb.setMetrics(metrics);
+    geoServer.setMetrics(metrics);
 
-    String osmId = appConfig.getString("osmId");
+    GraphRelationshipReader relationshipReader = new GraphRelationshipReader(relationshipSource, graphRelationshipPageSize);
+    relationshipReader.setMetrics(metrics);
 
-    // loop through relationships returned in page
-    while (result.hasNext()) {
-      Map<String, Object> row = result.next();
-      Relationship relationship = (Relationship) row.get("way");
+    Set<String> visDataTablesCreated = run.getVisDataTablesCreated();
+    VectorTilePyramid tilePyramid = new VectorTilePyramid(appConfig);
+    tilePyramid.setMetrics(metrics);
+    run.setVectorTilePyramid(tilePyramid.isEnabled() ? tilePyramid : null);
 
-      // loop through property names in associatedData - ensure uniqueness of property names
-      Set<String> associatedDataPropertySet = new HashSet<>(
-          Arrays.asList((String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)));
+    // optional typed columns promoted out of the associatedData json, inferred from a sample of the graph
+    AssociatedDataSchema associatedDataSchema = null;
+    if (appConfig.getDbConfig().optBoolean("typedColumns", false)) {
+      associatedDataSchema = AssociatedDataSchema.infer(relationshipReader, appConfig.getDbConfig().optInt("typedColumnSampleSize", 10000));
+    }
 
-      for (String associatedDataProperty : associatedDataPropertySet) {
+    // rows are bulk loaded with COPY through the load pipeline by default - set postgis.copyBulkLoad to
+    //  false to use single row INSERTs on the calling thread
+    LoadPipeline loadPipeline = appConfig.getDbConfig().optBoolean("copyBulkLoad", true)
+        ? new LoadPipeline(appConfig, postgisDb.getPostgisUrl(), visDataTablesCreated, run.getVisDataTableStats(), associatedDataSchema,
+            metrics) : null;
+    run.setLoadPipeline(loadPipeline);
+
+    // relationships can be read in concurrent shards (disjoint id ranges) - each with its own pipeline
+    //  producer. The INSERT path shares a single connection and is always read in one shard.
+    int graphDbShards = loadPipeline != null ? appConfig.optInt("graphDbShards", 1) : 1;
+
+    // checkpointed loads record each shard's progress every checkpointInterval pages once the rows read so
+    //  far are written - postgis.resume continues a failed load from its checkpoint
+    int checkpointInterval = appConfig.getDbConfig().optInt("checkpointInterval", 0);
+    LoadCheckpoint checkpoint = null;
+    List<GraphRelationshipReader.ShardRange> shardRanges = null;
+    if (checkpointInterval > 0) {
+      checkpoint = new LoadCheckpoint(new PostgisDb(appConfig, postgisDb.getPostgisUrl()), appConfig.getString("osmId"));
+      run.setCheckpoint(checkpoint);
+      if (appConfig.getDbConfig().optBoolean("resume", false)) {
+        shardRanges = checkpoint.resume();
+        System.out.println(shardRanges != null ? "resuming load from checkpoint" : "no checkpoint to resume from - starting a new load");
+      }
+      if (shardRanges == null) {
+        shardRanges = relationshipReader.getShardRanges(graphDbShards);
+        checkpoint.start(shardRanges);
+      }
+      loadPipeline.setCheckpoint(checkpoint);
+      graphDbShards = shardRanges.size();
+    }
+
+    WayDeduplication wayDeduplication = createWayDeduplication(appConfig, relationshipReader, graphDbShards);
 
-        String associatedDataPropertyTableName = String.format("%s_vis_%s", osmId, associatedDataProperty);
+    List<LoadPipeline.RowProducer> producers = new ArrayList<>();
+    for (int shard = 0; shard < graphDbShards; ++shard) {
+      producers.add(loadPipeline != null ? loadPipeline.createProducer() : null);
+    }
 
-        // create vis table in PostGIS if it has not already been created
-        if (!visDataTablesCreated.contains(associatedDataPropertyTableName)) {
-          postgisDb.createVisualizationTable(associatedDataProperty, associatedDataPropertyTableName);
-          visDataTablesCreated.add(associatedDataPropertyTableName);
+    long loadStartTime = System.currentTimeMillis();
+    AtomicLong rowCount = new AtomicLong();
+
+    // stream relationships through a cursor per shard - each page is handed off as it is read
+    final LoadCheckpoint pageCheckpoint = checkpoint;
+    GraphRelationshipReader.PageHandler pageHandler = (shard, pageNumber, relationships) -> {
+      rowCount.addAndGet(run.processRelationshipPage(postgisDb, producers.get(shard),
+          wayDeduplication != null ? wayDeduplication.deduplicate(relationships) : relationships));
+
+      // rows are only covered by a checkpoint once written, so the reader waits for the writers to catch up
+      if (pageCheckpoint != null) {
+        pageCheckpoint.trackPage(shard, relationships);
+        if ((pageNumber + 1) % checkpointInterval == 0) {
+          producers.get(shard).awaitWritten();
+          pageCheckpoint.record(shard);
         }
+      }
+    };
+    if (checkpoint != null) {
+      relationshipReader.readAssociatedDataRelationships(shardRanges, pageHandler);
+      for (int shard = 0; shard < graphDbShards; ++shard) {
+        producers.get(shard).awaitWritten();
+        checkpoint.complete(shard);
+      }
+    } else {
+      relationshipReader.readAssociatedDataRelationships(graphDbShards, pageHandler);
+    }
+    if (wayDeduplication != null) {
+      rowCount.addAndGet(run.processRelationshipPage(postgisDb, producers.get(0), wayDeduplication.drainPending()));
+    }
 
-        // write relationship to Postgis visualization table
-        postgisDb.writeVisualizationTableRow(associatedDataPropertyTableName, associatedDataProperty, relationship);
+    // a resumed load only gathered stats for the rows it wrote itself - GeoServer computes bounding boxes instead
+    Map<String, VisualizationTableStats> publishedTableStats = checkpoint != null && checkpoint.getUnwrittenRowsPredicate() != null
+        ? new HashMap<>() : run.getVisDataTableStats();
+
+    if (loadPipeline != null) {
+      loadPipeline.finish();
+    } else {
+      // the load pipeline indexes its tables itself
+      for (String associatedDataPropertyTableName : visDataTablesCreated) {
+        postgisDb.finishVisualizationTableLoad(associatedDataPropertyTableName, VisualizationRowFormat.VISUALIZATION, false,
+            LoadPipeline.isHilbertClustered(appConfig));
       }
+    }
+
+    long loadDurationMs = Math.max(1, System.currentTimeMillis() - loadStartTime);
+    metrics.recordDuration("phase.load", loadDurationMs * 1000000);
+    System.out.println(String.format("Loaded %s visualization rows in %s ms (%s rows/sec, %s)", rowCount.get(), loadDurationMs,
+        rowCount.get() * 1000 / loadDurationMs, loadPipeline != null ? "COPY" : "INSERT"));
 
+    if (run.getVectorTilePyramid() != null) {
+      long tilesStartTime = System.nanoTime();
+      run.getVectorTilePyramid().build();
+      metrics.recordTime("phase.tiles", tilesStartTime);
     }
 
-    tx.commit();
+    // optional simplified copies of every table for low zoom rendering
+    LayerGeneralization layerGeneralization = new LayerGeneralization(appConfig);
+    if (layerGeneralization.isEnabled()) {
+      long generalizeStartTime = System.nanoTime();
+      layerGeneralization.buildGeneralizedTables(postgisDb, visDataTablesCreated, publishedTableStats);
+      metrics.recordTime("phase.generalize", generalizeStartTime);
+    }
+
+    // create featureType / layer in GeoServer
+    // - this is done after PostGIS data as been loaded so bounding boxes gathered during the load are complete
+    // - feature types are independent, so they are published concurrently over pooled connections
+    long publishStartTime = System.nanoTime();
+    geoServer.createFeatureTypes(visDataTablesCreated, publishedTableStats, GeoServerRestApi.getPublishConcurrency(appConfig));
+    if (layerGeneralization.isEnabled()) {
+      layerGeneralization.publish(geoServer, visDataTablesCreated, publishedTableStats, GeoServerRestApi.getPublishConcurrency(appConfig));
+    }
+    metrics.recordTime("phase.publish", publishStartTime);
+
+    // optional data driven default style per layer, classed by the value sketches gathered while loading -
+    //  assigned before seeding so the cache is warmed with the new styles
+    if (LayerStyles.isEnabled(appConfig)) {
+      long stylesStartTime = System.nanoTime();
+      Map<String, List<String>> generalizedTableNames = layerGeneralization.getGeneralizedTableNames(visDataTablesCreated);
+      int layersStyled = new LayerStyles(appConfig).publish(geoServer, visDataTablesCreated, publishedTableStats, generalizedTableNames);
+      metrics.recordTime("phase.styles", stylesStartTime);
+      int layerCount = visDataTablesCreated.size();
+      for (List<String> tableNames : generalizedTableNames.values()) {
+        layerCount += tableNames.size();
+      }
+      System.out.println(String.format("styled %s of %s geoserver layers", layersStyled, layerCount));
+    }
+
+    // optionally warm GeoWebCache for the new layers - the run only succeeds once seeding has finished
+    JSONObject seedConfig = appConfig.getGeoServerConfig().optJSONObject("seed");
+    if (seedConfig != null) {
+      long seedStartTime = System.nanoTime();
+      boolean seeded = geoServer.seedLayers(visDataTablesCreated, publishedTableStats, seedConfig);
+      metrics.recordTime("phase.seed", seedStartTime);
+      if (!seeded) {
+        throw new IllegalStateException("GeoWebCache seeding did not complete");
+      }
+    }
+  }
+
+  // writes every associatedData layer to a `<osmId>_vis_<property>.fgb` FlatGeobuf file in flatGeobufDirectory
+  //  and/or a vector tile pyramid (see VectorTilePyramid) - shards are read concurrently, rows go through
+  //  processRelationshipPage. Closes relationshipSource once done.
+  public static void exportFiles(Config appConfig, RelationshipSource relationshipSource, int graphRelationshipPageSize) throws Exception {
+
+    System.out.println("OSM To files initialized with following parameters: ");
+    System.out.println("   graphDb: " + relationshipSource.getLocation());
+
+    LoadRun run = new LoadRun(appConfig);
+    if (appConfig.has("flatGeobufDirectory")) {
+      Path flatGeobufDirectory = Paths.get(appConfig.getString("flatGeobufDirectory"));
+      Files.createDirectories(flatGeobufDirectory);
+      run.setFlatGeobufDirectory(flatGeobufDirectory);
+      System.out.println(" flatGeobuf: " + flatGeobufDirectory);
+    }
+    VectorTilePyramid tilePyramid = new VectorTilePyramid(appConfig);
+    tilePyramid.setMetrics(run.getMetrics());
+    run.setVectorTilePyramid(tilePyramid.isEnabled() ? tilePyramid : null);
+    if (run.getVectorTilePyramid() != null) {
+      System.out.println("vectorTiles: " + appConfig.getJSONObject("vectorTiles").getString("directory"));
+    }
+
+    try {
+      GraphRelationshipReader relationshipReader = new GraphRelationshipReader(relationshipSource, graphRelationshipPageSize);
+      relationshipReader.setMetrics(run.getMetrics());
+      WayDeduplication wayDeduplication = createWayDeduplication(appConfig, relationshipReader, appConfig.optInt("graphDbShards", 1));
+
+      long exportStartTime = System.currentTimeMillis();
+      AtomicLong rowCount = new AtomicLong();
+      relationshipReader.readAssociatedDataRelationships(appConfig.optInt("graphDbShards", 1), (shard, pageNumber, relationships) -> {
+        rowCount.addAndGet(run.processRelationshipPage(null, null,
+            wayDeduplication != null ? wayDeduplication.deduplicate(relationships) : relationships));
+      });
+      if (wayDeduplication != null) {
+        rowCount.addAndGet(run.processRelationshipPage(null, null, wayDeduplication.drainPending()));
+      }
+
+      // features are sorted and indexed once all are read
+      for (FlatGeobufWriter flatGeobufWriter : run.getFlatGeobufWriters().values()) {
+        flatGeobufWriter.finish();
+      }
+
+      long exportDurationMs = Math.max(1, System.currentTimeMillis() - exportStartTime);
+      run.getMetrics().recordDuration("phase.export", exportDurationMs * 1000000);
+      System.out.println(String.format("Exported %s visualization rows in %s ms (%s rows/sec, %s FlatGeobuf files)", rowCount.get(),
+          exportDurationMs, rowCount.get() * 1000 / exportDurationMs, run.getFlatGeobufWriters().size()));
+
+      if (run.getVectorTilePyramid() != null) {
+        long tilesStartTime = System.nanoTime();
+        run.getVectorTilePyramid().build();
+        run.getMetrics().recordTime("phase.tiles", tilesStartTime);
+      }
+    } finally {
+      close("graph", relationshipSource::close);
+    }
+
+    System.out.println("Task complete");
+  }
+
+  // counts the relationships per way for deduplicateWays - null if not enabled
+  private static WayDeduplication createWayDeduplication(Config appConfig, GraphRelationshipReader relationshipReader, int shardCount)
+      throws Exception {
+    if (!appConfig.optBoolean("deduplicateWays", false)) return null;
+
+    // the counting pass is a full extra read of the graph - timed on its own in the run report
+    WayDeduplication wayDeduplication = new WayDeduplication(relationshipReader);
+    long countStartTime = System.nanoTime();
+    wayDeduplication.countWays(shardCount);
+    relationshipReader.getMetrics().recordTime("phase.dedup_count", countStartTime);
+    return wayDeduplication;
+  }
+
+  // runs cache the names of their properties (see LoadRun.getVisualizationTableName)
+  public static String getVisualizationTableName(String osmId, String associatedDataProperty) {
+    return String.format("%s_vis_%s", osmId, associatedDataProperty);
+  }
+
+  // associatedData property arrays hold a handful of names - a scan is cheaper than building a set per relationship
+  public static boolean isRepeatedProperty(String[] associatedDataProperties, int index) {
+    for (int i = 0; i < index; ++i) {
+      if (associatedDataProperties[i].equals(associatedDataProperties[index])) return true;
+    }
+    return false;
   }
 
 }
\ No newline at end of file
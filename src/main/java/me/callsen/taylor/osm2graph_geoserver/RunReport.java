@@ -0,0 +1,166 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+
+// reporting of a run's metrics (see Metrics) - a progress line every progressIntervalSeconds while loading,
+//  and a JSON report written to runReportPath once the run completes. The report holds the run's settings,
+//  duration, counters and latency percentiles of every timer, so runs can be compared over time (e.g. to
+//  catch throughput regressions in CI).
+public class RunReport {
+
+  public static final int DEFAULT_PROGRESS_INTERVAL_SECONDS = 30;
+
+  // timers summarized on progress lines
+  private static final String[] PROGRESS_TIMERS = { "graph.page_read", "postgis.copy_batch", "postgis.insert_row" };
+
+  private Config appConfig;
+
+  private Metrics metrics;
+
+  private Instant startedAt = Instant.now();
+
+  private long startNanos = System.nanoTime();
+
+  private ScheduledExecutorService progressExecutor;
+
+  // metrics are the run's own (see LoadRun.getMetrics)
+  public RunReport(Config appConfig, Metrics metrics) {
+    this.appConfig = appConfig;
+    this.metrics = metrics;
+
+    int progressIntervalSeconds = appConfig.optInt("progressIntervalSeconds", DEFAULT_PROGRESS_INTERVAL_SECONDS);
+    if (progressIntervalSeconds > 0) {
+      this.progressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread progressThread = new Thread(runnable, "run-progress");
+        progressThread.setDaemon(true);
+        return progressThread;
+      });
+      this.progressExecutor.scheduleAtFixedRate(this::printProgress, progressIntervalSeconds, progressIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  public void printProgress() {
+    long elapsedMs = Math.max(1, (System.nanoTime() - this.startNanos) / 1000000);
+    long rowsWritten = this.metrics.getCount("postgis.rows_written");
+
+    StringBuilder progress = new StringBuilder(String.format("progress %s s: %s relationships read, %s rows written (%s rows/sec), %s MB COPY text",
+        elapsedMs / 1000,
+        this.metrics.getCount("graph.relationships"),
+        rowsWritten,
+        rowsWritten * 1000 / elapsedMs,
+        this.metrics.getCount("postgis.copy_bytes") / (1024 * 1024)));
+
+    Map<String, Metrics.Histogram> timers = this.metrics.getTimers();
+    for (String timerName : PROGRESS_TIMERS) {
+      Metrics.Histogram timer = timers.get(timerName);
+      if (timer == null) continue;
+      progress.append(String.format(", %s p50 %.1f ms / p99 %.1f ms", timerName, toMs(timer.getPercentile(50)), toMs(timer.getPercentile(99))));
+    }
+
+    Map<String, Long> gaugeValues = this.metrics.getGaugeValues();
+    if (!gaugeValues.isEmpty()) {
+      progress.append(", gauges ").append(gaugeValues);
+    }
+
+    System.out.println(progress);
+  }
+
+  // stops progress reporting and writes the report if runReportPath is set - returns the report
+  public JSONObject finish() throws Exception {
+
+    stop();
+    printProgress();
+
+    JSONObject report = getReport();
+    String reportPath = this.appConfig.optString("runReportPath", null);
+    if (reportPath != null) {
+      Files.write(Paths.get(reportPath), report.toString(2).getBytes(StandardCharsets.UTF_8));
+      System.out.println("run report written to " + reportPath);
+    }
+    return report;
+  }
+
+  // stops progress reporting without a report - for failed runs
+  public void stop() {
+    if (this.progressExecutor != null) {
+      this.progressExecutor.shutdownNow();
+    }
+  }
+
+  public JSONObject getReport() {
+
+    long durationMs = Math.max(1, (System.nanoTime() - this.startNanos) / 1000000);
+    long rowsWritten = this.metrics.getCount("postgis.rows_written");
+
+    JSONObject report = new JSONObject();
+    report.put("osmId", this.appConfig.optString("osmId"));
+    report.put("startedAt", this.startedAt.toString());
+    report.put("durationMs", durationMs);
+    report.put("rowsWritten", rowsWritten);
+    report.put("rowsPerSecond", rowsWritten * 1000 / durationMs);
+    report.put("rowsRejected", this.metrics.getCount("postgis.rows_rejected"));
+    report.put("settings", getSettings());
+
+    JSONObject counters = new JSONObject();
+    this.metrics.getCounts().forEach(counters::put);
+    report.put("counters", counters);
+
+    JSONObject timers = new JSONObject();
+    this.metrics.getTimers().forEach((name, timer) -> {
+      JSONObject timerReport = new JSONObject();
+      timerReport.put("count", timer.getCount());
+      timerReport.put("totalMs", toMs(timer.getTotal()));
+      timerReport.put("meanMs", toMs((long) timer.getMean()));
+      timerReport.put("p50Ms", toMs(timer.getPercentile(50)));
+      timerReport.put("p90Ms", toMs(timer.getPercentile(90)));
+      timerReport.put("p99Ms", toMs(timer.getPercentile(99)));
+      timerReport.put("maxMs", toMs(timer.getMax()));
+      timers.put(name, timerReport);
+    });
+    report.put("timers", timers);
+
+    JSONObject distributions = new JSONObject();
+    this.metrics.getDistributions().forEach((name, distribution) -> {
+      JSONObject distributionReport = new JSONObject();
+      distributionReport.put("count", distribution.getCount());
+      distributionReport.put("mean", distribution.getMean());
+      distributionReport.put("p50", distribution.getPercentile(50));
+      distributionReport.put("p90", distribution.getPercentile(90));
+      distributionReport.put("p99", distribution.getPercentile(99));
+      distributionReport.put("max", distribution.getMax());
+      distributions.put(name, distributionReport);
+    });
+    report.put("distributions", distributions);
+
+    return report;
+  }
+
+  // settings that affect throughput - connection details and credentials are left out
+  private JSONObject getSettings() {
+    JSONObject settings = new JSONObject();
+    settings.put("graphDbShards", this.appConfig.optInt("graphDbShards", 1));
+    JSONObject dbConfig = this.appConfig.getDbConfig();
+    for (String key : dbConfig.keySet()) {
+      if (key.equals("host") || key.equals("port") || key.equals("user") || key.equals("password")) continue;
+      settings.put("postgis." + key, dbConfig.get(key));
+    }
+    settings.put("geoserver.publishConcurrency", this.appConfig.getGeoServerConfig().opt("publishConcurrency"));
+    return settings;
+  }
+
+  private static double toMs(long nanos) {
+    return Math.round(nanos / 10000.0) / 100.0;
+  }
+
+}
@@ -0,0 +1,754 @@
+package me.callsen.taylor.osm2graph_geoserver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.data.AssociatedDataSchema;
+import me.callsen.taylor.osm2graph_geoserver.data.MbTilesWriter;
+import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.data.TileDirectoryWriter;
+import me.callsen.taylor.osm2graph_geoserver.data.VectorTileSink;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+import me.callsen.taylor.osm2graph_geoserver.lib.VectorTileEncoder;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
+
+// optional vector tile output configured by the vectorTiles object - builds a Mapbox Vector Tile pyramid per
+//  visualization table over [minZoom, maxZoom], so web maps are served static tiles instead of GeoServer
+//  rendering each layer on demand. Rows are collected as relationships are read (see addRow), with
+//  geometries projected to Web Mercator and kept as integers at maxZoom tile resolution. Once loaded, each
+//  zoom's features are binned into the tiles they cover and tiles are clipped (to the tile plus buffer),
+//  simplified (below maxZoom) and encoded on all cores. Features carry osm_id and the scalar fields of the
+//  first associatedData entry as `ad_<field>` attributes, named as the typed PostGIS columns are.
+public class VectorTilePyramid {
+
+  private static final double MAX_LATITUDE = 85.05112878;
+
+  // maxZoom world coordinates are ints
+  private static final int MAX_WORLD_BITS = 30;
+
+  private Path directory;
+
+  private String format;
+
+  private int minZoom;
+
+  private int maxZoom;
+
+  private int extent;
+
+  private int buffer;
+
+  // Douglas-Peucker tolerance below maxZoom, in pixels of a 256 pixel tile
+  private double simplification;
+
+  private int threads;
+
+  private boolean postgisLoaded;
+
+  // collected features per visualization table
+  private Map<String, TileLayer> layers = new ConcurrentHashMap<>();
+
+  // metrics of the run tiles are built for (see LoadRun.getMetrics)
+  private Metrics metrics = new Metrics();
+
+  public VectorTilePyramid(Config appConfig) {
+    JSONObject tileConfig = appConfig.optJSONObject("vectorTiles");
+    if (tileConfig == null) return;
+
+    this.directory = Paths.get(tileConfig.getString("directory"));
+    this.format = tileConfig.optString("format", "mbtiles");
+    this.minZoom = tileConfig.optInt("minZoom", 0);
+    this.maxZoom = tileConfig.optInt("maxZoom", 14);
+    this.extent = tileConfig.optInt("extent", 4096);
+    this.buffer = tileConfig.optInt("buffer", 64);
+    this.simplification = tileConfig.optDouble("simplification", 1.0);
+    this.threads = tileConfig.optInt("threads", Runtime.getRuntime().availableProcessors());
+    this.postgisLoaded = tileConfig.optBoolean("loadPostgis", true);
+
+    if (!this.format.equals("mbtiles") && !this.format.equals("directory")) {
+      throw new IllegalArgumentException("vectorTiles.format must be 'mbtiles' or 'directory'");
+    }
+    if (this.minZoom < 0 || this.minZoom > this.maxZoom || (long) this.extent << this.maxZoom > 1L << MAX_WORLD_BITS) {
+      throw new IllegalArgumentException(String.format("vectorTiles zoom range [%s, %s] not supported with extent %s", this.minZoom,
+          this.maxZoom, this.extent));
+    }
+  }
+
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public boolean isEnabled() {
+    return this.directory != null;
+  }
+
+  // false when tiles are built instead of loading PostGIS
+  public boolean isPostgisLoaded() {
+    return this.postgisLoaded;
+  }
+
+  // safe to call concurrently from each shard's thread
+  public void addRow(String tableName, String associatedDataProperty, Relationship rel) {
+    TileLayer layer = this.layers.computeIfAbsent(tableName, TileLayer::new);
+    synchronized (layer) {
+      layer.addFeature(associatedDataProperty, rel);
+    }
+  }
+
+  // writes every table's pyramid to <directory>/<table>.mbtiles or <directory>/<table>/<z>/<x>/<y>.pbf
+  public void build() throws Exception {
+    Files.createDirectories(this.directory);
+    ExecutorService tileExecutor = Executors.newFixedThreadPool(Math.max(1, this.threads));
+    try {
+      for (TileLayer layer : this.layers.values()) {
+        buildLayer(layer, tileExecutor);
+      }
+    } finally {
+      tileExecutor.shutdownNow();
+    }
+  }
+
+  private void buildLayer(TileLayer layer, ExecutorService tileExecutor) throws Exception {
+    long startTime = System.currentTimeMillis();
+    AtomicLong tileCount = new AtomicLong();
+    AtomicLong tileBytes = new AtomicLong();
+
+    VectorTileSink sink = this.format.equals("mbtiles") ? new MbTilesWriter(this.directory.resolve(layer.name + ".mbtiles"))
+        : new TileDirectoryWriter(this.directory.resolve(layer.name));
+    try {
+      for (int zoom = this.minZoom; zoom <= this.maxZoom; ++zoom) {
+        final int tileZoom = zoom;
+        List<Future<?>> tileResults = new ArrayList<>();
+        for (Map.Entry<Long, IntArray> tileFeatures : binFeatures(layer, zoom).entrySet()) {
+          int x = (int) (tileFeatures.getKey() >>> 32);
+          int y = (int) (long) tileFeatures.getKey();
+          tileResults.add(tileExecutor.submit(() -> {
+            long encodeStartTime = System.nanoTime();
+            byte[] tile = encodeTile(layer, tileZoom, x, y, tileFeatures.getValue());
+            this.metrics.recordTime("vectortiles.encode_tile", encodeStartTime);
+            if (tile != null) {
+              sink.writeTile(tileZoom, x, y, tile);
+              tileCount.incrementAndGet();
+              tileBytes.addAndGet(tile.length);
+            }
+            return null;
+          }));
+        }
+
+        // an encoding failure fails the build - tiles still being encoded are cancelled before the sink is
+        //  discarded
+        try {
+          for (Future<?> tileResult : tileResults) {
+            tileResult.get();
+          }
+        } catch (Exception e) {
+          for (Future<?> tileResult : tileResults) {
+            tileResult.cancel(true);
+          }
+          throw e;
+        }
+      }
+      sink.writeMetadata(getMetadata(layer));
+    } catch (Exception e) {
+      sink.abort();
+      throw e;
+    }
+    sink.close();
+
+    this.metrics.increment("vectortiles.tiles_written", tileCount.get());
+    System.out.println(String.format("built vector tiles for %s (zoom %s-%s) in %s ms: %s features, %s tiles, %s KB", layer.name,
+        this.minZoom, this.maxZoom, System.currentTimeMillis() - startTime, layer.featureCount, tileCount.get(), tileBytes.get() / 1024));
+  }
+
+  // features covering each tile of zoom (tile plus buffer), keyed by x << 32 | y
+  private Map<Long, IntArray> binFeatures(TileLayer layer, int zoom) {
+    long tileSpan = (long) this.extent << (this.maxZoom - zoom);
+    long bufferSpan = (long) this.buffer << (this.maxZoom - zoom);
+    long maxTile = (1L << zoom) - 1;
+
+    Map<Long, IntArray> tileFeatures = new HashMap<>();
+    for (int feature = 0; feature < layer.featureCount; ++feature) {
+      long minTileX = Math.max(0, Math.floorDiv(layer.envelopes.get(4 * feature) - bufferSpan, tileSpan));
+      long minTileY = Math.max(0, Math.floorDiv(layer.envelopes.get(4 * feature + 1) - bufferSpan, tileSpan));
+      long maxTileX = Math.min(maxTile, Math.floorDiv(layer.envelopes.get(4 * feature + 2) + bufferSpan, tileSpan));
+      long maxTileY = Math.min(maxTile, Math.floorDiv(layer.envelopes.get(4 * feature + 3) + bufferSpan, tileSpan));
+      for (long x = minTileX; x <= maxTileX; ++x) {
+        for (long y = minTileY; y <= maxTileY; ++y) {
+          tileFeatures.computeIfAbsent(x << 32 | y, key -> new IntArray()).add(feature);
+        }
+      }
+    }
+    return tileFeatures;
+  }
+
+  // null if no feature is left after clipping and simplification
+  private byte[] encodeTile(TileLayer layer, int zoom, int tileX, int tileY, IntArray features) {
+    double scale = 1L << (this.maxZoom - zoom);
+    double originX = (double) tileX * this.extent * scale;
+    double originY = (double) tileY * this.extent * scale;
+    double clipMin = -this.buffer;
+    double clipMax = this.extent + this.buffer;
+    double tolerance = zoom < this.maxZoom ? this.simplification * this.extent / 256 : 0;
+
+    VectorTileEncoder encoder = new VectorTileEncoder(layer.name, this.extent);
+    IntArray xy = new IntArray();
+    IntArray partEnds = new IntArray();
+    for (int i = 0; i < features.size; ++i) {
+      int feature = features.values[i];
+      int geometryType = layer.geometryTypes[feature];
+
+      // clipping is skipped for features within the tile and buffer
+      boolean clip = (layer.envelopes.get(4 * feature) - originX) / scale < clipMin
+          || (layer.envelopes.get(4 * feature + 1) - originY) / scale < clipMin
+          || (layer.envelopes.get(4 * feature + 2) - originX) / scale > clipMax
+          || (layer.envelopes.get(4 * feature + 3) - originY) / scale > clipMax;
+
+      xy.size = 0;
+      partEnds.size = 0;
+      boolean exteriorDropped = false;
+      int partStart = layer.coordinateStarts[feature];
+      for (int part = layer.partStarts[feature]; part < layer.partStarts[feature + 1]; ++part) {
+        int partEnd = layer.partEnds.get(part) >>> 1;
+        boolean exterior = (layer.partEnds.get(part) & 1) != 0;
+
+        int pointCount = partEnd - partStart;
+        double[] points = new double[2 * pointCount];
+        for (int point = 0; point < pointCount; ++point) {
+          points[2 * point] = (layer.coordinates.get(2 * (partStart + point)) - originX) / scale;
+          points[2 * point + 1] = (layer.coordinates.get(2 * (partStart + point) + 1) - originY) / scale;
+        }
+        partStart = partEnd;
+
+        if (geometryType == VectorTileEncoder.GEOMETRY_POINT) {
+          for (int point = 0; point < pointCount; ++point) {
+            if (points[2 * point] >= clipMin && points[2 * point] <= clipMax && points[2 * point + 1] >= clipMin && points[2 * point + 1] <= clipMax) {
+              xy.add((int) Math.round(points[2 * point]));
+              xy.add((int) Math.round(points[2 * point + 1]));
+            }
+          }
+          partEnds.size = 0;
+          partEnds.add(xy.size / 2);
+
+        } else if (geometryType == VectorTileEncoder.GEOMETRY_LINESTRING) {
+          List<double[]> lines = clip ? clipLine(points, clipMin, clipMax) : Arrays.asList(points);
+          for (double[] line : lines) {
+            addPart(xy, partEnds, simplify(line, tolerance), 2, false);
+          }
+
+        } else {
+          // interior rings follow their exterior ring - and are dropped with it
+          if (exterior) {
+            exteriorDropped = false;
+          } else if (exteriorDropped) {
+            continue;
+          }
+          double[] ring = clip ? clipPolygon(points, clipMin, clipMax) : points;
+          boolean added = ring.length > 0 && addPart(xy, partEnds, simplify(ring, tolerance), 3, true);
+          if (added) {
+            orientRing(xy, partEnds, exterior);
+          } else if (exterior) {
+            exteriorDropped = true;
+          }
+        }
+      }
+
+      if (xy.size == 0) continue;
+
+      int attributeStart = layer.attributeStarts[feature];
+      int attributeCount = layer.attributeStarts[feature + 1] - attributeStart;
+      String[] attributeKeys = new String[attributeCount];
+      Object[] attributeValues = new Object[attributeCount];
+      for (int attribute = 0; attribute < attributeCount; ++attribute) {
+        attributeKeys[attribute] = layer.keys.get(layer.attributeKeys.get(attributeStart + attribute));
+        attributeValues[attribute] = layer.attributeValues.get(attributeStart + attribute);
+      }
+      encoder.addFeature(layer.ids[feature], geometryType, xy.values, partEnds.values, partEnds.size, attributeKeys, attributeValues,
+          attributeCount);
+    }
+
+    return encoder.getFeatureCount() > 0 ? encoder.encode() : null;
+  }
+
+  // rounds a part to tile coordinates, dropping repeated points and - for rings - the closing point. Returns
+  //  false (nothing added) if fewer than minPoints distinct points are left.
+  private static boolean addPart(IntArray xy, IntArray partEnds, double[] points, int minPoints, boolean ring) {
+    int start = xy.size;
+    for (int point = 0; point < points.length / 2; ++point) {
+      int x = (int) Math.round(points[2 * point]);
+      int y = (int) Math.round(points[2 * point + 1]);
+      if (xy.size > start && xy.values[xy.size - 2] == x && xy.values[xy.size - 1] == y) continue;
+      xy.add(x);
+      xy.add(y);
+    }
+    if (ring && xy.size - start >= 4 && xy.values[start] == xy.values[xy.size - 2] && xy.values[start + 1] == xy.values[xy.size - 1]) {
+      xy.size -= 2;
+    }
+    if ((xy.size - start) / 2 < minPoints || ring && getRingArea(xy, start, xy.size) == 0) {
+      xy.size = start;
+      return false;
+    }
+    partEnds.add(xy.size / 2);
+    return true;
+  }
+
+  // MVT exterior rings have positive area in tile coordinates (y down), interior rings negative
+  private static void orientRing(IntArray xy, IntArray partEnds, boolean exterior) {
+    int end = 2 * partEnds.values[partEnds.size - 1];
+    int start = partEnds.size > 1 ? 2 * partEnds.values[partEnds.size - 2] : 0;
+    if (getRingArea(xy, start, end) > 0 == exterior) return;
+
+    for (int i = start, j = end - 2; i < j; i += 2, j -= 2) {
+      int x = xy.values[i];
+      int y = xy.values[i + 1];
+      xy.values[i] = xy.values[j];
+      xy.values[i + 1] = xy.values[j + 1];
+      xy.values[j] = x;
+      xy.values[j + 1] = y;
+    }
+  }
+
+  // twice the signed area of an unclosed ring
+  private static long getRingArea(IntArray xy, int start, int end) {
+    long area = 0;
+    for (int i = start; i < end; i += 2) {
+      int next = i + 2 < end ? i + 2 : start;
+      area += (long) xy.values[i] * xy.values[next + 1] - (long) xy.values[next] * xy.values[i + 1];
+    }
+    return area;
+  }
+
+  // splits a line into the runs inside the square [min, max] - Liang-Barsky per segment
+  public static List<double[]> clipLine(double[] points, double min, double max) {
+    List<double[]> lines = new ArrayList<>();
+    DoubleArray line = null;
+    for (int i = 0; i + 3 < points.length; i += 2) {
+      double x0 = points[i];
+      double y0 = points[i + 1];
+      double dx = points[i + 2] - x0;
+      double dy = points[i + 3] - y0;
+      double[] t = { 0, 1 };
+      if (!clipEdge(-dx, x0 - min, t) || !clipEdge(dx, max - x0, t) || !clipEdge(-dy, y0 - min, t) || !clipEdge(dy, max - y0, t)) {
+        if (line != null) {
+          lines.add(line.toArray());
+          line = null;
+        }
+        continue;
+      }
+      if (line == null) {
+        line = new DoubleArray();
+        line.add(x0 + t[0] * dx);
+        line.add(y0 + t[0] * dy);
+      }
+      line.add(x0 + t[1] * dx);
+      line.add(y0 + t[1] * dy);
+
+      // segment leaves the square
+      if (t[1] < 1) {
+        lines.add(line.toArray());
+        line = null;
+      }
+    }
+    if (line != null) {
+      lines.add(line.toArray());
+    }
+    return lines;
+  }
+
+  private static boolean clipEdge(double p, double q, double[] t) {
+    if (p == 0) return q >= 0;
+    double r = q / p;
+    if (p < 0) {
+      if (r > t[1]) return false;
+      t[0] = Math.max(t[0], r);
+    } else {
+      if (r < t[0]) return false;
+      t[1] = Math.min(t[1], r);
+    }
+    return true;
+  }
+
+  // Sutherland-Hodgman clip of a closed ring to the square [min, max] - returns a closed ring (or none)
+  public static double[] clipPolygon(double[] ring, double min, double max) {
+    double[] clipped = ring;
+    for (int edge = 0; edge < 4 && clipped.length > 0; ++edge) {
+      int axis = edge % 2;
+      double bound = edge < 2 ? min : max;
+      boolean keepAbove = edge < 2;
+
+      DoubleArray output = new DoubleArray();
+      for (int i = 0; i + 3 < clipped.length; i += 2) {
+        double a = clipped[i + axis];
+        double b = clipped[i + 2 + axis];
+        boolean aInside = keepAbove ? a >= bound : a <= bound;
+        boolean bInside = keepAbove ? b >= bound : b <= bound;
+        if (aInside) {
+          output.add(clipped[i]);
+          output.add(clipped[i + 1]);
+        }
+        if (aInside != bInside) {
+          double t = (bound - a) / (b - a);
+          output.add(clipped[i] + t * (clipped[i + 2] - clipped[i]));
+          output.add(clipped[i + 1] + t * (clipped[i + 3] - clipped[i + 1]));
+        }
+      }
+      if (output.size > 0) {
+        output.add(output.values[0]);
+        output.add(output.values[1]);
+      }
+      clipped = output.toArray();
+    }
+    return clipped;
+  }
+
+  // Douglas-Peucker, keeping both end points
+  private static double[] simplify(double[] points, double tolerance) {
+    int pointCount = points.length / 2;
+    if (tolerance <= 0 || pointCount < 3) return points;
+
+    boolean[] kept = new boolean[pointCount];
+    kept[0] = true;
+    kept[pointCount - 1] = true;
+    IntArray ranges = new IntArray();
+    ranges.add(0);
+    ranges.add(pointCount - 1);
+    double toleranceSquared = tolerance * tolerance;
+    while (ranges.size > 0) {
+      int last = ranges.values[--ranges.size];
+      int first = ranges.values[--ranges.size];
+      int farthest = -1;
+      double farthestDistance = toleranceSquared;
+      for (int point = first + 1; point < last; ++point) {
+        double distance = getSegmentDistanceSquared(points, point, first, last);
+        if (distance > farthestDistance) {
+          farthest = point;
+          farthestDistance = distance;
+        }
+      }
+      if (farthest >= 0) {
+        kept[farthest] = true;
+        ranges.add(first);
+        ranges.add(farthest);
+        ranges.add(farthest);
+        ranges.add(last);
+      }
+    }
+
+    DoubleArray simplified = new DoubleArray();
+    for (int point = 0; point < pointCount; ++point) {
+      if (kept[point]) {
+        simplified.add(points[2 * point]);
+        simplified.add(points[2 * point + 1]);
+      }
+    }
+    return simplified.toArray();
+  }
+
+  private static double getSegmentDistanceSquared(double[] points, int point, int first, int last) {
+    double x = points[2 * first];
+    double y = points[2 * first + 1];
+    double dx = points[2 * last] - x;
+    double dy = points[2 * last + 1] - y;
+    if (dx != 0 || dy != 0) {
+      double t = ((points[2 * point] - x) * dx + (points[2 * point + 1] - y) * dy) / (dx * dx + dy * dy);
+      if (t > 1) {
+        x = points[2 * last];
+        y = points[2 * last + 1];
+      } else if (t > 0) {
+        x += dx * t;
+        y += dy * t;
+      }
+    }
+    dx = points[2 * point] - x;
+    dy = points[2 * point + 1] - y;
+    return dx * dx + dy * dy;
+  }
+
+  // MBTiles metadata, with the TileJSON vector_layers description of the layer's attributes
+  private JSONObject getMetadata(TileLayer layer) {
+    JSONObject vectorLayer = new JSONObject();
+    vectorLayer.put("id", layer.name);
+    vectorLayer.put("minzoom", this.minZoom);
+    vectorLayer.put("maxzoom", this.maxZoom);
+    vectorLayer.put("fields", new JSONObject(layer.fieldTypes));
+
+    JSONObject metadata = new JSONObject();
+    metadata.put("name", layer.name);
+    metadata.put("format", "pbf");
+    metadata.put("type", "overlay");
+    metadata.put("minzoom", this.minZoom);
+    metadata.put("maxzoom", this.maxZoom);
+    if (layer.featureCount > 0) {
+      metadata.put("bounds", String.format("%s,%s,%s,%s", layer.minLongitude, layer.minLatitude, layer.maxLongitude, layer.maxLatitude));
+      metadata.put("center", String.format("%s,%s,%s", (layer.minLongitude + layer.maxLongitude) / 2,
+          (layer.minLatitude + layer.maxLatitude) / 2, this.minZoom));
+    }
+    metadata.put("json", new JSONObject().put("vector_layers", new JSONArray().put(vectorLayer)).toString());
+    return metadata;
+  }
+
+  // features of one visualization table - geometries, envelopes and attributes in flat arrays, indexed by
+  //  feature through the *Starts arrays (one entry per feature plus an end)
+  private class TileLayer {
+
+    private final String name;
+
+    private WkbEncoder wkbEncoder = new WkbEncoder();
+
+    private int featureCount;
+
+    private long[] ids = new long[1024];
+
+    private byte[] geometryTypes = new byte[1024];
+
+    // x, y pairs of Web Mercator coordinates at maxZoom tile resolution
+    private IntArray coordinates = new IntArray();
+
+    // per feature first coordinate (pair index) and first part
+    private int[] coordinateStarts = new int[1025];
+
+    private int[] partStarts = new int[1025];
+
+    // per part end coordinate (pair index, exclusive) << 1 | 1 if an exterior polygon ring
+    private IntArray partEnds = new IntArray();
+
+    // minX, minY, maxX, maxY in world coordinates
+    private IntArray envelopes = new IntArray();
+
+    private int[] attributeStarts = new int[1025];
+
+    private IntArray attributeKeys = new IntArray();
+
+    private List<Object> attributeValues = new ArrayList<>();
+
+    private Map<String, Integer> keyIndexes = new HashMap<>();
+
+    private List<String> keys = new ArrayList<>();
+
+    // attribute -> TileJSON field type (String, Number or Boolean)
+    private Map<String, String> fieldTypes = new HashMap<>();
+
+    private double minLongitude = Double.POSITIVE_INFINITY;
+
+    private double minLatitude = Double.POSITIVE_INFINITY;
+
+    private double maxLongitude = Double.NEGATIVE_INFINITY;
+
+    private double maxLatitude = Double.NEGATIVE_INFINITY;
+
+    private long worldSize = (long) extent << maxZoom;
+
+    private TileLayer(String name) {
+      this.name = name;
+    }
+
+    private void addFeature(String associatedDataProperty, Relationship rel) {
+      ByteBuffer wkb;
+      try {
+        wkb = ByteBuffer.wrap(this.wkbEncoder.toEwkb((String) rel.getProperty("way"), PostgisDb.SRID)).order(ByteOrder.LITTLE_ENDIAN);
+      } catch (IllegalArgumentException e) {
+        System.out.println(String.format("skipping relationship %s in %s vector tiles: %s", rel.getId(), this.name, e.getMessage()));
+        return;
+      }
+
+      int coordinatesSize = this.coordinates.size;
+      int partsSize = this.partEnds.size;
+      int geometryType = readGeometry(wkb, 0);
+      if (geometryType == 0 || this.partEnds.size == partsSize) {
+        this.coordinates.size = coordinatesSize;
+        this.partEnds.size = partsSize;
+        return;
+      }
+
+      if (this.featureCount == this.ids.length) {
+        this.ids = Arrays.copyOf(this.ids, this.featureCount * 2);
+        this.geometryTypes = Arrays.copyOf(this.geometryTypes, this.featureCount * 2);
+        this.coordinateStarts = Arrays.copyOf(this.coordinateStarts, this.featureCount * 2 + 1);
+        this.partStarts = Arrays.copyOf(this.partStarts, this.featureCount * 2 + 1);
+        this.attributeStarts = Arrays.copyOf(this.attributeStarts, this.featureCount * 2 + 1);
+      }
+      int feature = this.featureCount++;
+      this.ids[feature] = rel.getId();
+      this.geometryTypes[feature] = (byte) geometryType;
+      this.coordinateStarts[feature + 1] = this.coordinates.size / 2;
+      this.partStarts[feature + 1] = this.partEnds.size;
+
+      int minX = Integer.MAX_VALUE;
+      int minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE;
+      int maxY = Integer.MIN_VALUE;
+      for (int i = coordinatesSize; i < this.coordinates.size; i += 2) {
+        minX = Math.min(minX, this.coordinates.values[i]);
+        minY = Math.min(minY, this.coordinates.values[i + 1]);
+        maxX = Math.max(maxX, this.coordinates.values[i]);
+        maxY = Math.max(maxY, this.coordinates.values[i + 1]);
+      }
+      this.envelopes.add(minX);
+      this.envelopes.add(minY);
+      this.envelopes.add(maxX);
+      this.envelopes.add(maxY);
+      this.minLongitude = Math.min(this.minLongitude, this.wkbEncoder.getMinX());
+      this.minLatitude = Math.min(this.minLatitude, this.wkbEncoder.getMinY());
+      this.maxLongitude = Math.max(this.maxLongitude, this.wkbEncoder.getMaxX());
+      this.maxLatitude = Math.max(this.maxLatitude, this.wkbEncoder.getMaxY());
+
+      // attributes - osm_id and the scalar fields of the first associatedData entry (nested values as json)
+      addAttribute("osm_id", ((Number) rel.getProperty("osm_id")).longValue());
+      JSONObject entry = new JSONArray((String) rel.getProperty(associatedDataProperty)).optJSONObject(0);
+      if (entry != null) {
+        for (String field : entry.keySet()) {
+          Object value = entry.get(field);
+          if (value == JSONObject.NULL) continue;
+          if (value instanceof Integer || value instanceof Long) {
+            value = ((Number) value).longValue();
+          } else if (value instanceof Number) {
+            value = ((Number) value).doubleValue();
+          } else if (!(value instanceof Boolean)) {
+            value = value.toString();
+          }
+          addAttribute(AssociatedDataSchema.COLUMN_PREFIX + field, value);
+        }
+      }
+      this.attributeStarts[feature + 1] = this.attributeKeys.size;
+    }
+
+    private void addAttribute(String key, Object value) {
+      Integer keyIndex = this.keyIndexes.get(key);
+      if (keyIndex == null) {
+        keyIndex = this.keys.size();
+        this.keyIndexes.put(key, keyIndex);
+        this.keys.add(key);
+      }
+      this.attributeKeys.add(keyIndex);
+      this.attributeValues.add(value);
+      this.fieldTypes.put(key, value instanceof Boolean ? "Boolean" : value instanceof String ? "String" : "Number");
+    }
+
+    // appends the parts of a (E)WKB geometry - returns its MVT geometry type, or 0 if nothing was appended.
+    //  Members of collections that do not match the type of the first one are left out.
+    private int readGeometry(ByteBuffer wkb, int geometryType) {
+      wkb.get();
+      int wkbType = wkb.getInt();
+      if ((wkbType & 0x20000000) != 0) {
+        wkb.getInt();
+      }
+      wkbType &= 0xFF;
+
+      switch (wkbType) {
+        case 1: {
+          double longitude = wkb.getDouble();
+          double latitude = wkb.getDouble();
+          if (Double.isNaN(longitude) || geometryType != 0 && geometryType != VectorTileEncoder.GEOMETRY_POINT) return geometryType;
+          addCoordinate(longitude, latitude);
+          this.partEnds.add((this.coordinates.size / 2) << 1);
+          return VectorTileEncoder.GEOMETRY_POINT;
+        }
+        case 2: {
+          int pointCount = wkb.getInt();
+          if (pointCount == 0 || geometryType != 0 && geometryType != VectorTileEncoder.GEOMETRY_LINESTRING) {
+            wkb.position(wkb.position() + 16 * pointCount);
+            return geometryType;
+          }
+          for (int point = 0; point < pointCount; ++point) {
+            addCoordinate(wkb.getDouble(), wkb.getDouble());
+          }
+          this.partEnds.add((this.coordinates.size / 2) << 1);
+          return VectorTileEncoder.GEOMETRY_LINESTRING;
+        }
+        case 3: {
+          int ringCount = wkb.getInt();
+          boolean matches = geometryType == 0 || geometryType == VectorTileEncoder.GEOMETRY_POLYGON;
+          for (int ring = 0; ring < ringCount; ++ring) {
+            int pointCount = wkb.getInt();
+            if (!matches || pointCount == 0) {
+              wkb.position(wkb.position() + 16 * pointCount);
+              continue;
+            }
+            for (int point = 0; point < pointCount; ++point) {
+              addCoordinate(wkb.getDouble(), wkb.getDouble());
+            }
+            this.partEnds.add((this.coordinates.size / 2) << 1 | (ring == 0 ? 1 : 0));
+          }
+          return matches && ringCount > 0 ? VectorTileEncoder.GEOMETRY_POLYGON : geometryType;
+        }
+        case 4:
+        case 5:
+        case 6:
+        case 7: {
+          int memberCount = wkb.getInt();
+          for (int member = 0; member < memberCount; ++member) {
+            geometryType = readGeometry(wkb, geometryType);
+          }
+          return geometryType;
+        }
+        default:
+          throw new IllegalArgumentException("unsupported geometry type " + wkbType);
+      }
+    }
+
+    // Web Mercator, scaled to maxZoom tile coordinates (y down)
+    private void addCoordinate(double longitude, double latitude) {
+      double sinLatitude = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+      double x = (longitude + 180) / 360;
+      double y = 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+      this.coordinates.add((int) Math.max(0, Math.min(this.worldSize, Math.round(x * this.worldSize))));
+      this.coordinates.add((int) Math.max(0, Math.min(this.worldSize, Math.round(y * this.worldSize))));
+    }
+
+  }
+
+  private static class IntArray {
+
+    private int[] values = new int[16];
+
+    private int size;
+
+    private void add(int value) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf(this.values, this.size * 2);
+      }
+      this.values[this.size++] = value;
+    }
+
+    private int get(int index) {
+      return this.values[index];
+    }
+
+  }
+
+  private static class DoubleArray {
+
+    private double[] values = new double[16];
+
+    private int size;
+
+    private void add(double value) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf(this.values, this.size * 2);
+      }
+      this.values[this.size++] = value;
+    }
+
+    private double[] toArray() {
+      return Arrays.copyOf(this.values, this.size);
+    }
+
+  }
+
+}
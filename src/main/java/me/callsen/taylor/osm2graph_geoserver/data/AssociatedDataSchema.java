@@ -0,0 +1,210 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Hashing;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// typed columns promoted out of the associatedData JSON - scalar fields found in a sample of each property's
+//  entries become `ad_<field>` columns (bigint, double precision, boolean or text) next to the raw json, so
+//  SLD filters and WFS queries compare plain column values (and can use a btree index) instead of parsing
+//  JSON per row. A row's column value is taken from the first entry of its associatedData array. Fields with
+//  nested values, or numbers and booleans mixed, are left in the json only.
+public class AssociatedDataSchema {
+
+  public static final String COLUMN_PREFIX = "ad_";
+
+  // keeps wide payloads from turning into hundreds of columns
+  public static final int MAX_COLUMNS_PER_PROPERTY = 32;
+
+  public enum ColumnType {
+
+    BIGINT("bigint"),
+    DOUBLE("double precision"),
+    BOOLEAN("boolean"),
+    TEXT("text");
+
+    private final String sqlType;
+
+    ColumnType(String sqlType) {
+      this.sqlType = sqlType;
+    }
+
+    public String getSqlType() {
+      return this.sqlType;
+    }
+
+  }
+
+  public static class TypedColumn {
+
+    public final String field;
+
+    public final String columnName;
+
+    public final ColumnType type;
+
+    public TypedColumn(String field, String columnName, ColumnType type) {
+      this.field = field;
+      this.columnName = columnName;
+      this.type = type;
+    }
+
+  }
+
+  // property -> field -> type observed so far, in order of first appearance
+  private Map<String, Map<String, ColumnType>> observedTypes = new HashMap<>();
+
+  // property -> fields that can not be promoted
+  private Map<String, Set<String>> excludedFields = new HashMap<>();
+
+  private Map<String, List<TypedColumn>> columns = new HashMap<>();
+
+  // property -> hash seed of its column definitions, mixed into row content hashes so a schema change
+  //  rewrites every row on incremental sync
+  private Map<String, Long> hashSeeds = new HashMap<>();
+
+  // infers the typed columns of every associatedData property from up to sampleSize relationships
+  public static AssociatedDataSchema infer(GraphRelationshipReader relationshipReader, int sampleSize) throws Exception {
+
+    AssociatedDataSchema schema = new AssociatedDataSchema();
+    long startTime = System.currentTimeMillis();
+
+    relationshipReader.readAssociatedDataSample(sampleSize, (shard, pageNumber, relationships) -> {
+      for (Relationship relationship : relationships) {
+        for (String associatedDataProperty : (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+          if (relationship.hasProperty(associatedDataProperty)) {
+            schema.sample(associatedDataProperty, (String) relationship.getProperty(associatedDataProperty));
+          }
+        }
+      }
+    });
+    schema.finishInference();
+
+    for (Map.Entry<String, List<TypedColumn>> propertyColumns : schema.columns.entrySet()) {
+      StringBuilder columnList = new StringBuilder();
+      for (TypedColumn column : propertyColumns.getValue()) {
+        if (columnList.length() > 0) columnList.append(", ");
+        columnList.append(column.columnName).append(' ').append(column.type.getSqlType());
+      }
+      System.out.println(String.format("typed columns of %s: %s", propertyColumns.getKey(), columnList.length() > 0 ? columnList : "none"));
+    }
+    System.out.println(String.format("inferred associatedData schema from up to %s relationships in %s ms", sampleSize,
+        System.currentTimeMillis() - startTime));
+
+    return schema;
+  }
+
+  // adds the field types of every entry of one associatedData payload
+  public void sample(String associatedDataProperty, String associatedDataJson) {
+
+    Map<String, ColumnType> propertyTypes = this.observedTypes.computeIfAbsent(associatedDataProperty, property -> new LinkedHashMap<>());
+    Set<String> propertyExcludedFields = this.excludedFields.computeIfAbsent(associatedDataProperty, property -> new HashSet<>());
+
+    JSONArray associatedData;
+    try {
+      associatedData = new JSONArray(associatedDataJson);
+    } catch (Exception e) {
+      return;
+    }
+
+    for (int i = 0; i < associatedData.length(); ++i) {
+      JSONObject entry = associatedData.optJSONObject(i);
+      if (entry == null) continue;
+
+      for (String field : entry.keySet()) {
+        if (propertyExcludedFields.contains(field)) continue;
+
+        Object value = entry.get(field);
+        if (value == JSONObject.NULL) continue;
+
+        ColumnType type = getColumnType(value);
+        ColumnType mergedType = type == null ? null : mergeTypes(propertyTypes.get(field), type);
+        if (mergedType == null) {
+          propertyExcludedFields.add(field);
+          propertyTypes.remove(field);
+        } else {
+          propertyTypes.put(field, mergedType);
+        }
+      }
+    }
+  }
+
+  // turns the observed field types into columns - call once sampling is done
+  public void finishInference() {
+    for (Map.Entry<String, Map<String, ColumnType>> propertyTypes : this.observedTypes.entrySet()) {
+
+      List<TypedColumn> propertyColumns = new ArrayList<>();
+      Set<String> columnNames = new HashSet<>();
+      long hashSeed = Hashing.FNV_OFFSET_BASIS;
+
+      for (Map.Entry<String, ColumnType> fieldType : propertyTypes.getValue().entrySet()) {
+        if (propertyColumns.size() == MAX_COLUMNS_PER_PROPERTY) break;
+
+        String columnName = getColumnName(fieldType.getKey());
+        if (!columnNames.add(columnName)) continue;
+
+        propertyColumns.add(new TypedColumn(fieldType.getKey(), columnName, fieldType.getValue()));
+        String columnDefinition = columnName + ' ' + fieldType.getValue().getSqlType();
+        hashSeed = Hashing.fnv1a64(hashSeed, columnDefinition, 0, columnDefinition.length());
+      }
+
+      this.columns.put(propertyTypes.getKey(), propertyColumns);
+      this.hashSeeds.put(propertyTypes.getKey(), hashSeed);
+    }
+    this.observedTypes.clear();
+    this.excludedFields.clear();
+  }
+
+  // empty for properties without typed columns (including properties not seen in the sample)
+  public List<TypedColumn> getColumns(String associatedDataProperty) {
+    List<TypedColumn> propertyColumns = associatedDataProperty != null ? this.columns.get(associatedDataProperty) : null;
+    return propertyColumns != null ? propertyColumns : Collections.emptyList();
+  }
+
+  public long getHashSeed(String associatedDataProperty) {
+    Long hashSeed = associatedDataProperty != null ? this.hashSeeds.get(associatedDataProperty) : null;
+    return hashSeed != null ? hashSeed : Hashing.FNV_OFFSET_BASIS;
+  }
+
+  // null for values that can not be promoted (objects, arrays)
+  private static ColumnType getColumnType(Object value) {
+    if (value instanceof Integer || value instanceof Long || value instanceof BigInteger) return ColumnType.BIGINT;
+    if (value instanceof Number) return ColumnType.DOUBLE;
+    if (value instanceof Boolean) return ColumnType.BOOLEAN;
+    if (value instanceof String) return ColumnType.TEXT;
+    return null;
+  }
+
+  // widest type holding both - null if the types can not share a column
+  private static ColumnType mergeTypes(ColumnType existing, ColumnType observed) {
+    if (existing == null || existing == observed) return observed;
+    if (existing == ColumnType.TEXT || observed == ColumnType.TEXT) return ColumnType.TEXT;
+    if (existing != ColumnType.BOOLEAN && observed != ColumnType.BOOLEAN) return ColumnType.DOUBLE;
+    return null;
+  }
+
+  // lower case identifier safe to use unquoted - long field names are shortened as other identifiers are (see
+  //  PostgisDb.getIdentifier), so fields sharing a prefix keep columns of their own
+  static String getColumnName(String field) {
+    StringBuilder columnName = new StringBuilder(COLUMN_PREFIX);
+    for (int i = 0; i < field.length(); ++i) {
+      char c = Character.toLowerCase(field.charAt(i));
+      columnName.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ? c : '_');
+    }
+    return PostgisDb.getIdentifier(columnName.toString());
+  }
+
+}
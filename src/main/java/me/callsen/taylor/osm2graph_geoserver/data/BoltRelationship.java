@@ -0,0 +1,166 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+// read only view of a relationship received over Bolt through the embedded Relationship interface, so rows
+//  are serialized the same whichever source they come from. Property values are converted to the types the
+//  embedded API returns - lists become arrays (String[], long[], double[], boolean[]). Nodes are not
+//  available. Also holds detached copies of embedded relationships, e.g. ways merged by WayDeduplication.
+public class BoltRelationship implements Relationship {
+
+  private long id;
+
+  private long startNodeId;
+
+  private long endNodeId;
+
+  private String type;
+
+  private Map<String, Object> properties = new LinkedHashMap<>();
+
+  public BoltRelationship(org.neo4j.driver.types.Relationship relationship) {
+    this.id = relationship.id();
+    this.startNodeId = relationship.startNodeId();
+    this.endNodeId = relationship.endNodeId();
+    this.type = relationship.type();
+    for (String key : relationship.keys()) {
+      this.properties.put(key, toEmbeddedValue(relationship.get(key).asObject()));
+    }
+  }
+
+  // copy of a relationship that stays readable once its transaction is closed
+  public BoltRelationship(Relationship relationship) {
+    this.id = relationship.getId();
+    this.startNodeId = relationship.getStartNodeId();
+    this.endNodeId = relationship.getEndNodeId();
+    this.type = relationship.getType().name();
+    for (String key : relationship.getPropertyKeys()) {
+      this.properties.put(key, relationship.getProperty(key));
+    }
+  }
+
+  // replaces a property of a detached copy - not part of the read only Relationship interface
+  void putProperty(String key, Object value) {
+    this.properties.put(key, value);
+  }
+
+  public long getId() {
+    return this.id;
+  }
+
+  public boolean hasProperty(String key) {
+    return this.properties.containsKey(key);
+  }
+
+  public Object getProperty(String key) {
+    Object value = this.properties.get(key);
+    if (value == null) {
+      throw new NotFoundException(String.format("No such property, '%s'.", key));
+    }
+    return value;
+  }
+
+  public Object getProperty(String key, Object defaultValue) {
+    return this.properties.getOrDefault(key, defaultValue);
+  }
+
+  public Iterable<String> getPropertyKeys() {
+    return this.properties.keySet();
+  }
+
+  public Map<String, Object> getProperties(String... keys) {
+    Map<String, Object> selectedProperties = new HashMap<>();
+    for (String key : keys) {
+      if (this.properties.containsKey(key)) {
+        selectedProperties.put(key, this.properties.get(key));
+      }
+    }
+    return selectedProperties;
+  }
+
+  public Map<String, Object> getAllProperties() {
+    return new HashMap<>(this.properties);
+  }
+
+  public long getStartNodeId() {
+    return this.startNodeId;
+  }
+
+  public long getEndNodeId() {
+    return this.endNodeId;
+  }
+
+  public long getOtherNodeId(long nodeId) {
+    return nodeId == this.startNodeId ? this.endNodeId : this.startNodeId;
+  }
+
+  public RelationshipType getType() {
+    return RelationshipType.withName(this.type);
+  }
+
+  public boolean isType(RelationshipType type) {
+    return this.type.equals(type.name());
+  }
+
+  public Node getStartNode() {
+    throw new UnsupportedOperationException("nodes of Bolt relationships are not available");
+  }
+
+  public Node getEndNode() {
+    throw new UnsupportedOperationException("nodes of Bolt relationships are not available");
+  }
+
+  public Node getOtherNode(Node node) {
+    throw new UnsupportedOperationException("nodes of Bolt relationships are not available");
+  }
+
+  public Node[] getNodes() {
+    throw new UnsupportedOperationException("nodes of Bolt relationships are not available");
+  }
+
+  public void setProperty(String key, Object value) {
+    throw new UnsupportedOperationException("Bolt relationships are read only");
+  }
+
+  public Object removeProperty(String key) {
+    throw new UnsupportedOperationException("Bolt relationships are read only");
+  }
+
+  public void delete() {
+    throw new UnsupportedOperationException("Bolt relationships are read only");
+  }
+
+  // lists of one type become the array the embedded API returns - other values are kept as the driver
+  //  returns them (integers as Long, floats as Double)
+  static Object toEmbeddedValue(Object value) {
+    if (!(value instanceof List)) return value;
+
+    List<?> values = (List<?>) value;
+    if (values.stream().allMatch(element -> element instanceof String)) {
+      return values.toArray(new String[0]);
+    }
+    if (values.stream().allMatch(element -> element instanceof Long)) {
+      return values.stream().mapToLong(element -> (Long) element).toArray();
+    }
+    if (values.stream().allMatch(element -> element instanceof Double)) {
+      return values.stream().mapToDouble(element -> (Double) element).toArray();
+    }
+    if (values.stream().allMatch(element -> element instanceof Boolean)) {
+      boolean[] booleans = new boolean[values.size()];
+      for (int i = 0; i < booleans.length; ++i) {
+        booleans[i] = (Boolean) values.get(i);
+      }
+      return booleans;
+    }
+    return values.toArray();
+  }
+
+}
@@ -0,0 +1,94 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.graphdb.Relationship;
+
+// relationships streamed from a running Neo4j server over Bolt, so the loader does not need a copy of the
+//  store. The driver pulls fetchSize records at a time and only pulls more once those have been read, so a
+//  reader blocked on the load pipeline holds at most one fetch worth of records in memory. Each query runs in
+//  its own session (sessions are not thread safe), as an auto-commit transaction - a failed query is not
+//  retried, since its relationships may already have been handed on.
+public class BoltRelationshipSource implements RelationshipSource {
+
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private Driver driver;
+
+  private String uri;
+
+  private SessionConfig sessionConfig;
+
+  // boltConfig: uri, user, password, database (optional, server default) and fetchSize (optional)
+  public BoltRelationshipSource(JSONObject boltConfig) {
+    this.uri = boltConfig.getString("uri");
+    this.driver = GraphDatabase.driver(this.uri, AuthTokens.basic(boltConfig.getString("user"), boltConfig.getString("password")));
+
+    SessionConfig.Builder sessionConfigBuilder = SessionConfig.builder()
+        .withDefaultAccessMode(AccessMode.READ)
+        .withFetchSize(boltConfig.optInt("fetchSize", DEFAULT_FETCH_SIZE));
+    if (boltConfig.has("database")) {
+      sessionConfigBuilder.withDatabase(boltConfig.getString("database"));
+    }
+    this.sessionConfig = sessionConfigBuilder.build();
+
+    this.driver.verifyConnectivity();
+  }
+
+  @Override
+  public void readRelationships(String query, Map<String, Object> parameters, RelationshipStream stream) throws Exception {
+    try (Session session = this.driver.session(this.sessionConfig)) {
+      Result result = session.run(query, parameters);
+      stream.read(new Iterator<Relationship>() {
+
+        public boolean hasNext() {
+          return result.hasNext();
+        }
+
+        public Relationship next() {
+          return new BoltRelationship(result.next().get("way").asRelationship());
+        }
+
+      });
+      result.consume();
+    }
+  }
+
+  @Override
+  public Map<String, Object> readRow(String query) throws Exception {
+    try (Session session = this.driver.session(this.sessionConfig)) {
+      Result result = session.run(query);
+      if (!result.hasNext()) return null;
+
+      Record record = result.next();
+      Map<String, Object> row = new HashMap<>();
+      for (String key : record.keys()) {
+        row.put(key, record.get(key).asObject());
+      }
+      result.consume();
+      return row;
+    }
+  }
+
+  @Override
+  public String getLocation() {
+    return this.uri;
+  }
+
+  @Override
+  public void close() {
+    this.driver.close();
+  }
+
+}
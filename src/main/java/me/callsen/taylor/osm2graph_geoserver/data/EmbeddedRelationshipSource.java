@@ -0,0 +1,69 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// relationships read from an embedded store opened through GraphDb - results are streamed through a cursor
+//  held open in one transaction per query
+public class EmbeddedRelationshipSource implements RelationshipSource {
+
+  private GraphDb graphDb;
+
+  private String location;
+
+  public EmbeddedRelationshipSource(GraphDb graphDb, String location) {
+    this.graphDb = graphDb;
+    this.location = location;
+  }
+
+  @Override
+  public void readRelationships(String query, Map<String, Object> parameters, RelationshipStream stream) throws Exception {
+    try (Transaction tx = this.graphDb.getTransaction()) {
+      Result result = tx.execute(query, parameters);
+      try {
+        stream.read(new Iterator<Relationship>() {
+
+          public boolean hasNext() {
+            return result.hasNext();
+          }
+
+          public Relationship next() {
+            return (Relationship) result.next().get("way");
+          }
+
+        });
+      } finally {
+        result.close();
+      }
+      tx.commit();
+    }
+  }
+
+  @Override
+  public Map<String, Object> readRow(String query) throws Exception {
+    try (Transaction tx = this.graphDb.getTransaction()) {
+      Result result = tx.execute(query);
+      Map<String, Object> row = result.hasNext() ? result.next() : null;
+      result.close();
+      tx.commit();
+      return row;
+    }
+  }
+
+  @Override
+  public String getLocation() {
+    return this.location;
+  }
+
+  @Override
+  public void close() {
+    this.graphDb.shutdown();
+  }
+
+}
@@ -0,0 +1,451 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.FlatBufferWriter;
+import me.callsen.taylor.osm2graph_geoserver.lib.HilbertCurve;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
+
+// writes one visualization layer to a FlatGeobuf (.fgb) file - the same columns as a visualization table
+//  (osm_id, associatedData and relationshipData json, rel_id) plus a packed Hilbert R-tree index, so clients
+//  (GeoServer, GDAL, QGIS) can read a bbox straight from disk. The index must precede the features and is
+//  built over features sorted by the Hilbert index of their envelope centers, so features are spilled to a
+//  `<file>.features` temp file as they arrive and copied into the final file in sorted order by finish().
+//  Geometries come from the `way` WKT - empty geometries are skipped. Thread safe.
+public class FlatGeobufWriter {
+
+  private static final byte[] MAGIC_BYTES = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+
+  public static final int INDEX_NODE_SIZE = 16;
+
+  // FlatGeobuf ColumnType values
+  private static final int COLUMN_TYPE_LONG = 7;
+
+  private static final int COLUMN_TYPE_JSON = 12;
+
+  private static final int NODE_ITEM_BYTES = 40;
+
+  // features are sorted along a 2^16 x 2^16 Hilbert grid spanning the layer extent, as the reference
+  //  implementation does - the 32 bit key and the feature's position then pack into one long, compared unsigned
+  private static final int HILBERT_ORDER = 16;
+
+  private static final int COPY_BUFFER_BYTES = 1 << 20;
+
+  private Path path;
+
+  private Path spillPath;
+
+  private String layerName;
+
+  private String[] columnNames;
+
+  private OutputStream spill;
+
+  private long spillLength;
+
+  private WkbEncoder wkbEncoder = new WkbEncoder();
+
+  private FlatBufferWriter flatBufferWriter = new FlatBufferWriter();
+
+  private ByteBuffer properties = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+  // per feature spill offset, size and envelope (minX, minY, maxX, maxY)
+  private int featureCount;
+
+  private long[] featureOffsets = new long[1024];
+
+  private int[] featureSizes = new int[1024];
+
+  private double[] featureEnvelopes = new double[4 * 1024];
+
+  private long skippedCount;
+
+  public FlatGeobufWriter(Path path, String layerName, String associatedDataProperty) {
+    this.path = path;
+    this.spillPath = path.resolveSibling(path.getFileName() + ".features");
+    this.layerName = layerName;
+    this.columnNames = new String[] { "osm_id", associatedDataProperty, "relationshipData", "rel_id" };
+  }
+
+  public synchronized void addRow(String associatedDataProperty, Relationship rel) throws IOException {
+
+    byte[] ewkb;
+    try {
+      ewkb = this.wkbEncoder.toEwkb((String) rel.getProperty("way"), PostgisDb.SRID);
+    } catch (IllegalArgumentException e) {
+      System.out.println(String.format("skipping relationship %s in %s: %s", rel.getId(), this.layerName, e.getMessage()));
+      ++this.skippedCount;
+      return;
+    }
+    FlatBufferWriter.Table geometry = readGeometry(ByteBuffer.wrap(ewkb).order(ByteOrder.LITTLE_ENDIAN));
+    if (geometry == null) {
+      ++this.skippedCount;
+      return;
+    }
+
+    // properties - column index (ushort) followed by the value, strings and json prefixed by their length
+    this.properties.clear();
+    putLongProperty(0, PostgisDb.getOsmId(rel));
+    putStringProperty(1, PostgisDb.getAssociatedDataJson(associatedDataProperty, rel));
+    putStringProperty(2, PostgisDb.getRelationshipJson(associatedDataProperty, rel));
+    putLongProperty(3, rel.getId());
+
+    FlatBufferWriter.Table feature = new FlatBufferWriter.Table()
+        .addTable(0, geometry)
+        .addBytes(1, Arrays.copyOf(this.properties.array(), this.properties.position()));
+    int featureSize = this.flatBufferWriter.write(feature);
+
+    // size prefixed, as features are stored in the file
+    if (this.spill == null) {
+      this.spill = new BufferedOutputStream(Files.newOutputStream(this.spillPath), COPY_BUFFER_BYTES);
+    }
+    this.spill.write(new byte[] { (byte) featureSize, (byte) (featureSize >>> 8), (byte) (featureSize >>> 16), (byte) (featureSize >>> 24) });
+    this.spill.write(this.flatBufferWriter.getBuffer(), 0, featureSize);
+
+    if (this.featureCount == this.featureSizes.length) {
+      this.featureOffsets = Arrays.copyOf(this.featureOffsets, this.featureCount * 2);
+      this.featureSizes = Arrays.copyOf(this.featureSizes, this.featureCount * 2);
+      this.featureEnvelopes = Arrays.copyOf(this.featureEnvelopes, this.featureCount * 8);
+    }
+    this.featureOffsets[this.featureCount] = this.spillLength;
+    this.featureSizes[this.featureCount] = 4 + featureSize;
+    this.featureEnvelopes[4 * this.featureCount] = this.wkbEncoder.getMinX();
+    this.featureEnvelopes[4 * this.featureCount + 1] = this.wkbEncoder.getMinY();
+    this.featureEnvelopes[4 * this.featureCount + 2] = this.wkbEncoder.getMaxX();
+    this.featureEnvelopes[4 * this.featureCount + 3] = this.wkbEncoder.getMaxY();
+    ++this.featureCount;
+    this.spillLength += 4 + featureSize;
+  }
+
+  // writes the file - header, index and the features in index order - and removes the spill file
+  public synchronized void finish() throws IOException {
+    if (this.spill != null) {
+      this.spill.close();
+    }
+
+    double[] extent = getExtent();
+    int[] order = getHilbertOrder(extent);
+
+    // leaf offsets are each feature's byte offset within the features section, in sorted order
+    long[] sortedFeatureOffsets = new long[this.featureCount];
+    long featuresLength = 0;
+    for (int i = 0; i < this.featureCount; ++i) {
+      sortedFeatureOffsets[i] = featuresLength;
+      featuresLength += this.featureSizes[order[i]];
+    }
+
+    try (FileChannel out = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+      buffer.put(MAGIC_BYTES);
+      int headerSize = this.flatBufferWriter.write(getHeader(extent));
+      buffer.putInt(headerSize);
+      buffer.put(this.flatBufferWriter.getBuffer(), 0, headerSize);
+      writeFully(out, buffer);
+
+      if (this.featureCount > 0) {
+        writeIndex(out, buffer, order, sortedFeatureOffsets);
+        copyFeatures(out, buffer, order);
+      }
+    } finally {
+      Files.deleteIfExists(this.spillPath);
+    }
+
+    System.out.println(String.format("wrote %s features to %s (%s MB)%s", this.featureCount, this.path, Files.size(this.path) / (1024 * 1024),
+        this.skippedCount > 0 ? String.format(", skipped %s without geometry", this.skippedCount) : ""));
+  }
+
+  public synchronized int getFeatureCount() {
+    return this.featureCount;
+  }
+
+  public Path getPath() {
+    return this.path;
+  }
+
+  private FlatBufferWriter.Table getHeader(double[] extent) {
+    List<FlatBufferWriter.Table> columns = new ArrayList<>();
+    for (int i = 0; i < this.columnNames.length; ++i) {
+      columns.add(new FlatBufferWriter.Table()
+          .addString(0, this.columnNames[i])
+          .addByte(1, i == 1 || i == 2 ? COLUMN_TYPE_JSON : COLUMN_TYPE_LONG));
+    }
+
+    // geometry type Unknown - layers mix lines, polygons and points
+    FlatBufferWriter.Table header = new FlatBufferWriter.Table()
+        .addString(0, this.layerName)
+        .addByte(2, 0)
+        .addTables(7, columns)
+        .addULong(8, this.featureCount)
+        .addUShort(9, this.featureCount > 0 ? INDEX_NODE_SIZE : 0)
+        .addTable(10, new FlatBufferWriter.Table().addString(0, "EPSG").addInt(1, PostgisDb.SRID));
+    if (this.featureCount > 0) {
+      header.addDoubles(1, extent);
+    }
+    return header;
+  }
+
+  private double[] getExtent() {
+    double[] extent = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+    for (int i = 0; i < this.featureCount; ++i) {
+      extent[0] = Math.min(extent[0], this.featureEnvelopes[4 * i]);
+      extent[1] = Math.min(extent[1], this.featureEnvelopes[4 * i + 1]);
+      extent[2] = Math.max(extent[2], this.featureEnvelopes[4 * i + 2]);
+      extent[3] = Math.max(extent[3], this.featureEnvelopes[4 * i + 3]);
+    }
+    return extent;
+  }
+
+  // feature positions sorted by the Hilbert index of their envelope centers
+  private int[] getHilbertOrder(double[] extent) {
+    long cells = 1L << HILBERT_ORDER;
+    double width = extent[2] - extent[0];
+    double height = extent[3] - extent[1];
+
+    long[] keys = new long[this.featureCount];
+    for (int i = 0; i < this.featureCount; ++i) {
+      double centerX = (this.featureEnvelopes[4 * i] + this.featureEnvelopes[4 * i + 2]) / 2;
+      double centerY = (this.featureEnvelopes[4 * i + 1] + this.featureEnvelopes[4 * i + 3]) / 2;
+      long x = width > 0 ? Math.min(cells - 1, (long) ((centerX - extent[0]) / width * cells)) : 0;
+      long y = height > 0 ? Math.min(cells - 1, (long) ((centerY - extent[1]) / height * cells)) : 0;
+      // sign bit flipped, so a signed sort orders the keys unsigned
+      keys[i] = ((HilbertCurve.index(x, y, HILBERT_ORDER) << 32) | i) ^ Long.MIN_VALUE;
+    }
+    Arrays.sort(keys);
+
+    int[] order = new int[this.featureCount];
+    for (int i = 0; i < this.featureCount; ++i) {
+      order[i] = (int) keys[i];
+    }
+    return order;
+  }
+
+  // packed R-tree - levels are stored root first, each node holding the envelope of its (up to 16) children
+  //  and the index of its first child node, leaves holding a feature's envelope and offset
+  private void writeIndex(FileChannel out, ByteBuffer buffer, int[] order, long[] sortedFeatureOffsets) throws IOException {
+
+    // node count per level, leaves first
+    List<Integer> levelNodeCounts = new ArrayList<>();
+    int levelNodeCount = this.featureCount;
+    int nodeCount = levelNodeCount;
+    levelNodeCounts.add(levelNodeCount);
+    do {
+      levelNodeCount = (levelNodeCount + INDEX_NODE_SIZE - 1) / INDEX_NODE_SIZE;
+      nodeCount += levelNodeCount;
+      levelNodeCounts.add(levelNodeCount);
+    } while (levelNodeCount != 1);
+
+    // first node of each level (leaves first), counting from the root at 0
+    int[] levelStarts = new int[levelNodeCounts.size()];
+    int levelStart = nodeCount;
+    for (int level = 0; level < levelStarts.length; ++level) {
+      levelStart -= levelNodeCounts.get(level);
+      levelStarts[level] = levelStart;
+    }
+
+    double[] nodeEnvelopes = new double[4 * nodeCount];
+    long[] nodeOffsets = new long[nodeCount];
+    for (int i = 0; i < this.featureCount; ++i) {
+      int node = levelStarts[0] + i;
+      System.arraycopy(this.featureEnvelopes, 4 * order[i], nodeEnvelopes, 4 * node, 4);
+      nodeOffsets[node] = sortedFeatureOffsets[i];
+    }
+    for (int level = 1; level < levelStarts.length; ++level) {
+      for (int i = 0; i < levelNodeCounts.get(level); ++i) {
+        int node = levelStarts[level] + i;
+        int firstChild = levelStarts[level - 1] + i * INDEX_NODE_SIZE;
+        int lastChild = Math.min(firstChild + INDEX_NODE_SIZE, levelStarts[level - 1] + levelNodeCounts.get(level - 1));
+        nodeEnvelopes[4 * node] = Double.POSITIVE_INFINITY;
+        nodeEnvelopes[4 * node + 1] = Double.POSITIVE_INFINITY;
+        nodeEnvelopes[4 * node + 2] = Double.NEGATIVE_INFINITY;
+        nodeEnvelopes[4 * node + 3] = Double.NEGATIVE_INFINITY;
+        for (int child = firstChild; child < lastChild; ++child) {
+          nodeEnvelopes[4 * node] = Math.min(nodeEnvelopes[4 * node], nodeEnvelopes[4 * child]);
+          nodeEnvelopes[4 * node + 1] = Math.min(nodeEnvelopes[4 * node + 1], nodeEnvelopes[4 * child + 1]);
+          nodeEnvelopes[4 * node + 2] = Math.max(nodeEnvelopes[4 * node + 2], nodeEnvelopes[4 * child + 2]);
+          nodeEnvelopes[4 * node + 3] = Math.max(nodeEnvelopes[4 * node + 3], nodeEnvelopes[4 * child + 3]);
+        }
+        nodeOffsets[node] = firstChild;
+      }
+    }
+
+    for (int node = 0; node < nodeCount; ++node) {
+      if (buffer.remaining() < NODE_ITEM_BYTES) {
+        writeFully(out, buffer);
+      }
+      for (int i = 0; i < 4; ++i) {
+        buffer.putDouble(nodeEnvelopes[4 * node + i]);
+      }
+      buffer.putLong(nodeOffsets[node]);
+    }
+    writeFully(out, buffer);
+  }
+
+  // copies features from the spill file in index order - positional reads into the shared buffer, features
+  //  larger than the buffer are transferred channel to channel
+  private void copyFeatures(FileChannel out, ByteBuffer buffer, int[] order) throws IOException {
+    try (FileChannel in = FileChannel.open(this.spillPath, StandardOpenOption.READ)) {
+      for (int i = 0; i < this.featureCount; ++i) {
+        long offset = this.featureOffsets[order[i]];
+        int size = this.featureSizes[order[i]];
+        if (size > buffer.capacity()) {
+          writeFully(out, buffer);
+          for (long transferred = 0; transferred < size; ) {
+            transferred += in.transferTo(offset + transferred, size - transferred, out);
+          }
+          continue;
+        }
+        if (buffer.remaining() < size) {
+          writeFully(out, buffer);
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + size);
+        while (buffer.hasRemaining()) {
+          int read = in.read(buffer, offset + size - buffer.remaining());
+          if (read < 0) throw new IOException("unexpected end of " + this.spillPath);
+        }
+        buffer.limit(limit);
+      }
+    }
+    writeFully(out, buffer);
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // FlatGeobuf Geometry table from (E)WKB - single part coordinates go in xy, ring / line ends in ends (only
+  //  needed with more than one), multipolygons and collections in parts. Returns null for empty geometries.
+  private static FlatBufferWriter.Table readGeometry(ByteBuffer wkb) {
+    wkb.get();
+    int type = wkb.getInt();
+    if ((type & 0x20000000) != 0) {
+      wkb.getInt();
+    }
+    type &= 0xFF;
+
+    FlatBufferWriter.Table geometry = new FlatBufferWriter.Table().addByte(6, type);
+    switch (type) {
+      case 1: {
+        double x = wkb.getDouble();
+        double y = wkb.getDouble();
+        if (Double.isNaN(x)) return null;
+        return geometry.addDoubles(1, new double[] { x, y });
+      }
+      case 2: {
+        double[] xy = readCoordinates(wkb, wkb.getInt());
+        return xy.length > 0 ? geometry.addDoubles(1, xy) : null;
+      }
+      case 3:
+      case 5: {
+        // polygon rings or multilinestring lines (the latter with their own wkb headers)
+        int partCount = wkb.getInt();
+        List<double[]> parts = new ArrayList<>();
+        for (int i = 0; i < partCount; ++i) {
+          if (type == 5) {
+            wkb.position(wkb.position() + 5);
+          }
+          parts.add(readCoordinates(wkb, wkb.getInt()));
+        }
+        return addParts(geometry, parts);
+      }
+      case 4: {
+        int pointCount = wkb.getInt();
+        double[] xy = new double[2 * pointCount];
+        for (int i = 0; i < pointCount; ++i) {
+          wkb.position(wkb.position() + 5);
+          xy[2 * i] = wkb.getDouble();
+          xy[2 * i + 1] = wkb.getDouble();
+        }
+        return pointCount > 0 ? geometry.addDoubles(1, xy) : null;
+      }
+      case 6:
+      case 7: {
+        int partCount = wkb.getInt();
+        List<FlatBufferWriter.Table> parts = new ArrayList<>();
+        for (int i = 0; i < partCount; ++i) {
+          FlatBufferWriter.Table part = readGeometry(wkb);
+          if (part != null) {
+            parts.add(part);
+          }
+        }
+        return parts.isEmpty() ? null : geometry.addTables(7, parts);
+      }
+      default:
+        throw new IllegalArgumentException("unsupported geometry type " + type);
+    }
+  }
+
+  private static double[] readCoordinates(ByteBuffer wkb, int pointCount) {
+    double[] xy = new double[2 * pointCount];
+    for (int i = 0; i < xy.length; ++i) {
+      xy[i] = wkb.getDouble();
+    }
+    return xy;
+  }
+
+  private static FlatBufferWriter.Table addParts(FlatBufferWriter.Table geometry, List<double[]> parts) {
+    int coordinateCount = 0;
+    for (double[] part : parts) {
+      coordinateCount += part.length;
+    }
+    if (coordinateCount == 0) return null;
+
+    double[] xy = new double[coordinateCount];
+    int[] ends = new int[parts.size()];
+    int position = 0;
+    for (int i = 0; i < parts.size(); ++i) {
+      System.arraycopy(parts.get(i), 0, xy, position, parts.get(i).length);
+      position += parts.get(i).length;
+      ends[i] = position / 2;
+    }
+    geometry.addDoubles(1, xy);
+    if (ends.length > 1) {
+      geometry.addUInts(0, ends);
+    }
+    return geometry;
+  }
+
+  private void putLongProperty(int column, long value) {
+    ensurePropertiesCapacity(10);
+    this.properties.putShort((short) column);
+    this.properties.putLong(value);
+  }
+
+  private void putStringProperty(int column, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    ensurePropertiesCapacity(6 + bytes.length);
+    this.properties.putShort((short) column);
+    this.properties.putInt(bytes.length);
+    this.properties.put(bytes);
+  }
+
+  private void ensurePropertiesCapacity(int additional) {
+    if (this.properties.remaining() < additional) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(this.properties.capacity() * 2, this.properties.position() + additional))
+          .order(ByteOrder.LITTLE_ENDIAN);
+      this.properties.flip();
+      grown.put(this.properties);
+      this.properties = grown;
+    }
+  }
+
+}
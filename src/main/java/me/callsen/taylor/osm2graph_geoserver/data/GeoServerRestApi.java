@@ -1,19 +1,44 @@
 package me.callsen.taylor.osm2graph_geoserver.data;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.ws.rs.core.MediaType;
 
 import org.apache.hc.client5.http.HttpResponseException;
 import org.apache.hc.core5.http.HttpException;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import me.callsen.taylor.osm2graph_geoserver.Config;
 import me.callsen.taylor.osm2graph_geoserver.lib.HttpClient;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
 
 public class GeoServerRestApi {
 
+  // feature types published concurrently by createFeatureTypes
+  public static final int DEFAULT_PUBLISH_CONCURRENCY = 4;
+
+  // GeoWebCache seed task states reported by the seed status endpoint
+  private static final int SEED_TASK_ABORTED = -1;
+
+  private static final int SEED_TASK_DONE = 2;
+
+  // half the circumference of the earth in Web Mercator meters
+  private static final double WEB_MERCATOR_HALF_WORLD = 20037508.342789244;
+
+  private static final double WEB_MERCATOR_MAX_LATITUDE = 85.0511287798;
+
   private JSONObject geoserverConfig;
 
   private String workspaceName;
@@ -22,12 +47,14 @@ public class GeoServerRestApi {
 
   private String baseUrl;
 
+  private String gwcBaseUrl;
+
   private String authHeader;
 
   private HttpClient httpClient;
 
   public GeoServerRestApi(Config appConfig) {
-    this(appConfig, new HttpClient());
+    this(appConfig, new HttpClient(Math.max(HttpClient.DEFAULT_MAX_CONNECTIONS, getPublishConcurrency(appConfig))));
   }
 
   // added to allow mocking of http client during tests
@@ -40,6 +67,7 @@ public class GeoServerRestApi {
     String host = this.geoserverConfig.getString("host");
     String port = this.geoserverConfig.getString("port");
     this.baseUrl = String.format("http://%s:%s/geoserver/rest", host, port);
+    this.gwcBaseUrl = String.format("http://%s:%s/geoserver/gwc/rest", host, port);
 
     // set auth header
     String username = this.geoserverConfig.getString("user");
@@ -52,6 +80,11 @@ public class GeoServerRestApi {
     createPostGisStore(appConfig);
   }
 
+  // requests are timed into metrics from here on (see LoadRun.getMetrics)
+  public void setMetrics(Metrics metrics) {
+    this.httpClient.setMetrics(metrics);
+  }
+
   public void createWorkspace() {
     String postBody = "<workspace>" +
       "<name>" + this.workspaceName + "</name>" +
@@ -106,13 +139,22 @@ public class GeoServerRestApi {
   }
 
   public void createFeatureType(String featureTypeName) {
+    createFeatureType(featureTypeName, null);
+  }
+
+  // bounding boxes are taken from the stats gathered during the load, so GeoServer does not have to scan the
+  //  table - GeoServer recalculates them only if no stats (or no geometries) are available
+  public void createFeatureType(String featureTypeName, VisualizationTableStats stats) {
     String postBody = "<featureType>" +
       "<name>" + featureTypeName + "</name>" +
       "<enabled>true</enabled>" +
       "<nativeCRS>EPSG:4326</nativeCRS>" +
       "<srs>EPSG:3857</srs>" +
       "<projectionPolicy>REPROJECT_TO_DECLARED</projectionPolicy>" +
-      "<recalculate>nativebbox,latlonbbox</recalculate>" +
+      (stats != null && stats.hasEnvelope()
+        // native CRS is EPSG:4326, so the native and lat/lon bounding boxes are the same
+        ? getBoundingBoxXml("nativeBoundingBox", stats) + getBoundingBoxXml("latLonBoundingBox", stats)
+        : "<recalculate>nativebbox,latlonbbox</recalculate>") +
     "</featureType>";
 
     String featureTypesUrl = String.format("%s/workspaces/%s/datastores/%s/featuretypes", this.baseUrl, this.workspaceName, this.storeName);
@@ -130,10 +172,266 @@ public class GeoServerRestApi {
 
   }
 
+  public void createFeatureTypes(Collection<String> featureTypeNames, int concurrency) throws InterruptedException {
+    createFeatureTypes(featureTypeNames, Collections.emptyMap(), concurrency);
+  }
+
+  // creates feature types with up to concurrency requests in flight - returns once all have completed
+  //  (failures are reported per feature type, as with createFeatureType)
+  public void createFeatureTypes(Collection<String> featureTypeNames, Map<String, VisualizationTableStats> featureTypeStats,
+      int concurrency) throws InterruptedException {
+
+    ExecutorService publishExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+    try {
+      List<Future<?>> publishResults = new ArrayList<>();
+      for (String featureTypeName : featureTypeNames) {
+        publishResults.add(publishExecutor.submit(() -> {
+          VisualizationTableStats stats = featureTypeStats.get(featureTypeName);
+          System.out.println("creating geoserver featureType '" + featureTypeName + "'" + (stats != null ? " - " + stats : ""));
+          createFeatureType(featureTypeName, stats);
+        }));
+      }
+
+      for (Future<?> publishResult : publishResults) {
+        try {
+          publishResult.get();
+        } catch (ExecutionException e) {
+          System.out.println("FAILED to create geoserver featuretype: " + e.getCause().getMessage());
+          e.getCause().printStackTrace();
+        }
+      }
+    } finally {
+      publishExecutor.shutdownNow();
+    }
+  }
+
+  // uploads an SLD style into the workspace
+  public void createStyle(String styleName, String sldBody) {
+
+    String stylesUrl = String.format("%s/workspaces/%s/styles?name=%s", this.baseUrl, this.workspaceName, styleName);
+
+    try {
+      this.httpClient.invokePost(stylesUrl, this.authHeader, sldBody, "application/vnd.ogc.sld+xml");
+    } catch (HttpException | IOException e) {
+      // 403 is a permission failure, not an existing style
+      if (e instanceof HttpResponseException && (((HttpResponseException) e).getStatusCode() == 409 ||
+          ((HttpResponseException) e).getMessage().contains("already exists"))) {
+        System.out.println("geoserver style '" + styleName + "' already exists");
+      } else {
+        System.out.println("FAILED to create geoserver style '" + styleName + "' with message: " + e.getMessage());
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // single mode layer group - layers are drawn in order, each with the style at the same position
+  //  (styles are expected in this workspace)
+  public void createLayerGroup(String layerGroupName, List<String> layerNames, List<String> styleNames) {
+
+    StringBuilder publishables = new StringBuilder();
+    StringBuilder styles = new StringBuilder();
+    for (int i = 0; i < layerNames.size(); ++i) {
+      publishables.append("<published type=\"layer\"><name>" + this.workspaceName + ":" + layerNames.get(i) + "</name></published>");
+      styles.append("<style><name>" + this.workspaceName + ":" + styleNames.get(i) + "</name></style>");
+    }
+
+    String postBody = "<layerGroup>" +
+      "<name>" + layerGroupName + "</name>" +
+      "<mode>SINGLE</mode>" +
+      "<publishables>" + publishables + "</publishables>" +
+      "<styles>" + styles + "</styles>" +
+    "</layerGroup>";
+
+    String layerGroupsUrl = String.format("%s/workspaces/%s/layergroups", this.baseUrl, this.workspaceName);
+
+    try {
+      this.httpClient.invokePost(layerGroupsUrl, this.authHeader, postBody, MediaType.APPLICATION_XML);
+    } catch (HttpException | IOException e) {
+      if (e instanceof HttpResponseException && ((HttpResponseException) e).getMessage().contains("already exists")) {
+        System.out.println("geoserver layer group '" + layerGroupName + "' already exists");
+      } else {
+        System.out.println("FAILED to create geoserver layer group '" + layerGroupName + "' with message: " + e.getMessage());
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // creates a style in this workspace, or replaces the SLD of an existing one - unlike createStyle, a rerun
+  //  uploads the body generated for the current data. Returns false if the style could not be uploaded.
+  public boolean uploadStyle(String styleName, String sldBody) {
+
+    String stylesUrl = String.format("%s/workspaces/%s/styles?name=%s", this.baseUrl, this.workspaceName, styleName);
+    String styleUrl = String.format("%s/workspaces/%s/styles/%s", this.baseUrl, this.workspaceName, styleName);
+
+    try {
+      try {
+        this.httpClient.invokePost(stylesUrl, this.authHeader, sldBody, "application/vnd.ogc.sld+xml");
+      } catch (HttpResponseException e) {
+        if (e.getStatusCode() != 409 && !e.getMessage().contains("already exists")) throw e;
+        this.httpClient.invokePut(styleUrl, this.authHeader, sldBody, "application/vnd.ogc.sld+xml");
+      }
+      return true;
+    } catch (HttpException | IOException e) {
+      System.out.println("FAILED to upload geoserver style '" + styleName + "' with message: " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  // makes a style of this workspace the default style of a published layer
+  public boolean assignDefaultStyle(String layerName, String styleName) {
+
+    String putBody = "<layer>" +
+      "<defaultStyle><name>" + styleName + "</name><workspace>" + this.workspaceName + "</workspace></defaultStyle>" +
+    "</layer>";
+
+    String layerUrl = String.format("%s/layers/%s:%s", this.baseUrl, this.workspaceName, layerName);
+
+    try {
+      this.httpClient.invokePut(layerUrl, this.authHeader, putBody, MediaType.APPLICATION_XML);
+      return true;
+    } catch (HttpException | IOException e) {
+      System.out.println("FAILED to assign style '" + styleName + "' to geoserver layer '" + layerName + "' with message: " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  // warms the GeoWebCache tile cache of newly published layers - a seed task is submitted per layer, bounded
+  //  to its extent (from stats, or the layer's own bounds if none), then the seed status of every layer is
+  //  polled until no task is pending or running. GeoWebCache runs the tasks itself (threadCount threads
+  //  each), so all are submitted up front. Returns false if a task could not be submitted, was aborted or
+  //  was still running after timeoutSeconds.
+  // - seedConfig: gridSet (EPSG:900913), zoomStart (0), zoomStop (12), format (image/png), threadCount (2),
+  //   timeoutSeconds (3600) and pollIntervalMillis (5000)
+  public boolean seedLayers(Collection<String> layerNames, Map<String, VisualizationTableStats> layerStats, JSONObject seedConfig)
+      throws InterruptedException {
+
+    long timeoutMs = seedConfig.optLong("timeoutSeconds", 3600) * 1000;
+    long pollIntervalMs = seedConfig.optLong("pollIntervalMillis", 5000);
+    long startTime = System.currentTimeMillis();
+    boolean seeded = true;
+
+    // layers whose tasks have not finished yet, by qualified name
+    Map<String, String> pendingLayers = new LinkedHashMap<>();
+    for (String layerName : layerNames) {
+      String qualifiedLayerName = this.workspaceName + ":" + layerName;
+      String seedUrl = String.format("%s/seed/%s.xml", this.gwcBaseUrl, qualifiedLayerName);
+      try {
+        this.httpClient.invokePost(seedUrl, this.authHeader, getSeedRequestXml(qualifiedLayerName, layerStats.get(layerName), seedConfig),
+            MediaType.TEXT_XML);
+        pendingLayers.put(qualifiedLayerName, layerName);
+      } catch (HttpException | IOException e) {
+        System.out.println("FAILED to submit geowebcache seed task for '" + qualifiedLayerName + "' with message: " + e.getMessage());
+        seeded = false;
+      }
+    }
+    System.out.println(String.format("submitted geowebcache seed tasks for %s layers (%s, zoom %s-%s)", pendingLayers.size(),
+        seedConfig.optString("gridSet", "EPSG:900913"), seedConfig.optInt("zoomStart", 0), seedConfig.optInt("zoomStop", 12)));
+
+    while (!pendingLayers.isEmpty()) {
+      for (String qualifiedLayerName : new ArrayList<>(pendingLayers.keySet())) {
+        String statusUrl = String.format("%s/seed/%s.json", this.gwcBaseUrl, qualifiedLayerName);
+        try {
+          // rows of [tiles done, tiles total, seconds remaining, task id, state] - finished tasks are no longer listed
+          JSONArray tasks = new JSONObject(this.httpClient.invokeGet(statusUrl, this.authHeader)).getJSONArray("long-array-array");
+          long tilesDone = 0;
+          long tilesTotal = 0;
+          boolean running = false;
+          for (int i = 0; i < tasks.length(); ++i) {
+            JSONArray task = tasks.getJSONArray(i);
+            if (task.getInt(4) == SEED_TASK_ABORTED) {
+              System.out.println("FAILED to seed geowebcache layer '" + qualifiedLayerName + "': task " + task.getLong(3) + " was aborted");
+              seeded = false;
+            } else if (task.getInt(4) != SEED_TASK_DONE) {
+              running = true;
+              tilesDone += task.getLong(0);
+              tilesTotal += task.getLong(1);
+            }
+          }
+          if (!running) {
+            pendingLayers.remove(qualifiedLayerName);
+            System.out.println(String.format("seeded geowebcache layer '%s' in %s ms", qualifiedLayerName, System.currentTimeMillis() - startTime));
+          } else if (tilesTotal > 0) {
+            System.out.println(String.format("seeding geowebcache layer '%s': %s of %s tiles", qualifiedLayerName, tilesDone, tilesTotal));
+          }
+        } catch (HttpException | IOException e) {
+          // transient - polled again until the timeout
+          System.out.println("FAILED to read geowebcache seed status for '" + qualifiedLayerName + "' with message: " + e.getMessage());
+        }
+      }
+
+      if (pendingLayers.isEmpty()) break;
+      if (System.currentTimeMillis() - startTime > timeoutMs) {
+        System.out.println(String.format("geowebcache seeding timed out after %s ms with %s layers unfinished: %s", timeoutMs,
+            pendingLayers.size(), pendingLayers.keySet()));
+        return false;
+      }
+      Thread.sleep(pollIntervalMs);
+    }
+
+    return seeded;
+  }
+
+  public static int getPublishConcurrency(Config appConfig) {
+    return appConfig.getGeoServerConfig().optInt("publishConcurrency", DEFAULT_PUBLISH_CONCURRENCY);
+  }
+
+  // releases pooled GeoServer connections
+  public void close() throws IOException {
+    this.httpClient.close();
+  }
+
   public String getBaseUrl() {
     return this.baseUrl;
   }
 
+  private static String getBoundingBoxXml(String elementName, VisualizationTableStats stats) {
+    return "<" + elementName + ">" +
+      "<minx>" + stats.getMinX() + "</minx>" +
+      "<maxx>" + stats.getMaxX() + "</maxx>" +
+      "<miny>" + stats.getMinY() + "</miny>" +
+      "<maxy>" + stats.getMaxY() + "</maxy>" +
+      "<crs>EPSG:4326</crs>" +
+    "</" + elementName + ">";
+  }
+
+  // bounds are given in the gridset's CRS - meters for the Web Mercator gridsets, degrees otherwise
+  private static String getSeedRequestXml(String qualifiedLayerName, VisualizationTableStats stats, JSONObject seedConfig) {
+    String gridSet = seedConfig.optString("gridSet", "EPSG:900913");
+    boolean webMercator = gridSet.equals("EPSG:900913") || gridSet.equals("EPSG:3857") || gridSet.equals("WebMercatorQuad");
+
+    String boundsXml = "";
+    if (stats != null && stats.hasEnvelope()) {
+      double[] bounds = { stats.getMinX(), stats.getMinY(), stats.getMaxX(), stats.getMaxY() };
+      if (webMercator) {
+        for (int i = 0; i < 4; i += 2) {
+          double latitude = Math.max(-WEB_MERCATOR_MAX_LATITUDE, Math.min(WEB_MERCATOR_MAX_LATITUDE, bounds[i + 1]));
+          bounds[i] = bounds[i] * WEB_MERCATOR_HALF_WORLD / 180;
+          bounds[i + 1] = Math.log(Math.tan(Math.toRadians(90 + latitude) / 2)) * WEB_MERCATOR_HALF_WORLD / Math.PI;
+        }
+      }
+      boundsXml = "<bounds><coords>" +
+        "<double>" + bounds[0] + "</double>" +
+        "<double>" + bounds[1] + "</double>" +
+        "<double>" + bounds[2] + "</double>" +
+        "<double>" + bounds[3] + "</double>" +
+      "</coords></bounds>";
+    }
+
+    return "<seedRequest>" +
+      "<name>" + qualifiedLayerName + "</name>" +
+      boundsXml +
+      "<srs><number>" + (webMercator ? 900913 : 4326) + "</number></srs>" +
+      "<gridSetId>" + gridSet + "</gridSetId>" +
+      "<zoomStart>" + seedConfig.optInt("zoomStart", 0) + "</zoomStart>" +
+      "<zoomStop>" + seedConfig.optInt("zoomStop", 12) + "</zoomStop>" +
+      "<format>" + seedConfig.optString("format", "image/png") + "</format>" +
+      "<type>seed</type>" +
+      "<threadCount>" + seedConfig.optInt("threadCount", 2) + "</threadCount>" +
+    "</seedRequest>";
+  }
+
   // https://www.baeldung.com/java-httpclient-basic-auth
   private String getBasicAuthenticationHeader(String username, String password) {
     String valueToEncode = username + ":" + password;
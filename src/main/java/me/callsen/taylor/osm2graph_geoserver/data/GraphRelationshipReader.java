@@ -0,0 +1,294 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
+
+// streams associatedData relationships out of the graph, handing them off in fixed size pages. Every read is
+//  a single query streamed through one cursor, held open in one read transaction (Neo4j cannot commit a
+//  transaction mid-result) - SKIP/LIMIT paging re-scans every relationship before the requested page, so per
+//  page cost grows with the page number, while the cursor keeps it flat from the first page to the last.
+//
+// relationships can optionally be split into disjoint id ranges (shards), each read concurrently in its
+//  own thread through a cursor of its own. Neo4j has no relationship id range seek, so every shard scans the
+//  relationship store, but only checks the id of relationships outside its range - loading properties, the
+//  dominant cost, is split across shards. Ranges are cut at quantiles of a sample of associatedData
+//  relationship ids rather than evenly across the id span, so shards hold similar numbers of relationships
+//  however sparse or clustered associatedData is. A store scan returns relationships in ascending id order,
+//  which checkpointed loads rely on (see LoadCheckpoint). Relationships are read from the embedded store or,
+//  through BoltRelationshipSource, from a Neo4j server.
+public class GraphRelationshipReader {
+
+  public interface PageHandler {
+    // called concurrently from each shard's thread when reading more than one shard
+    void processPage(int shard, int pageNumber, List<Relationship> relationships) throws Exception;
+  }
+
+  // relationship id range [startId, endId) read by one shard
+  public static class ShardRange {
+
+    public final long startId;
+
+    public final long endId;
+
+    public ShardRange(long startId, long endId) {
+      this.startId = startId;
+      this.endId = endId;
+    }
+
+  }
+
+  // most relationship ids sampled to cut shard ranges at - ids of associatedData relationships among every
+  //  nth id of the store, n being the store's relationship count over this
+  public static final int SHARD_SAMPLE_SIZE = 10000;
+
+  private RelationshipSource relationshipSource;
+
+  private int pageSize;
+
+  // metrics of the run reading (see LoadRun.getMetrics)
+  private Metrics metrics = new Metrics();
+
+  public GraphRelationshipReader(GraphDb graphDb, int pageSize) {
+    this(new EmbeddedRelationshipSource(graphDb, null), pageSize);
+  }
+
+  public GraphRelationshipReader(RelationshipSource relationshipSource, int pageSize) {
+    this.relationshipSource = relationshipSource;
+    this.pageSize = pageSize;
+  }
+
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
+  // reads every associatedData relationship through a single cursor - returns the number of relationships read
+  public long readAssociatedDataRelationships(PageHandler pageHandler) throws Exception {
+
+    String query = String.format("MATCH ()-[r]->() WHERE r.%s IS NOT NULL RETURN r AS way",
+        RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+
+    long startTime = System.nanoTime();
+    long relationshipCount = readPages(pageHandler, 0, query, new HashMap<>());
+
+    long durationMs = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+    System.out.println(String.format("Read %s relationships in %s ms (%s relationships/sec)",
+        relationshipCount, durationMs, relationshipCount * 1000 / durationMs));
+
+    return relationshipCount;
+  }
+
+  // reads shardCount disjoint relationship id ranges concurrently - returns the number of relationships read
+  public long readAssociatedDataRelationships(int shardCount, PageHandler pageHandler) throws Exception {
+
+    if (shardCount <= 1) {
+      return readAssociatedDataRelationships(pageHandler);
+    }
+
+    return readAssociatedDataRelationships(getShardRanges(shardCount), pageHandler);
+  }
+
+  // splits the associatedData relationship id range into shardCount ranges of similar relationship counts -
+  //  empty if there are no relationships. Reads the graph once.
+  public List<ShardRange> getShardRanges(int shardCount) throws Exception {
+
+    shardCount = Math.max(1, shardCount);
+
+    // the store's relationship count is read from the count store, without a scan - an odd stride keeps ids
+    //  of alternating relationships (e.g. both directions of a way) in the sample
+    String sampleColumn = "";
+    if (shardCount > 1) {
+      Map<String, Object> countRow = this.relationshipSource.readRow("MATCH ()-[r]->() RETURN count(r) AS relationshipCount");
+      long sampleStride = Math.max(1, ((Number) countRow.get("relationshipCount")).longValue() / SHARD_SAMPLE_SIZE) | 1;
+      sampleColumn = String.format(", collect(CASE WHEN relId %% %s = 0 THEN relId END) AS sampleIds", sampleStride);
+    }
+
+    // determine relationship id range to split into shards, and sample ids within it
+    String rangeQuery = String.format("MATCH ()-[r]->() WHERE r.%s IS NOT NULL WITH id(r) AS relId RETURN min(relId) AS minId, max(relId) AS maxId%s",
+        RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA, sampleColumn);
+    Map<String, Object> row = this.relationshipSource.readRow(rangeQuery);
+    if (row == null || row.get("minId") == null) return new ArrayList<>();
+    long minId = ((Number) row.get("minId")).longValue();
+    long maxId = ((Number) row.get("maxId")).longValue();
+
+    List<Long> sampleIds = new ArrayList<>();
+    if (row.get("sampleIds") != null) {
+      for (Object sampleId : (List<?>) row.get("sampleIds")) {
+        sampleIds.add(((Number) sampleId).longValue());
+      }
+      Collections.sort(sampleIds);
+    }
+
+    // each shard starts at the sampled id of its quantile - evenly across the id span if too few ids were sampled
+    List<ShardRange> shardRanges = new ArrayList<>();
+    long shardStartId = minId;
+    for (int shard = 0; shard < shardCount; ++shard) {
+      long shardEndId = maxId + 1;
+      if (shard < shardCount - 1) {
+        shardEndId = sampleIds.size() >= shardCount
+            ? sampleIds.get((int) ((long) (shard + 1) * sampleIds.size() / shardCount))
+            : minId + (shard + 1) * ((maxId - minId + shardCount) / shardCount);
+        shardEndId = Math.min(maxId + 1, Math.max(shardStartId, shardEndId));
+      }
+      shardRanges.add(new ShardRange(shardStartId, shardEndId));
+      shardStartId = shardEndId;
+    }
+
+    System.out.println(shardCount == 1 ? String.format("relationship ids %s - %s read as a single shard", minId, maxId)
+        : String.format("relationship ids %s - %s split into %s shards at %s (%s ids sampled)", minId, maxId, shardCount,
+            shardRanges.stream().skip(1).map(shardRange -> Long.toString(shardRange.startId)).collect(Collectors.joining(", ")),
+            sampleIds.size()));
+    return shardRanges;
+  }
+
+  // reads each range concurrently as its own shard (shard number is the range's position) - empty ranges
+  //  are skipped. Returns the number of relationships read.
+  public long readAssociatedDataRelationships(List<ShardRange> shardRanges, PageHandler pageHandler) throws Exception {
+
+    if (shardRanges.isEmpty()) return 0;
+
+    ExecutorService shardExecutor = Executors.newFixedThreadPool(shardRanges.size());
+    try {
+      List<Future<Long>> shardResults = new ArrayList<>();
+      for (int shard = 0; shard < shardRanges.size(); ++shard) {
+        final int shardNumber = shard;
+        final ShardRange shardRange = shardRanges.get(shard);
+        if (shardRange.startId >= shardRange.endId) {
+          System.out.println(String.format("Shard %s has nothing left to read", shard));
+          continue;
+        }
+        shardResults.add(shardExecutor.submit(() -> readShard(pageHandler, shardNumber, shardRange.startId, shardRange.endId)));
+      }
+
+      long relationshipCount = 0;
+      for (Future<Long> shardResult : shardResults) {
+        relationshipCount += shardResult.get();
+      }
+      return relationshipCount;
+    } finally {
+      shardExecutor.shutdownNow();
+    }
+  }
+
+  // hands up to sampleSize associatedData relationships to the handler as a single page - the first ones
+  //  in store order, read without a full scan
+  public void readAssociatedDataSample(int sampleSize, PageHandler pageHandler) throws Exception {
+
+    String query = String.format("MATCH ()-[r]->() WHERE r.%s IS NOT NULL RETURN r AS way LIMIT $sampleSize",
+        RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("sampleSize", sampleSize);
+
+    this.relationshipSource.readRelationships(query, parameters, relationships -> {
+      List<Relationship> sample = new ArrayList<>();
+      while (relationships.hasNext()) {
+        sample.add(relationships.next());
+      }
+      pageHandler.processPage(0, 0, sample);
+    });
+  }
+
+  // hands the relationships with the given ids to the handler as a single page in ascending id order - ids
+  //  without a relationship are left out
+  public void readRelationshipsById(long[] relIds, PageHandler pageHandler) throws Exception {
+
+    String query = "UNWIND $relIds AS relId MATCH ()-[r]->() WHERE id(r) = relId RETURN r AS way ORDER BY id(r)";
+    Map<String, Object> parameters = new HashMap<>();
+    List<Long> relIdList = new ArrayList<>(relIds.length);
+    for (long relId : relIds) {
+      relIdList.add(relId);
+    }
+    parameters.put("relIds", relIdList);
+
+    this.relationshipSource.readRelationships(query, parameters, relationships -> {
+      List<Relationship> page = new ArrayList<>(relIds.length);
+      while (relationships.hasNext()) {
+        page.add(relationships.next());
+      }
+      pageHandler.processPage(0, 0, page);
+    });
+  }
+
+  // reads relationships with ids in [startId, endId) in ascending id order, through one cursor
+  private long readShard(PageHandler pageHandler, int shard, long startId, long endId) throws Exception {
+
+    // the id range is checked first, so relationships of other shards are skipped without loading properties
+    String query = String.format("MATCH ()-[r]->() WHERE id(r) >= $startId AND id(r) < $endId AND r.%s IS NOT NULL RETURN r AS way",
+        RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+    Map<String, Object> parameters = new HashMap<>();
+    parameters.put("startId", startId);
+    parameters.put("endId", endId);
+
+    long shardStartTime = System.nanoTime();
+    long relationshipCount = readPages(pageHandler, shard, query, parameters);
+
+    long shardDurationMs = Math.max(1, (System.nanoTime() - shardStartTime) / 1000000);
+    System.out.println(String.format("Shard %s complete - %s relationships in %s ms (%s relationships/sec)",
+        shard, relationshipCount, shardDurationMs, relationshipCount * 1000 / shardDurationMs));
+
+    return relationshipCount;
+  }
+
+  // streams the query's relationships to the handler in pages of pageSize - returns the number read
+  private long readPages(PageHandler pageHandler, int shard, String query, Map<String, Object> parameters) throws Exception {
+
+    long[] relationshipCount = new long[1];
+    this.relationshipSource.readRelationships(query, parameters, relationships -> {
+      List<Relationship> page = new ArrayList<>(this.pageSize);
+      int pageNumber = 0;
+      long pageStartTime = System.nanoTime();
+
+      while (relationships.hasNext()) {
+        page.add(relationships.next());
+
+        if (page.size() == this.pageSize || !relationships.hasNext()) {
+          relationshipCount[0] += page.size();
+          processPage(pageHandler, shard, pageNumber, page, pageStartTime, relationshipCount[0]);
+
+          page = new ArrayList<>(this.pageSize);
+          ++pageNumber;
+          pageStartTime = System.nanoTime();
+        }
+      }
+    });
+    return relationshipCount[0];
+  }
+
+  private void processPage(PageHandler pageHandler, int shard, int pageNumber, List<Relationship> page, long pageStartTime,
+      long relationshipCount) throws Exception {
+
+    long readTime = System.nanoTime();
+    pageHandler.processPage(shard, pageNumber, page);
+    long processTime = System.nanoTime();
+
+    this.metrics.recordDuration("graph.page_read", readTime - pageStartTime);
+    this.metrics.recordDuration("graph.page_process", processTime - readTime);
+    this.metrics.increment("graph.relationships", page.size());
+
+    // per page timings - read and write time should stay flat as page number increases
+    System.out.println(String.format("Processed shard %s page %s (%s relationships, %s total) - read: %s ms, write: %s ms",
+        shard,
+        pageNumber,
+        page.size(),
+        relationshipCount,
+        (readTime - pageStartTime) / 1000000,
+        (processTime - readTime) / 1000000));
+  }
+
+}
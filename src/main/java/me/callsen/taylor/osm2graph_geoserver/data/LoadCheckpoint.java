@@ -0,0 +1,204 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader.ShardRange;
+
+// progress of a load kept in state tables in the target schema, so a failed run can be resumed - per shard
+//  the relationship id range and the last relationship id whose rows are known to be written, plus every
+//  table the load has written to. Rows of relationships past a shard's checkpoint may be partially written
+//  when a run fails; a resumed run deletes them (see getUnwrittenRowsPredicate) before writing again.
+//
+// checkpoints rely on each shard reading relationships in ascending id order, as GraphRelationshipReader
+//  reads them - a shard read out of order fails the load rather than recording a checkpoint that would skip
+//  unread relationships. Uses its own connection - methods may be called from any reader or writer thread.
+public class LoadCheckpoint {
+
+  // table written by the load, as recorded by a writer when it first writes the table
+  public static class TableEntry {
+
+    public final String tableName;
+
+    public final String layerName;
+
+    public final String associatedDataProperty;
+
+    public final VisualizationRowFormat format;
+
+    // grid cell of a partition table, null otherwise
+    public final Long gridCell;
+
+    public TableEntry(String tableName, String layerName, String associatedDataProperty, VisualizationRowFormat format, Long gridCell) {
+      this.tableName = tableName;
+      this.layerName = layerName;
+      this.associatedDataProperty = associatedDataProperty;
+      this.format = format;
+      this.gridCell = gridCell;
+    }
+
+  }
+
+  private PostgisDb postgisDb;
+
+  private String shardStateTableName;
+
+  private String tableStateTableName;
+
+  // per shard - id of the last relationship read
+  private long[] lastRelIds = new long[0];
+
+  // rows possibly written past the checkpoint of the run being resumed - null unless resuming
+  private String unwrittenRowsPredicate;
+
+  public LoadCheckpoint(PostgisDb postgisDb, String osmId) throws SQLException {
+    this.postgisDb = postgisDb;
+    this.shardStateTableName = String.format("%s.\"%s\"", postgisDb.getPostgisSchema(), PostgisDb.getIdentifier(osmId, "load_checkpoint"));
+    this.tableStateTableName = String.format("%s.\"%s\"", postgisDb.getPostgisSchema(), PostgisDb.getIdentifier(osmId, "load_checkpoint_tables"));
+
+    postgisDb.execute(String.format("CREATE TABLE IF NOT EXISTS %s ( shard int PRIMARY KEY, start_id bigint NOT NULL, end_id bigint NOT NULL, last_rel_id bigint, complete boolean NOT NULL DEFAULT false, updated_at timestamptz NOT NULL DEFAULT now() )",
+        this.shardStateTableName));
+    postgisDb.execute(String.format("CREATE TABLE IF NOT EXISTS %s ( table_name text PRIMARY KEY, layer_name text, property text, format text NOT NULL, grid_cell bigint )",
+        this.tableStateTableName));
+  }
+
+  // starts checkpointing a new run - replaces any previous run's checkpoint
+  public synchronized void start(List<ShardRange> shardRanges) throws SQLException {
+
+    List<String> startSql = new ArrayList<>(getClearSql());
+    for (int shard = 0; shard < shardRanges.size(); ++shard) {
+      startSql.add(String.format("INSERT INTO %s (shard, start_id, end_id) VALUES (%s, %s, %s)", this.shardStateTableName,
+          shard, shardRanges.get(shard).startId, shardRanges.get(shard).endId));
+    }
+    this.postgisDb.executeTransaction(startSql);
+
+    initShards(shardRanges.size());
+  }
+
+  // continues a previous run - returns the remaining relationship id range of each shard (empty for complete
+  //  shards), or null if there is no checkpoint to resume from
+  public synchronized List<ShardRange> resume() throws SQLException {
+
+    List<ShardRange> remainingRanges = new ArrayList<>();
+    List<String> unwrittenRanges = new ArrayList<>();
+
+    try (Statement st = this.postgisDb.getConnection().createStatement();
+        ResultSet rs = st.executeQuery(String.format("SELECT start_id, end_id, last_rel_id, complete FROM %s ORDER BY shard", this.shardStateTableName))) {
+      while (rs.next()) {
+        long startId = rs.getLong(1);
+        long endId = rs.getLong(2);
+        long lastRelId = rs.getLong(3);
+        if (!rs.wasNull()) {
+          startId = lastRelId + 1;
+        }
+        if (rs.getBoolean(4)) {
+          startId = endId;
+        }
+
+        remainingRanges.add(new ShardRange(startId, endId));
+        if (startId < endId) {
+          unwrittenRanges.add(String.format("(rel_id >= %s AND rel_id < %s)", startId, endId));
+        }
+      }
+    }
+
+    if (remainingRanges.isEmpty()) return null;
+
+    this.unwrittenRowsPredicate = unwrittenRanges.isEmpty() ? "false" : String.join(" OR ", unwrittenRanges);
+    initShards(remainingRanges.size());
+    return remainingRanges;
+  }
+
+  // called after each page is read
+  public void trackPage(int shard, List<Relationship> relationships) {
+
+    long lastRelId = this.lastRelIds[shard];
+    for (Relationship relationship : relationships) {
+      if (relationship.getId() <= lastRelId) {
+        throw new IllegalStateException(String.format("shard %s read relationship %s after %s - checkpointed shards must be read in ascending id order",
+            shard, relationship.getId(), lastRelId));
+      }
+      lastRelId = relationship.getId();
+    }
+    this.lastRelIds[shard] = lastRelId;
+  }
+
+  // records the shard's progress - every row of the relationships tracked so far must be written
+  public void record(int shard) throws SQLException {
+    if (this.lastRelIds[shard] < 0) return;
+    update(shard, "last_rel_id = " + this.lastRelIds[shard]);
+  }
+
+  // every row of the shard has been written
+  public void complete(int shard) throws SQLException {
+    update(shard, "complete = true");
+  }
+
+  public synchronized void recordTable(TableEntry table) throws SQLException {
+    this.postgisDb.execute(String.format("INSERT INTO %s (table_name, layer_name, property, format, grid_cell) VALUES (%s, %s, %s, '%s', %s) ON CONFLICT (table_name) DO NOTHING",
+        this.tableStateTableName,
+        quote(table.tableName),
+        quote(table.layerName),
+        quote(table.associatedDataProperty),
+        table.format.name(),
+        table.gridCell != null ? table.gridCell : "NULL"));
+  }
+
+  // tables written by the run being resumed
+  public synchronized List<TableEntry> getTables() throws SQLException {
+    List<TableEntry> tables = new ArrayList<>();
+    try (Statement st = this.postgisDb.getConnection().createStatement();
+        ResultSet rs = st.executeQuery(String.format("SELECT table_name, layer_name, property, format, grid_cell FROM %s", this.tableStateTableName))) {
+      while (rs.next()) {
+        long gridCell = rs.getLong(5);
+        tables.add(new TableEntry(rs.getString(1), rs.getString(2), rs.getString(3), VisualizationRowFormat.valueOf(rs.getString(4)),
+            rs.wasNull() ? null : gridCell));
+      }
+    }
+    return tables;
+  }
+
+  // SQL condition matching rows that may have been written past the checkpoint of the run being resumed -
+  //  null when not resuming
+  public String getUnwrittenRowsPredicate() {
+    return this.unwrittenRowsPredicate;
+  }
+
+  // statements discarding the checkpoint once the load is complete - for use in the transaction that
+  //  publishes the loaded tables, so a completed load is never resumed
+  public List<String> getClearSql() {
+    List<String> clearSql = new ArrayList<>();
+    clearSql.add(String.format("DELETE FROM %s", this.shardStateTableName));
+    clearSql.add(String.format("DELETE FROM %s", this.tableStateTableName));
+    return clearSql;
+  }
+
+  public synchronized void clear() throws SQLException {
+    this.postgisDb.executeTransaction(getClearSql());
+  }
+
+  public void close() throws SQLException {
+    this.postgisDb.close();
+  }
+
+  private void initShards(int shardCount) {
+    this.lastRelIds = new long[shardCount];
+    for (int shard = 0; shard < shardCount; ++shard) {
+      this.lastRelIds[shard] = -1;
+    }
+  }
+
+  private synchronized void update(int shard, String assignment) throws SQLException {
+    this.postgisDb.execute(String.format("UPDATE %s SET %s, updated_at = now() WHERE shard = %s", this.shardStateTableName, assignment, shard));
+  }
+
+  private static String quote(String value) {
+    return value == null ? "NULL" : "'" + value.replace("'", "''") + "'";
+  }
+
+}
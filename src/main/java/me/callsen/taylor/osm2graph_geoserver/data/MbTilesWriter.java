@@ -0,0 +1,110 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+// writes a tile pyramid to an MBTiles 1.3 (SQLite) file, replacing any existing file. Tiles are gzipped,
+//  as MBTiles readers expect of pbf tilesets, and inserted in batches within a single transaction with
+//  journaling off - a failed build is rolled back and its file removed (see abort), while an interrupted
+//  process leaves an unusable file, to be rewritten.
+public class MbTilesWriter implements VectorTileSink {
+
+  private static final int INSERT_BATCH_SIZE = 1000;
+
+  private Path path;
+
+  private Connection conn;
+
+  private PreparedStatement insertTile;
+
+  private int batchedTiles;
+
+  public MbTilesWriter(Path path) throws IOException, SQLException {
+    this.path = path;
+    Files.deleteIfExists(path);
+
+    this.conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+    try (Statement statement = this.conn.createStatement()) {
+      statement.execute("PRAGMA journal_mode = OFF");
+      statement.execute("PRAGMA synchronous = OFF");
+      statement.execute("CREATE TABLE metadata (name text, value text)");
+      statement.execute("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+    }
+    this.conn.setAutoCommit(false);
+    this.insertTile = this.conn.prepareStatement("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+  }
+
+  // MBTiles rows are TMS (y = 0 at the south edge)
+  @Override
+  public void writeTile(int zoom, int x, int y, byte[] tile) throws Exception {
+    byte[] tileData = gzip(tile);
+    synchronized (this) {
+      this.insertTile.setInt(1, zoom);
+      this.insertTile.setInt(2, x);
+      this.insertTile.setInt(3, (1 << zoom) - 1 - y);
+      this.insertTile.setBytes(4, tileData);
+      this.insertTile.addBatch();
+      if (++this.batchedTiles == INSERT_BATCH_SIZE) {
+        this.insertTile.executeBatch();
+        this.batchedTiles = 0;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void writeMetadata(JSONObject metadata) throws Exception {
+    try (PreparedStatement insertMetadata = this.conn.prepareStatement("INSERT INTO metadata (name, value) VALUES (?, ?)")) {
+      for (String name : metadata.keySet()) {
+        insertMetadata.setString(1, name);
+        insertMetadata.setString(2, metadata.get(name).toString());
+        insertMetadata.addBatch();
+      }
+      insertMetadata.executeBatch();
+    }
+  }
+
+  // the tile index is built once all tiles are inserted
+  @Override
+  public synchronized void close() throws Exception {
+    this.insertTile.executeBatch();
+    this.insertTile.close();
+    try (Statement statement = this.conn.createStatement()) {
+      statement.execute("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+    }
+    this.conn.commit();
+    this.conn.close();
+    System.out.println(String.format("wrote %s (%s MB)", this.path, Files.size(this.path) / (1024 * 1024)));
+  }
+
+  // rolls back the tiles inserted so far and removes the file, so a failed build leaves no partial tileset
+  @Override
+  public synchronized void abort() throws Exception {
+    try {
+      this.insertTile.close();
+      this.conn.rollback();
+      this.conn.close();
+    } finally {
+      Files.deleteIfExists(this.path);
+    }
+    System.out.println(String.format("FAILED to write %s - removed", this.path));
+  }
+
+  private static byte[] gzip(byte[] tile) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(tile.length / 2 + 64);
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(compressed)) {
+      gzipOut.write(tile);
+    }
+    return compressed.toByteArray();
+  }
+
+}
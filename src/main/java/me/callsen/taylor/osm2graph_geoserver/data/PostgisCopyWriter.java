@@ -0,0 +1,74 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.CharSequenceReader;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+
+// bulk write path for visualization tables - batches of rows serialized in COPY text format are streamed
+//  to PostGIS with COPY ... FROM STDIN
+public class PostgisCopyWriter {
+
+  private String postgisSchema;
+
+  private CopyManager copyManager;
+
+  private long rowsWritten = 0;
+
+  private Metrics metrics;
+
+  public PostgisCopyWriter(PostgisDb postgisDb) throws SQLException {
+    this.postgisSchema = postgisDb.getPostgisSchema();
+    this.metrics = postgisDb.getMetrics();
+    this.copyManager = postgisDb.getConnection().unwrap(PGConnection.class).getCopyAPI();
+  }
+
+  public void copyRows(VisualizationRowBatch batch) throws SQLException, IOException {
+    copyRows(String.format("%s.\"%s\"", this.postgisSchema, batch.getAssociatedDataPropertyTableName()), batch);
+  }
+
+  // copy into a table other than the batch's own (e.g. a staging table) - qualifiedTableName is used as is
+  public void copyRows(String qualifiedTableName, VisualizationRowBatch batch) throws SQLException, IOException {
+
+    if (batch.getRowCount() == 0) return;
+
+    String copySql = String.format("COPY %s (%s) FROM STDIN", qualifiedTableName, batch.getCopyColumns());
+
+    long startTime = System.nanoTime();
+    this.rowsWritten += copyText(copySql, batch.getRows());
+    this.metrics.recordTime("postgis.copy_batch", startTime);
+    this.metrics.increment("postgis.copy_bytes", getEncodedLength(batch.getRows()));
+  }
+
+  // run an arbitrary COPY ... FROM STDIN with text already in COPY format - returns the number of rows copied
+  public long copyText(String copySql, CharSequence text) throws SQLException, IOException {
+    return this.copyManager.copyIn(copySql, new CharSequenceReader(text));
+  }
+
+  public long getRowsWritten() {
+    return this.rowsWritten;
+  }
+
+  // UTF-8 length of the COPY text, as sent to the server - surrogate pairs are 4 bytes
+  static long getEncodedLength(CharSequence text) {
+    long length = 0;
+    for (int i = 0; i < text.length(); ++i) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+      } else if (!Character.isLowSurrogate(c)) {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+}
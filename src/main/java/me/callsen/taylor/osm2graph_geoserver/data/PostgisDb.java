@@ -1,32 +1,59 @@
 package me.callsen.taylor.osm2graph_geoserver.data;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.neo4j.graphdb.Relationship;
 
 import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.lib.Hashing;
+import me.callsen.taylor.osm2graph_geoserver.lib.Metrics;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
 import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
 
 public class PostgisDb {
 
+  // spatial reference of the geometries stored in visualization tables
+  public static final int SRID = 4326;
+
+  // PostgreSQL silently truncates longer identifiers (in bytes)
+  public static final int MAX_IDENTIFIER_LENGTH = 63;
+
+  private WkbEncoder wkbEncoder = new WkbEncoder();
+
   private String postgisSchema;
 
   private Connection conn;
 
   private String postgisUrl;
 
+  // btree index per typed associatedData column, built with the other indexes once a table is loaded
+  private boolean typedColumnIndexes;
+
+  // metrics of the run the connection loads for (see LoadRun.getMetrics)
+  private Metrics metrics = new Metrics();
+
   public PostgisDb( Config appConfig, String postgisUrl ) throws Exception {
     
     //initialize connection to Postgis Shape Source
     this.postgisSchema = appConfig.getDbConfig().getString("schema");
     this.postgisUrl = postgisUrl;
+    this.typedColumnIndexes = appConfig.getDbConfig().optBoolean("typedColumnIndexes", false);
 
     conn = DriverManager.getConnection(postgisUrl,appConfig.getDbConfig().getString("user"), appConfig.getDbConfig().getString("password"));
     System.out.println( "PostgisDb initialized and will persist through app completion" );
@@ -38,29 +65,463 @@ public class PostgisDb {
   }
 
   public void createVisualizationTable(String associatedDataProperty, String associatedDataPropertyTableName) {
+    createVisualizationTable(associatedDataProperty, associatedDataPropertyTableName, false, Collections.emptyList());
+  }
 
-    System.out.println(String.format("creating visualization table for property %s named %s", associatedDataProperty, associatedDataPropertyTableName));
+  // partitioned tables are split by grid_cell (see VisualizationRowSerializer.getGridCell) into one partition
+  //  per cell, created with createVisualizationTablePartition. Typed columns (see AssociatedDataSchema) are
+  //  added next to the associatedData json.
+  public void createVisualizationTable(String associatedDataProperty, String associatedDataPropertyTableName, boolean partitioned,
+      List<AssociatedDataSchema.TypedColumn> typedColumns) {
+
+    long startTime = System.nanoTime();
+    System.out.println(String.format("creating %svisualization table for property %s named %s", partitioned ? "partitioned " : "",
+        associatedDataProperty, associatedDataPropertyTableName));
     
     // create id sequence
-    String sequenceSql = String.format("CREATE SEQUENCE IF NOT EXISTS %s.%s_id_seq INCREMENT 1 MINVALUE 1 MAXVALUE 9223372036854775807 START 1 CACHE 1;", this.postgisSchema, associatedDataPropertyTableName);
+    String sequenceSql = String.format("CREATE SEQUENCE IF NOT EXISTS %s.%s INCREMENT 1 MINVALUE 1 MAXVALUE 9223372036854775807 START 1 CACHE 1;", this.postgisSchema, getIdentifier(associatedDataPropertyTableName, "id_seq"));
     System.out.println( String.format("sequence creation: %d", executeUpdate(sequenceSql)) );
     
     // create table - must double quote some column names to ensure camelcase
-    String tableSql = String.format("CREATE TABLE IF NOT EXISTS %s.\"%s\"( id bigint NOT NULL DEFAULT nextval('%s.%s_id_seq'::regclass), osm_id bigint, geom geometry(Geometry,4326), \"%s\" json, \"relationshipData\" json )",
+    // - rel_id (graph relationship id) and content_hash identify rows for incremental sync, hilbert_key orders
+    //   rows spatially when clustering
+    String tableSql = String.format("CREATE TABLE IF NOT EXISTS %s.\"%s\"( id bigint NOT NULL DEFAULT nextval('%s.%s'::regclass), osm_id bigint, geom geometry(Geometry,4326), \"%s\" json, \"relationshipData\" json, hilbert_key bigint, rel_id bigint, content_hash bigint%s )%s",
       this.postgisSchema,
       associatedDataPropertyTableName,
       this.postgisSchema,
-      associatedDataPropertyTableName,
+      getIdentifier(associatedDataPropertyTableName, "id_seq"),
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+      partitioned ? ", grid_cell bigint NOT NULL" : "",
+      partitioned ? " PARTITION BY LIST (grid_cell)" : "");
+    System.out.println( String.format("table creation: %d", executeUpdate(tableSql)) );
+
+    // tables created by earlier versions lack the sync and clustering columns
+    String columnsSql = String.format("ALTER TABLE %s.\"%s\" ADD COLUMN IF NOT EXISTS rel_id bigint, ADD COLUMN IF NOT EXISTS content_hash bigint, ADD COLUMN IF NOT EXISTS hilbert_key bigint",
+      this.postgisSchema,
+      associatedDataPropertyTableName);
+    executeUpdate(columnsSql);
+
+    if (!typedColumns.isEmpty()) {
+      createTypedColumns(associatedDataPropertyTableName, typedColumns);
+    }
+
+    this.metrics.recordTime("postgis.create_table", startTime);
+  }
+
+  // a column whose inferred type changed since the table was created is reset to the new type - its values are
+  //  rewritten by the load (content hashes cover the column types, so incremental sync rewrites every row)
+  private void createTypedColumns(String tableName, List<AssociatedDataSchema.TypedColumn> typedColumns) {
+
+    Map<String, String> existingTypes = getTypedColumnTypes(tableName);
+
+    List<String> alterations = new ArrayList<>();
+    for (AssociatedDataSchema.TypedColumn typedColumn : typedColumns) {
+      String existingType = existingTypes.get(typedColumn.columnName);
+      if (existingType == null) {
+        alterations.add(String.format("ADD COLUMN %s %s", typedColumn.columnName, typedColumn.type.getSqlType()));
+      } else if (!existingType.equals(typedColumn.type.getSqlType())) {
+        System.out.println(String.format("typed column %s of %s changed from %s to %s", typedColumn.columnName, tableName,
+            existingType, typedColumn.type.getSqlType()));
+        alterations.add(String.format("ALTER COLUMN %s TYPE %s USING NULL", typedColumn.columnName, typedColumn.type.getSqlType()));
+      }
+    }
+    if (alterations.isEmpty()) return;
+
+    String alterSql = String.format("ALTER TABLE %s.\"%s\" %s", this.postgisSchema, tableName, String.join(", ", alterations));
+    System.out.println( String.format("typed column creation: %d", executeUpdate(alterSql)) );
+  }
+
+  // typed associatedData column name -> SQL type
+  private Map<String, String> getTypedColumnTypes(String tableName) {
+    String columnTypes = executeQuery(String.format("SELECT string_agg(attname || ':' || format_type(atttypid, atttypmod), ',') FROM pg_attribute WHERE attrelid = '%s.\"%s\"'::regclass AND attnum > 0 AND NOT attisdropped AND starts_with(attname, '%s')",
+      this.postgisSchema,
+      tableName,
+      AssociatedDataSchema.COLUMN_PREFIX), 1);
+
+    Map<String, String> typedColumnTypes = new HashMap<>();
+    if (columnTypes != null && !columnTypes.isEmpty()) {
+      for (String columnType : columnTypes.split(",")) {
+        typedColumnTypes.put(columnType.substring(0, columnType.indexOf(':')), columnType.substring(columnType.indexOf(':') + 1));
+      }
+    }
+    return typedColumnTypes;
+  }
+
+  // normalized layout - geometry and relationshipData stored once per relationship, shared by every
+  //  associatedData property
+  public void createWaysTable(String waysTableName) throws SQLException {
+
+    System.out.println(String.format("creating shared ways table %s", waysTableName));
+
+    String tableSql = String.format("CREATE TABLE IF NOT EXISTS %s.\"%s\"( rel_id bigint NOT NULL, osm_id bigint, geom geometry(Geometry,4326), \"relationshipData\" jsonb, hilbert_key bigint, content_hash bigint )",
+      this.postgisSchema,
+      waysTableName);
+    System.out.println( String.format("table creation: %d", executeUpdate(tableSql)) );
+    executeUpdate(String.format("ALTER TABLE %s.\"%s\" ADD COLUMN IF NOT EXISTS hilbert_key bigint", this.postgisSchema, waysTableName));
+    createRelIdIndex(waysTableName);
+  }
+
+  // normalized layout - slim associatedData table keyed by rel_id, published through a view that joins it
+  //  to the ways table (the view takes the visualization table name, so GeoServer layer names are unchanged)
+  public void createVisualizationAttributeTable(String associatedDataProperty, String attributeTableName, String waysTableName,
+      String associatedDataPropertyViewName) throws SQLException {
+
+    System.out.println(String.format("creating attribute table for property %s named %s (view %s)", associatedDataProperty, attributeTableName, associatedDataPropertyViewName));
+
+    String tableSql = String.format("CREATE TABLE IF NOT EXISTS %s.\"%s\"( rel_id bigint NOT NULL, \"%s\" jsonb, hilbert_key bigint, content_hash bigint )",
+      this.postgisSchema,
+      attributeTableName,
       RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
-    System.out.println( String.format("table creation: %d", executeUpdate(tableSql)) );      
+    System.out.println( String.format("table creation: %d", executeUpdate(tableSql)) );
+    executeUpdate(String.format("ALTER TABLE %s.\"%s\" ADD COLUMN IF NOT EXISTS hilbert_key bigint", this.postgisSchema, attributeTableName));
+    createRelIdIndex(attributeTableName);
+
+    System.out.println( String.format("view creation: %d", execute(getVisualizationAttributeViewSql(attributeTableName, waysTableName, associatedDataPropertyViewName))) );
   }
 
-  public void writeVisualizationTableRow(String associatedDataPropertyTableName, String associatedDataProperty, Relationship rel) {
+  public String getVisualizationAttributeViewSql(String attributeTableName, String waysTableName, String associatedDataPropertyViewName) {
+    return String.format("CREATE OR REPLACE VIEW %s.\"%s\" AS SELECT a.rel_id AS id, w.osm_id, w.geom, a.\"%s\", w.\"relationshipData\" FROM %s.\"%s\" a JOIN %s.\"%s\" w ON w.rel_id = a.rel_id",
+      this.postgisSchema,
+      associatedDataPropertyViewName,
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+      this.postgisSchema,
+      attributeTableName,
+      this.postgisSchema,
+      waysTableName);
+  }
 
-    // derive optional values
-    long rel_osm_id = rel.getProperty("osm_id") instanceof Integer ? (Integer) rel.getProperty("osm_id") : (Long)rel.getProperty("osm_id");
-    JSONArray associatedData = new JSONArray( (String) rel.getProperty(associatedDataProperty) );
+  // staged table lifecycle - an UNLOGGED, index free copy of the live table to load into (no WAL is written
+  //  for the load). Replaces any staging table left behind by a failed run - unless keepExisting, where
+  //  loading continues into it (resumed loads).
+  public void createStagingTable(String tableName, String stagingTableName, boolean keepExisting) throws SQLException {
+
+    System.out.println(String.format("%s unlogged staging table %s for %s", keepExisting ? "resuming" : "creating", stagingTableName, tableName));
+
+    if (!keepExisting) {
+      execute(String.format("DROP TABLE IF EXISTS %s.\"%s\"", this.postgisSchema, stagingTableName));
+    }
+    execute(String.format("CREATE UNLOGGED TABLE IF NOT EXISTS %s.\"%s\" (LIKE %s.\"%s\" INCLUDING DEFAULTS)",
+      this.postgisSchema,
+      stagingTableName,
+      this.postgisSchema,
+      tableName));
+  }
+
+  // staging tables share the live visualization table's id sequence - restarted before a staged load so ids
+  //  of the reloaded table begin at 1
+  public void restartVisualizationTableSequence(String associatedDataPropertyTableName) throws SQLException {
+    execute(String.format("ALTER SEQUENCE %s.%s RESTART", this.postgisSchema, getIdentifier(associatedDataPropertyTableName, "id_seq")));
+  }
+
+  public void createVisualizationTablePartition(String associatedDataPropertyTableName, String partitionTableName, long gridCell) throws SQLException {
+    execute(String.format("CREATE TABLE IF NOT EXISTS %s.\"%s\" PARTITION OF %s.\"%s\" FOR VALUES IN (%s)",
+      this.postgisSchema,
+      partitionTableName,
+      this.postgisSchema,
+      associatedDataPropertyTableName,
+      gridCell));
+    setPartitionGridCell(partitionTableName, gridCell);
+  }
+
+  // rows are copied straight into their partition without a grid_cell column - the partition supplies it
+  public void setPartitionGridCell(String partitionTableName, long gridCell) throws SQLException {
+    execute(String.format("ALTER TABLE %s.\"%s\" ALTER COLUMN grid_cell SET DEFAULT %s", this.postgisSchema, partitionTableName, gridCell));
+  }
+
+  // lets a staged partition be attached without PostgreSQL scanning it to validate the partition bound
+  public void createPartitionGridCellCheck(String stagingTableName, long gridCell) throws SQLException {
+    String constraintName = getIdentifier(stagingTableName, "grid_cell_check");
+    execute(String.format("ALTER TABLE %s.\"%s\" DROP CONSTRAINT IF EXISTS \"%s\", ADD CONSTRAINT \"%s\" CHECK (grid_cell = %s)",
+      this.postgisSchema,
+      stagingTableName,
+      constraintName,
+      constraintName,
+      gridCell));
+  }
+
+  public List<String> getPartitionTableNames(String associatedDataPropertyTableName) {
+    String partitionTableNames = executeQuery(String.format("SELECT string_agg(c.relname, ',') FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent JOIN pg_namespace n ON n.oid = p.relnamespace WHERE n.nspname = '%s' AND p.relname = '%s'",
+      this.postgisSchema,
+      associatedDataPropertyTableName), 1);
+    return partitionTableNames == null || partitionTableNames.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(partitionTableNames.split(",")));
+  }
+
+  // builds the indexes GeoServer queries rely on (GiST for bbox filters, btree on osm_id, btree on rel_id
+  //  for the normalized layout's join) and refreshes planner statistics - a staged table is switched to LOGGED last.
+  //  With cluster, rows are first rewritten in hilbert_key order so a bbox query reads few heap pages.
+  public void finishVisualizationTableLoad(String tableName, VisualizationRowFormat format, boolean unlogged, boolean cluster) throws SQLException {
+
+    long startTime = System.currentTimeMillis();
+
+    // clustered before the other indexes are built, since CLUSTER rebuilds every index of the table
+    if (cluster) {
+      execute(String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" (hilbert_key)", getIdentifier(tableName, "hilbert_idx"), this.postgisSchema, tableName));
+      execute(String.format("CLUSTER %s.\"%s\" USING \"%s\"", this.postgisSchema, tableName, getIdentifier(tableName, "hilbert_idx")));
+    }
+
+    if (format != VisualizationRowFormat.ATTRIBUTE) {
+      execute(String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" USING GIST (geom)", getIdentifier(tableName, "geom_idx"), this.postgisSchema, tableName));
+      execute(String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" (osm_id)", getIdentifier(tableName, "osm_id_idx"), this.postgisSchema, tableName));
+    }
+    if (format != VisualizationRowFormat.VISUALIZATION) {
+      createRelIdIndex(tableName);
+    }
+    if (this.typedColumnIndexes && format == VisualizationRowFormat.VISUALIZATION) {
+      for (String typedColumnName : getTypedColumnTypes(tableName).keySet()) {
+        execute(String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" (%s)", getIdentifier(tableName, typedColumnName + "_idx"),
+            this.postgisSchema, tableName, typedColumnName));
+      }
+    }
+
+    execute(String.format("ANALYZE %s.\"%s\"", this.postgisSchema, tableName));
+
+    if (unlogged) {
+      execute(String.format("ALTER TABLE %s.\"%s\" SET LOGGED", this.postgisSchema, tableName));
+    }
+
+    System.out.println(String.format("%sindexed and analyzed %s in %s ms", cluster ? "clustered, " : "", tableName, System.currentTimeMillis() - startTime));
+    this.metrics.recordDuration("postgis.finish_table", (System.currentTimeMillis() - startTime) * 1000000);
+  }
+
+  // (re)builds a simplified copy of a visualization table (or view) at the given tolerance (in SRID units) -
+  //  replaced in one transaction. Typed associatedData columns are copied along, so the copy can be filtered
+  //  and styled like its source. Returns the number of vertices in the simplified table.
+  public long createGeneralizedTable(String associatedDataPropertyTableName, String generalizedTableName, double tolerance) throws SQLException {
+
+    StringBuilder typedColumns = new StringBuilder();
+    for (String typedColumnName : new TreeSet<>(getTypedColumnTypes(associatedDataPropertyTableName).keySet())) {
+      typedColumns.append(", \"").append(typedColumnName).append("\"");
+    }
+
+    List<String> generalizeSql = new ArrayList<>();
+    generalizeSql.add(String.format("DROP TABLE IF EXISTS %s.\"%s\"", this.postgisSchema, generalizedTableName));
+    // features collapsing to an empty geometry at this tolerance are left out
+    generalizeSql.add(String.format("CREATE TABLE %s.\"%s\" AS SELECT * FROM (SELECT id, osm_id, ST_SimplifyPreserveTopology(geom, %s)::geometry(Geometry,%s) AS geom, \"%s\", \"relationshipData\"%s FROM %s.\"%s\") g WHERE NOT ST_IsEmpty(geom)",
+      this.postgisSchema,
+      generalizedTableName,
+      tolerance,
+      SRID,
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+      typedColumns,
+      this.postgisSchema,
+      associatedDataPropertyTableName));
+    generalizeSql.add(String.format("CREATE INDEX \"%s\" ON %s.\"%s\" USING GIST (geom)", getIdentifier(generalizedTableName, "geom_idx"), this.postgisSchema, generalizedTableName));
+    generalizeSql.add(String.format("ANALYZE %s.\"%s\"", this.postgisSchema, generalizedTableName));
+    executeTransaction(generalizeSql);
+
+    String vertexCount = executeQuery(String.format("SELECT COALESCE(SUM(ST_NPoints(geom)), 0) FROM %s.\"%s\"", this.postgisSchema, generalizedTableName), 1);
+    return vertexCount == null || vertexCount.isEmpty() ? 0 : Long.parseLong(vertexCount);
+  }
+
+  // statements replacing one partition with its loaded staging table (see getStagingTableSwapSql)
+  public List<String> getStagingPartitionSwapSql(String stagingTableName, String partitionTableName, String associatedDataPropertyTableName,
+      long gridCell) {
+    List<String> swapSql = getStagingTableSwapSql(stagingTableName, partitionTableName);
+    swapSql.add(String.format("ALTER TABLE %s.\"%s\" ATTACH PARTITION %s.\"%s\" FOR VALUES IN (%s)",
+      this.postgisSchema,
+      associatedDataPropertyTableName,
+      this.postgisSchema,
+      partitionTableName,
+      gridCell));
+    return swapSql;
+  }
+
+  // statements replacing a live table with its loaded staging table, for use in one transaction with
+  //  executeTransaction - the live table is dropped without CASCADE, so anything still depending on it fails
+  //  the transaction (see getAttributeViewDropSql for the views to drop first). Indexes built by
+  //  finishVisualizationTableLoad are renamed after the live table.
+  public List<String> getStagingTableSwapSql(String stagingTableName, String tableName) {
+    List<String> indexSuffixes = new ArrayList<>(Arrays.asList("hilbert_idx", "geom_idx", "osm_id_idx", "rel_id_idx"));
+    for (String typedColumnName : getTypedColumnTypes(stagingTableName).keySet()) {
+      indexSuffixes.add(typedColumnName + "_idx");
+    }
+
+    List<String> swapSql = new ArrayList<>();
+    swapSql.add(String.format("DROP TABLE IF EXISTS %s.\"%s\"", this.postgisSchema, tableName));
+    swapSql.add(String.format("ALTER TABLE %s.\"%s\" RENAME TO \"%s\"", this.postgisSchema, stagingTableName, tableName));
+    for (String indexSuffix : indexSuffixes) {
+      swapSql.add(String.format("ALTER INDEX IF EXISTS %s.\"%s\" RENAME TO \"%s\"", this.postgisSchema,
+          getIdentifier(stagingTableName, indexSuffix), getIdentifier(tableName, indexSuffix)));
+    }
+    return swapSql;
+  }
+
+  // statements dropping the normalized layout's attribute views (see createVisualizationAttributeTable) that
+  //  depend on tables about to be dropped - they must be recreated. Fails if any other view or rule depends
+  //  on the tables or on those views: objects created outside the load are never dropped along with its tables.
+  public List<String> getAttributeViewDropSql(Collection<String> tableNames) throws SQLException {
+
+    Map<String, List<String>> dependentViews = getDependentViews(tableNames);
+
+    // an attribute view joins the table named after it, in this schema
+    List<String> attributeViewNames = new ArrayList<>();
+    Map<String, List<String>> foreignViews = new TreeMap<>();
+    for (Map.Entry<String, List<String>> dependentView : dependentViews.entrySet()) {
+      String[] view = dependentView.getKey().split("\\.", 2);
+      if (view[0].equals(this.postgisSchema) && dependentView.getValue().contains(this.postgisSchema + "." + getIdentifier(view[1], "data"))) {
+        attributeViewNames.add(view[1]);
+      } else {
+        foreignViews.put(dependentView.getKey(), dependentView.getValue());
+      }
+    }
+    foreignViews.putAll(getDependentViews(attributeViewNames));
+
+    if (!foreignViews.isEmpty()) {
+      List<String> dependencies = new ArrayList<>();
+      for (Map.Entry<String, List<String>> foreignView : foreignViews.entrySet()) {
+        dependencies.add(String.format("%s (on %s)", foreignView.getKey(), String.join(", ", foreignView.getValue())));
+      }
+      throw new IllegalStateException(String.format("FAILED to replace the live tables - objects not created by the load depend on them: %s. "
+          + "Drop them before loading and recreate them afterwards.", String.join("; ", dependencies)));
+    }
+
+    List<String> dropSql = new ArrayList<>();
+    for (String attributeViewName : attributeViewNames) {
+      dropSql.add(String.format("DROP VIEW IF EXISTS %s.\"%s\"", this.postgisSchema, attributeViewName));
+    }
+    return dropSql;
+  }
+
+  // views (and rules) depending on relations of this schema - schema qualified name -> schema qualified
+  //  relations it reads from
+  private Map<String, List<String>> getDependentViews(Collection<String> relationNames) throws SQLException {
+
+    Map<String, List<String>> dependentViews = new TreeMap<>();
+    if (relationNames.isEmpty()) return dependentViews;
+
+    List<String> quotedNames = new ArrayList<>();
+    for (String relationName : relationNames) {
+      quotedNames.add("'" + relationName.replace("'", "''") + "'");
+    }
+
+    String dependentViewSql = String.format("WITH dependents AS (SELECT DISTINCT r.ev_class AS view_oid FROM pg_depend d JOIN pg_rewrite r ON r.oid = d.objid "
+        + "WHERE d.classid = 'pg_rewrite'::regclass AND d.refclassid = 'pg_class'::regclass AND r.ev_class <> d.refobjid AND d.refobjid IN "
+        + "(SELECT c.oid FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace WHERE n.nspname = '%s' AND c.relname IN (%s))) "
+        + "SELECT DISTINCT vn.nspname || '.' || v.relname, tn.nspname || '.' || t.relname FROM dependents dep "
+        + "JOIN pg_class v ON v.oid = dep.view_oid JOIN pg_namespace vn ON vn.oid = v.relnamespace JOIN pg_rewrite r ON r.ev_class = v.oid "
+        + "JOIN pg_depend d ON d.classid = 'pg_rewrite'::regclass AND d.objid = r.oid AND d.refclassid = 'pg_class'::regclass "
+        + "JOIN pg_class t ON t.oid = d.refobjid AND t.oid <> v.oid JOIN pg_namespace tn ON tn.oid = t.relnamespace ORDER BY 1, 2",
+        this.postgisSchema,
+        String.join(", ", quotedNames));
+
+    try (Statement st = this.conn.createStatement(); ResultSet rs = st.executeQuery(dependentViewSql)) {
+      while (rs.next()) {
+        dependentViews.computeIfAbsent(rs.getString(1), view -> new ArrayList<>()).add(rs.getString(2));
+      }
+    }
+    return dependentViews;
+  }
+
+  // name of an index, constraint, sequence or table derived from tableName - `<tableName>_<suffix>`, unless
+  //  that is longer than MAX_IDENTIFIER_LENGTH, where a prefix of it is followed by a hash of the full name so
+  //  the name is neither truncated nor shared with another table's
+  public static String getIdentifier(String tableName, String suffix) {
+    return getIdentifier(tableName + "_" + suffix);
+  }
+
+  // the identifier, or a prefix of it ending in a hash of the full identifier if it is too long
+  public static String getIdentifier(String identifier) {
+    if (getByteLength(identifier) <= MAX_IDENTIFIER_LENGTH) return identifier;
+
+    String hash = String.format("_%016x", Hashing.fnv1a64(identifier));
+    int prefixEnd = 0;
+    int prefixLength = 0;
+    while (prefixEnd < identifier.length()) {
+      int codePoint = identifier.codePointAt(prefixEnd);
+      int codePointLength = getByteLength(new String(Character.toChars(codePoint)));
+      if (prefixLength + codePointLength + hash.length() > MAX_IDENTIFIER_LENGTH) break;
+      prefixLength += codePointLength;
+      prefixEnd += Character.charCount(codePoint);
+    }
+    return identifier.substring(0, prefixEnd) + hash;
+  }
+
+  // table names are not shortened (they are published as GeoServer layer names) - a name PostgreSQL would
+  //  truncate fails the load before anything is written
+  public static void checkTableName(String tableName) {
+    if (getByteLength(tableName) > MAX_IDENTIFIER_LENGTH) {
+      throw new IllegalArgumentException(String.format("table name %s is %s bytes long - PostgreSQL allows at most %s, use a shorter osmId",
+          tableName, getByteLength(tableName), MAX_IDENTIFIER_LENGTH));
+    }
+  }
+
+  private static int getByteLength(String identifier) {
+    return identifier.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  // normalized layout - ways and attribute tables are joined on rel_id
+  public void createRelIdIndex(String tableName) throws SQLException {
+    execute(String.format("CREATE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" (rel_id)",
+      getIdentifier(tableName, "rel_id_idx"),
+      this.postgisSchema,
+      tableName));
+  }
+
+  // unique key on sync_key, the stable row identity incremental sync upserts on (see VisualizationTableSync) -
+  //  rel_id can not be unique while syncing, as Neo4j hands the ids of deleted relationships to new ones
+  public void createVisualizationTableSyncKey(String tableName) throws SQLException {
+    execute(String.format("ALTER TABLE %s.\"%s\" ADD COLUMN IF NOT EXISTS sync_key bigint", this.postgisSchema, tableName));
+    // unique rel_id key of tables synced by earlier versions
+    execute(String.format("DROP INDEX IF EXISTS %s.\"%s\"", this.postgisSchema, getIdentifier(tableName, "rel_id_key")));
+    execute(String.format("CREATE UNIQUE INDEX IF NOT EXISTS \"%s\" ON %s.\"%s\" (sync_key)",
+      getIdentifier(tableName, "sync_key"),
+      this.postgisSchema,
+      tableName));
+  }
+
+  // stats of the table are updated with the row (envelope, row and vertex count)
+  public void writeVisualizationTableRow(String associatedDataPropertyTableName, String associatedDataProperty, Relationship rel,
+      VisualizationTableStats stats) {
+
+    long startTime = System.nanoTime();
+
+    //escape single quotes (required by postgis)
+    String associatedDataJsonString = getAssociatedDataJson(associatedDataProperty, rel).replaceAll("'","''");
+    String relationshipJsonString = getRelationshipJson(associatedDataProperty, rel).replaceAll("'","''");
+
+    // encode geometry as hex EWKB on the client - avoids server side WKT parsing. Geometries the encoder does
+    //  not support fall back to EWKT, as on the COPY path, and are counted without adding to the envelope.
     String wayGeometry = (String) rel.getProperty("way");
+    String wayGeometryHex;
+    String hilbertKey = "NULL";
+    try {
+      wayGeometryHex = this.wkbEncoder.toHexEwkb(wayGeometry, SRID);
+      stats.addRow(this.wkbEncoder);
+      if (this.wkbEncoder.getVertexCount() > 0) {
+        hilbertKey = Long.toString(VisualizationRowSerializer.getHilbertKey(this.wkbEncoder));
+      }
+    } catch (IllegalArgumentException e) {
+      wayGeometryHex = String.format("SRID=%s;%s", SRID, wayGeometry.replaceAll("'", "''"));
+      stats.addRow();
+    }
+
+    //execute insert statement
+    String insertSql = String.format("INSERT INTO %s.%s (osm_id, geom, \"%s\", \"relationshipData\", hilbert_key, rel_id) VALUES (%s, '%s'::geometry, '%s'::json, '%s'::json, %s, %s);", 
+      this.postgisSchema,
+      associatedDataPropertyTableName,
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+      getOsmId(rel),
+      wayGeometryHex,
+      associatedDataJsonString,
+      relationshipJsonString,
+      hilbertKey,
+      rel.getId());
+
+    if (executeUpdate( insertSql ) >= 0) {
+      this.metrics.increment("postgis.rows_written", 1);
+    }
+    this.metrics.recordTime("postgis.insert_row", startTime);
+  }
+
+  // row values shared by the INSERT and COPY write paths
+
+  static long getOsmId(Relationship rel) {
+    // stored as either Integer or Long depending on magnitude
+    return ((Number) rel.getProperty("osm_id")).longValue();
+  }
+
+  static String getAssociatedDataJson(String associatedDataProperty, Relationship rel) {
+    JSONArray associatedData = new JSONArray( (String) rel.getProperty(associatedDataProperty) );
 
     // flatten associatedData to JSON array
     JSONArray associdatedDataArray = new JSONArray();
@@ -68,35 +529,24 @@ public class PostgisDb {
       JSONObject associatedDataEntry = associatedData.getJSONObject(i);
       associdatedDataArray.put(associatedDataEntry);
     }
+    return associdatedDataArray.toString();
+  }
+
+  static String getRelationshipJson(String associatedDataProperty, Relationship rel) {
 
     // flatten relationship to JSON object
     JSONObject relationshipJson = new JSONObject();
     for (Map.Entry<String, Object> entry : rel.getAllProperties().entrySet()) {
       String propertyName = entry.getKey();
-      // skip associatedData and geom properties since written on row already
+      // skip associatedData, the property's own data and geom properties since written on row already
       if (propertyName.equals(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA) || 
-          propertyName.equals(associatedDataPropertyTableName) ||  
+          propertyName.equals(associatedDataProperty) ||  
           propertyName.equals("way")) {
         continue;
       }
       relationshipJson.put(propertyName, entry.getValue());
     }
-    
-    //escape single quotes (required by postgis)
-    String associatedDataJsonString = associdatedDataArray.toString().replaceAll("'","''");
-    String relationshipJsonString = relationshipJson.toString().replaceAll("'","''");
-
-    //execute insert statement
-    String insertSql = String.format("INSERT INTO %s.%s (osm_id, geom, \"%s\", \"relationshipData\") VALUES (%s, ST_GeomFromText('%s',4326), '%s'::json, '%s'::json);", 
-      this.postgisSchema,
-      associatedDataPropertyTableName,
-      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
-      rel_osm_id,
-      wayGeometry,
-      associatedDataJsonString,
-      relationshipJsonString);
-
-    executeUpdate( insertSql );
+    return relationshipJson.toString();
   }
   
   public String executeQuery( String sql, int columnNum ) {
@@ -133,10 +583,50 @@ public class PostgisDb {
 
   }
 
+  // unlike executeUpdate, failures are raised to the caller
+  public int execute( String sql ) throws SQLException {
+    try (Statement st = this.conn.createStatement()) {
+      return st.executeUpdate(sql);
+    }
+  }
+
+  // runs all statements in a single transaction - rolled back and raised to the caller if any statement fails
+  public void executeTransaction( List<String> sqlStatements ) throws SQLException {
+    boolean autoCommit = this.conn.getAutoCommit();
+    this.conn.setAutoCommit(false);
+    try (Statement st = this.conn.createStatement()) {
+      for (String sql : sqlStatements) {
+        st.executeUpdate(sql);
+      }
+      this.conn.commit();
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    } finally {
+      this.conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  public String getPostgisSchema() {
+    return this.postgisSchema;
+  }
+
   public String getPostgisUrl() {
     return this.postgisUrl;
   }
 
+  Connection getConnection() {
+    return this.conn;
+  }
+
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public Metrics getMetrics() {
+    return this.metrics;
+  }
+
   public void close() throws SQLException {
     System.out.println("PostgisDb shutdown");
     this.conn.close();
@@ -0,0 +1,27 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.neo4j.graphdb.Relationship;
+
+// graph relationships are read from - the embedded store (EmbeddedRelationshipSource) or a Neo4j server over
+//  Bolt (BoltRelationshipSource). Queries are Cypher and return relationships in a `way` column.
+public interface RelationshipSource extends AutoCloseable {
+
+  interface RelationshipStream {
+    // relationships are only valid until read returns
+    void read(Iterator<Relationship> relationships) throws Exception;
+  }
+
+  // runs the query in its own read transaction, streaming the returned relationships to stream - safe to
+  //  call concurrently from several threads
+  void readRelationships(String query, Map<String, Object> parameters, RelationshipStream stream) throws Exception;
+
+  // first row of the query, or null if it returns no rows
+  Map<String, Object> readRow(String query) throws Exception;
+
+  // shown on startup
+  String getLocation();
+
+}
@@ -0,0 +1,45 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.json.JSONObject;
+
+// writes a tile pyramid as <directory>/<z>/<x>/<y>.pbf files plus a metadata.json - tiles are written
+//  uncompressed so any static file server can serve them (compressing on the fly if configured to).
+//  Existing tiles are overwritten, tiles left over from earlier runs are not removed.
+public class TileDirectoryWriter implements VectorTileSink {
+
+  private Path directory;
+
+  public TileDirectoryWriter(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+  }
+
+  @Override
+  public void writeTile(int zoom, int x, int y, byte[] tile) throws IOException {
+    Path columnDirectory = this.directory.resolve(Integer.toString(zoom)).resolve(Integer.toString(x));
+    Files.createDirectories(columnDirectory);
+    Files.write(columnDirectory.resolve(y + ".pbf"), tile);
+  }
+
+  @Override
+  public void writeMetadata(JSONObject metadata) throws IOException {
+    Files.write(this.directory.resolve("metadata.json"), metadata.toString(2).getBytes(StandardCharsets.UTF_8));
+  }
+
+  // tiles written so far are left in place, as tiles of earlier runs are
+  @Override
+  public void abort() {
+    System.out.println(String.format("FAILED to write tiles to %s - tiles written so far are left in place", this.directory));
+  }
+
+  @Override
+  public void close() {
+    System.out.println(String.format("wrote tiles to %s", this.directory));
+  }
+
+}
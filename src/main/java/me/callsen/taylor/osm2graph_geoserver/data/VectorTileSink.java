@@ -0,0 +1,18 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import org.json.JSONObject;
+
+// where a vector tile pyramid is written - an MBTiles file (MbTilesWriter) or a z/x/y directory tree
+//  (TileDirectoryWriter). Tile coordinates are XYZ (y = 0 at the north edge).
+public interface VectorTileSink extends AutoCloseable {
+
+  // called concurrently from the encoding threads
+  void writeTile(int zoom, int x, int y, byte[] tile) throws Exception;
+
+  // tileset metadata - name, bounds, zoom range and the TileJSON vector_layers description
+  void writeMetadata(JSONObject metadata) throws Exception;
+
+  // called instead of close() when the pyramid could not be built - discards what was written, if it can
+  void abort() throws Exception;
+
+}
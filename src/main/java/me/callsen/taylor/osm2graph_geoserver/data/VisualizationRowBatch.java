@@ -0,0 +1,157 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.neo4j.graphdb.Relationship;
+
+// rows bound for a single table, serialized in COPY text format and handed from the graph reader to a
+//  PostGIS writer. Batches are recycled once written so the row buffer keeps its capacity.
+public class VisualizationRowBatch {
+
+  // table rows are copied into
+  private String associatedDataPropertyTableName;
+
+  // name published to GeoServer for the table (the view name in the normalized layout) - null if the table
+  //  is not published itself
+  private String layerName;
+
+  private String associatedDataProperty;
+
+  private VisualizationRowFormat format;
+
+  // typed associatedData columns written after the format's own columns (see AssociatedDataSchema)
+  private List<AssociatedDataSchema.TypedColumn> typedColumns = Collections.emptyList();
+
+  private StringBuilder rows = new StringBuilder();
+
+  private int rowCount = 0;
+
+  // per row start offset within rows, relationship id, way key (see WayDeduplication.getWayKey) and content hash
+  private int[] rowOffsets = new int[256];
+
+  private long[] relIds = new long[256];
+
+  private long[] wayKeys = new long[256];
+
+  private long[] contentHashes = new long[256];
+
+  // envelope, row and vertex count of the rows added from relationships
+  private VisualizationTableStats stats = new VisualizationTableStats();
+
+  public VisualizationRowBatch(String associatedDataPropertyTableName, String layerName, String associatedDataProperty,
+      VisualizationRowFormat format) {
+    reset(associatedDataPropertyTableName, layerName, associatedDataProperty, format);
+  }
+
+  // prepare a recycled batch for another table - keeps the allocated row buffer
+  public void reset(String associatedDataPropertyTableName, String layerName, String associatedDataProperty,
+      VisualizationRowFormat format) {
+    this.associatedDataPropertyTableName = associatedDataPropertyTableName;
+    this.layerName = layerName;
+    this.associatedDataProperty = associatedDataProperty;
+    this.format = format;
+    this.typedColumns = Collections.emptyList();
+    this.rows.setLength(0);
+    this.rowCount = 0;
+    this.stats.reset();
+  }
+
+  public void addRow(VisualizationRowSerializer serializer, Relationship rel) {
+    ensureRowCapacity();
+    this.rowOffsets[this.rowCount] = this.rows.length();
+    this.relIds[this.rowCount] = rel.getId();
+    this.wayKeys[this.rowCount] = WayDeduplication.getWayKey(rel);
+    this.contentHashes[this.rowCount] = serializer.appendRow(this.rows, this.format, this.associatedDataProperty, rel);
+    serializer.addRowStats(this.stats, rel);
+    ++this.rowCount;
+  }
+
+  // copy an already serialized row from another batch
+  public void addRow(VisualizationRowBatch source, int sourceRow) {
+    ensureRowCapacity();
+    this.rowOffsets[this.rowCount] = this.rows.length();
+    this.relIds[this.rowCount] = source.relIds[sourceRow];
+    this.wayKeys[this.rowCount] = source.wayKeys[sourceRow];
+    this.contentHashes[this.rowCount] = source.contentHashes[sourceRow];
+    this.rows.append(source.rows, source.getRowStart(sourceRow), source.getRowEnd(sourceRow));
+    ++this.rowCount;
+  }
+
+  private void ensureRowCapacity() {
+    if (this.rowCount == this.rowOffsets.length) {
+      this.rowOffsets = Arrays.copyOf(this.rowOffsets, this.rowCount * 2);
+      this.relIds = Arrays.copyOf(this.relIds, this.rowCount * 2);
+      this.wayKeys = Arrays.copyOf(this.wayKeys, this.rowCount * 2);
+      this.contentHashes = Arrays.copyOf(this.contentHashes, this.rowCount * 2);
+    }
+  }
+
+  public int getRowStart(int row) {
+    return this.rowOffsets[row];
+  }
+
+  // exclusive - includes the row's trailing newline
+  public int getRowEnd(int row) {
+    return row + 1 < this.rowCount ? this.rowOffsets[row + 1] : this.rows.length();
+  }
+
+  public long getRelId(int row) {
+    return this.relIds[row];
+  }
+
+  public long getWayKey(int row) {
+    return this.wayKeys[row];
+  }
+
+  public long getContentHash(int row) {
+    return this.contentHashes[row];
+  }
+
+  public String getAssociatedDataPropertyTableName() {
+    return this.associatedDataPropertyTableName;
+  }
+
+  public String getLayerName() {
+    return this.layerName;
+  }
+
+  public VisualizationRowFormat getFormat() {
+    return this.format;
+  }
+
+  public List<AssociatedDataSchema.TypedColumn> getTypedColumns() {
+    return this.typedColumns;
+  }
+
+  public void setTypedColumns(List<AssociatedDataSchema.TypedColumn> typedColumns) {
+    this.typedColumns = typedColumns;
+  }
+
+  // columns of the batch's rows, in COPY column list form
+  public String getCopyColumns() {
+    return this.format.getCopyColumns(this.typedColumns);
+  }
+
+  public String getAssociatedDataProperty() {
+    return this.associatedDataProperty;
+  }
+
+  public VisualizationTableStats getStats() {
+    return this.stats;
+  }
+
+  public StringBuilder getRows() {
+    return this.rows;
+  }
+
+  public int getRowCount() {
+    return this.rowCount;
+  }
+
+  public int length() {
+    return this.rows.length();
+  }
+
+}
@@ -0,0 +1,48 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.List;
+
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// row layouts written to PostGIS - every layout ends with any typed associatedData columns (see
+//  AssociatedDataSchema), hilbert_key (Hilbert curve index of the geometry's envelope center, see
+//  HilbertCurve), rel_id and content_hash (see VisualizationTableSync)
+public enum VisualizationRowFormat {
+
+  // full row per associatedData property table - geometry and relationshipData repeated in every table
+  VISUALIZATION(String.format("osm_id, geom, \"%s\", \"relationshipData\"",
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)),
+
+  // normalized layout - one row per relationship in the shared ways table
+  WAY("osm_id, geom, \"relationshipData\""),
+
+  // normalized layout - slim per associatedData property row, joined to the ways table on rel_id
+  ATTRIBUTE(String.format("\"%s\"",
+      RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+
+  private static final String TRAILING_COLUMNS = "hilbert_key, rel_id, content_hash";
+
+  private final String copyColumns;
+
+  private final String leadingColumns;
+
+  VisualizationRowFormat(String leadingColumns) {
+    this.leadingColumns = leadingColumns;
+    this.copyColumns = leadingColumns + ", " + TRAILING_COLUMNS;
+  }
+
+  public String getCopyColumns() {
+    return this.copyColumns;
+  }
+
+  public String getCopyColumns(List<AssociatedDataSchema.TypedColumn> typedColumns) {
+    if (typedColumns.isEmpty()) return this.copyColumns;
+
+    StringBuilder copyColumns = new StringBuilder(this.leadingColumns);
+    for (AssociatedDataSchema.TypedColumn typedColumn : typedColumns) {
+      copyColumns.append(", ").append(typedColumn.columnName);
+    }
+    return copyColumns.append(", ").append(TRAILING_COLUMNS).toString();
+  }
+
+}
@@ -0,0 +1,383 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.List;
+
+import org.json.JSONObject;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Hashing;
+import me.callsen.taylor.osm2graph_geoserver.lib.HilbertCurve;
+import me.callsen.taylor.osm2graph_geoserver.lib.JsonScanner;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// serializes relationships into visualization table rows in COPY text format - column order matches
+//  VisualizationRowFormat. JSON is written straight into the output buffer (already escaped for
+//  COPY) rather than built up as JSONObject/JSONArray trees and re-escaped. Not thread safe.
+public class VisualizationRowSerializer {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private WkbEncoder wkbEncoder = new WkbEncoder();
+
+  private JsonScanner jsonScanner = new JsonScanner();
+
+  // relationship whose geometry wkbEncoder last encoded (envelope still held by the encoder), and whether it
+  //  could be encoded
+  private long encodedRelId = -1;
+
+  private boolean encodedGeometryValid;
+
+  // typed columns written after the associatedData json - empty unless postgis.typedColumns is enabled
+  private AssociatedDataSchema associatedDataSchema;
+
+  // whether addRowStats sketches the numeric typed column values of each row (see VisualizationTableStats)
+  private boolean collectValueStats;
+
+  // numeric typed columns of the row last serialized and their values (NaN for \N) - taken by addRowStats so
+  //  values are sketched without parsing the json again
+  private long typedValuesRelId = -1;
+
+  private List<AssociatedDataSchema.TypedColumn> typedValueColumns;
+
+  private double[] typedValues = new double[AssociatedDataSchema.MAX_COLUMNS_PER_PROPERTY];
+
+  // where each typed column's value starts and ends in the associatedData json of the row being serialized
+  private int[] typedValueStarts = new int[AssociatedDataSchema.MAX_COLUMNS_PER_PROPERTY];
+
+  private int[] typedValueEnds = new int[AssociatedDataSchema.MAX_COLUMNS_PER_PROPERTY];
+
+  // decoded text column value, reused across rows
+  private StringBuilder textValue = new StringBuilder();
+
+  public VisualizationRowSerializer() {
+    this(new AssociatedDataSchema());
+  }
+
+  public VisualizationRowSerializer(AssociatedDataSchema associatedDataSchema) {
+    this(associatedDataSchema, false);
+  }
+
+  public VisualizationRowSerializer(AssociatedDataSchema associatedDataSchema, boolean collectValueStats) {
+    this.associatedDataSchema = associatedDataSchema;
+    this.collectValueStats = collectValueStats;
+  }
+
+  // typed columns of rows serialized for the format and property (see VisualizationRowBatch.setTypedColumns)
+  public List<AssociatedDataSchema.TypedColumn> getTypedColumns(VisualizationRowFormat format, String associatedDataProperty) {
+    return this.associatedDataSchema.getColumns(format == VisualizationRowFormat.VISUALIZATION ? associatedDataProperty : null);
+  }
+
+  // whether PostgreSQL accepts the row's associatedData json - one value it rejects fails the whole COPY batch,
+  //  so rows that would not load are checked for up front and left out by the caller. Ways rows hold no
+  //  associatedData; attribute rows store it as jsonb, which is stricter about escapes.
+  public boolean isValidRow(VisualizationRowFormat format, String associatedDataProperty, Relationship rel) {
+    if (format == VisualizationRowFormat.WAY) return true;
+    Object associatedDataJson = rel.getProperty(associatedDataProperty, null);
+    return associatedDataJson instanceof String
+        && this.jsonScanner.isValid((String) associatedDataJson, format == VisualizationRowFormat.ATTRIBUTE);
+  }
+
+  // returns the row's content hash - covers every column except the trailing rel_id and content_hash
+  public long appendRow(StringBuilder buffer, VisualizationRowFormat format, String associatedDataProperty, Relationship rel) {
+
+    int rowStart = buffer.length();
+    String associatedDataJson = null;
+
+    // columns as listed in VisualizationRowFormat
+    switch (format) {
+      case VISUALIZATION:
+        appendWayColumns(buffer, rel);
+        // associatedData property is already stored as a JSON array string - written as is, rows with
+        //  invalid json are left out by the caller (see isValidRow)
+        associatedDataJson = (String) rel.getProperty(associatedDataProperty);
+        appendCopyText(buffer, associatedDataJson);
+        buffer.append('\t');
+        appendRelationshipJson(buffer, associatedDataProperty, null, rel);
+        break;
+      case WAY:
+        appendWayColumns(buffer, rel);
+        // shared by every property - leave out all associatedData payloads
+        String[] associatedDataProperties = (String[]) rel.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA);
+        appendRelationshipJson(buffer, null, associatedDataProperties, rel);
+        break;
+      case ATTRIBUTE:
+        associatedDataJson = (String) rel.getProperty(associatedDataProperty);
+        appendCopyText(buffer, associatedDataJson);
+        break;
+    }
+
+    List<AssociatedDataSchema.TypedColumn> typedColumns = getTypedColumns(format, associatedDataProperty);
+    if (!typedColumns.isEmpty()) {
+      appendTypedColumns(buffer, typedColumns, associatedDataJson);
+      this.typedValuesRelId = rel.getId();
+      this.typedValueColumns = typedColumns;
+    }
+
+    // attribute rows are clustered like their ways rows, so they take the relationship geometry's key as well
+    buffer.append('\t');
+    encodeGeometry(rel);
+    if (this.encodedGeometryValid && this.wkbEncoder.getVertexCount() > 0) {
+      buffer.append(getHilbertKey(this.wkbEncoder));
+    } else {
+      buffer.append("\\N");
+    }
+
+    long contentHash = Hashing.fnv1a64(this.associatedDataSchema.getHashSeed(typedColumns.isEmpty() ? null : associatedDataProperty),
+        buffer, rowStart, buffer.length());
+    buffer.append('\t').append(rel.getId());
+    buffer.append('\t').append(contentHash);
+    buffer.append('\n');
+
+    return contentHash;
+  }
+
+  // adds a row for rel to stats - reuses the envelope of the row just serialized, rows without a geometry
+  //  column (normalized attribute rows) follow the relationship's ways row so usually find it encoded too.
+  //  Numeric typed column values of the row just serialized are sketched if value stats are collected.
+  public void addRowStats(VisualizationTableStats stats, Relationship rel) {
+    encodeGeometry(rel);
+    if (this.encodedGeometryValid) {
+      stats.addRow(this.wkbEncoder);
+    } else {
+      stats.addRow();
+    }
+
+    if (this.collectValueStats && this.typedValuesRelId == rel.getId()) {
+      for (int i = 0; i < this.typedValueColumns.size(); ++i) {
+        if (!Double.isNaN(this.typedValues[i])) {
+          stats.addValue(this.typedValueColumns.get(i).columnName, this.typedValues[i]);
+        }
+      }
+    }
+  }
+
+  // Hilbert curve index of the center of the encoded geometry's envelope
+  static long getHilbertKey(WkbEncoder wkbEncoder) {
+    return HilbertCurve.index((wkbEncoder.getMinX() + wkbEncoder.getMaxX()) / 2, (wkbEncoder.getMinY() + wkbEncoder.getMaxY()) / 2);
+  }
+
+  // makes sure wkbEncoder holds the envelope of rel's geometry
+  private void encodeGeometry(Relationship rel) {
+    if (this.encodedRelId == rel.getId()) return;
+    try {
+      this.wkbEncoder.readEnvelope((String) rel.getProperty("way"), PostgisDb.SRID);
+      this.encodedGeometryValid = true;
+    } catch (IllegalArgumentException e) {
+      this.encodedGeometryValid = false;
+    }
+    this.encodedRelId = rel.getId();
+  }
+
+  // grid cell (partition) of rel's geometry envelope center on a grid of cellSize degree cells - -1 if the
+  //  geometry cannot be encoded or is empty
+  public long getGridCell(Relationship rel, double cellSize) {
+    encodeGeometry(rel);
+    if (!this.encodedGeometryValid || this.wkbEncoder.getVertexCount() == 0) return -1;
+
+    long cellsPerRow = (long) Math.ceil(360 / cellSize);
+    long cellX = (long) Math.floor(((this.wkbEncoder.getMinX() + this.wkbEncoder.getMaxX()) / 2 + 180) / cellSize);
+    long cellY = (long) Math.floor(((this.wkbEncoder.getMinY() + this.wkbEncoder.getMaxY()) / 2 + 90) / cellSize);
+    return cellY * cellsPerRow + Math.max(0, Math.min(cellsPerRow - 1, cellX));
+  }
+
+  // osm_id and geom columns, each followed by a column delimiter
+  private void appendWayColumns(StringBuilder buffer, Relationship rel) {
+    buffer.append(PostgisDb.getOsmId(rel)).append('\t');
+    if (this.encodedRelId == rel.getId() && this.encodedGeometryValid) {
+      // already encoded for this relationship (e.g. to find its grid cell)
+      this.wkbEncoder.appendEncodedHexEwkb(buffer);
+    } else {
+      appendGeometry(buffer, (String) rel.getProperty("way"));
+      this.encodedRelId = rel.getId();
+    }
+    buffer.append('\t');
+  }
+
+  // geometry is sent as hex EWKB so PostGIS does not have to parse WKT - geometries the encoder does not
+  //  support fall back to EWKT
+  private void appendGeometry(StringBuilder buffer, String wayGeometry) {
+    try {
+      this.wkbEncoder.appendHexEwkb(buffer, wayGeometry, PostgisDb.SRID);
+      this.encodedGeometryValid = true;
+    } catch (IllegalArgumentException e) {
+      buffer.append("SRID=").append(PostgisDb.SRID).append(';').append(wayGeometry);
+      this.encodedGeometryValid = false;
+    }
+  }
+
+  // values of the first associatedData entry, each preceded by a column delimiter - \N for missing values
+  //  and values not matching the column type. Numeric values are kept in typedValues. Fields are found by
+  //  scanning the json in place rather than parsing it into a JSONArray per row.
+  private void appendTypedColumns(StringBuilder buffer, List<AssociatedDataSchema.TypedColumn> typedColumns, String associatedDataJson) {
+
+    // value offsets of each column's field, -1 if missing - a repeated key takes its last value, as in jsonb
+    for (int i = 0; i < typedColumns.size(); ++i) {
+      this.typedValueStarts[i] = -1;
+    }
+    if (associatedDataJson != null && this.jsonScanner.startFirstArrayObject(associatedDataJson)) {
+      while (this.jsonScanner.nextMember()) {
+        for (int i = 0; i < typedColumns.size(); ++i) {
+          if (this.jsonScanner.isKey(typedColumns.get(i).field)) {
+            this.typedValueStarts[i] = this.jsonScanner.getValueStart();
+            this.typedValueEnds[i] = this.jsonScanner.getValueEnd();
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < typedColumns.size(); ++i) {
+      AssociatedDataSchema.TypedColumn typedColumn = typedColumns.get(i);
+      buffer.append('\t');
+      this.typedValues[i] = Double.NaN;
+
+      int valueStart = this.typedValueStarts[i];
+      int valueEnd = this.typedValueEnds[i];
+      char valueType = valueStart >= 0 ? associatedDataJson.charAt(valueStart) : 'n';
+      boolean number = valueType == '-' || (valueType >= '0' && valueType <= '9');
+      switch (typedColumn.type) {
+        case BIGINT:
+          if (number && isIntegerLiteral(associatedDataJson, valueStart, valueEnd)) {
+            try {
+              long value = Long.parseLong(associatedDataJson, valueStart, valueEnd, 10);
+              buffer.append(value);
+              this.typedValues[i] = value;
+              continue;
+            } catch (NumberFormatException e) {
+              // beyond the range of bigint
+            }
+          }
+          break;
+        case DOUBLE:
+          if (number) {
+            double value = Double.parseDouble(associatedDataJson.substring(valueStart, valueEnd));
+            if (Double.isFinite(value)) {
+              buffer.append(value);
+              this.typedValues[i] = value;
+              continue;
+            }
+          }
+          break;
+        case BOOLEAN:
+          if (valueType == 't' || valueType == 'f') {
+            buffer.append(valueType == 't');
+            continue;
+          }
+          break;
+        case TEXT:
+          if (valueType == '"') {
+            this.textValue.setLength(0);
+            this.jsonScanner.appendDecodedString(this.textValue, valueStart);
+            appendCopyText(buffer, this.textValue);
+            continue;
+          } else if (valueType != 'n') {
+            // numbers, booleans and nested values as their json text
+            appendCopyText(buffer, associatedDataJson.subSequence(valueStart, valueEnd));
+            continue;
+          }
+          break;
+      }
+      buffer.append("\\N");
+    }
+  }
+
+  // whether the json number has neither a fraction nor an exponent
+  private static boolean isIntegerLiteral(String json, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      char c = json.charAt(i);
+      if (c == '.' || c == 'e' || c == 'E') return false;
+    }
+    return true;
+  }
+
+  // the relationship's properties, skipping the associatedData list, geometry and the given associatedData
+  //  property (or properties)
+  private static void appendRelationshipJson(StringBuilder buffer, String associatedDataProperty, String[] associatedDataProperties,
+      Relationship rel) {
+    buffer.append('{');
+    boolean firstProperty = true;
+    for (String propertyName : rel.getPropertyKeys()) {
+      // skip associatedData, the property's own data and geom properties since written on row already
+      if (propertyName.equals(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA) ||
+          propertyName.equals(associatedDataProperty) ||
+          propertyName.equals("way") ||
+          contains(associatedDataProperties, propertyName)) {
+        continue;
+      }
+      if (!firstProperty) buffer.append(',');
+      firstProperty = false;
+
+      appendJsonString(buffer, propertyName);
+      buffer.append(':');
+      appendJsonValue(buffer, rel.getProperty(propertyName));
+    }
+    buffer.append('}');
+  }
+
+  private static boolean contains(String[] values, String value) {
+    if (values == null) return false;
+    for (String candidate : values) {
+      if (candidate.equals(value)) return true;
+    }
+    return false;
+  }
+
+  private static void appendJsonValue(StringBuilder buffer, Object value) {
+    if (value instanceof String) {
+      appendJsonString(buffer, (String) value);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      buffer.append(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      double doubleValue = ((Number) value).doubleValue();
+      if (Double.isFinite(doubleValue)) {
+        buffer.append(doubleValue);
+      } else {
+        buffer.append("null");
+      }
+    } else if (value instanceof Boolean) {
+      buffer.append(((Boolean) value).booleanValue());
+    } else {
+      // arrays, temporal and spatial values are rare - fall back to org.json
+      appendCopyText(buffer, JSONObject.valueToString(value));
+    }
+  }
+
+  // writes a JSON string literal escaped for the COPY text format, i.e. every JSON escape backslash doubled
+  static void appendJsonString(StringBuilder buffer, String value) {
+    buffer.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': buffer.append("\\\\\""); break;
+        case '\\': buffer.append("\\\\\\\\"); break;
+        case '\n': buffer.append("\\\\n"); break;
+        case '\r': buffer.append("\\\\r"); break;
+        case '\t': buffer.append("\\\\t"); break;
+        case '\b': buffer.append("\\\\b"); break;
+        case '\f': buffer.append("\\\\f"); break;
+        default:
+          if (c < 0x20) {
+            buffer.append("\\\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+          } else {
+            buffer.append(c);
+          }
+      }
+    }
+    buffer.append('"');
+  }
+
+  // escape a value for the COPY text format - backslash and the row/column delimiters
+  static void appendCopyText(StringBuilder buffer, CharSequence value) {
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\': buffer.append("\\\\"); break;
+        case '\n': buffer.append("\\n"); break;
+        case '\r': buffer.append("\\r"); break;
+        case '\t': buffer.append("\\t"); break;
+        default: buffer.append(c);
+      }
+    }
+  }
+
+}
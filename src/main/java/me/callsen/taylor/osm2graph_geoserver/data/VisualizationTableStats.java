@@ -0,0 +1,137 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.QuantileSketch;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
+
+// running statistics of a published table gathered as rows are written - geometry envelope (in
+//  PostgisDb.SRID), row count and vertex count. Lets GeoServer feature types be published with explicit
+//  bounding boxes instead of GeoServer scanning the table to compute them. Each batch collects its own
+//  stats, which writers merge into the table's shared stats. Optionally sketches the values of numeric typed
+//  columns as well, which generated layer styles are classed by (see LayerStyles).
+public class VisualizationTableStats {
+
+  private double minX;
+
+  private double minY;
+
+  private double maxX;
+
+  private double maxY;
+
+  private long rowCount;
+
+  private long vertexCount;
+
+  // typed column name -> sketch of its non-null values, in order of first value
+  private Map<String, QuantileSketch> valueSketches = new LinkedHashMap<>();
+
+  public VisualizationTableStats() {
+    reset();
+  }
+
+  public void reset() {
+    this.minX = Double.POSITIVE_INFINITY;
+    this.minY = Double.POSITIVE_INFINITY;
+    this.maxX = Double.NEGATIVE_INFINITY;
+    this.maxY = Double.NEGATIVE_INFINITY;
+    this.rowCount = 0;
+    this.vertexCount = 0;
+    // sketches are kept for reuse by the next rows of a recycled batch
+    for (QuantileSketch sketch : this.valueSketches.values()) {
+      sketch.reset();
+    }
+  }
+
+  // adds a row whose geometry was just encoded by wkbEncoder
+  public void addRow(WkbEncoder wkbEncoder) {
+    ++this.rowCount;
+    if (wkbEncoder.getVertexCount() == 0) return;
+
+    this.minX = Math.min(this.minX, wkbEncoder.getMinX());
+    this.minY = Math.min(this.minY, wkbEncoder.getMinY());
+    this.maxX = Math.max(this.maxX, wkbEncoder.getMaxX());
+    this.maxY = Math.max(this.maxY, wkbEncoder.getMaxY());
+    this.vertexCount += wkbEncoder.getVertexCount();
+  }
+
+  // adds a row whose geometry could not be encoded - counted, but not part of the envelope
+  public void addRow() {
+    ++this.rowCount;
+  }
+
+  // adds a row's value of a numeric typed column
+  public void addValue(String columnName, double value) {
+    QuantileSketch sketch = this.valueSketches.get(columnName);
+    if (sketch == null) {
+      sketch = new QuantileSketch();
+      this.valueSketches.put(columnName, sketch);
+    }
+    sketch.add(value);
+  }
+
+  // called concurrently by writers merging batch stats into a table's stats
+  public synchronized void merge(VisualizationTableStats other) {
+    this.minX = Math.min(this.minX, other.minX);
+    this.minY = Math.min(this.minY, other.minY);
+    this.maxX = Math.max(this.maxX, other.maxX);
+    this.maxY = Math.max(this.maxY, other.maxY);
+    this.rowCount += other.rowCount;
+    this.vertexCount += other.vertexCount;
+    for (Map.Entry<String, QuantileSketch> otherSketch : other.valueSketches.entrySet()) {
+      if (otherSketch.getValue().getCount() > 0) {
+        this.valueSketches.computeIfAbsent(otherSketch.getKey(), columnName -> new QuantileSketch()).merge(otherSketch.getValue());
+      }
+    }
+  }
+
+  // false if no row had a non-empty geometry
+  public synchronized boolean hasEnvelope() {
+    return this.minX <= this.maxX && this.minY <= this.maxY;
+  }
+
+  public synchronized double getMinX() {
+    return this.minX;
+  }
+
+  public synchronized double getMinY() {
+    return this.minY;
+  }
+
+  public synchronized double getMaxX() {
+    return this.maxX;
+  }
+
+  public synchronized double getMaxY() {
+    return this.maxY;
+  }
+
+  public synchronized long getRowCount() {
+    return this.rowCount;
+  }
+
+  public synchronized long getVertexCount() {
+    return this.vertexCount;
+  }
+
+  // column name -> value sketch of the numeric typed columns that had values - empty unless value stats were
+  //  collected while loading
+  public synchronized Map<String, QuantileSketch> getValueSketches() {
+    Map<String, QuantileSketch> sketches = new LinkedHashMap<>();
+    for (Map.Entry<String, QuantileSketch> sketch : this.valueSketches.entrySet()) {
+      if (sketch.getValue().getCount() > 0) {
+        sketches.put(sketch.getKey(), sketch.getValue());
+      }
+    }
+    return sketches;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s rows, %s vertices, envelope (%s %s, %s %s)", this.rowCount, this.vertexCount,
+        this.minX, this.minY, this.maxX, this.maxY);
+  }
+
+}
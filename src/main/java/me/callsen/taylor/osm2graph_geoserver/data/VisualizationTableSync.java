@@ -0,0 +1,173 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Hashing;
+import me.callsen.taylor.osm2graph_geoserver.lib.LongLongHashMap;
+
+// incremental sync of one visualization table - holds the sync key and a hash of the content and relationship
+//  id of every row already in PostGIS. Unchanged rows are skipped, new and changed rows are upserted through
+//  a temp table and rows whose way no longer exists in the graph are deleted when the sync finishes. Must be
+//  used from the single writer (connection) that owns the table.
+//
+// rows are identified by sync_key rather than rel_id - Neo4j reuses the ids of deleted relationships and a
+//  rebuilt graph numbers them anew, so a rel_id may name another way than it did in the last sync. The sync
+//  key hashes the way key (osm_id and way geometry, see WayDeduplication.getWayKey) and the number of rows of
+//  the same way key written before it by this sync, which tells apart the directions of a two-way street. A
+//  row whose relationship id changed is rewritten, so rel_id always names the current relationship.
+public class VisualizationTableSync {
+
+  private static final int STATE_FETCH_SIZE = 50000;
+
+  private PostgisDb postgisDb;
+
+  private String associatedDataPropertyTableName;
+
+  private String qualifiedTableName;
+
+  private String deltaTableName;
+
+  // sync_key -> hash of content_hash and rel_id of rows in PostGIS not yet seen during this sync
+  private LongLongHashMap existingRows = new LongLongHashMap();
+
+  // way key -> rows of the way key written during this sync
+  private LongLongHashMap wayKeyRowCounts = new LongLongHashMap();
+
+  // changed rows in COPY text format, each followed by its sync_key
+  private StringBuilder changedRows = new StringBuilder();
+
+  private long unchangedCount = 0;
+
+  private long upsertCount = 0;
+
+  private String copyColumns;
+
+  public VisualizationTableSync(PostgisDb postgisDb, String associatedDataPropertyTableName, VisualizationRowFormat format,
+      List<AssociatedDataSchema.TypedColumn> typedColumns) throws SQLException {
+    this.postgisDb = postgisDb;
+    this.associatedDataPropertyTableName = associatedDataPropertyTableName;
+    this.qualifiedTableName = String.format("%s.\"%s\"", postgisDb.getPostgisSchema(), associatedDataPropertyTableName);
+    this.deltaTableName = String.format("pg_temp.\"%s\"", PostgisDb.getIdentifier(associatedDataPropertyTableName, "delta"));
+    this.copyColumns = format.getCopyColumns(typedColumns);
+
+    postgisDb.createVisualizationTableSyncKey(associatedDataPropertyTableName);
+    postgisDb.execute(String.format("CREATE TEMP TABLE IF NOT EXISTS %s AS SELECT %s, sync_key FROM %s WITH NO DATA",
+        this.deltaTableName, this.copyColumns, this.qualifiedTableName));
+
+    loadExistingRows();
+  }
+
+  // upserts the batch's new and changed rows
+  public void writeChanges(PostgisCopyWriter copyWriter, VisualizationRowBatch batch) throws SQLException, IOException {
+
+    this.changedRows.setLength(0);
+    int changedCount = 0;
+
+    for (int row = 0; row < batch.getRowCount(); ++row) {
+      long wayKey = batch.getWayKey(row);
+      long wayKeyRowCount = this.wayKeyRowCounts.get(wayKey, 0);
+      this.wayKeyRowCounts.put(wayKey, wayKeyRowCount + 1);
+      long syncKey = Hashing.fnv1a64(wayKey, wayKeyRowCount);
+
+      long existingHash = this.existingRows.get(syncKey, 0);
+      boolean exists = this.existingRows.remove(syncKey);
+
+      if (exists && existingHash == getRowHash(batch.getContentHash(row), batch.getRelId(row))) {
+        ++this.unchangedCount;
+      } else {
+        // the row's trailing newline is moved behind the sync_key column
+        this.changedRows.append(batch.getRows(), batch.getRowStart(row), batch.getRowEnd(row) - 1);
+        this.changedRows.append('\t').append(syncKey).append('\n');
+        ++changedCount;
+      }
+    }
+
+    if (changedCount == 0) return;
+
+    copyWriter.copyText(String.format("COPY %s (%s, sync_key) FROM STDIN", this.deltaTableName, this.copyColumns), this.changedRows);
+
+    this.postgisDb.execute(String.format("INSERT INTO %s (%s, sync_key) SELECT %s, sync_key FROM %s ON CONFLICT (sync_key) DO UPDATE SET %s",
+        this.qualifiedTableName,
+        this.copyColumns,
+        this.copyColumns,
+        this.deltaTableName,
+        getUpdateAssignments()));
+    this.postgisDb.execute(String.format("TRUNCATE %s", this.deltaTableName));
+
+    this.upsertCount += changedCount;
+  }
+
+  // deletes rows whose way was not seen during this sync - returns the number of rows deleted
+  public long finish(PostgisCopyWriter copyWriter) throws Exception {
+
+    long deleteCount = 0;
+
+    // rows without sync_key predate incremental sync (or were written by a full sync) and can never be matched -
+    //  their ways have been written again by this sync
+    deleteCount += this.postgisDb.execute(String.format("DELETE FROM %s WHERE sync_key IS NULL", this.qualifiedTableName));
+
+    if (this.existingRows.size() > 0) {
+      String removedTableName = String.format("pg_temp.\"%s\"", PostgisDb.getIdentifier(this.associatedDataPropertyTableName, "removed"));
+      this.postgisDb.execute(String.format("CREATE TEMP TABLE IF NOT EXISTS %s (sync_key bigint)", removedTableName));
+
+      StringBuilder removedSyncKeys = new StringBuilder();
+      this.existingRows.forEach((syncKey, rowHash) -> removedSyncKeys.append(syncKey).append('\n'));
+      copyWriter.copyText(String.format("COPY %s (sync_key) FROM STDIN", removedTableName), removedSyncKeys);
+
+      deleteCount += this.postgisDb.execute(String.format("DELETE FROM %s t USING %s r WHERE t.sync_key = r.sync_key",
+          this.qualifiedTableName, removedTableName));
+      this.postgisDb.execute(String.format("DROP TABLE %s", removedTableName));
+    }
+    this.postgisDb.execute(String.format("DROP TABLE IF EXISTS %s", this.deltaTableName));
+
+    System.out.println(String.format("incremental sync of %s: %s unchanged, %s upserted, %s deleted",
+        this.associatedDataPropertyTableName, this.unchangedCount, this.upsertCount, deleteCount));
+
+    return deleteCount;
+  }
+
+  public long getUpsertCount() {
+    return this.upsertCount;
+  }
+
+  private void loadExistingRows() throws SQLException {
+
+    Connection conn = this.postgisDb.getConnection();
+    boolean autoCommit = conn.getAutoCommit();
+
+    // the driver only streams results with a fetch size when outside autocommit
+    conn.setAutoCommit(false);
+    try (Statement st = conn.createStatement()) {
+      st.setFetchSize(STATE_FETCH_SIZE);
+      ResultSet rs = st.executeQuery(String.format("SELECT sync_key, content_hash, rel_id FROM %s WHERE sync_key IS NOT NULL", this.qualifiedTableName));
+      while (rs.next()) {
+        this.existingRows.put(rs.getLong(1), getRowHash(rs.getLong(2), rs.getLong(3)));
+      }
+      rs.close();
+    } finally {
+      conn.commit();
+      conn.setAutoCommit(autoCommit);
+    }
+
+    System.out.println(String.format("incremental sync of %s: %s existing rows", this.associatedDataPropertyTableName, this.existingRows.size()));
+  }
+
+  private static long getRowHash(long contentHash, long relId) {
+    return Hashing.fnv1a64(contentHash, relId);
+  }
+
+  private String getUpdateAssignments() {
+    StringBuilder assignments = new StringBuilder();
+    for (String column : this.copyColumns.split(",")) {
+      if (assignments.length() > 0) assignments.append(", ");
+      assignments.append(column.trim()).append(" = EXCLUDED.").append(column.trim());
+    }
+    return assignments.toString();
+  }
+
+}
@@ -0,0 +1,280 @@
+package me.callsen.taylor.osm2graph_geoserver.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.lib.Hashing;
+import me.callsen.taylor.osm2graph_geoserver.lib.LongLongHashMap;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// optional stage merging relationships of the same physical way (e.g. both directions of a two-way street,
+//  which share osm_id and way geometry) into a single row. A first pass over the graph counts the
+//  relationships per way key - osm_id and an FNV-1a hash of the way - in a primitive LongLongHashMap. While
+//  loading, relationships of ways counted once pass straight through. Of the others only the relationship id
+//  is kept, in primitive maps - the directions of a street are read when their start nodes' relationships
+//  are, which can be far apart. Once a way's last relationship is read its earlier relationships are read
+//  again by id, and all are handed on as one relationship carrying the union of their associatedData
+//  properties - each property's json arrays concatenated in relationship id order, and the relationship ids
+//  in merged_rel_ids. Other properties and the row's rel_id come from the lowest relationship id.
+public class WayDeduplication {
+
+  // relationshipData property listing the relationships merged into a row
+  public static final String MERGED_REL_IDS_PROPERTY = "merged_rel_ids";
+
+  // ways of relationships left waiting once the graph has been read are read back this many at a time
+  private static final int DRAIN_BATCH_SIZE = 1000;
+
+  private static final long NO_REL_ID = -1;
+
+  private GraphRelationshipReader relationshipReader;
+
+  // way key -> number of relationships holding the way - only read once counted, so lookups need no lock
+  private LongLongHashMap wayCounts = new LongLongHashMap(1 << 20);
+
+  // way key -> id of the last relationship read of a way waiting for relationships, and relationship id ->
+  //  id of the relationship of its way read before it - a chain of the ids read so far per waiting way
+  private LongLongHashMap pendingLastRelIds = new LongLongHashMap();
+
+  private LongLongHashMap previousRelIds = new LongLongHashMap();
+
+  private AtomicLong relationshipsMerged = new AtomicLong();
+
+  public WayDeduplication(GraphRelationshipReader relationshipReader) {
+    this.relationshipReader = relationshipReader;
+  }
+
+  // first pass - counts the relationships of every way, reading shardCount shards concurrently
+  public void countWays(int shardCount) throws Exception {
+
+    long startTime = System.currentTimeMillis();
+    long relationshipCount = this.relationshipReader.readAssociatedDataRelationships(shardCount, (shard, pageNumber, relationships) -> {
+      long[] wayKeys = new long[relationships.size()];
+      for (int i = 0; i < wayKeys.length; ++i) {
+        wayKeys[i] = getWayKey(relationships.get(i));
+      }
+      synchronized (this.wayCounts) {
+        for (long wayKey : wayKeys) {
+          this.wayCounts.put(wayKey, this.wayCounts.get(wayKey, 0) + 1);
+        }
+      }
+    });
+
+    System.out.println(String.format("counted %s ways among %s relationships in %s ms - %s relationships share their way",
+        this.wayCounts.size(), relationshipCount, System.currentTimeMillis() - startTime, relationshipCount - this.wayCounts.size()));
+  }
+
+  // relationships of the page to write - ways counted once as read, plus any way whose last relationship is
+  //  on this page merged into one relationship. Called concurrently by shard readers.
+  public List<Relationship> deduplicate(List<Relationship> relationships) throws Exception {
+
+    List<Relationship> deduplicated = new ArrayList<>(relationships.size());
+
+    // last relationship of each way completed by the page, and the ids of the way's relationships read before
+    List<Relationship> completedRelationships = new ArrayList<>();
+    List<long[]> completedRelIds = new ArrayList<>();
+
+    for (Relationship relationship : relationships) {
+      long wayKey = getWayKey(relationship);
+      long wayCount = this.wayCounts.get(wayKey, 0);
+      if (wayCount <= 1) {
+        deduplicated.add(relationship);
+        continue;
+      }
+
+      synchronized (this) {
+        long[] readRelIds = getPendingRelIds(wayKey);
+        if (readRelIds.length + 1 < wayCount) {
+          long lastRelId = this.pendingLastRelIds.get(wayKey, NO_REL_ID);
+          if (lastRelId != NO_REL_ID) {
+            this.previousRelIds.put(relationship.getId(), lastRelId);
+          }
+          this.pendingLastRelIds.put(wayKey, relationship.getId());
+          continue;
+        }
+
+        removePending(wayKey, readRelIds);
+        completedRelationships.add(relationship);
+        completedRelIds.add(readRelIds);
+      }
+    }
+
+    if (!completedRelationships.isEmpty()) {
+      readWays(completedRelationships, completedRelIds, deduplicated);
+    }
+    return deduplicated;
+  }
+
+  // ways still waiting for relationships once the graph has been read (e.g. relationships added since the
+  //  first pass) - written with the relationships read
+  public List<Relationship> drainPending() throws Exception {
+
+    List<long[]> pendingRelIds = new ArrayList<>();
+    synchronized (this) {
+      this.pendingLastRelIds.forEach((wayKey, lastRelId) -> pendingRelIds.add(getPendingRelIds(wayKey)));
+      this.pendingLastRelIds = new LongLongHashMap();
+      this.previousRelIds = new LongLongHashMap();
+    }
+
+    List<Relationship> pending = new ArrayList<>();
+    for (int i = 0; i < pendingRelIds.size(); i += DRAIN_BATCH_SIZE) {
+      readWays(null, pendingRelIds.subList(i, Math.min(i + DRAIN_BATCH_SIZE, pendingRelIds.size())), pending);
+    }
+    if (!pendingRelIds.isEmpty()) {
+      System.out.println(String.format("%s ways were still waiting for relationships - written with those read", pendingRelIds.size()));
+    }
+
+    this.relationshipReader.getMetrics().increment("dedup.relationships_merged", this.relationshipsMerged.get());
+    System.out.println(String.format("merged %s relationships into the rows of their ways", this.relationshipsMerged.get()));
+    return pending;
+  }
+
+  // osm_id and way geometry hash
+  static long getWayKey(Relationship relationship) {
+    long hash = Hashing.fnv1a64(Hashing.FNV_OFFSET_BASIS, PostgisDb.getOsmId(relationship));
+    String way = (String) relationship.getProperty("way", "");
+    return Hashing.fnv1a64(hash, way, 0, way.length());
+  }
+
+  // ids of the way's relationships read so far, latest first - empty if none is waiting
+  private long[] getPendingRelIds(long wayKey) {
+    int relIdCount = 0;
+    for (long relId = this.pendingLastRelIds.get(wayKey, NO_REL_ID); relId != NO_REL_ID; relId = this.previousRelIds.get(relId, NO_REL_ID)) {
+      ++relIdCount;
+    }
+
+    long[] relIds = new long[relIdCount];
+    long relId = this.pendingLastRelIds.get(wayKey, NO_REL_ID);
+    for (int i = 0; i < relIdCount; ++i) {
+      relIds[i] = relId;
+      relId = this.previousRelIds.get(relId, NO_REL_ID);
+    }
+    return relIds;
+  }
+
+  private void removePending(long wayKey, long[] relIds) {
+    this.pendingLastRelIds.remove(wayKey);
+    for (long relId : relIds) {
+      this.previousRelIds.remove(relId);
+    }
+  }
+
+  // reads the earlier relationships of the ways by id in one query and adds each way's merged relationship to
+  //  ways - lastRelationships holds the relationship completing each way, or is null if none did
+  private void readWays(List<Relationship> lastRelationships, List<long[]> earlierRelIds, List<Relationship> ways) throws Exception {
+
+    int relIdCount = 0;
+    for (long[] wayRelIds : earlierRelIds) {
+      relIdCount += wayRelIds.length;
+    }
+    long[] relIds = new long[relIdCount];
+    int relIdIndex = 0;
+    for (long[] wayRelIds : earlierRelIds) {
+      for (long relId : wayRelIds) {
+        relIds[relIdIndex++] = relId;
+      }
+    }
+
+    // relationships read are only valid within the handler - merged relationships are detached copies
+    this.relationshipReader.readRelationshipsById(relIds, (shard, pageNumber, earlierRelationships) -> {
+      Map<Long, Relationship> relationshipsById = new HashMap<>();
+      for (Relationship relationship : earlierRelationships) {
+        relationshipsById.put(relationship.getId(), relationship);
+      }
+
+      for (int i = 0; i < earlierRelIds.size(); ++i) {
+        List<Relationship> wayRelationships = new ArrayList<>();
+        for (long relId : earlierRelIds.get(i)) {
+          // relationships removed from the graph since they were read are left out
+          Relationship relationship = relationshipsById.get(relId);
+          if (relationship != null) wayRelationships.add(relationship);
+        }
+        if (lastRelationships != null) {
+          wayRelationships.add(lastRelationships.get(i));
+        }
+        ways.addAll(mergeWay(wayRelationships));
+      }
+    });
+  }
+
+  // the relationships merged in id order - into one relationship per way, as a hash collision of different
+  //  ways shares a way key
+  private List<BoltRelationship> mergeWay(List<Relationship> wayRelationships) {
+
+    wayRelationships.sort(Comparator.comparingLong(Relationship::getId));
+
+    List<BoltRelationship> merged = new ArrayList<>();
+    List<List<Long>> mergedRelIds = new ArrayList<>();
+    for (Relationship relationship : wayRelationships) {
+      int way = 0;
+      while (way < merged.size() && !isSameWay(merged.get(way), relationship)) {
+        ++way;
+      }
+
+      if (way == merged.size()) {
+        merged.add(new BoltRelationship(relationship));
+        mergedRelIds.add(new ArrayList<>());
+      } else {
+        merge(merged.get(way), relationship);
+        this.relationshipsMerged.incrementAndGet();
+      }
+      mergedRelIds.get(way).add(relationship.getId());
+    }
+
+    for (int way = 0; way < merged.size(); ++way) {
+      if (mergedRelIds.get(way).size() > 1) {
+        merged.get(way).putProperty(MERGED_REL_IDS_PROPERTY, mergedRelIds.get(way).stream().mapToLong(Long::longValue).toArray());
+      }
+    }
+    return merged;
+  }
+
+  private static boolean isSameWay(Relationship first, Relationship second) {
+    return PostgisDb.getOsmId(first) == PostgisDb.getOsmId(second) &&
+        first.getProperty("way", "").equals(second.getProperty("way", ""));
+  }
+
+  // adds other's associatedData properties to merged
+  private static void merge(BoltRelationship merged, Relationship other) {
+    Set<String> associatedDataProperties = new LinkedHashSet<>();
+    for (String associatedDataProperty : (String[]) merged.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+      associatedDataProperties.add(associatedDataProperty);
+    }
+
+    for (String associatedDataProperty : (String[]) other.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)) {
+      associatedDataProperties.add(associatedDataProperty);
+      if (!other.hasProperty(associatedDataProperty)) continue;
+
+      String otherJson = (String) other.getProperty(associatedDataProperty);
+      merged.putProperty(associatedDataProperty, merged.hasProperty(associatedDataProperty)
+          ? concatJsonArrays((String) merged.getProperty(associatedDataProperty), otherJson) : otherJson);
+    }
+    merged.putProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA, associatedDataProperties.toArray(new String[0]));
+  }
+
+  // entries of both arrays in one array, without parsing them - a value that is not an array is taken as
+  //  a single entry
+  static String concatJsonArrays(String first, String second) {
+    String firstEntries = getArrayEntries(first);
+    String secondEntries = getArrayEntries(second);
+    if (firstEntries.isEmpty()) return "[" + secondEntries + "]";
+    if (secondEntries.isEmpty()) return "[" + firstEntries + "]";
+    return "[" + firstEntries + "," + secondEntries + "]";
+  }
+
+  private static String getArrayEntries(String json) {
+    String trimmed = json.trim();
+    if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+      return trimmed.substring(1, trimmed.length() - 1).trim();
+    }
+    return trimmed;
+  }
+
+}
@@ -0,0 +1,37 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.io.Reader;
+
+// reads directly from a StringBuilder (or any CharSequence) without copying it into a String first
+public class CharSequenceReader extends Reader {
+
+  private CharSequence chars;
+
+  private int position = 0;
+
+  public CharSequenceReader(CharSequence chars) {
+    this.chars = chars;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) {
+    if (this.position >= this.chars.length()) return -1;
+
+    int count = Math.min(len, this.chars.length() - this.position);
+    if (this.chars instanceof StringBuilder) {
+      ((StringBuilder) this.chars).getChars(this.position, this.position + count, cbuf, off);
+    } else {
+      for (int i = 0; i < count; ++i) {
+        cbuf[off + i] = this.chars.charAt(this.position + i);
+      }
+    }
+    this.position += count;
+    return count;
+  }
+
+  @Override
+  public void close() {
+    // nothing to release
+  }
+
+}
@@ -0,0 +1,296 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// minimal FlatBuffers encoder for small fixed schemas (FlatGeobuf headers and features) without generated
+//  code or the flatbuffers runtime. Tables are described as a tree of fields and written front to back:
+//  each table's vtable, then the table, then the objects it references - so every offset points forward as
+//  the format requires. Scalars are aligned to their size from the start of the buffer. Fields equal to
+//  their schema default may simply be left out. Not thread safe - the output buffer is reused.
+public class FlatBufferWriter {
+
+  private static final int KIND_SCALAR = 0;
+
+  private static final int KIND_STRING = 1;
+
+  private static final int KIND_DOUBLES = 2;
+
+  private static final int KIND_UINTS = 3;
+
+  private static final int KIND_BYTES = 4;
+
+  private static final int KIND_TABLE = 5;
+
+  private static final int KIND_TABLES = 6;
+
+  // table being built - fields are added by schema field id
+  public static class Table {
+
+    private List<Field> fields = new ArrayList<>();
+
+    public Table addByte(int id, int value) {
+      return addScalar(id, 1, value);
+    }
+
+    public Table addBool(int id, boolean value) {
+      return addScalar(id, 1, value ? 1 : 0);
+    }
+
+    public Table addUShort(int id, int value) {
+      return addScalar(id, 2, value);
+    }
+
+    public Table addInt(int id, int value) {
+      return addScalar(id, 4, value);
+    }
+
+    public Table addULong(int id, long value) {
+      return addScalar(id, 8, value);
+    }
+
+    public Table addString(int id, String value) {
+      return addReference(id, KIND_STRING, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Table addDoubles(int id, double[] values) {
+      return addReference(id, KIND_DOUBLES, values);
+    }
+
+    public Table addUInts(int id, int[] values) {
+      return addReference(id, KIND_UINTS, values);
+    }
+
+    public Table addBytes(int id, byte[] values) {
+      return addReference(id, KIND_BYTES, values);
+    }
+
+    public Table addTable(int id, Table table) {
+      return addReference(id, KIND_TABLE, table);
+    }
+
+    public Table addTables(int id, List<Table> tables) {
+      return addReference(id, KIND_TABLES, tables);
+    }
+
+    private Table addScalar(int id, int size, long value) {
+      Field field = new Field(id, KIND_SCALAR, size);
+      field.scalar = value;
+      this.fields.add(field);
+      return this;
+    }
+
+    private Table addReference(int id, int kind, Object reference) {
+      Field field = new Field(id, kind, 4);
+      field.reference = reference;
+      this.fields.add(field);
+      return this;
+    }
+
+  }
+
+  private static class Field {
+
+    private final int id;
+
+    private final int kind;
+
+    // inline size in bytes - references are 4 byte offsets
+    private final int size;
+
+    private long scalar;
+
+    private Object reference;
+
+    // position within the table
+    private int tableOffset;
+
+    private Field(int id, int kind, int size) {
+      this.id = id;
+      this.kind = kind;
+      this.size = size;
+    }
+
+  }
+
+  private byte[] buffer = new byte[1024];
+
+  private int position;
+
+  // encodes root as a complete flatbuffer - returns the number of bytes written, read with getBuffer()
+  public int write(Table root) {
+    this.position = 0;
+    putInt(0);
+    int rootPosition = writeTable(root);
+    setInt(0, rootPosition);
+    return this.position;
+  }
+
+  // valid up to the length returned by write
+  public byte[] getBuffer() {
+    return this.buffer;
+  }
+
+  private int writeTable(Table table) {
+
+    // inline layout - soffset to the vtable first, then fields largest first to keep padding down
+    List<Field> fields = new ArrayList<>(table.fields);
+    fields.sort(Comparator.comparingInt((Field field) -> field.size).reversed());
+    int inlineSize = 4;
+    int maxId = -1;
+    for (Field field : fields) {
+      inlineSize = align(inlineSize, field.size);
+      field.tableOffset = inlineSize;
+      inlineSize += field.size;
+      maxId = Math.max(maxId, field.id);
+    }
+
+    int[] fieldOffsets = new int[maxId + 1];
+    for (Field field : fields) {
+      fieldOffsets[field.id] = field.tableOffset;
+    }
+
+    // vtable - its own size, the table's inline size, then each field's position in the table (0 if absent)
+    pad(2);
+    int vtablePosition = this.position;
+    putShort(4 + 2 * fieldOffsets.length);
+    putShort(inlineSize);
+    for (int fieldOffset : fieldOffsets) {
+      putShort(fieldOffset);
+    }
+
+    // table start is 8 byte aligned, so fields aligned within the table are aligned in the buffer
+    pad(8);
+    int tablePosition = this.position;
+    ensureCapacity(inlineSize);
+    Arrays.fill(this.buffer, tablePosition, tablePosition + inlineSize, (byte) 0);
+    setInt(tablePosition, tablePosition - vtablePosition);
+    for (Field field : fields) {
+      if (field.kind == KIND_SCALAR) {
+        setScalar(tablePosition + field.tableOffset, field.size, field.scalar);
+      }
+    }
+    this.position = tablePosition + inlineSize;
+
+    // referenced objects follow the table - offsets are relative to the field holding them
+    for (Field field : fields) {
+      if (field.kind != KIND_SCALAR) {
+        int fieldPosition = tablePosition + field.tableOffset;
+        setInt(fieldPosition, writeReference(field) - fieldPosition);
+      }
+    }
+
+    return tablePosition;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int writeReference(Field field) {
+    int start;
+    switch (field.kind) {
+      case KIND_STRING:
+      case KIND_BYTES:
+        byte[] bytes = (byte[]) field.reference;
+        pad(4);
+        start = this.position;
+        putInt(bytes.length);
+        ensureCapacity(bytes.length + 1);
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+        if (field.kind == KIND_STRING) {
+          // strings are null terminated
+          this.buffer[this.position++] = 0;
+        }
+        return start;
+      case KIND_DOUBLES:
+        double[] doubles = (double[]) field.reference;
+        // elements follow the 4 byte length and must be 8 byte aligned
+        pad(4);
+        if (this.position % 8 == 0) putInt(0);
+        start = this.position;
+        putInt(doubles.length);
+        for (double value : doubles) {
+          putLong(Double.doubleToRawLongBits(value));
+        }
+        return start;
+      case KIND_UINTS:
+        int[] ints = (int[]) field.reference;
+        pad(4);
+        start = this.position;
+        putInt(ints.length);
+        for (int value : ints) {
+          putInt(value);
+        }
+        return start;
+      case KIND_TABLE:
+        return writeTable((Table) field.reference);
+      case KIND_TABLES:
+        List<Table> tables = (List<Table>) field.reference;
+        pad(4);
+        start = this.position;
+        putInt(tables.size());
+        int slotsPosition = this.position;
+        for (int i = 0; i < tables.size(); ++i) {
+          putInt(0);
+        }
+        for (int i = 0; i < tables.size(); ++i) {
+          int slotPosition = slotsPosition + i * 4;
+          setInt(slotPosition, writeTable(tables.get(i)) - slotPosition);
+        }
+        return start;
+      default:
+        throw new IllegalStateException("unknown field kind " + field.kind);
+    }
+  }
+
+  private static int align(int offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+  // zero fills up to the next multiple of alignment
+  private void pad(int alignment) {
+    int padding = align(this.position, alignment) - this.position;
+    ensureCapacity(padding);
+    for (int i = 0; i < padding; ++i) {
+      this.buffer[this.position++] = 0;
+    }
+  }
+
+  private void putShort(int value) {
+    ensureCapacity(2);
+    setScalar(this.position, 2, value);
+    this.position += 2;
+  }
+
+  private void putInt(int value) {
+    ensureCapacity(4);
+    setScalar(this.position, 4, value);
+    this.position += 4;
+  }
+
+  private void putLong(long value) {
+    ensureCapacity(8);
+    setScalar(this.position, 8, value);
+    this.position += 8;
+  }
+
+  private void setInt(int offset, int value) {
+    setScalar(offset, 4, value);
+  }
+
+  // little endian
+  private void setScalar(int offset, int size, long value) {
+    for (int i = 0; i < size; ++i) {
+      this.buffer[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private void ensureCapacity(int additional) {
+    if (this.position + additional > this.buffer.length) {
+      this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + additional));
+    }
+  }
+
+}
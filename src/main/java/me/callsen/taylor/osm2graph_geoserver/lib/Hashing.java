@@ -0,0 +1,36 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+// fast non-cryptographic 64 bit hashing (FNV-1a) - used to detect changed rows and key geometries
+public class Hashing {
+
+  public static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  public static long fnv1a64(CharSequence chars) {
+    return fnv1a64(FNV_OFFSET_BASIS, chars, 0, chars.length());
+  }
+
+  // hash chars [start, end) - pass a previous hash as seed to combine values
+  public static long fnv1a64(long seed, CharSequence chars, int start, int end) {
+    long hash = seed;
+    for (int i = start; i < end; ++i) {
+      char c = chars.charAt(i);
+      hash ^= c & 0xFF;
+      hash *= FNV_PRIME;
+      hash ^= c >>> 8;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  public static long fnv1a64(long seed, long value) {
+    long hash = seed;
+    for (int i = 0; i < 8; ++i) {
+      hash ^= (value >>> (8 * i)) & 0xFF;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+}
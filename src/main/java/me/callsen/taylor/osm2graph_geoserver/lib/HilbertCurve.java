@@ -0,0 +1,46 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+// Hilbert curve index of a point - points close to each other along the curve are close in space, so rows
+//  ordered by their index keep nearby features on nearby disk pages. Longitude/latitude are mapped onto a
+//  2^31 x 2^31 grid spanning the whole world (cells of ~2 cm), fine enough to order features within a city
+//  without knowing the data's extent up front.
+public class HilbertCurve {
+
+  public static final int WORLD_ORDER = 31;
+
+  private static final long WORLD_CELLS = 1L << WORLD_ORDER;
+
+  // index of a longitude/latitude (EPSG:4326) point
+  public static long index(double longitude, double latitude) {
+    return index(toCell(longitude, -180, 360), toCell(latitude, -90, 180), WORLD_ORDER);
+  }
+
+  // index of cell (x, y) on a 2^order x 2^order grid (order <= 31) - result is in [0, 4^order)
+  public static long index(long x, long y, int order) {
+    long n = 1L << order;
+    long d = 0;
+    for (long s = n >>> 1; s > 0; s >>>= 1) {
+      int rx = (x & s) != 0 ? 1 : 0;
+      int ry = (y & s) != 0 ? 1 : 0;
+      d += s * s * ((3 * rx) ^ ry);
+
+      // rotate quadrant so the sub-curve is in standard orientation
+      if (ry == 0) {
+        if (rx == 1) {
+          x = n - 1 - x;
+          y = n - 1 - y;
+        }
+        long t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return d;
+  }
+
+  private static long toCell(double value, double min, double range) {
+    long cell = (long) ((value - min) / range * WORLD_CELLS);
+    return Math.max(0, Math.min(WORLD_CELLS - 1, cell));
+  }
+
+}
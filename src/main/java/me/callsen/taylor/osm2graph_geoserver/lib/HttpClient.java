@@ -1,26 +1,82 @@
 package me.callsen.taylor.osm2graph_geoserver.lib;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 
 // based on https://reflectoring.io/comparison-of-java-http-clients/
-public class HttpClient {
+// - a single pooled client is shared by all requests, so connections to GeoServer are kept alive and reused.
+//  Thread safe - requests may be issued concurrently up to maxConnections at a time.
+public class HttpClient implements Closeable {
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+  private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(10);
+
+  // GeoServer may query the store while creating a feature type, so allow for slow responses
+  private static final Timeout RESPONSE_TIMEOUT = Timeout.ofMinutes(5);
+
+  // time to wait for a free pooled connection
+  private static final Timeout CONNECTION_REQUEST_TIMEOUT = Timeout.ofMinutes(5);
+
+  private static final TimeValue IDLE_CONNECTION_TIMEOUT = TimeValue.ofSeconds(30);
+
+  private CloseableHttpClient httpClient;
+
+  // metrics of the run requests are made for (see LoadRun.getMetrics)
+  private Metrics metrics = new Metrics();
 
   public HttpClient() {
-    
+    this(DEFAULT_MAX_CONNECTIONS);
+  }
+
+  public HttpClient(int maxConnections) {
+
+    ConnectionConfig connectionConfig = ConnectionConfig.custom()
+        .setConnectTimeout(CONNECT_TIMEOUT)
+        .setSocketTimeout(RESPONSE_TIMEOUT)
+        .build();
+
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT)
+        .setResponseTimeout(RESPONSE_TIMEOUT)
+        .build();
+
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+            .setMaxConnTotal(maxConnections)
+            .setMaxConnPerRoute(maxConnections)
+            .setDefaultConnectionConfig(connectionConfig)
+            .build())
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+        .evictIdleConnections(IDLE_CONNECTION_TIMEOUT)
+        .build();
+  }
+
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
   }
 
   public String invokePost(String url, String authHeader, String postBody, String contentType) throws IOException, HttpException {
-   
+
     StringEntity stringEntity = new StringEntity(postBody);
     HttpPost httpPost = new HttpPost(url);
 
@@ -28,22 +84,60 @@ public class HttpClient {
     httpPost.setHeader("Content-type", contentType);
     httpPost.setHeader("Authorization", authHeader);
 
-    CloseableHttpClient httpClient = HttpClients.createDefault();
-    
-    CloseableHttpResponse response = httpClient.execute(httpPost);
+    return execute(httpPost, "geoserver.post");
+  }
 
-    String result = "";
-    HttpEntity entity = response.getEntity();
-    if (entity != null) {
-      result = EntityUtils.toString(entity);
-    }
+  public String invokePut(String url, String authHeader, String putBody, String contentType) throws IOException, HttpException {
+
+    HttpPut httpPut = new HttpPut(url);
+
+    httpPut.setEntity(new StringEntity(putBody));
+    httpPut.setHeader("Content-type", contentType);
+    httpPut.setHeader("Authorization", authHeader);
+
+    return execute(httpPut, "geoserver.put");
+  }
+
+  public String invokeGet(String url, String authHeader) throws IOException, HttpException {
+
+    HttpGet httpGet = new HttpGet(url);
+    httpGet.setHeader("Authorization", authHeader);
 
-    if (response.getCode() < 200 || response.getCode() > 299) {
-      // add response body into exception, if set
-      throw new HttpResponseException(response.getCode(), result);
+    return execute(httpGet, "geoserver.get");
+  }
+
+  // returns the response body - non 2xx responses raise an HttpResponseException holding the body
+  private String execute(HttpUriRequestBase request, String timerName) throws IOException {
+
+    // response handler consumes the entity and releases the connection back to the pool
+    long startTime = System.nanoTime();
+    try {
+      return this.httpClient.execute(request, response -> {
+        String result = "";
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+          result = EntityUtils.toString(entity);
+        }
+
+        if (response.getCode() < 200 || response.getCode() > 299) {
+          // add response body into exception, if set
+          throw new HttpResponseException(response.getCode(), result);
+        }
+
+        return result;
+      });
+    } catch (IOException e) {
+      this.metrics.increment("geoserver.errors", 1);
+      throw e;
+    } finally {
+      this.metrics.recordTime(timerName, startTime);
     }
+  }
 
-    return result;
+  // closes pooled connections
+  @Override
+  public void close() throws IOException {
+    this.httpClient.close();
   }
-  
+
 }
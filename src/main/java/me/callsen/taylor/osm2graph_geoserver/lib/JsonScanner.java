@@ -0,0 +1,296 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+// scans JSON text in place, without building JSONObject/JSONArray trees or allocating - checks a document
+//  against the JSON grammar as PostgreSQL's json and jsonb input functions do, and walks the members of the
+//  first object of an array. Value positions are char offsets into the text. Not thread safe.
+public class JsonScanner {
+
+  // deeper documents are taken as invalid rather than scanned on an ever growing stack
+  public static final int MAX_DEPTH = 1000;
+
+  private String json;
+
+  // jsonb input additionally rejects \u0000 and unpaired surrogate escapes
+  private boolean jsonb;
+
+  // next member of the object walked by nextMember, -1 once it has been read to its end
+  private int memberPosition = -1;
+
+  private boolean firstMember;
+
+  // member last read by nextMember - key offsets exclude the quotes
+  private int keyStart;
+
+  private int keyEnd;
+
+  private int valueStart;
+
+  private int valueEnd;
+
+  // keys with escapes are decoded to be compared
+  private StringBuilder decodedKey = new StringBuilder();
+
+  // whether json is a single JSON value, optionally surrounded by whitespace, that PostgreSQL accepts as json
+  //  (or jsonb)
+  public boolean isValid(String json, boolean jsonb) {
+    this.json = json;
+    this.jsonb = jsonb;
+    int end = scanValue(skipWhitespace(0), 0);
+    return end >= 0 && skipWhitespace(end) == json.length();
+  }
+
+  // starts walking the members of the first entry of a JSON array (see nextMember) - false if json is not an
+  //  array whose first entry is an object
+  public boolean startFirstArrayObject(String json) {
+    this.json = json;
+    this.jsonb = false;
+    this.memberPosition = -1;
+
+    int i = skipWhitespace(0);
+    if (peek(i) != '[') return false;
+    i = skipWhitespace(i + 1);
+    if (peek(i) != '{') return false;
+
+    this.memberPosition = skipWhitespace(i + 1);
+    this.firstMember = true;
+    return true;
+  }
+
+  // reads the next member of the object - false at its end, or where the object is not valid
+  public boolean nextMember() {
+    int i = this.memberPosition;
+    if (i < 0) return false;
+
+    if (this.firstMember) {
+      this.firstMember = false;
+      if (peek(i) == '}') return endMembers();
+    } else {
+      if (peek(i) != ',') return endMembers();
+      i = skipWhitespace(i + 1);
+    }
+
+    if (peek(i) != '"') return endMembers();
+    int keyEnd = scanString(i);
+    if (keyEnd < 0) return endMembers();
+    this.keyStart = i + 1;
+    this.keyEnd = keyEnd - 1;
+
+    i = skipWhitespace(keyEnd);
+    if (peek(i) != ':') return endMembers();
+    this.valueStart = skipWhitespace(i + 1);
+    this.valueEnd = scanValue(this.valueStart, 1);
+    if (this.valueEnd < 0) return endMembers();
+
+    this.memberPosition = skipWhitespace(this.valueEnd);
+    return true;
+  }
+
+  private boolean endMembers() {
+    this.memberPosition = -1;
+    return false;
+  }
+
+  // whether the key of the member last read is name
+  public boolean isKey(String name) {
+    for (int i = this.keyStart; i < this.keyEnd; ++i) {
+      if (this.json.charAt(i) == '\\') {
+        this.decodedKey.setLength(0);
+        appendDecodedString(this.decodedKey, this.keyStart - 1);
+        return name.contentEquals(this.decodedKey);
+      }
+    }
+    return this.keyEnd - this.keyStart == name.length() && this.json.startsWith(name, this.keyStart);
+  }
+
+  // value of the member last read - starts at getValueStart and ends before getValueEnd
+  public int getValueStart() {
+    return this.valueStart;
+  }
+
+  public int getValueEnd() {
+    return this.valueEnd;
+  }
+
+  // appends the content of the string value starting at position (its opening quote), escapes decoded - the
+  //  string must have been scanned
+  public void appendDecodedString(StringBuilder buffer, int position) {
+    int i = position + 1;
+    while (true) {
+      char c = this.json.charAt(i);
+      if (c == '"') return;
+      if (c != '\\') {
+        buffer.append(c);
+        ++i;
+        continue;
+      }
+
+      char escaped = this.json.charAt(i + 1);
+      switch (escaped) {
+        case 'b': buffer.append('\b'); break;
+        case 'f': buffer.append('\f'); break;
+        case 'n': buffer.append('\n'); break;
+        case 'r': buffer.append('\r'); break;
+        case 't': buffer.append('\t'); break;
+        case 'u':
+          buffer.append((char) getEscapedCodeUnit(i));
+          i += 4;
+          break;
+        default:
+          buffer.append(escaped);
+      }
+      i += 2;
+    }
+  }
+
+  // offset past the value starting at position, -1 if there is no valid value
+  private int scanValue(int position, int depth) {
+    switch (peek(position)) {
+      case '{':
+        return scanContainer(position, depth, '}');
+      case '[':
+        return scanContainer(position, depth, ']');
+      case '"':
+        return scanString(position);
+      case 't':
+        return scanLiteral(position, "true");
+      case 'f':
+        return scanLiteral(position, "false");
+      case 'n':
+        return scanLiteral(position, "null");
+      default:
+        return scanNumber(position);
+    }
+  }
+
+  // object or array - members of objects are a string key, a colon and a value
+  private int scanContainer(int position, int depth, char close) {
+    if (depth >= MAX_DEPTH) return -1;
+
+    int i = skipWhitespace(position + 1);
+    if (peek(i) == close) return i + 1;
+
+    while (true) {
+      if (close == '}') {
+        if (peek(i) != '"') return -1;
+        i = scanString(i);
+        if (i < 0) return -1;
+        i = skipWhitespace(i);
+        if (peek(i) != ':') return -1;
+        i = skipWhitespace(i + 1);
+      }
+
+      i = scanValue(i, depth + 1);
+      if (i < 0) return -1;
+      i = skipWhitespace(i);
+
+      char c = peek(i);
+      if (c == close) return i + 1;
+      if (c != ',') return -1;
+      i = skipWhitespace(i + 1);
+    }
+  }
+
+  private int scanString(int position) {
+    int i = position + 1;
+    while (true) {
+      char c = peek(i);
+      if (c == '"') return i + 1;
+      // control characters must be escaped - also ends the scan at the end of the text
+      if (c < 0x20) return -1;
+      if (c != '\\') {
+        ++i;
+        continue;
+      }
+
+      switch (peek(i + 1)) {
+        case '"': case '\\': case '/': case 'b': case 'f': case 'n': case 'r': case 't':
+          i += 2;
+          break;
+        case 'u':
+          int codeUnit = getEscapedCodeUnit(i);
+          if (codeUnit < 0) return -1;
+          i += 6;
+          if (this.jsonb) {
+            if (codeUnit == 0 || Character.isLowSurrogate((char) codeUnit)) return -1;
+            if (Character.isHighSurrogate((char) codeUnit)) {
+              if (peek(i) != '\\' || peek(i + 1) != 'u') return -1;
+              int lowCodeUnit = getEscapedCodeUnit(i);
+              if (lowCodeUnit < 0 || !Character.isLowSurrogate((char) lowCodeUnit)) return -1;
+              i += 6;
+            }
+          }
+          break;
+        default:
+          return -1;
+      }
+    }
+  }
+
+  // value of the \\uXXXX escape at position, -1 if malformed
+  private int getEscapedCodeUnit(int position) {
+    int codeUnit = 0;
+    for (int i = position + 2; i < position + 6; ++i) {
+      char c = peek(i);
+      int digit = isDigit(c) ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+      if (digit < 0) return -1;
+      codeUnit = codeUnit << 4 | digit;
+    }
+    return codeUnit;
+  }
+
+  private int scanLiteral(int position, String literal) {
+    return this.json.startsWith(literal, position) ? position + literal.length() : -1;
+  }
+
+  // -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+  private int scanNumber(int position) {
+    int i = position;
+    if (peek(i) == '-') ++i;
+
+    if (peek(i) == '0') {
+      ++i;
+    } else if (isDigit(peek(i))) {
+      i = skipDigits(i);
+    } else {
+      return -1;
+    }
+
+    if (peek(i) == '.') {
+      if (!isDigit(peek(i + 1))) return -1;
+      i = skipDigits(i + 1);
+    }
+
+    if (peek(i) == 'e' || peek(i) == 'E') {
+      ++i;
+      if (peek(i) == '+' || peek(i) == '-') ++i;
+      if (!isDigit(peek(i))) return -1;
+      i = skipDigits(i);
+    }
+    return i;
+  }
+
+  private int skipDigits(int position) {
+    int i = position;
+    while (isDigit(peek(i))) ++i;
+    return i;
+  }
+
+  private int skipWhitespace(int position) {
+    int i = position;
+    while (true) {
+      char c = peek(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return i;
+      ++i;
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  // character at position - NUL past the end of the text, which is never valid where a token is expected
+  private char peek(int position) {
+    return position < this.json.length() ? this.json.charAt(position) : 0;
+  }
+
+}
@@ -0,0 +1,149 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.util.Arrays;
+
+// open addressing (linear probing) map of primitive long keys to long values - holds tens of millions of
+//  entries in two flat arrays, without the per entry objects of a HashMap<Long, Long>. Not thread safe.
+public class LongLongHashMap {
+
+  private static final float LOAD_FACTOR = 0.6f;
+
+  // slot marker - the key Long.MIN_VALUE itself is stored outside the arrays
+  private static final long EMPTY = Long.MIN_VALUE;
+
+  private long[] keys;
+
+  private long[] values;
+
+  private int size = 0;
+
+  private boolean hasEmptyKey = false;
+
+  private long emptyKeyValue;
+
+  public LongLongHashMap() {
+    this(1024);
+  }
+
+  public LongLongHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    this.keys = new long[capacity];
+    this.values = new long[capacity];
+    Arrays.fill(this.keys, EMPTY);
+  }
+
+  public int size() {
+    return this.size + (this.hasEmptyKey ? 1 : 0);
+  }
+
+  public boolean containsKey(long key) {
+    if (key == EMPTY) return this.hasEmptyKey;
+    return this.keys[slot(key)] != EMPTY;
+  }
+
+  public long get(long key, long defaultValue) {
+    if (key == EMPTY) return this.hasEmptyKey ? this.emptyKeyValue : defaultValue;
+    int slot = slot(key);
+    return this.keys[slot] != EMPTY ? this.values[slot] : defaultValue;
+  }
+
+  public void put(long key, long value) {
+    if (key == EMPTY) {
+      this.hasEmptyKey = true;
+      this.emptyKeyValue = value;
+      return;
+    }
+
+    int slot = slot(key);
+    if (this.keys[slot] == EMPTY) {
+      this.keys[slot] = key;
+      ++this.size;
+      if (this.size > this.keys.length * LOAD_FACTOR) {
+        this.values[slot] = value;
+        resize();
+        return;
+      }
+    }
+    this.values[slot] = value;
+  }
+
+  // returns true if the key was present
+  public boolean remove(long key) {
+    if (key == EMPTY) {
+      boolean removed = this.hasEmptyKey;
+      this.hasEmptyKey = false;
+      return removed;
+    }
+
+    int slot = slot(key);
+    if (this.keys[slot] == EMPTY) return false;
+
+    // backward shift deletion - move later entries of the probe sequence into the gap
+    int mask = this.keys.length - 1;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (this.keys[next] != EMPTY) {
+      int ideal = mix(this.keys[next]) & mask;
+      // entry can fill the gap if its ideal slot is not within (gap, next]
+      if (((next - ideal) & mask) >= ((next - gap) & mask)) {
+        this.keys[gap] = this.keys[next];
+        this.values[gap] = this.values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    this.keys[gap] = EMPTY;
+    --this.size;
+    return true;
+  }
+
+  public interface EntryConsumer {
+    void accept(long key, long value) throws Exception;
+  }
+
+  public void forEach(EntryConsumer consumer) throws Exception {
+    if (this.hasEmptyKey) consumer.accept(EMPTY, this.emptyKeyValue);
+    for (int i = 0; i < this.keys.length; ++i) {
+      if (this.keys[i] != EMPTY) consumer.accept(this.keys[i], this.values[i]);
+    }
+  }
+
+  // slot holding the key, or the empty slot where it would be inserted
+  private int slot(long key) {
+    int mask = this.keys.length - 1;
+    int slot = mix(key) & mask;
+    while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] oldKeys = this.keys;
+    long[] oldValues = this.values;
+
+    this.keys = new long[oldKeys.length * 2];
+    this.values = new long[oldValues.length * 2];
+    Arrays.fill(this.keys, EMPTY);
+
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        this.keys[slot] = oldKeys[i];
+        this.values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  // spread sequential ids (e.g. relationship ids) across the table - murmur3 finalizer
+  private static int mix(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+}
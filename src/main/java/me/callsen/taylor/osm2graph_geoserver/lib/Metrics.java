@@ -0,0 +1,148 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// metrics of one run - timers (latency histograms in nanoseconds), counters, value distributions and gauges,
+//  keyed by name. Each run has its own (see LoadRun), handed to the components it records for, so runs in
+//  one JVM never mix their numbers. Recording is lock free and cheap enough for per batch and per page use
+//  from any thread. Read by RunReport for progress lines and the final run report.
+public class Metrics {
+
+  private final Map<String, Histogram> timers = new ConcurrentHashMap<>();
+
+  private final Map<String, Histogram> distributions = new ConcurrentHashMap<>();
+
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  // records the time elapsed since startNanos (a System.nanoTime() value)
+  public void recordTime(String name, long startNanos) {
+    recordDuration(name, System.nanoTime() - startNanos);
+  }
+
+  public void recordDuration(String name, long durationNanos) {
+    this.timers.computeIfAbsent(name, timerName -> new Histogram()).record(durationNanos);
+  }
+
+  public void recordValue(String name, long value) {
+    this.distributions.computeIfAbsent(name, distributionName -> new Histogram()).record(value);
+  }
+
+  public void increment(String name, long delta) {
+    this.counters.computeIfAbsent(name, counterName -> new LongAdder()).add(delta);
+  }
+
+  // sampled whenever progress is reported
+  public void registerGauge(String name, LongSupplier gauge) {
+    this.gauges.put(name, gauge);
+  }
+
+  public void unregisterGauge(String name) {
+    this.gauges.remove(name);
+  }
+
+  public long getCount(String name) {
+    LongAdder counter = this.counters.get(name);
+    return counter != null ? counter.sum() : 0;
+  }
+
+  // sorted snapshots for reporting
+  public Map<String, Histogram> getTimers() {
+    return new TreeMap<>(this.timers);
+  }
+
+  public Map<String, Histogram> getDistributions() {
+    return new TreeMap<>(this.distributions);
+  }
+
+  public Map<String, Long> getCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    this.counters.forEach((name, counter) -> counts.put(name, counter.sum()));
+    return counts;
+  }
+
+  public Map<String, Long> getGaugeValues() {
+    Map<String, Long> gaugeValues = new TreeMap<>();
+    this.gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+    return gaugeValues;
+  }
+
+  // log-linear histogram of non-negative values - exact below 8, then 4 buckets per power of two (values
+  //  within ~20% of their bucket)
+  public static class Histogram {
+
+    private static final int BUCKET_COUNT = 8 + 60 * 4;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private LongAdder count = new LongAdder();
+
+    private LongAdder total = new LongAdder();
+
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+      value = Math.max(0, value);
+      this.buckets.incrementAndGet(getBucket(value));
+      this.count.increment();
+      this.total.add(value);
+      this.max.accumulate(value);
+    }
+
+    public long getCount() {
+      return this.count.sum();
+    }
+
+    public long getTotal() {
+      return this.total.sum();
+    }
+
+    public long getMax() {
+      return this.max.get();
+    }
+
+    public double getMean() {
+      long count = getCount();
+      return count > 0 ? (double) getTotal() / count : 0;
+    }
+
+    // value at the given percentile (0 - 100) - the midpoint of the bucket it falls in, capped at the max
+    public long getPercentile(double percentile) {
+      long count = getCount();
+      if (count == 0) return 0;
+      if (percentile >= 100) return getMax();
+
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket) {
+        seen += this.buckets.get(bucket);
+        if (seen >= rank) {
+          return Math.min(getMax(), getBucketMidpoint(bucket));
+        }
+      }
+      return getMax();
+    }
+
+    static int getBucket(long value) {
+      if (value < 8) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      return 8 + (exponent - 3) * 4 + (int) ((value >>> (exponent - 2)) & 3);
+    }
+
+    static long getBucketMidpoint(int bucket) {
+      if (bucket < 8) return bucket;
+      int exponent = (bucket - 8) / 4 + 3;
+      long lowerBound = (4L + (bucket - 8) % 4) << (exponent - 2);
+      return lowerBound + (1L << (exponent - 2)) / 2;
+    }
+
+  }
+
+}
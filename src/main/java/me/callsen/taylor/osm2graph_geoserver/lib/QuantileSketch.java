@@ -0,0 +1,155 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.util.Arrays;
+
+// fixed memory summary of a stream of values - exact count, min and max plus a uniform reservoir sample
+//  (Vitter's algorithm R) of at most capacity values that approximate quantiles are read from. Sketches of
+//  separate streams merge into a sample of the combined stream, so per batch sketches can be folded into a
+//  table's sketch. Sampling is seeded, so a load sketches the same values every run. Not thread safe.
+public class QuantileSketch {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private int capacity;
+
+  private double[] sample = new double[64];
+
+  private int sampleSize;
+
+  private long count;
+
+  private double min = Double.POSITIVE_INFINITY;
+
+  private double max = Double.NEGATIVE_INFINITY;
+
+  // xorshift state - cheaper than a Random instance per sketch
+  private long randomState = 0x9E3779B97F4A7C15L;
+
+  public QuantileSketch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public QuantileSketch(int capacity) {
+    this.capacity = capacity;
+  }
+
+  public void add(double value) {
+    if (Double.isNaN(value)) return;
+
+    ++this.count;
+    this.min = Math.min(this.min, value);
+    this.max = Math.max(this.max, value);
+
+    if (this.sampleSize < this.capacity) {
+      if (this.sampleSize == this.sample.length) {
+        this.sample = Arrays.copyOf(this.sample, Math.min(this.capacity, this.sampleSize * 2));
+      }
+      this.sample[this.sampleSize++] = value;
+    } else {
+      // keep the value with probability capacity / count, in place of a random sampled value
+      long slot = nextRandom(this.count);
+      if (slot < this.capacity) {
+        this.sample[(int) slot] = value;
+      }
+    }
+  }
+
+  // folds other into this sketch - the merged sample draws from each side in proportion to the number of values
+  //  it summarizes
+  public void merge(QuantileSketch other) {
+    if (other.count == 0) return;
+
+    long mergedCount = this.count + other.count;
+    if (this.sampleSize + other.sampleSize <= this.capacity) {
+      for (int i = 0; i < other.sampleSize; ++i) {
+        appendSampled(other.sample[i]);
+      }
+    } else {
+      int fromThis = (int) Math.round((double) this.capacity * this.count / mergedCount);
+      fromThis = Math.max(this.capacity - other.sampleSize, Math.min(this.sampleSize, fromThis));
+      int fromOther = this.capacity - fromThis;
+
+      // random subsets of both samples via partial Fisher-Yates shuffles
+      double[] otherSample = Arrays.copyOf(other.sample, other.sampleSize);
+      shuffleFirst(this.sample, this.sampleSize, fromThis);
+      shuffleFirst(otherSample, otherSample.length, fromOther);
+      this.sampleSize = fromThis;
+      for (int i = 0; i < fromOther; ++i) {
+        appendSampled(otherSample[i]);
+      }
+    }
+
+    this.count = mergedCount;
+    this.min = Math.min(this.min, other.min);
+    this.max = Math.max(this.max, other.max);
+  }
+
+  public void reset() {
+    this.sampleSize = 0;
+    this.count = 0;
+    this.min = Double.POSITIVE_INFINITY;
+    this.max = Double.NEGATIVE_INFINITY;
+  }
+
+  // value at rank fraction (0 - 1) of the sampled values - the exact min and max at the ends, NaN if empty
+  public double getQuantile(double fraction) {
+    return getQuantiles(new double[] { fraction })[0];
+  }
+
+  // several quantiles from a single sort of the sample
+  public double[] getQuantiles(double[] fractions) {
+    double[] quantiles = new double[fractions.length];
+    double[] sorted = Arrays.copyOf(this.sample, this.sampleSize);
+    Arrays.sort(sorted);
+    for (int i = 0; i < fractions.length; ++i) {
+      if (this.count == 0) {
+        quantiles[i] = Double.NaN;
+      } else if (fractions[i] <= 0) {
+        quantiles[i] = this.min;
+      } else if (fractions[i] >= 1) {
+        quantiles[i] = this.max;
+      } else {
+        quantiles[i] = sorted[Math.min(sorted.length - 1, (int) (fractions[i] * sorted.length))];
+      }
+    }
+    return quantiles;
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  public double getMin() {
+    return this.min;
+  }
+
+  public double getMax() {
+    return this.max;
+  }
+
+  private void appendSampled(double value) {
+    if (this.sampleSize == this.sample.length) {
+      this.sample = Arrays.copyOf(this.sample, Math.min(this.capacity, Math.max(this.sampleSize * 2, 1)));
+    }
+    this.sample[this.sampleSize++] = value;
+  }
+
+  // moves a random subset of count values of values[0, length) to the front
+  private void shuffleFirst(double[] values, int length, int count) {
+    for (int i = 0; i < count; ++i) {
+      int j = i + (int) nextRandom(length - i);
+      double swap = values[i];
+      values[i] = values[j];
+      values[j] = swap;
+    }
+  }
+
+  // uniform in [0, bound)
+  private long nextRandom(long bound) {
+    this.randomState ^= this.randomState << 13;
+    this.randomState ^= this.randomState >>> 7;
+    this.randomState ^= this.randomState << 17;
+    return Long.remainderUnsigned(this.randomState, bound);
+  }
+
+}
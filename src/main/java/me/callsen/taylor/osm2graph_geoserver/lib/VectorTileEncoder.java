@@ -0,0 +1,236 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// encodes a single layer Mapbox Vector Tile (MVT 2.1 protobuf) - features are added with tile local integer
+//  coordinates and attributes, which are deduplicated into the layer's key and value tables. Coordinates
+//  are zigzag encoded relative to the previous point, as the spec requires. Not thread safe - one encoder
+//  per tile.
+public class VectorTileEncoder {
+
+  public static final int GEOMETRY_POINT = 1;
+
+  public static final int GEOMETRY_LINESTRING = 2;
+
+  public static final int GEOMETRY_POLYGON = 3;
+
+  private static final int COMMAND_MOVE_TO = 1;
+
+  private static final int COMMAND_LINE_TO = 2;
+
+  private static final int COMMAND_CLOSE_PATH = 7;
+
+  private String layerName;
+
+  private int extent;
+
+  private Map<String, Integer> keys = new HashMap<>();
+
+  private List<String> keyList = new ArrayList<>();
+
+  private Map<Object, Integer> values = new HashMap<>();
+
+  private List<Object> valueList = new ArrayList<>();
+
+  // encoded Feature messages, each prefixed with its layer field tag and length
+  private ProtobufBuffer features = new ProtobufBuffer();
+
+  private ProtobufBuffer feature = new ProtobufBuffer();
+
+  private ProtobufBuffer packed = new ProtobufBuffer();
+
+  private int featureCount;
+
+  public VectorTileEncoder(String layerName, int extent) {
+    this.layerName = layerName;
+    this.extent = extent;
+  }
+
+  // xy holds the x, y pairs of every part, partEnds the (exclusive) point index each part ends at. Polygon
+  //  rings are given unclosed, in the winding order of their role (exterior rings with positive area in tile
+  //  coordinates, interior rings negative). Attribute values are String, Long, Double or Boolean.
+  public void addFeature(long id, int geometryType, int[] xy, int[] partEnds, int partCount, String[] attributeKeys,
+      Object[] attributeValues, int attributeCount) {
+
+    this.feature.clear();
+    this.feature.writeTag(1, 0);
+    this.feature.writeVarint(id);
+
+    // tags - key and value table indexes
+    if (attributeCount > 0) {
+      this.packed.clear();
+      for (int i = 0; i < attributeCount; ++i) {
+        this.packed.writeVarint(getIndex(this.keys, this.keyList, attributeKeys[i]));
+        this.packed.writeVarint(getIndex(this.values, this.valueList, attributeValues[i]));
+      }
+      this.feature.writeTag(2, 2);
+      this.feature.writeBytes(this.packed);
+    }
+
+    this.feature.writeTag(3, 0);
+    this.feature.writeVarint(geometryType);
+
+    // geometry commands - a single MoveTo for all points, otherwise MoveTo + LineTo per part (+ ClosePath)
+    this.packed.clear();
+    int cursorX = 0;
+    int cursorY = 0;
+    int partStart = 0;
+    for (int part = 0; part < partCount; ++part) {
+      int partEnd = partEnds[part];
+      for (int point = partStart; point < partEnd; ++point) {
+        if (geometryType == GEOMETRY_POINT) {
+          if (point == 0) this.packed.writeVarint(command(COMMAND_MOVE_TO, partEnds[partCount - 1]));
+        } else if (point == partStart) {
+          this.packed.writeVarint(command(COMMAND_MOVE_TO, 1));
+        } else if (point == partStart + 1) {
+          this.packed.writeVarint(command(COMMAND_LINE_TO, partEnd - partStart - 1));
+        }
+        this.packed.writeVarint(zigzag(xy[2 * point] - cursorX));
+        this.packed.writeVarint(zigzag(xy[2 * point + 1] - cursorY));
+        cursorX = xy[2 * point];
+        cursorY = xy[2 * point + 1];
+      }
+      if (geometryType == GEOMETRY_POLYGON) {
+        this.packed.writeVarint(command(COMMAND_CLOSE_PATH, 1));
+      }
+      partStart = partEnd;
+    }
+    this.feature.writeTag(4, 2);
+    this.feature.writeBytes(this.packed);
+
+    this.features.writeTag(2, 2);
+    this.features.writeBytes(this.feature);
+    ++this.featureCount;
+  }
+
+  public int getFeatureCount() {
+    return this.featureCount;
+  }
+
+  // the complete tile - a Tile message holding this layer
+  public byte[] encode() {
+    ProtobufBuffer layer = new ProtobufBuffer();
+    layer.writeTag(15, 0);
+    layer.writeVarint(2);
+    layer.writeTag(1, 2);
+    layer.writeString(this.layerName);
+    layer.write(this.features);
+    for (String key : this.keyList) {
+      layer.writeTag(3, 2);
+      layer.writeString(key);
+    }
+    ProtobufBuffer value = new ProtobufBuffer();
+    for (Object attributeValue : this.valueList) {
+      value.clear();
+      if (attributeValue instanceof String) {
+        value.writeTag(1, 2);
+        value.writeString((String) attributeValue);
+      } else if (attributeValue instanceof Double) {
+        value.writeTag(3, 1);
+        value.writeFixed64(Double.doubleToRawLongBits((Double) attributeValue));
+      } else if (attributeValue instanceof Long) {
+        value.writeTag(6, 0);
+        value.writeVarint(zigzag((Long) attributeValue));
+      } else {
+        value.writeTag(7, 0);
+        value.writeVarint((Boolean) attributeValue ? 1 : 0);
+      }
+      layer.writeTag(4, 2);
+      layer.writeBytes(value);
+    }
+    layer.writeTag(5, 0);
+    layer.writeVarint(this.extent);
+
+    ProtobufBuffer tile = new ProtobufBuffer();
+    tile.writeTag(3, 2);
+    tile.writeBytes(layer);
+    return tile.toByteArray();
+  }
+
+  private static <T> int getIndex(Map<T, Integer> indexes, List<T> list, T value) {
+    Integer index = indexes.get(value);
+    if (index == null) {
+      index = list.size();
+      indexes.put(value, index);
+      list.add(value);
+    }
+    return index;
+  }
+
+  private static int command(int id, int count) {
+    return (id & 0x7) | (count << 3);
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  // growable protobuf output
+  private static class ProtobufBuffer {
+
+    private byte[] bytes = new byte[256];
+
+    private int length;
+
+    private void clear() {
+      this.length = 0;
+    }
+
+    private void writeTag(int field, int wireType) {
+      writeVarint((field << 3) | wireType);
+    }
+
+    private void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        this.bytes[this.length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      this.bytes[this.length++] = (byte) value;
+    }
+
+    private void writeFixed64(long value) {
+      ensureCapacity(8);
+      for (int i = 0; i < 8; ++i) {
+        this.bytes[this.length++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    private void writeString(String value) {
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(utf8.length);
+      ensureCapacity(utf8.length);
+      System.arraycopy(utf8, 0, this.bytes, this.length, utf8.length);
+      this.length += utf8.length;
+    }
+
+    // length delimited
+    private void writeBytes(ProtobufBuffer buffer) {
+      writeVarint(buffer.length);
+      write(buffer);
+    }
+
+    private void write(ProtobufBuffer buffer) {
+      ensureCapacity(buffer.length);
+      System.arraycopy(buffer.bytes, 0, this.bytes, this.length, buffer.length);
+      this.length += buffer.length;
+    }
+
+    private byte[] toByteArray() {
+      return Arrays.copyOf(this.bytes, this.length);
+    }
+
+    private void ensureCapacity(int additional) {
+      if (this.length + additional > this.bytes.length) {
+        this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.length + additional));
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,361 @@
+package me.callsen.taylor.osm2graph_geoserver.lib;
+
+import java.util.Arrays;
+
+// encodes WKT geometries (e.g. the `way` relationship property) as 2D little-endian EWKB with an embedded
+//  SRID - hex EWKB is accepted directly by the PostGIS geometry input function, so the server does not
+//  need to parse WKT. Z and M ordinates are dropped, as visualization tables hold 2D geometries. The envelope and vertex count of the last encoded geometry are kept for per table
+//  statistics. Not thread safe - the encode buffer is reused between calls.
+public class WkbEncoder {
+
+  private static final int WKB_SRID_FLAG = 0x20000000;
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private byte[] buffer = new byte[1024];
+
+  private int length;
+
+  private String wkt;
+
+  private int position;
+
+  // envelope and vertex count of the last encoded geometry
+  private double minX;
+
+  private double minY;
+
+  private double maxX;
+
+  private double maxY;
+
+  private int vertexCount;
+
+  public byte[] toEwkb(String wkt, int srid) {
+    encode(wkt, srid);
+    return Arrays.copyOf(this.buffer, this.length);
+  }
+
+  public String toHexEwkb(String wkt, int srid) {
+    StringBuilder hex = new StringBuilder();
+    appendHexEwkb(hex, wkt, srid);
+    return hex.toString();
+  }
+
+  // encodes without output - only the envelope and vertex count are read afterwards
+  public void readEnvelope(String wkt, int srid) {
+    encode(wkt, srid);
+  }
+
+  // throws IllegalArgumentException for malformed or unsupported (e.g. curved) geometries - nothing is appended
+  public void appendHexEwkb(StringBuilder out, String wkt, int srid) {
+    encode(wkt, srid);
+    appendEncodedHexEwkb(out);
+  }
+
+  // appends the last encoded geometry again, without re-parsing it
+  public void appendEncodedHexEwkb(StringBuilder out) {
+    for (int i = 0; i < this.length; ++i) {
+      out.append(HEX_DIGITS[(this.buffer[i] >> 4) & 0xF]);
+      out.append(HEX_DIGITS[this.buffer[i] & 0xF]);
+    }
+  }
+
+  private void encode(String wkt, int srid) {
+    this.wkt = wkt;
+    this.position = 0;
+    this.length = 0;
+    this.minX = Double.POSITIVE_INFINITY;
+    this.minY = Double.POSITIVE_INFINITY;
+    this.maxX = Double.NEGATIVE_INFINITY;
+    this.maxY = Double.NEGATIVE_INFINITY;
+    this.vertexCount = 0;
+
+    writeGeometry(true, srid);
+
+    skipWhitespace();
+    if (this.position != this.wkt.length()) {
+      throw error("unexpected trailing characters");
+    }
+  }
+
+  private void writeGeometry(boolean withSrid, int srid) {
+
+    String geometryType = readWord();
+    int typeCode;
+    switch (geometryType) {
+      case "POINT": typeCode = 1; break;
+      case "LINESTRING": typeCode = 2; break;
+      case "POLYGON": typeCode = 3; break;
+      case "MULTIPOINT": typeCode = 4; break;
+      case "MULTILINESTRING": typeCode = 5; break;
+      case "MULTIPOLYGON": typeCode = 6; break;
+      case "GEOMETRYCOLLECTION": typeCode = 7; break;
+      default: throw error("unsupported geometry type '" + geometryType + "'");
+    }
+    skipDimensionTag();
+
+    // header - byte order (1 = little endian), type and optional SRID
+    writeByte(1);
+    writeInt(withSrid ? typeCode | WKB_SRID_FLAG : typeCode);
+    if (withSrid) writeInt(srid);
+
+    skipWhitespace();
+    if (this.wkt.startsWith("EMPTY", this.position)) {
+      this.position += 5;
+      if (typeCode == 1) {
+        // empty points are encoded with NaN coordinates
+        writeDouble(Double.NaN);
+        writeDouble(Double.NaN);
+      } else {
+        writeInt(0);
+      }
+      return;
+    }
+
+    switch (typeCode) {
+      case 1:
+        expect('(');
+        writeCoordinate();
+        expect(')');
+        break;
+      case 2:
+        writeCoordinateList();
+        break;
+      case 3:
+        writeRingList();
+        break;
+      case 4:
+        writeMultiPoint();
+        break;
+      case 5:
+      case 6:
+        expect('(');
+        int partCountPosition = reserveInt();
+        int partCount = 0;
+        do {
+          writeByte(1);
+          writeInt(typeCode - 3);
+          if (typeCode == 5) {
+            writeCoordinateList();
+          } else {
+            writeRingList();
+          }
+          ++partCount;
+        } while (consume(','));
+        expect(')');
+        patchInt(partCountPosition, partCount);
+        break;
+      default:
+        expect('(');
+        int geometryCountPosition = reserveInt();
+        int geometryCount = 0;
+        do {
+          writeGeometry(false, srid);
+          ++geometryCount;
+        } while (consume(','));
+        expect(')');
+        patchInt(geometryCountPosition, geometryCount);
+    }
+  }
+
+  // MULTIPOINT members may be written with or without parentheses - MULTIPOINT((1 2),(3 4)) or MULTIPOINT(1 2,3 4)
+  private void writeMultiPoint() {
+    expect('(');
+    int pointCountPosition = reserveInt();
+    int pointCount = 0;
+    do {
+      writeByte(1);
+      writeInt(1);
+      if (consume('(')) {
+        writeCoordinate();
+        expect(')');
+      } else {
+        writeCoordinate();
+      }
+      ++pointCount;
+    } while (consume(','));
+    expect(')');
+    patchInt(pointCountPosition, pointCount);
+  }
+
+  private void writeRingList() {
+    expect('(');
+    int ringCountPosition = reserveInt();
+    int ringCount = 0;
+    do {
+      writeCoordinateList();
+      ++ringCount;
+    } while (consume(','));
+    expect(')');
+    patchInt(ringCountPosition, ringCount);
+  }
+
+  private void writeCoordinateList() {
+    expect('(');
+    int pointCountPosition = reserveInt();
+    int pointCount = 0;
+    do {
+      writeCoordinate();
+      ++pointCount;
+    } while (consume(','));
+    expect(')');
+    patchInt(pointCountPosition, pointCount);
+  }
+
+  private void writeCoordinate() {
+    double x = readNumber();
+    double y = readNumber();
+    writeDouble(x);
+    writeDouble(y);
+
+    this.minX = Math.min(this.minX, x);
+    this.minY = Math.min(this.minY, y);
+    this.maxX = Math.max(this.maxX, x);
+    this.maxY = Math.max(this.maxY, y);
+    ++this.vertexCount;
+
+    // Z and/or M ordinates
+    for (int i = 0; i < 2 && hasNumber(); ++i) {
+      readNumber();
+    }
+    if (hasNumber()) {
+      throw error("too many ordinates");
+    }
+  }
+
+  // envelope of the last encoded geometry - only valid if it has at least one vertex
+
+  public double getMinX() {
+    return this.minX;
+  }
+
+  public double getMinY() {
+    return this.minY;
+  }
+
+  public double getMaxX() {
+    return this.maxX;
+  }
+
+  public double getMaxY() {
+    return this.maxY;
+  }
+
+  public int getVertexCount() {
+    return this.vertexCount;
+  }
+
+  // parsing
+
+  private String readWord() {
+    skipWhitespace();
+    int start = this.position;
+    while (this.position < this.wkt.length() && Character.isLetter(this.wkt.charAt(this.position))) {
+      ++this.position;
+    }
+    if (start == this.position) throw error("expected geometry type");
+    return this.wkt.substring(start, this.position).toUpperCase();
+  }
+
+  // the Z, M or ZM tag following a geometry type, if any
+  private void skipDimensionTag() {
+    skipWhitespace();
+    int start = this.position;
+    while (this.position < this.wkt.length() && Character.isLetter(this.wkt.charAt(this.position))) {
+      ++this.position;
+    }
+    String tag = this.wkt.substring(start, this.position).toUpperCase();
+    if (!tag.equals("Z") && !tag.equals("M") && !tag.equals("ZM")) {
+      this.position = start;
+    }
+  }
+
+  private boolean hasNumber() {
+    skipWhitespace();
+    return this.position < this.wkt.length() && isNumberChar(this.wkt.charAt(this.position));
+  }
+
+  private double readNumber() {
+    skipWhitespace();
+    int start = this.position;
+    while (this.position < this.wkt.length() && isNumberChar(this.wkt.charAt(this.position))) {
+      ++this.position;
+    }
+    if (start == this.position) throw error("expected number");
+    try {
+      return Double.parseDouble(this.wkt.substring(start, this.position));
+    } catch (NumberFormatException e) {
+      throw error("invalid number");
+    }
+  }
+
+  private static boolean isNumberChar(char c) {
+    return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+  }
+
+  private boolean consume(char c) {
+    skipWhitespace();
+    if (this.position < this.wkt.length() && this.wkt.charAt(this.position) == c) {
+      ++this.position;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) {
+    if (!consume(c)) throw error("expected '" + c + "'");
+  }
+
+  private void skipWhitespace() {
+    while (this.position < this.wkt.length() && Character.isWhitespace(this.wkt.charAt(this.position))) {
+      ++this.position;
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(String.format("cannot encode WKT as WKB - %s at position %s", message, this.position));
+  }
+
+  // little-endian output
+
+  private void ensureCapacity(int additional) {
+    if (this.length + additional > this.buffer.length) {
+      this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.length + additional));
+    }
+  }
+
+  private void writeByte(int value) {
+    ensureCapacity(1);
+    this.buffer[this.length++] = (byte) value;
+  }
+
+  private void writeInt(int value) {
+    ensureCapacity(4);
+    patchInt(this.length, value);
+    this.length += 4;
+  }
+
+  private void writeDouble(double value) {
+    ensureCapacity(8);
+    long bits = Double.doubleToRawLongBits(value);
+    for (int i = 0; i < 8; ++i) {
+      this.buffer[this.length++] = (byte) (bits >>> (8 * i));
+    }
+  }
+
+  // counts are only known once a list has been parsed - reserve space and patch afterwards
+  private int reserveInt() {
+    int reservedPosition = this.length;
+    writeInt(0);
+    return reservedPosition;
+  }
+
+  private void patchInt(int offset, int value) {
+    this.buffer[offset] = (byte) value;
+    this.buffer[offset + 1] = (byte) (value >>> 8);
+    this.buffer[offset + 2] = (byte) (value >>> 16);
+    this.buffer[offset + 3] = (byte) (value >>> 24);
+  }
+
+}
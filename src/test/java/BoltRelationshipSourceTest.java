@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Session;
+import org.neo4j.graphdb.Relationship;
+import org.testcontainers.containers.Neo4jContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import me.callsen.taylor.osm2graph_geoserver.data.BoltRelationshipSource;
+import me.callsen.taylor.osm2graph_geoserver.data.GraphRelationshipReader;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowFormat;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationRowSerializer;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// relationships streamed over Bolt from a Neo4j container, through the same reader and row serializer as the
+//  embedded store
+@Testcontainers
+@TestInstance(Lifecycle.PER_CLASS)
+public class BoltRelationshipSourceTest {
+
+  private static final int WAY_COUNT = 120;
+
+  @Container
+  private static final Neo4jContainer<?> neo4jContainer = new Neo4jContainer<>(DockerImageName.parse("neo4j:4.4"))
+      .withAdminPassword("password");
+
+  private BoltRelationshipSource relationshipSource;
+
+  @BeforeAll
+  public void initResources() throws Exception {
+
+    // ways shaped like the fixture graph, plus one relationship without associatedData
+    try (Driver driver = GraphDatabase.driver(neo4jContainer.getBoltUrl(), AuthTokens.basic("neo4j", "password"));
+        Session session = driver.session()) {
+      session.run(String.format("UNWIND range(1, %s) AS i "
+          + "CREATE (:INTERSECTION {osm_id: i})-[:CONNECTS {osm_id: 1000 + i, way: 'LINESTRING(-122.399779 37.753165,-122.3995458 37.7530642)', "
+          + "name: 'Coral Road', %s: ['osm_landusages', 'osm_buildings'], osm_landusages: '[{\"type\": \"park\", \"osm_id\": ' + i + '}]', "
+          + "osm_buildings: '[{\"levels\": 2}]'}]->(:INTERSECTION {osm_id: -i})", WAY_COUNT, RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA)).consume();
+      session.run("CREATE (:INTERSECTION)-[:CONNECTS {osm_id: 1, way: 'LINESTRING(-122.4 37.75,-122.39 37.75)'}]->(:INTERSECTION)").consume();
+    }
+
+    JSONObject boltConfig = new JSONObject();
+    boltConfig.put("uri", neo4jContainer.getBoltUrl());
+    boltConfig.put("user", "neo4j");
+    boltConfig.put("password", "password");
+    boltConfig.put("fetchSize", 20);
+    this.relationshipSource = new BoltRelationshipSource(boltConfig);
+  }
+
+  @AfterAll
+  public void closeResources() throws Exception {
+    this.relationshipSource.close();
+  }
+
+  @Test
+  public void testShardedRead() throws Exception {
+    Set<Long> relIds = ConcurrentHashMap.newKeySet();
+    AtomicInteger maxPageSize = new AtomicInteger();
+
+    GraphRelationshipReader reader = new GraphRelationshipReader(this.relationshipSource, 50);
+    long relationshipCount = reader.readAssociatedDataRelationships(3, (shard, pageNumber, relationships) -> {
+      maxPageSize.accumulateAndGet(relationships.size(), Math::max);
+      for (Relationship relationship : relationships) {
+        relIds.add(relationship.getId());
+      }
+    });
+
+    assertEquals(WAY_COUNT, relationshipCount);
+    assertEquals(WAY_COUNT, relIds.size());
+    assertTrue(maxPageSize.get() <= 50);
+  }
+
+  @Test
+  public void testRowSerialization() throws Exception {
+    GraphRelationshipReader reader = new GraphRelationshipReader(this.relationshipSource, 500);
+    reader.readAssociatedDataSample(1, (shard, pageNumber, relationships) -> {
+      assertEquals(1, relationships.size());
+      Relationship relationship = relationships.get(0);
+
+      // list properties arrive as arrays, as from the embedded store
+      assertArrayEquals(new String[] { "osm_landusages", "osm_buildings" },
+          (String[]) relationship.getProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+
+      StringBuilder buffer = new StringBuilder();
+      new VisualizationRowSerializer().appendRow(buffer, VisualizationRowFormat.VISUALIZATION, "osm_landusages", relationship);
+      String[] columns = buffer.toString().split("\t");
+
+      assertEquals(relationship.getProperty("osm_id").toString(), columns[0]);
+      assertEquals("park", new JSONArray(columns[2]).getJSONObject(0).getString("type"));
+      JSONObject relationshipData = new JSONObject(columns[3]);
+      assertEquals("Coral Road", relationshipData.getString("name"));
+      assertTrue(!relationshipData.has("osm_landusages") && !relationshipData.has("way"));
+    });
+  }
+
+}
@@ -0,0 +1,226 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.data.FlatGeobufWriter;
+import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
+
+// writes a layer and reads it back the way FlatGeobuf clients do - header, then a bbox search through the
+//  packed Hilbert R-tree down to the features it points at
+public class FlatGeobufWriterTest {
+
+  private static final byte[] MAGIC_BYTES = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+
+  private static final int NODE_ITEM_BYTES = 40;
+
+  // a 20 x 20 grid of points - 400 leaves under 25, 2 and a root node
+  private static final int GRID_SIZE = 20;
+
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Path path = tempDirectory.resolve("sfpotrero_vis_osm_landusages.fgb");
+    FlatGeobufWriter writer = new FlatGeobufWriter(path, "sfpotrero_vis_osm_landusages", "osm_landusages");
+    for (int x = 0; x < GRID_SIZE; ++x) {
+      for (int y = 0; y < GRID_SIZE; ++y) {
+        long osmId = x * GRID_SIZE + y;
+        writer.addRow("osm_landusages", createRelationship(osmId, String.format("POINT(%s %s)", -122.5 + x * 0.01, 37.7 + y * 0.01)));
+      }
+    }
+    // skipped without a geometry
+    writer.addRow("osm_landusages", createRelationship(-1, "LINESTRING EMPTY"));
+    writer.finish();
+
+    ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+    byte[] magic = new byte[MAGIC_BYTES.length];
+    file.get(magic);
+    assertArrayEquals(MAGIC_BYTES, magic);
+    assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".features")));
+
+    // header
+    int headerSize = file.getInt(8);
+    int header = getTable(file, 12);
+    assertEquals("sfpotrero_vis_osm_landusages", getString(file, header, 0));
+    int featureCount = (int) file.getLong(getField(file, header, 8));
+    assertEquals(GRID_SIZE * GRID_SIZE, featureCount);
+    assertEquals(FlatGeobufWriter.INDEX_NODE_SIZE, file.getShort(getField(file, header, 9)) & 0xFFFF);
+    double[] envelope = getDoubles(file, header, 1);
+    assertEquals(-122.5, envelope[0], 1e-9);
+    assertEquals(37.7, envelope[1], 1e-9);
+    assertEquals(-122.5 + (GRID_SIZE - 1) * 0.01, envelope[2], 1e-9);
+    assertEquals(37.7 + (GRID_SIZE - 1) * 0.01, envelope[3], 1e-9);
+
+    // columns - name and type (7 long, 12 json)
+    int columns = getVector(file, header, 7);
+    String[] columnNames = { "osm_id", "osm_landusages", "relationshipData", "rel_id" };
+    int[] columnTypes = { 7, 12, 12, 7 };
+    assertEquals(columnNames.length, file.getInt(columns));
+    for (int i = 0; i < columnNames.length; ++i) {
+      int column = getTable(file, columns + 4 + 4 * i);
+      assertEquals(columnNames[i], getString(file, column, 0));
+      assertEquals(columnTypes[i], file.get(getField(file, column, 1)));
+    }
+
+    // bbox search - the 3 x 3 block of points from grid cell (5, 5) through (7, 7)
+    int nodeCount = getNodeCount(featureCount);
+    int[] levelStarts = getLevelStarts(featureCount, nodeCount);
+    assertEquals(4, levelStarts.length);
+    int indexStart = 12 + headerSize;
+    int featuresStart = indexStart + nodeCount * NODE_ITEM_BYTES;
+    double[] searchBox = { -122.5 + 5 * 0.01 - 1e-6, 37.7 + 5 * 0.01 - 1e-6, -122.5 + 7 * 0.01 + 1e-6, 37.7 + 7 * 0.01 + 1e-6 };
+
+    Set<Long> foundOsmIds = new TreeSet<>();
+    searchIndex(file, indexStart, levelStarts, nodeCount, 0, levelStarts.length - 1, searchBox, featureOffset -> {
+      int feature = getTable(file, featuresStart + (int) featureOffset + 4);
+      double[] xy = getDoubles(file, getTable(file, getField(file, feature, 0)), 1);
+      long osmId = readLongProperty(file, feature, 0);
+      assertEquals(-122.5 + (osmId / GRID_SIZE) * 0.01, xy[0], 1e-9);
+      assertEquals(37.7 + (osmId % GRID_SIZE) * 0.01, xy[1], 1e-9);
+      foundOsmIds.add(osmId);
+    });
+
+    Set<Long> expectedOsmIds = new TreeSet<>();
+    for (int x = 5; x <= 7; ++x) {
+      for (int y = 5; y <= 7; ++y) {
+        expectedOsmIds.add((long) (x * GRID_SIZE + y));
+      }
+    }
+    assertEquals(expectedOsmIds, foundOsmIds);
+  }
+
+  private interface FeatureHandler {
+    void handle(long featureOffset);
+  }
+
+  // visits the children of node (on level, 0 being the leaves) intersecting box
+  private static void searchIndex(ByteBuffer file, int indexStart, int[] levelStarts, int nodeCount, int node, int level,
+      double[] box, FeatureHandler handler) {
+    int position = indexStart + node * NODE_ITEM_BYTES;
+    if (file.getDouble(position) > box[2] || file.getDouble(position + 8) > box[3] ||
+        file.getDouble(position + 16) < box[0] || file.getDouble(position + 24) < box[1]) return;
+
+    long offset = file.getLong(position + 32);
+    if (level == 0) {
+      handler.handle(offset);
+      return;
+    }
+    // children are on the level below, which ends where the level below it starts
+    int childLevelEnd = level == 1 ? nodeCount : levelStarts[level - 2];
+    for (int child = (int) offset; child < Math.min((int) offset + FlatGeobufWriter.INDEX_NODE_SIZE, childLevelEnd); ++child) {
+      searchIndex(file, indexStart, levelStarts, nodeCount, child, level - 1, box, handler);
+    }
+  }
+
+  // first node of each level, leaves first, counting from the root at 0
+  private static int[] getLevelStarts(int featureCount, int nodeCount) {
+    List<Integer> levelNodeCounts = new ArrayList<>();
+    int levelNodeCount = featureCount;
+    levelNodeCounts.add(levelNodeCount);
+    do {
+      levelNodeCount = (levelNodeCount + FlatGeobufWriter.INDEX_NODE_SIZE - 1) / FlatGeobufWriter.INDEX_NODE_SIZE;
+      levelNodeCounts.add(levelNodeCount);
+    } while (levelNodeCount != 1);
+
+    int[] levelStarts = new int[levelNodeCounts.size()];
+    int levelStart = nodeCount;
+    for (int level = 0; level < levelStarts.length; ++level) {
+      levelStart -= levelNodeCounts.get(level);
+      levelStarts[level] = levelStart;
+    }
+    return levelStarts;
+  }
+
+  private static int getNodeCount(int featureCount) {
+    int levelNodeCount = featureCount;
+    int nodeCount = levelNodeCount;
+    do {
+      levelNodeCount = (levelNodeCount + FlatGeobufWriter.INDEX_NODE_SIZE - 1) / FlatGeobufWriter.INDEX_NODE_SIZE;
+      nodeCount += levelNodeCount;
+    } while (levelNodeCount != 1);
+    return nodeCount;
+  }
+
+  // properties - column index (ushort) followed by the value, strings and json prefixed by their length
+  private static long readLongProperty(ByteBuffer file, int feature, int column) {
+    int properties = getVector(file, feature, 1);
+    int position = properties + 4;
+    int end = position + file.getInt(properties);
+    while (position < end) {
+      int propertyColumn = file.getShort(position) & 0xFFFF;
+      if (propertyColumn == column) return file.getLong(position + 2);
+      position += propertyColumn == 1 || propertyColumn == 2 ? 6 + file.getInt(position + 2) : 10;
+    }
+    throw new IllegalStateException("missing property " + column);
+  }
+
+  // flatbuffers - a table is found through the offset stored at position, its fields through its vtable
+
+  private static int getTable(ByteBuffer file, int position) {
+    return position + file.getInt(position);
+  }
+
+  // position of the field's value, or -1 if left out
+  private static int getField(ByteBuffer file, int table, int id) {
+    int vtable = table - file.getInt(table);
+    int vtableSize = file.getShort(vtable) & 0xFFFF;
+    if (4 + 2 * id >= vtableSize) return -1;
+    int fieldOffset = file.getShort(vtable + 4 + 2 * id) & 0xFFFF;
+    return fieldOffset == 0 ? -1 : table + fieldOffset;
+  }
+
+  // position of the vector's length
+  private static int getVector(ByteBuffer file, int table, int id) {
+    return getTable(file, getField(file, table, id));
+  }
+
+  private static String getString(ByteBuffer file, int table, int id) {
+    int string = getVector(file, table, id);
+    byte[] bytes = new byte[file.getInt(string)];
+    file.position(string + 4);
+    file.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static double[] getDoubles(ByteBuffer file, int table, int id) {
+    int vector = getVector(file, table, id);
+    double[] values = new double[file.getInt(vector)];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = file.getDouble(vector + 4 + 8 * i);
+    }
+    return values;
+  }
+
+  private static Relationship createRelationship(long osmId, String way) {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("osm_id", osmId);
+    properties.put("way", way);
+    properties.put("osm_landusages", "[{\"type\":\"park\"}]");
+    properties.put(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA, new String[] { "osm_landusages" });
+
+    Relationship relationship = Mockito.mock(Relationship.class);
+    Mockito.when(relationship.getId()).thenReturn(osmId + 1000);
+    Mockito.when(relationship.getProperty(Mockito.anyString())).thenAnswer(invocation -> properties.get(invocation.getArgument(0)));
+    Mockito.when(relationship.getAllProperties()).thenReturn(properties);
+    return relationship;
+  }
+
+}
@@ -0,0 +1,287 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.XML;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
+import me.callsen.taylor.osm2graph_geoserver.data.VisualizationTableStats;
+import me.callsen.taylor.osm2graph_geoserver.lib.HttpClient;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
+
+// GeoServer REST calls against a local stub HTTP server - confirms connection reuse, bounded concurrent publishing
+//  GeoWebCache seeding and style uploads
+public class GeoServerRestApiTest {
+
+  private static final int STUB_RESPONSE_DELAY_MS = 50;
+
+  private HttpServer stubServer;
+
+  private ExecutorService stubExecutor;
+
+  private Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+  private Set<String> featureTypesCreated = ConcurrentHashMap.newKeySet();
+
+  private AtomicInteger inFlightRequests = new AtomicInteger();
+
+  private AtomicInteger maxInFlightRequests = new AtomicInteger();
+
+  // seed request per layer, and the number of status polls each layer reports running for
+  private Map<String, JSONObject> seedRequests = new ConcurrentHashMap<>();
+
+  private Map<String, AtomicInteger> seedStatusPolls = new ConcurrentHashMap<>();
+
+  private static final int SEED_RUNNING_POLLS = 2;
+
+  // method and path of every style and layer request, and the body of each layer update
+  private List<String> styleRequests = Collections.synchronizedList(new ArrayList<>());
+
+  private Map<String, String> layerUpdates = new ConcurrentHashMap<>();
+
+  @BeforeEach
+  public void startStubServer() throws Exception {
+    this.stubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    this.stubServer.createContext("/geoserver/rest", this::handleRequest);
+    this.stubServer.createContext("/geoserver/gwc/rest/seed", this::handleSeedRequest);
+    this.stubExecutor = Executors.newCachedThreadPool();
+    this.stubServer.setExecutor(this.stubExecutor);
+    this.stubServer.start();
+  }
+
+  @AfterEach
+  public void stopStubServer() {
+    this.stubServer.stop(0);
+    this.stubExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws Exception {
+    try (HttpClient httpClient = new HttpClient()) {
+      for (int i = 0; i < 5; ++i) {
+        httpClient.invokePost(getStubUrl("/geoserver/rest/workspaces"), "Basic test", "<workspace/>", MediaType.APPLICATION_XML);
+      }
+    }
+
+    // sequential requests over a kept-alive connection share one client socket
+    assertEquals(1, this.clientPorts.size());
+  }
+
+  @Test
+  public void testErrorResponseRaisesStatusCode() throws Exception {
+    try (HttpClient httpClient = new HttpClient()) {
+      HttpResponseException e = assertThrows(HttpResponseException.class, () ->
+          httpClient.invokePost(getStubUrl("/geoserver/rest/conflict"), "Basic test", "<workspace/>", MediaType.APPLICATION_XML));
+      assertEquals(409, e.getStatusCode());
+    }
+  }
+
+  @Test
+  public void testCreateFeatureTypesConcurrently() throws Exception {
+    GeoServerRestApi geoServer = new GeoServerRestApi(getStubConfig(), new HttpClient(4));
+
+    List<String> featureTypeNames = new ArrayList<>();
+    for (int i = 0; i < 12; ++i) {
+      featureTypeNames.add("sfpotrero_vis_property_" + i);
+    }
+    geoServer.createFeatureTypes(featureTypeNames, 3);
+    geoServer.close();
+
+    assertEquals(12, this.featureTypesCreated.size());
+    assertTrue(this.featureTypesCreated.containsAll(featureTypeNames));
+    assertTrue(this.maxInFlightRequests.get() > 1, "feature types should be created in parallel");
+    assertTrue(this.maxInFlightRequests.get() <= 3, "in flight requests should not exceed the concurrency limit");
+  }
+
+  @Test
+  public void testSeedLayersWaitsForCompletion() throws Exception {
+    GeoServerRestApi geoServer = new GeoServerRestApi(getStubConfig(), new HttpClient());
+
+    VisualizationTableStats stats = new VisualizationTableStats();
+    WkbEncoder wkbEncoder = new WkbEncoder();
+    wkbEncoder.readEnvelope("LINESTRING(-122.4 37.75,-122.39 37.76)", 4326);
+    stats.addRow(wkbEncoder);
+    Map<String, VisualizationTableStats> layerStats = new HashMap<>();
+    layerStats.put("sfpotrero_vis_osm_landusages", stats);
+
+    JSONObject seedConfig = new JSONObject();
+    seedConfig.put("zoomStop", 14);
+    seedConfig.put("pollIntervalMillis", 10);
+    boolean seeded = geoServer.seedLayers(Arrays.asList("sfpotrero_vis_osm_landusages", "sfpotrero_vis_osm_buildings"), layerStats, seedConfig);
+    geoServer.close();
+
+    assertTrue(seeded);
+    assertEquals(2, this.seedRequests.size());
+
+    // polled until the stub stops listing running tasks
+    assertTrue(this.seedStatusPolls.get("sfpotrero:sfpotrero_vis_osm_landusages").get() > SEED_RUNNING_POLLS);
+
+    // bounded to the layer's extent in Web Mercator meters, or the layer's own bounds without stats
+    JSONObject seedRequest = this.seedRequests.get("sfpotrero:sfpotrero_vis_osm_landusages");
+    assertEquals("EPSG:900913", seedRequest.getString("gridSetId"));
+    assertEquals(14, seedRequest.getInt("zoomStop"));
+    JSONArray bounds = seedRequest.getJSONObject("bounds").getJSONObject("coords").getJSONArray("double");
+    assertEquals(-13625505.7, bounds.getDouble(0), 1.0);
+    assertEquals(4544169.1, bounds.getDouble(1), 1.0);
+    assertFalse(this.seedRequests.get("sfpotrero:sfpotrero_vis_osm_buildings").has("bounds"));
+  }
+
+  @Test
+  public void testSeedLayersTimesOut() throws Exception {
+    GeoServerRestApi geoServer = new GeoServerRestApi(getStubConfig(), new HttpClient());
+
+    JSONObject seedConfig = new JSONObject();
+    seedConfig.put("timeoutSeconds", 0);
+    seedConfig.put("pollIntervalMillis", 10);
+    boolean seeded = geoServer.seedLayers(Arrays.asList("sfpotrero_vis_stuck"), new HashMap<>(), seedConfig);
+    geoServer.close();
+
+    assertFalse(seeded);
+  }
+
+  @Test
+  public void testUploadAndAssignStyle() throws Exception {
+    GeoServerRestApi geoServer = new GeoServerRestApi(getStubConfig(), new HttpClient());
+
+    assertTrue(geoServer.uploadStyle("sfpotrero_vis_osm_landusages_auto", "<StyledLayerDescriptor/>"));
+    assertTrue(geoServer.uploadStyle("sfpotrero_vis_osm_buildings_existing", "<StyledLayerDescriptor/>"));
+    assertFalse(geoServer.uploadStyle("sfpotrero_vis_osm_roads_forbidden", "<StyledLayerDescriptor/>"));
+    assertTrue(geoServer.assignDefaultStyle("sfpotrero_vis_osm_landusages", "sfpotrero_vis_osm_landusages_auto"));
+    geoServer.close();
+
+    // an existing style is replaced rather than left as is - a forbidden upload is not retried as a replace
+    assertEquals(Arrays.asList(
+        "POST /geoserver/rest/workspaces/sfpotrero/styles",
+        "POST /geoserver/rest/workspaces/sfpotrero/styles",
+        "PUT /geoserver/rest/workspaces/sfpotrero/styles/sfpotrero_vis_osm_buildings_existing",
+        "POST /geoserver/rest/workspaces/sfpotrero/styles",
+        "PUT /geoserver/rest/layers/sfpotrero:sfpotrero_vis_osm_landusages"), this.styleRequests);
+
+    JSONObject defaultStyle = XML.toJSONObject(this.layerUpdates.get("sfpotrero:sfpotrero_vis_osm_landusages"))
+        .getJSONObject("layer").getJSONObject("defaultStyle");
+    assertEquals("sfpotrero_vis_osm_landusages_auto", defaultStyle.getString("name"));
+    assertEquals("sfpotrero", defaultStyle.getString("workspace"));
+  }
+
+  // GeoWebCache seed endpoint - POST submits a task, GET lists the layer's tasks as running for
+  //  SEED_RUNNING_POLLS polls (the stuck layer forever), then none
+  private void handleSeedRequest(HttpExchange exchange) throws IOException {
+    String resource = exchange.getRequestURI().getPath().substring("/geoserver/gwc/rest/seed/".length());
+    String layerName = resource.substring(0, resource.lastIndexOf('.'));
+
+    if (exchange.getRequestMethod().equals("POST")) {
+      String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+      this.seedRequests.put(layerName, XML.toJSONObject(requestBody).getJSONObject("seedRequest"));
+      sendResponse(exchange, 200, "");
+      return;
+    }
+
+    int polls = this.seedStatusPolls.computeIfAbsent(layerName, name -> new AtomicInteger()).incrementAndGet();
+    boolean running = polls <= SEED_RUNNING_POLLS || layerName.endsWith("_stuck");
+    sendResponse(exchange, 200, running ? "{\"long-array-array\":[[120,400,30,1,1]]}" : "{\"long-array-array\":[]}");
+  }
+
+  private void handleRequest(HttpExchange exchange) throws IOException {
+    this.clientPorts.add(exchange.getRemoteAddress().getPort());
+    String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+    int inFlight = this.inFlightRequests.incrementAndGet();
+    this.maxInFlightRequests.accumulateAndGet(inFlight, Math::max);
+    try {
+      String path = exchange.getRequestURI().getPath();
+      if (path.endsWith("/featuretypes")) {
+        // hold the response so concurrent requests overlap
+        Thread.sleep(STUB_RESPONSE_DELAY_MS);
+        JSONObject featureType = XML.toJSONObject(requestBody).getJSONObject("featureType");
+        this.featureTypesCreated.add(featureType.getString("name"));
+      }
+      if (path.contains("/styles") || path.contains("/layers/")) {
+        this.styleRequests.add(exchange.getRequestMethod() + " " + path);
+        if (path.contains("/layers/")) {
+          this.layerUpdates.put(path.substring(path.lastIndexOf('/') + 1), requestBody);
+        }
+        // styles named *_existing were uploaded by an earlier run, *_forbidden ones may not be written
+        String query = exchange.getRequestURI().getQuery();
+        if (exchange.getRequestMethod().equals("POST") && query != null && query.endsWith("_existing")) {
+          sendResponse(exchange, 409, "Style already exists");
+          return;
+        }
+        if (exchange.getRequestMethod().equals("POST") && query != null && query.endsWith("_forbidden")) {
+          sendResponse(exchange, 403, "Access denied");
+          return;
+        }
+      }
+      sendResponse(exchange, path.endsWith("/conflict") ? 409 : 201, "created");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.inFlightRequests.decrementAndGet();
+    }
+  }
+
+  private static void sendResponse(HttpExchange exchange, int statusCode, String body) throws IOException {
+    byte[] responseBytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(statusCode, responseBytes.length);
+    try (OutputStream responseBody = exchange.getResponseBody()) {
+      responseBody.write(responseBytes);
+    }
+  }
+
+  private String getStubUrl(String path) {
+    return String.format("http://localhost:%s%s", this.stubServer.getAddress().getPort(), path);
+  }
+
+  private Config getStubConfig() throws Exception {
+    JSONObject postgisConfig = new JSONObject();
+    postgisConfig.put("host", "localhost");
+    postgisConfig.put("port", "5432");
+    postgisConfig.put("database", "osm");
+    postgisConfig.put("user", "osm");
+    postgisConfig.put("password", "osm");
+    postgisConfig.put("schema", "test_sfpotrero");
+
+    JSONObject geoserverConfig = new JSONObject();
+    geoserverConfig.put("host", "localhost");
+    geoserverConfig.put("port", Integer.toString(this.stubServer.getAddress().getPort()));
+    geoserverConfig.put("user", "geoserver");
+    geoserverConfig.put("password", "geoserver");
+    geoserverConfig.put("workspaceName", "sfpotrero");
+    geoserverConfig.put("storeName", "sfpotrero");
+
+    JSONObject configObject = new JSONObject();
+    configObject.put("osmId", "sfpotrero");
+    configObject.put("postgis", postgisConfig);
+    configObject.put("geoserver", geoserverConfig);
+    return new Config(configObject);
+  }
+
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.LayerStyles;
+import me.callsen.taylor.osm2graph_geoserver.lib.QuantileSketch;
+
+public class LayerStylesTest {
+
+  @Test
+  public void testClassBreaks() throws Exception {
+    LayerStyles layerStyles = getLayerStyles(new JSONObject().put("classes", 4));
+
+    QuantileSketch sketch = new QuantileSketch();
+    for (int value = 1; value <= 100; ++value) {
+      sketch.add(value);
+    }
+    assertArrayEquals(new double[] { 26, 51, 76 }, layerStyles.getClassBreaks(sketch), 0);
+
+    // repeated values leave fewer classes - no break at the min, none repeated
+    QuantileSketch repeatedSketch = new QuantileSketch();
+    for (int i = 0; i < 50; ++i) {
+      repeatedSketch.add(1);
+      repeatedSketch.add(5);
+    }
+    assertArrayEquals(new double[] { 5 }, layerStyles.getClassBreaks(repeatedSketch), 0);
+
+    QuantileSketch singleValueSketch = new QuantileSketch();
+    for (int i = 0; i < 100; ++i) {
+      singleValueSketch.add(3);
+    }
+    assertEquals(0, layerStyles.getClassBreaks(singleValueSketch).length);
+  }
+
+  @Test
+  public void testClassedSld() throws Exception {
+    LayerStyles layerStyles = getLayerStyles(new JSONObject().put("classes", 4).put("maxScaleDenominator", 1000000));
+    String sld = layerStyles.getSld("sfpotrero_vis_osm_landusages_auto", "ad_width", new double[] { 26, 51, 76 });
+
+    assertTrue(sld.contains("<NamedLayer><Name>sfpotrero_vis_osm_landusages_auto</Name>"));
+
+    // 4 classes and a no value rule per scale band
+    assertEquals(10, countOccurrences(sld, "<Rule>"));
+    assertEquals(2, countOccurrences(sld, "<ogc:PropertyIsLessThan><ogc:PropertyName>ad_width</ogc:PropertyName><ogc:Literal>26.0</ogc:Literal></ogc:PropertyIsLessThan>"));
+    assertEquals(2, countOccurrences(sld, "<ogc:And><ogc:PropertyIsGreaterThanOrEqualTo><ogc:PropertyName>ad_width</ogc:PropertyName><ogc:Literal>26.0</ogc:Literal></ogc:PropertyIsGreaterThanOrEqualTo>" +
+        "<ogc:PropertyIsLessThan><ogc:PropertyName>ad_width</ogc:PropertyName><ogc:Literal>51.0</ogc:Literal></ogc:PropertyIsLessThan></ogc:And>"));
+    assertEquals(2, countOccurrences(sld, "<ogc:PropertyIsNull><ogc:PropertyName>ad_width</ogc:PropertyName></ogc:PropertyIsNull>"));
+    assertEquals(2, countOccurrences(sld, "<Title>&lt; 26.0</Title>"));
+    assertEquals(2, countOccurrences(sld, "<Title>&gt;= 76.0</Title>"));
+
+    // palette ends on the first and last class, detail and overview bands split at the default scale
+    assertEquals(2, countOccurrences(sld, "<CssParameter name=\"stroke\">#ffffb2</CssParameter>"));
+    assertEquals(2, countOccurrences(sld, "<CssParameter name=\"stroke\">#bd0026</CssParameter>"));
+    assertEquals(5, countOccurrences(sld, "<MaxScaleDenominator>" + LayerStyles.DEFAULT_DETAIL_SCALE_DENOMINATOR + "</MaxScaleDenominator>"));
+    assertEquals(5, countOccurrences(sld, "<MinScaleDenominator>" + LayerStyles.DEFAULT_DETAIL_SCALE_DENOMINATOR + "</MinScaleDenominator>"));
+    assertEquals(5, countOccurrences(sld, "<MaxScaleDenominator>1000000.0</MaxScaleDenominator>"));
+    assertEquals(5, countOccurrences(sld, "<CssParameter name=\"stroke-width\">2.5</CssParameter>"));
+    assertEquals(5, countOccurrences(sld, "<CssParameter name=\"stroke-width\">1.0</CssParameter>"));
+  }
+
+  @Test
+  public void testSingleClassSld() throws Exception {
+    String sld = getLayerStyles(new JSONObject()).getSld("sfpotrero_vis_osm_roads_auto", null, new double[0]);
+
+    assertEquals(2, countOccurrences(sld, "<Rule>"));
+    assertFalse(sld.contains("<ogc:Filter>"));
+    assertEquals(2, countOccurrences(sld, "<CssParameter name=\"stroke\">#3366cc</CssParameter>"));
+    // drawn at every scale beyond the detail band
+    assertEquals(1, countOccurrences(sld, "<MaxScaleDenominator>"));
+  }
+
+  private static LayerStyles getLayerStyles(JSONObject stylesConfig) throws Exception {
+    return new LayerStyles(new Config(new JSONObject().put("geoserver", new JSONObject().put("styles", stylesConfig))));
+  }
+
+  private static int countOccurrences(String text, String part) {
+    int count = 0;
+    for (int index = text.indexOf(part); index >= 0; index = text.indexOf(part, index + part.length())) {
+      ++count;
+    }
+    return count;
+  }
+
+}
@@ -1,5 +1,8 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -7,8 +10,16 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.core.MediaType;
 
@@ -24,18 +35,28 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
 import org.testcontainers.containers.PostgisContainerProvider;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.LayerGeneralization;
 import me.callsen.taylor.osm2graph_geoserver.Main;
+import me.callsen.taylor.osm2graph_geoserver.data.EmbeddedRelationshipSource;
 import me.callsen.taylor.osm2graph_geoserver.data.GeoServerRestApi;
 import me.callsen.taylor.osm2graph_geoserver.data.PostgisDb;
+import me.callsen.taylor.osm2graph_geoserver.data.RelationshipSource;
 import me.callsen.taylor.osm2graph_geoserver.lib.HttpClient;
+import me.callsen.taylor.osm2graph_geoserver.lib.WkbEncoder;
 import me.callsen.taylor.scenicrouting.javasdk.RoutingConstants;
 import me.callsen.taylor.scenicrouting.javasdk.TestUtils;
 import me.callsen.taylor.scenicrouting.javasdk.data.GraphDb;
@@ -146,6 +167,29 @@ public class MainTest {
     assertEquals("Coral Road", relationshipData.getString("name"));
   }
 
+  @Test
+  public void testWkbEncoderRoundTrip() throws Exception {
+    String[] wkts = {
+      "POINT(-122.399779 37.753165)",
+      "LINESTRING(-122.399779 37.753165,-122.3995458 37.7530642)",
+      "POLYGON((-122.4 37.75,-122.39 37.75,-122.39 37.76,-122.4 37.75))",
+      "MULTILINESTRING((-122.4 37.75,-122.39 37.75),(-122.39 37.76,-122.4 37.76))",
+      "LINESTRING EMPTY"
+    };
+
+    WkbEncoder wkbEncoder = new WkbEncoder();
+    for (String wkt : wkts) {
+      // compare PostGIS's reading of the client encoded EWKB with its own parsing of the WKT
+      String wkbHex = wkbEncoder.toHexEwkb(wkt, 4326);
+      List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", String.format(
+          "SELECT ST_AsText('%s'::geometry) AS wkb_text, ST_AsText(ST_GeomFromText('%s', 4326)) AS wkt_text, ST_SRID('%s'::geometry) AS srid",
+          wkbHex, wkt, wkbHex));
+
+      assertEquals((String) result.get(0).get("wkt_text"), (String) result.get(0).get("wkb_text"));
+      assertEquals(4326, ((Number) result.get(0).get("srid")).intValue());
+    }
+  }
+
   @Test
   public void testGeoServerCreateWorkspace() throws Exception {
     int testCallIndex = 0; // create workspace is first call made to mock
@@ -198,4 +242,539 @@ public class MainTest {
     assertEquals(true, featureType.getBoolean("enabled"));
   }
 
+  @Test
+  public void testGeoServerFeatureTypeBoundingBox() throws Exception {
+    int testCallIndex = 2; // create feature type is third call made to mock
+
+    // bounding boxes gathered during the load are sent explicitly - GeoServer is not asked to recalculate
+    JSONObject featureType = XML.toJSONObject(postBodyCaptor.getAllValues().get(testCallIndex)).getJSONObject("featureType");
+    assertFalse(featureType.has("recalculate"));
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", "SELECT MIN(ST_XMin(geom)) AS minx, MAX(ST_XMax(geom)) AS maxx, MIN(ST_YMin(geom)) AS miny, MAX(ST_YMax(geom)) AS maxy FROM test_sfpotrero.sfpotrero_vis_osm_landusages");
+    for (String boundingBoxName : new String[] { "nativeBoundingBox", "latLonBoundingBox" }) {
+      JSONObject boundingBox = featureType.getJSONObject(boundingBoxName);
+      assertEquals(((Number) result.get(0).get("minx")).doubleValue(), boundingBox.getDouble("minx"), 1e-9);
+      assertEquals(((Number) result.get(0).get("maxx")).doubleValue(), boundingBox.getDouble("maxx"), 1e-9);
+      assertEquals(((Number) result.get(0).get("miny")).doubleValue(), boundingBox.getDouble("miny"), 1e-9);
+      assertEquals(((Number) result.get(0).get("maxy")).doubleValue(), boundingBox.getDouble("maxy"), 1e-9);
+      assertEquals("EPSG:4326", boundingBox.getString("crs"));
+    }
+  }
+
+  @Test
+  public void testCheckpointedLoadResume() throws Exception {
+    JSONObject checkpointConfig = new JSONObject();
+    checkpointConfig.put("checkpointInterval", 1);
+    Config loadConfig = getLoadConfig("test_resume", checkpointConfig);
+    loadConfig.put("graphDbShards", 2);
+
+    // the first run is killed on its fifth page - each shard's checkpoint has to be recorded by then
+    RelationshipSource killedSource = new FailingRelationshipSource(createRelationshipSource(loadConfig), 4);
+    assertThrows(Exception.class, () -> load(loadConfig, killedSource, 10));
+
+    // the failed load stopped its writers rather than leaving them waiting for input
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assertFalse(thread.getName().startsWith("postgis-writer-") && thread.isAlive(), thread.getName() + " still running");
+    }
+    List<Map<String,Object>> checkpoints = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) AS recorded FROM test_resume.sfpotrero_load_checkpoint WHERE last_rel_id IS NOT NULL AND NOT complete");
+    assertTrue((long) checkpoints.get(0).get("recorded") > 0);
+
+    loadConfig.getDbConfig().put("resume", true);
+    load(loadConfig, createRelationshipSource(loadConfig), 10);
+
+    // every row written once - rows the killed run wrote past its checkpoints are replaced
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) AS row_count, COUNT(DISTINCT rel_id) AS rel_count FROM test_resume.sfpotrero_vis_osm_landusages");
+    assertEquals(98, (long) result.get(0).get("row_count"));
+    assertEquals(98, (long) result.get(0).get("rel_count"));
+
+    // a completed load is not resumed again
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", "SELECT COUNT(*) FROM test_resume.sfpotrero_load_checkpoint");
+    assertEquals(0, (long) result.get(0).get("count"));
+  }
+
+  @Test
+  public void testDeduplicatedWays(@TempDir Path graphDirectory) throws Exception {
+
+    // both directions of a street, read several pages apart, and single direction ways between them
+    GraphDb dedupGraphDb = new GraphDb(graphDirectory.toFile().getAbsolutePath());
+    long[] streetRelIds = new long[2];
+    try (Transaction tx = dedupGraphDb.getTransaction()) {
+      Node from = tx.createNode(Label.label("INTERSECTION"));
+      Node to = tx.createNode(Label.label("INTERSECTION"));
+      String street = "LINESTRING(-122.4 37.75,-122.39 37.75)";
+      streetRelIds[0] = createWay(from, to, 1, street, "[{\"type\":\"park\"}]", null).getId();
+      for (int i = 0; i < 5; ++i) {
+        createWay(from, to, 100 + i, String.format("LINESTRING(-122.4 37.7%s,-122.39 37.7%s)", i, i), "[{\"type\":\"wood\"}]", null);
+      }
+      streetRelIds[1] = createWay(to, from, 1, street, "[{\"type\":\"garden\"}]", "[{\"levels\":2}]").getId();
+      tx.commit();
+    }
+
+    Config loadConfig = getLoadConfig("test_dedup", new JSONObject());
+    loadConfig.put("graphDbLocation", graphDirectory.toFile().getAbsolutePath());
+    loadConfig.put("deduplicateWays", true);
+    load(loadConfig, new EmbeddedRelationshipSource(dedupGraphDb, loadConfig.getString("graphDbLocation")), 2);
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT rel_id, \"associatedData\"::Text, \"relationshipData\"::Text FROM test_dedup.sfpotrero_vis_osm_landusages WHERE osm_id = 1");
+    assertEquals(1, result.size());
+    assertEquals(streetRelIds[0], ((Number) result.get(0).get("rel_id")).longValue());
+    JSONArray associatedData = new JSONArray((String) result.get(0).get(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA));
+    assertEquals(2, associatedData.length());
+    assertEquals("park", associatedData.getJSONObject(0).getString("type"));
+    assertEquals("garden", associatedData.getJSONObject(1).getString("type"));
+    JSONArray mergedRelIds = new JSONObject((String) result.get(0).get("relationshipData")).getJSONArray("merged_rel_ids");
+    assertEquals(streetRelIds[0], mergedRelIds.getLong(0));
+    assertEquals(streetRelIds[1], mergedRelIds.getLong(1));
+
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", "SELECT COUNT(*) FROM test_dedup.sfpotrero_vis_osm_landusages");
+    assertEquals(6, (long) result.get(0).get("count"));
+
+    // a property of one direction only is written once, from the merged relationship
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", "SELECT rel_id FROM test_dedup.sfpotrero_vis_osm_buildings");
+    assertEquals(1, result.size());
+    assertEquals(streetRelIds[0], ((Number) result.get(0).get("rel_id")).longValue());
+  }
+
+  @Test
+  public void testLongTableNames() throws Exception {
+    JSONObject clusterConfig = new JSONObject();
+    clusterConfig.put("clusterOrder", "hilbert");
+    Config loadConfig = getLoadConfig("test_long_names", clusterConfig);
+
+    // the longest table name PostgreSQL keeps - staging table and index names derived from it are hashed
+    String osmId = "sfpotrero_" + "x".repeat(34);
+    String tableName = Main.getVisualizationTableName(osmId, "osm_landusages");
+    assertEquals(PostgisDb.MAX_IDENTIFIER_LENGTH, tableName.length());
+    loadConfig.put("osmId", osmId);
+
+    // loaded twice, so the second load's staging table replaces the first's
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        String.format("SELECT COUNT(*) FROM test_long_names.\"%s\"", tableName));
+    assertEquals(98, (long) result.get(0).get("count"));
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        String.format("SELECT indexname FROM pg_indexes WHERE schemaname = 'test_long_names' AND tablename = '%s' ORDER BY indexname", tableName));
+    List<String> expectedIndexNames = new ArrayList<>(Arrays.asList(PostgisDb.getIdentifier(tableName, "geom_idx"),
+        PostgisDb.getIdentifier(tableName, "hilbert_idx"), PostgisDb.getIdentifier(tableName, "osm_id_idx")));
+    Collections.sort(expectedIndexNames);
+    assertEquals(3, result.size());
+    for (int i = 0; i < result.size(); ++i) {
+      assertEquals(expectedIndexNames.get(i), result.get(i).get("indexname"));
+      assertTrue(((String) result.get(i).get("indexname")).length() <= PostgisDb.MAX_IDENTIFIER_LENGTH);
+    }
+
+    // a table name PostgreSQL would truncate fails the load
+    loadConfig.put("osmId", osmId + "x");
+    RelationshipSource relationshipSource = createRelationshipSource(loadConfig);
+    assertThrows(IllegalArgumentException.class, () -> load(loadConfig, relationshipSource, 50));
+    relationshipSource.close();
+  }
+
+  @Test
+  public void testTypedColumnIndexNames() throws Exception {
+    JSONObject typedColumnConfig = new JSONObject();
+    typedColumnConfig.put("typedColumns", true);
+    typedColumnConfig.put("typedColumnIndexes", true);
+    Config loadConfig = getLoadConfig("test_typed_indexes", typedColumnConfig);
+
+    // index names of the longest table name PostgreSQL keeps are shortened, each keeping a name of its own
+    String osmId = "sfpotrero_" + "x".repeat(34);
+    String tableName = Main.getVisualizationTableName(osmId, "osm_landusages");
+    loadConfig.put("osmId", osmId);
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    List<Map<String,Object>> columns = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        String.format("SELECT attname::text FROM pg_attribute WHERE attrelid = 'test_typed_indexes.\"%s\"'::regclass AND attnum > 0 AND NOT attisdropped AND starts_with(attname, 'ad_')", tableName));
+    assertFalse(columns.isEmpty());
+    for (Map<String,Object> column : columns) {
+      String indexName = PostgisDb.getIdentifier(tableName, column.get("attname") + "_idx");
+      List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+          String.format("SELECT indexdef FROM pg_indexes WHERE schemaname = 'test_typed_indexes' AND tablename = '%s' AND indexname = '%s'", tableName, indexName));
+      assertEquals(1, result.size());
+      assertTrue(((String) result.get(0).get("indexdef")).endsWith("(" + column.get("attname") + ")"));
+    }
+  }
+
+  @Test
+  public void testGeneralizedLayerStyles() throws Exception {
+    JSONObject generalizationConfig = new JSONObject();
+    generalizationConfig.put("typedColumns", true);
+    generalizationConfig.put("generalizationTolerances", new JSONArray().put(0.0001));
+    Config loadConfig = getLoadConfig("test_generalized", generalizationConfig);
+    loadConfig.getGeoServerConfig().put("styles", new JSONObject());
+
+    HttpClient styleHttpClient = Mockito.mock(HttpClient.class);
+    Main.loadGeoServerData(loadConfig, createRelationshipSource(loadConfig), new PostgisDb(loadConfig, postgresqlContainer.getJdbcUrl()),
+        new GeoServerRestApi(loadConfig, styleHttpClient), 50);
+
+    // the copy keeps the typed columns of its source
+    String generalizedTableName = LayerGeneralization.getGeneralizedTableName("sfpotrero_vis_osm_landusages", 0);
+    String typedColumnsSql = "SELECT attname::text FROM pg_attribute WHERE attrelid = 'test_generalized.\"%s\"'::regclass AND attnum > 0 AND NOT attisdropped AND starts_with(attname, 'ad_') ORDER BY attname";
+    List<Map<String,Object>> columns = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        String.format(typedColumnsSql, "sfpotrero_vis_osm_landusages"));
+    assertFalse(columns.isEmpty());
+    assertEquals(columns, TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm", String.format(typedColumnsSql, generalizedTableName)));
+
+    // and a generated style of its own
+    ArgumentCaptor<String> putUrlCaptor = ArgumentCaptor.forClass(String.class);
+    ArgumentCaptor<String> putBodyCaptor = ArgumentCaptor.forClass(String.class);
+    verify(styleHttpClient, Mockito.atLeastOnce()).invokePut(putUrlCaptor.capture(), Mockito.anyString(), putBodyCaptor.capture(), Mockito.anyString());
+    String assignedStyle = null;
+    for (int i = 0; i < putUrlCaptor.getAllValues().size(); ++i) {
+      if (putUrlCaptor.getAllValues().get(i).endsWith(":" + generalizedTableName)) {
+        assignedStyle = putBodyCaptor.getAllValues().get(i);
+      }
+    }
+    assertNotNull(assignedStyle);
+    assertTrue(assignedStyle.contains("<name>" + generalizedTableName + "_auto</name>"));
+  }
+
+  @Test
+  public void testNormalizedLayout() throws Exception {
+    JSONObject layoutConfig = new JSONObject();
+    layoutConfig.put("layout", "normalized");
+    Config loadConfig = getLoadConfig("test_normalized", layoutConfig);
+
+    // loaded twice, so the second load's staging tables replace the first's and the views are recreated
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    // one ways row per relationship, one attribute row per relationship holding the property
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*), COUNT(DISTINCT rel_id) AS rel_ids FROM test_normalized.sfpotrero_ways");
+    assertTrue((long) result.get(0).get("count") >= 98);
+    assertEquals((long) result.get(0).get("count"), (long) result.get(0).get("rel_ids"));
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) FROM test_normalized.sfpotrero_vis_osm_landusages_data");
+    assertEquals(98, (long) result.get(0).get("count"));
+
+    // the layer name is a view joining the attribute table to the ways table
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT definition FROM pg_views WHERE schemaname = 'test_normalized' AND viewname = 'sfpotrero_vis_osm_landusages'");
+    assertEquals(1, result.size());
+    String viewDefinition = (String) result.get(0).get("definition");
+    assertTrue(viewDefinition.contains("sfpotrero_vis_osm_landusages_data"));
+    assertTrue(viewDefinition.contains("JOIN test_normalized.sfpotrero_ways"));
+
+    // with the rows of the denormalized table
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) FROM ((SELECT osm_id, ST_AsText(geom), \"associatedData\"::text FROM test_normalized.sfpotrero_vis_osm_landusages " +
+        "EXCEPT SELECT osm_id, ST_AsText(geom), \"associatedData\"::jsonb::text FROM test_sfpotrero.sfpotrero_vis_osm_landusages) " +
+        "UNION ALL (SELECT osm_id, ST_AsText(geom), \"associatedData\"::jsonb::text FROM test_sfpotrero.sfpotrero_vis_osm_landusages " +
+        "EXCEPT SELECT osm_id, ST_AsText(geom), \"associatedData\"::text FROM test_normalized.sfpotrero_vis_osm_landusages)) d");
+    assertEquals(0, (long) result.get(0).get("count"));
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) FROM test_normalized.sfpotrero_vis_osm_landusages");
+    assertEquals(98, (long) result.get(0).get("count"));
+  }
+
+  @Test
+  public void testForeignViewFailsSwap() throws Exception {
+    Config loadConfig = getLoadConfig("test_foreign_view", new JSONObject());
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    // a view created by hand on a live table is neither dropped nor left without its table
+    try (Connection connection = DriverManager.getConnection(postgresqlContainer.getJdbcUrl(), "osm", "osm");
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE VIEW test_foreign_view.parks AS SELECT osm_id FROM test_foreign_view.sfpotrero_vis_osm_landusages");
+    }
+    Exception failure = assertThrows(Exception.class, () -> load(loadConfig, createRelationshipSource(loadConfig), 50));
+    assertTrue(failure.getMessage().contains("test_foreign_view.parks"));
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) FROM test_foreign_view.parks");
+    assertEquals(98, (long) result.get(0).get("count"));
+  }
+
+  @Test
+  public void testHilbertClustering() throws Exception {
+    JSONObject clusterConfig = new JSONObject();
+    clusterConfig.put("clusterOrder", "hilbert");
+    Config loadConfig = getLoadConfig("test_hilbert", clusterConfig);
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    // clustered on the Hilbert index, which keeps its live table name after the staging swap
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT c.relname::text FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid WHERE i.indisclustered AND i.indrelid = 'test_hilbert.sfpotrero_vis_osm_landusages'::regclass");
+    assertEquals(1, result.size());
+    assertEquals("sfpotrero_vis_osm_landusages_hilbert_idx", result.get(0).get("relname"));
+
+    // rows are stored in hilbert_key order - nulls last, as CLUSTER sorts them
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT hilbert_key FROM test_hilbert.sfpotrero_vis_osm_landusages ORDER BY ctid");
+    assertEquals(98, result.size());
+    Long previousKey = null;
+    boolean nullSeen = false;
+    for (Map<String,Object> row : result) {
+      Long key = row.get("hilbert_key") != null ? ((Number) row.get("hilbert_key")).longValue() : null;
+      if (key == null) {
+        nullSeen = true;
+        continue;
+      }
+      assertFalse(nullSeen, "hilbert_key stored after a null key");
+      assertTrue(previousKey == null || previousKey <= key, "hilbert_key " + key + " stored after " + previousKey);
+      previousKey = key;
+    }
+    assertNotNull(previousKey);
+  }
+
+  @Test
+  public void testPartitionedLayout() throws Exception {
+    JSONObject partitionConfig = new JSONObject();
+    partitionConfig.put("partitionCellSize", 0.01);
+    Config loadConfig = getLoadConfig("test_partitioned", partitionConfig);
+
+    // loaded twice, so the second load's staging partitions replace and are attached in place of the first's
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT COUNT(*) FROM test_partitioned.sfpotrero_vis_osm_landusages");
+    assertEquals(98, (long) result.get(0).get("count"));
+
+    // every partition is attached for the grid cell it is named after, holding only rows of that cell
+    String tableName = "sfpotrero_vis_osm_landusages";
+    List<Map<String,Object>> partitions = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT c.relname::text, pg_get_expr(c.relpartbound, c.oid) AS bound FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+        "WHERE i.inhparent = 'test_partitioned.sfpotrero_vis_osm_landusages'::regclass ORDER BY c.relname");
+    assertFalse(partitions.isEmpty());
+    long partitionedRowCount = 0;
+    for (Map<String,Object> partition : partitions) {
+      String partitionName = (String) partition.get("relname");
+      assertTrue(partitionName.startsWith(tableName + "_p"), "unexpected partition " + partitionName);
+      // rows without a geometry go to the pnull partition, of grid cell -1
+      String partitionSuffix = partitionName.substring(tableName.length() + 2);
+      long gridCell = partitionSuffix.equals("null") ? -1 : Long.parseLong(partitionSuffix);
+      assertTrue(((String) partition.get("bound")).matches("FOR VALUES IN \\('?" + gridCell + "'?\\)"),
+          "partition " + partitionName + " attached " + partition.get("bound"));
+
+      result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+          String.format("SELECT COUNT(*), COUNT(*) FILTER (WHERE grid_cell <> %s) AS misplaced FROM test_partitioned.\"%s\"", gridCell, partitionName));
+      assertEquals(0, (long) result.get(0).get("misplaced"));
+      partitionedRowCount += (long) result.get(0).get("count");
+
+      // indexes built on the staging partition are renamed after the partition by the swap
+      result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+          String.format("SELECT indexname FROM pg_indexes WHERE schemaname = 'test_partitioned' AND tablename = '%s' ORDER BY indexname", partitionName));
+      assertEquals(2, result.size());
+      assertEquals(PostgisDb.getIdentifier(partitionName, "geom_idx"), result.get(0).get("indexname"));
+      assertEquals(PostgisDb.getIdentifier(partitionName, "osm_id_idx"), result.get(1).get("indexname"));
+    }
+    assertEquals(98, partitionedRowCount);
+
+    // no staging table or staging named index is left behind
+    result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT relname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace WHERE n.nspname = 'test_partitioned' AND relname LIKE '%staging%'");
+    assertEquals(0, result.size());
+  }
+
+  @Test
+  public void testZGeometries(@TempDir Path graphDirectory) throws Exception {
+
+    // Z and M ordinates are dropped, and geometries the WKB encoder does not support are sent as EWKT
+    GraphDb zGraphDb = new GraphDb(graphDirectory.toFile().getAbsolutePath());
+    try (Transaction tx = zGraphDb.getTransaction()) {
+      Node from = tx.createNode(Label.label("INTERSECTION"));
+      Node to = tx.createNode(Label.label("INTERSECTION"));
+      createWay(from, to, 1, "LINESTRING(-122.4 37.75,-122.39 37.75)", "[{\"type\":\"park\"}]", null);
+      createWay(from, to, 2, "LINESTRING Z (-122.4 37.76 10,-122.39 37.76 12)", "[{\"type\":\"park\"}]", null);
+      createWay(from, to, 3, "LINESTRING(-122.4 37.77 10 1,-122.39 37.77 12 2)", "[{\"type\":\"park\"}]", null);
+      createWay(from, to, 4, "CIRCULARSTRING(-122.4 37.78,-122.395 37.785,-122.39 37.78)", "[{\"type\":\"park\"}]", null);
+      tx.commit();
+    }
+
+    for (boolean copyBulkLoad : new boolean[] { true, false }) {
+      String schema = copyBulkLoad ? "test_z_copy" : "test_z_insert";
+      JSONObject writeConfig = new JSONObject();
+      writeConfig.put("copyBulkLoad", copyBulkLoad);
+      Config loadConfig = getLoadConfig(schema, writeConfig);
+      loadConfig.put("graphDbLocation", graphDirectory.toFile().getAbsolutePath());
+      load(loadConfig, copyBulkLoad ? new EmbeddedRelationshipSource(zGraphDb, loadConfig.getString("graphDbLocation"))
+          : createRelationshipSource(loadConfig), 50);
+
+      List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+          String.format("SELECT osm_id, ST_NDims(geom) AS dims, ST_X(ST_StartPoint(geom)) AS x, ST_GeometryType(geom) AS type FROM %s.sfpotrero_vis_osm_landusages ORDER BY osm_id", schema));
+      assertEquals(4, result.size());
+      for (int i = 0; i < 3; ++i) {
+        assertEquals(2, ((Number) result.get(i).get("dims")).intValue());
+        assertEquals(-122.4, ((Number) result.get(i).get("x")).doubleValue(), 1e-9);
+      }
+      assertEquals("ST_CircularString", result.get(3).get("type"));
+    }
+  }
+
+  @Test
+  public void testInvalidAssociatedDataSkipped(@TempDir Path graphDirectory) throws Exception {
+
+    // rows PostgreSQL would reject are left out - the rest of their batch is still written
+    GraphDb invalidGraphDb = new GraphDb(graphDirectory.toFile().getAbsolutePath());
+    try (Transaction tx = invalidGraphDb.getTransaction()) {
+      Node from = tx.createNode(Label.label("INTERSECTION"));
+      Node to = tx.createNode(Label.label("INTERSECTION"));
+      createWay(from, to, 1, "LINESTRING(-122.4 37.75,-122.39 37.75)", "[{\"type\":\"park\"}]", null);
+      createWay(from, to, 2, "LINESTRING(-122.4 37.76,-122.39 37.76)", "[{\"type\":\"park\"", null);
+      createWay(from, to, 3, "LINESTRING(-122.4 37.77,-122.39 37.77)", "[{type:'park'}]", null);
+      createWay(from, to, 4, "LINESTRING(-122.4 37.78,-122.39 37.78)", "[{\"type\":\"wood\",\"note\":\"\\u00e9\"}]", null);
+      tx.commit();
+    }
+
+    Config loadConfig = getLoadConfig("test_invalid_json", new JSONObject());
+    loadConfig.put("graphDbLocation", graphDirectory.toFile().getAbsolutePath());
+    load(loadConfig, new EmbeddedRelationshipSource(invalidGraphDb, loadConfig.getString("graphDbLocation")), 50);
+
+    List<Map<String,Object>> result = TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT osm_id FROM test_invalid_json.sfpotrero_vis_osm_landusages ORDER BY osm_id");
+    assertEquals(2, result.size());
+    assertEquals(1, ((Number) result.get(0).get("osm_id")).longValue());
+    assertEquals(4, ((Number) result.get(1).get("osm_id")).longValue());
+  }
+
+  @Test
+  public void testIncrementalSyncRebuiltGraph(@TempDir Path graphDirectory) throws Exception {
+    JSONObject syncConfig = new JSONObject();
+    syncConfig.put("syncMode", "incremental");
+    Config loadConfig = getLoadConfig("test_sync", syncConfig);
+
+    String firstLocation = graphDirectory.resolve("first").toFile().getAbsolutePath();
+    GraphDb firstGraphDb = new GraphDb(firstLocation);
+    try (Transaction tx = firstGraphDb.getTransaction()) {
+      Node from = tx.createNode(Label.label("INTERSECTION"));
+      Node to = tx.createNode(Label.label("INTERSECTION"));
+      createWay(from, to, 1, "LINESTRING(-122.4 37.75,-122.39 37.75)", "[{\"type\":\"park\"}]", null);
+      createWay(from, to, 2, "LINESTRING(-122.4 37.76,-122.39 37.76)", "[{\"type\":\"wood\"}]", null);
+      createWay(from, to, 3, "LINESTRING(-122.4 37.77,-122.39 37.77)", "[{\"type\":\"grass\"}]", null);
+      tx.commit();
+    }
+    loadConfig.put("graphDbLocation", firstLocation);
+    load(loadConfig, new EmbeddedRelationshipSource(firstGraphDb, firstLocation), 50);
+    Map<Long, Map<String,Object>> firstRows = getSyncedRows();
+    assertEquals(3, firstRows.size());
+
+    // a rebuilt graph numbers relationships anew - the new way takes the first way's relationship id, the
+    //  changed first way the removed third way's
+    String secondLocation = graphDirectory.resolve("second").toFile().getAbsolutePath();
+    GraphDb secondGraphDb = new GraphDb(secondLocation);
+    long[] secondRelIds = new long[3];
+    try (Transaction tx = secondGraphDb.getTransaction()) {
+      Node from = tx.createNode(Label.label("INTERSECTION"));
+      Node to = tx.createNode(Label.label("INTERSECTION"));
+      secondRelIds[0] = createWay(from, to, 4, "LINESTRING(-122.4 37.78,-122.39 37.78)", "[{\"type\":\"meadow\"}]", null).getId();
+      secondRelIds[1] = createWay(from, to, 2, "LINESTRING(-122.4 37.76,-122.39 37.76)", "[{\"type\":\"wood\"}]", null).getId();
+      secondRelIds[2] = createWay(from, to, 1, "LINESTRING(-122.4 37.75,-122.39 37.75)", "[{\"type\":\"garden\"}]", null).getId();
+      tx.commit();
+    }
+    loadConfig.put("graphDbLocation", secondLocation);
+    load(loadConfig, new EmbeddedRelationshipSource(secondGraphDb, secondLocation), 50);
+    Map<Long, Map<String,Object>> secondRows = getSyncedRows();
+    assertEquals(3, secondRows.size());
+
+    // updated - the row keeps its id and takes the new content and relationship id
+    assertEquals(firstRows.get(1L).get("id"), secondRows.get(1L).get("id"));
+    assertEquals(secondRelIds[2], ((Number) secondRows.get(1L).get("rel_id")).longValue());
+    assertTrue(((String) secondRows.get(1L).get("associatedData")).contains("garden"));
+    // unchanged content - only the relationship id is rewritten
+    assertEquals(firstRows.get(2L).get("id"), secondRows.get(2L).get("id"));
+    assertEquals(secondRelIds[1], ((Number) secondRows.get(2L).get("rel_id")).longValue());
+    // inserted, with an id of its own, and removed
+    assertFalse(firstRows.values().stream().anyMatch(row -> row.get("id").equals(secondRows.get(4L).get("id"))));
+    assertEquals(secondRelIds[0], ((Number) secondRows.get(4L).get("rel_id")).longValue());
+    assertFalse(secondRows.containsKey(3L));
+
+    // syncing the same graph again rewrites nothing
+    load(loadConfig, createRelationshipSource(loadConfig), 50);
+    Map<Long, Map<String,Object>> thirdRows = getSyncedRows();
+    assertEquals(3, thirdRows.size());
+    for (Long osmId : secondRows.keySet()) {
+      assertEquals(secondRows.get(osmId).get("xmin"), thirdRows.get(osmId).get("xmin"));
+    }
+  }
+
+  // rows of test_sync by osm_id - xmin changes whenever a row is rewritten
+  private Map<Long, Map<String,Object>> getSyncedRows() throws Exception {
+    Map<Long, Map<String,Object>> rows = new HashMap<>();
+    for (Map<String,Object> row : TestUtils.executeJdbcQuery(postgresqlContainer.getJdbcUrl(), "osm", "osm",
+        "SELECT osm_id, id, rel_id, \"associatedData\"::text, xmin::text FROM test_sync.sfpotrero_vis_osm_landusages")) {
+      rows.put(((Number) row.get("osm_id")).longValue(), row);
+    }
+    return rows;
+  }
+
+  private static Relationship createWay(Node from, Node to, long osmId, String way, String landusages, String buildings) {
+    Relationship relationship = from.createRelationshipTo(to, RelationshipType.withName("CONNECTS"));
+    relationship.setProperty("osm_id", osmId);
+    relationship.setProperty("way", way);
+    relationship.setProperty("osm_landusages", landusages);
+    if (buildings != null) {
+      relationship.setProperty("osm_buildings", buildings);
+    }
+    relationship.setProperty(RoutingConstants.GRAPH_PROPERTY_NAME_ASSOCIATED_DATA,
+        buildings != null ? new String[] { "osm_landusages", "osm_buildings" } : new String[] { "osm_landusages" });
+    return relationship;
+  }
+
+  // config of a load into its own schema - the shared load's config with postgisConfig overlaid
+  private Config getLoadConfig(String schema, JSONObject postgisConfig) throws Exception {
+    Config loadConfig = new Config(appConfig);
+    loadConfig.getDbConfig().put("schema", schema);
+    for (String key : postgisConfig.keySet()) {
+      loadConfig.getDbConfig().put(key, postgisConfig.get(key));
+    }
+    return loadConfig;
+  }
+
+  // the shared load closes the graph - every other load opens it again
+  private RelationshipSource createRelationshipSource(Config loadConfig) {
+    return new EmbeddedRelationshipSource(new GraphDb(loadConfig.getString("graphDbLocation")), loadConfig.getString("graphDbLocation"));
+  }
+
+  // GeoServer calls go to a mock of their own, so the captors above only hold the shared load's calls
+  private void load(Config loadConfig, RelationshipSource relationshipSource, int pageSize) throws Exception {
+    Main.loadGeoServerData(loadConfig, relationshipSource, new PostgisDb(loadConfig, postgresqlContainer.getJdbcUrl()),
+        new GeoServerRestApi(loadConfig, Mockito.mock(HttpClient.class)), pageSize);
+  }
+
+  // fails every read once pageCount pages of relationships have been read, as if the load was killed
+  private static class FailingRelationshipSource implements RelationshipSource {
+
+    private RelationshipSource relationshipSource;
+
+    private AtomicInteger pagesLeft;
+
+    FailingRelationshipSource(RelationshipSource relationshipSource, int pageCount) {
+      this.relationshipSource = relationshipSource;
+      this.pagesLeft = new AtomicInteger(pageCount);
+    }
+
+    @Override
+    public void readRelationships(String query, Map<String, Object> parameters, RelationshipStream stream) throws Exception {
+      this.relationshipSource.readRelationships(query, parameters, relationships -> {
+        if (relationships.hasNext() && this.pagesLeft.getAndDecrement() <= 0) {
+          throw new IllegalStateException("load killed");
+        }
+        stream.read(relationships);
+      });
+    }
+
+    @Override
+    public Map<String, Object> readRow(String query) throws Exception {
+      return this.relationshipSource.readRow(query);
+    }
+
+    @Override
+    public String getLocation() {
+      return this.relationshipSource.getLocation();
+    }
+
+    @Override
+    public void close() throws Exception {
+      this.relationshipSource.close();
+    }
+
+  }
+
 }
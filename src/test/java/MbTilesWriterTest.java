@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.callsen.taylor.osm2graph_geoserver.data.MbTilesWriter;
+
+public class MbTilesWriterTest {
+
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Path path = this.tempDirectory.resolve("test_vis_osm_landusages.mbtiles");
+    byte[] tile = { 0x1A, 0x02, 0x78, 0x02 };
+
+    MbTilesWriter writer = new MbTilesWriter(path);
+    writer.writeTile(0, 0, 0, tile);
+    writer.writeTile(3, 1, 2, tile);
+    writer.writeMetadata(new JSONObject()
+        .put("name", "test_vis_osm_landusages")
+        .put("format", "pbf")
+        .put("minzoom", 0)
+        .put("maxzoom", 3));
+    writer.close();
+
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path); Statement statement = conn.createStatement()) {
+
+      // XYZ rows are stored TMS - flipped within the zoom
+      Map<String, Integer> tileRows = new HashMap<>();
+      try (ResultSet tiles = statement.executeQuery("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles")) {
+        while (tiles.next()) {
+          tileRows.put(tiles.getInt("zoom_level") + "/" + tiles.getInt("tile_column"), tiles.getInt("tile_row"));
+          try (GZIPInputStream tileData = new GZIPInputStream(new ByteArrayInputStream(tiles.getBytes("tile_data")))) {
+            assertArrayEquals(tile, tileData.readAllBytes());
+          }
+        }
+      }
+      assertEquals(2, tileRows.size());
+      assertEquals(0, tileRows.get("0/0"));
+      assertEquals(5, tileRows.get("3/1"));
+
+      Map<String, String> metadata = new HashMap<>();
+      try (ResultSet rows = statement.executeQuery("SELECT name, value FROM metadata")) {
+        while (rows.next()) {
+          metadata.put(rows.getString("name"), rows.getString("value"));
+        }
+      }
+      assertEquals("test_vis_osm_landusages", metadata.get("name"));
+      assertEquals("pbf", metadata.get("format"));
+      assertEquals("0", metadata.get("minzoom"));
+      assertEquals("3", metadata.get("maxzoom"));
+
+      try (ResultSet index = statement.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'tile_index'")) {
+        assertTrue(index.next());
+        assertEquals(1, index.getInt(1));
+      }
+    }
+  }
+
+  // a build failing partway leaves no tileset behind
+  @Test
+  public void testAbort() throws Exception {
+    Path path = this.tempDirectory.resolve("test_vis_osm_landusages.mbtiles");
+
+    MbTilesWriter writer = new MbTilesWriter(path);
+    writer.writeTile(3, 1, 2, new byte[] { 0x1A, 0x02, 0x78, 0x02 });
+    writer.abort();
+
+    assertFalse(Files.exists(path));
+  }
+
+}
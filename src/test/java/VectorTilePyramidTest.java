@@ -0,0 +1,254 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.neo4j.graphdb.Relationship;
+
+import me.callsen.taylor.osm2graph_geoserver.Config;
+import me.callsen.taylor.osm2graph_geoserver.VectorTilePyramid;
+import me.callsen.taylor.osm2graph_geoserver.lib.VectorTileEncoder;
+
+public class VectorTilePyramidTest {
+
+  @TempDir
+  Path tempDirectory;
+
+  @Test
+  public void testClipLine() {
+    // enters through the left edge, leaves through the bottom, runs outside and comes back in
+    double[] points = { -20, 50, 50, 50, 50, 150, 80, 150, 80, 50 };
+    List<double[]> lines = VectorTilePyramid.clipLine(points, 0, 100);
+
+    assertEquals(2, lines.size());
+    assertArrayEquals(new double[] { 0, 50, 50, 50, 50, 100 }, lines.get(0), 1e-9);
+    assertArrayEquals(new double[] { 80, 100, 80, 50 }, lines.get(1), 1e-9);
+
+    // within the square - unchanged
+    assertArrayEquals(new double[] { 10, 10, 90, 90 }, VectorTilePyramid.clipLine(new double[] { 10, 10, 90, 90 }, 0, 100).get(0), 1e-9);
+    assertEquals(0, VectorTilePyramid.clipLine(new double[] { 150, 10, 150, 90 }, 0, 100).size());
+  }
+
+  @Test
+  public void testClipPolygon() {
+    // square around the origin - the quarter inside [0, 100] is left, closed
+    double[] ring = { -50, -50, 50, -50, 50, 50, -50, 50, -50, -50 };
+    double[] clipped = VectorTilePyramid.clipPolygon(ring, 0, 100);
+
+    assertEquals(clipped[0], clipped[clipped.length - 2], 1e-9);
+    assertEquals(clipped[1], clipped[clipped.length - 1], 1e-9);
+    for (double value : clipped) {
+      assertTrue(value >= 0 && value <= 50, "clipped coordinate " + value + " outside the square");
+    }
+    assertEquals(2 * 2500, Math.abs(getRingArea(clipped, 0, clipped.length - 2)), 1e-9);
+
+    // outside the square - no ring
+    assertEquals(0, VectorTilePyramid.clipPolygon(new double[] { 150, 150, 160, 150, 160, 160, 150, 150 }, 0, 100).length);
+  }
+
+  // exterior rings come out with positive area in tile coordinates and interior rings negative, whichever
+  //  way the source rings wind
+  @Test
+  public void testRingOrientation() throws Exception {
+    JSONObject tileConfig = new JSONObject()
+        .put("directory", this.tempDirectory.toString())
+        .put("format", "directory")
+        .put("minZoom", 14)
+        .put("maxZoom", 14);
+    VectorTilePyramid tilePyramid = new VectorTilePyramid(new Config(new JSONObject().put("vectorTiles", tileConfig)));
+
+    // counterclockwise rings in longitude / latitude, then the same polygon clockwise
+    tilePyramid.addRow("test_vis_osm_landusages", "osm_landusages", createRelationship(1,
+        "POLYGON((-122.400 37.760,-122.399 37.760,-122.399 37.761,-122.400 37.761,-122.400 37.760)," +
+        "(-122.3998 37.7602,-122.3992 37.7602,-122.3992 37.7608,-122.3998 37.7608,-122.3998 37.7602))"));
+    tilePyramid.addRow("test_vis_osm_landusages", "osm_landusages", createRelationship(2,
+        "POLYGON((-122.400 37.760,-122.400 37.761,-122.399 37.761,-122.399 37.760,-122.400 37.760)," +
+        "(-122.3998 37.7602,-122.3998 37.7608,-122.3992 37.7608,-122.3992 37.7602,-122.3998 37.7602))"));
+    tilePyramid.build();
+
+    List<Path> tiles;
+    try (Stream<Path> files = Files.walk(this.tempDirectory.resolve("test_vis_osm_landusages"))) {
+      tiles = files.filter(file -> file.toString().endsWith(".pbf")).collect(Collectors.toList());
+    }
+    assertTrue(tiles.size() > 0);
+
+    int polygonCount = 0;
+    for (Path tile : tiles) {
+      for (List<int[]> rings : readPolygons(Files.readAllBytes(tile))) {
+        ++polygonCount;
+        assertEquals(2, rings.size());
+        assertTrue(getRingArea(rings.get(0)) > 0, "exterior ring has non-positive area");
+        assertTrue(getRingArea(rings.get(1)) < 0, "interior ring has non-negative area");
+      }
+    }
+    assertTrue(polygonCount >= 2);
+  }
+
+  // the linestring and polygon examples of the MVT 2.1 spec (4.3.5), in one layer
+  @Test
+  public void testEncoderKnownTile() {
+    VectorTileEncoder encoder = new VectorTileEncoder("roads", 4096);
+    encoder.addFeature(1, VectorTileEncoder.GEOMETRY_LINESTRING, new int[] { 2, 2, 2, 10, 10, 10 }, new int[] { 3 }, 1,
+        new String[] { "ad_name" }, new Object[] { "Main" }, 1);
+    encoder.addFeature(2, VectorTileEncoder.GEOMETRY_POLYGON, new int[] { 3, 6, 8, 12, 20, 34 }, new int[] { 3 }, 1,
+        new String[] { "ad_name" }, new Object[] { -1L }, 1);
+
+    int[] expected = {
+        0x1A, 0x4A, // layer
+        0x78, 0x02, // version 2
+        0x0A, 0x05, 'r', 'o', 'a', 'd', 's',
+        // feature 1 - tags [0, 0], LineString, MoveTo(2,2) LineTo(2,10) LineTo(10,10)
+        0x12, 0x12, 0x08, 0x01, 0x12, 0x02, 0x00, 0x00, 0x18, 0x02, 0x22, 0x08, 9, 4, 4, 18, 0, 16, 16, 0,
+        // feature 2 - tags [0, 1], Polygon, MoveTo(3,6) LineTo(8,12) LineTo(20,34) ClosePath
+        0x12, 0x13, 0x08, 0x02, 0x12, 0x02, 0x00, 0x01, 0x18, 0x03, 0x22, 0x09, 9, 6, 12, 18, 10, 12, 24, 44, 15,
+        0x1A, 0x07, 'a', 'd', '_', 'n', 'a', 'm', 'e',
+        // string "Main", sint -1 (zigzag 1)
+        0x22, 0x06, 0x0A, 0x04, 'M', 'a', 'i', 'n',
+        0x22, 0x02, 0x30, 0x01,
+        // extent 4096
+        0x28, 0x80, 0x20
+    };
+    byte[] expectedBytes = new byte[expected.length];
+    for (int i = 0; i < expected.length; ++i) {
+      expectedBytes[i] = (byte) expected[i];
+    }
+    assertArrayEquals(expectedBytes, encoder.encode());
+  }
+
+  private static Relationship createRelationship(long osmId, String way) {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("osm_id", osmId);
+    properties.put("way", way);
+    properties.put("osm_landusages", "[{\"type\":\"park\"}]");
+
+    Relationship relationship = Mockito.mock(Relationship.class);
+    Mockito.when(relationship.getId()).thenReturn(osmId + 1000);
+    Mockito.when(relationship.getProperty(Mockito.anyString())).thenAnswer(invocation -> properties.get(invocation.getArgument(0)));
+    return relationship;
+  }
+
+  // rings of each polygon feature in the tile - tile > layer (3) > feature (2) > type (3) and geometry (4)
+  private static List<List<int[]>> readPolygons(byte[] tile) {
+    List<List<int[]>> polygons = new ArrayList<>();
+    for (int[] layer : readMessages(tile, 0, tile.length, 3)) {
+      for (int[] feature : readMessages(tile, layer[0], layer[1], 2)) {
+        long geometryType = 0;
+        int[] geometry = null;
+        int[] position = { feature[0] };
+        while (position[0] < feature[1]) {
+          long tag = readVarint(tile, position);
+          if (tag == (3 << 3)) {
+            geometryType = readVarint(tile, position);
+          } else if (tag == (4 << 3 | 2)) {
+            int length = (int) readVarint(tile, position);
+            geometry = new int[] { position[0], position[0] + length };
+            position[0] += length;
+          } else {
+            skipField(tile, position, (int) tag & 0x7);
+          }
+        }
+        if (geometryType == VectorTileEncoder.GEOMETRY_POLYGON) {
+          polygons.add(readRings(tile, geometry[0], geometry[1]));
+        }
+      }
+    }
+    return polygons;
+  }
+
+  // unclosed rings from MoveTo / LineTo / ClosePath commands with zigzag encoded deltas
+  private static List<int[]> readRings(byte[] tile, int start, int end) {
+    List<int[]> rings = new ArrayList<>();
+    List<Integer> ring = new ArrayList<>();
+    int x = 0;
+    int y = 0;
+    int[] position = { start };
+    while (position[0] < end) {
+      int command = (int) readVarint(tile, position);
+      if ((command & 0x7) == 7) {
+        rings.add(ring.stream().mapToInt(Integer::intValue).toArray());
+        ring = new ArrayList<>();
+        continue;
+      }
+      for (int i = 0; i < command >>> 3; ++i) {
+        long dx = readVarint(tile, position);
+        long dy = readVarint(tile, position);
+        x += (int) ((dx >>> 1) ^ -(dx & 1));
+        y += (int) ((dy >>> 1) ^ -(dy & 1));
+        ring.add(x);
+        ring.add(y);
+      }
+    }
+    return rings;
+  }
+
+  // [start, end) of each length delimited field in [start, end)
+  private static List<int[]> readMessages(byte[] bytes, int start, int end, int field) {
+    List<int[]> messages = new ArrayList<>();
+    int[] position = { start };
+    while (position[0] < end) {
+      long tag = readVarint(bytes, position);
+      if (tag == (field << 3 | 2)) {
+        int length = (int) readVarint(bytes, position);
+        messages.add(new int[] { position[0], position[0] + length });
+        position[0] += length;
+      } else {
+        skipField(bytes, position, (int) tag & 0x7);
+      }
+    }
+    return messages;
+  }
+
+  private static void skipField(byte[] bytes, int[] position, int wireType) {
+    if (wireType == 0) {
+      readVarint(bytes, position);
+    } else if (wireType == 1) {
+      position[0] += 8;
+    } else if (wireType == 2) {
+      int length = (int) readVarint(bytes, position);
+      position[0] += length;
+    } else {
+      position[0] += 4;
+    }
+  }
+
+  private static long readVarint(byte[] bytes, int[] position) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[position[0]++];
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+  }
+
+  private static long getRingArea(int[] ring) {
+    long area = 0;
+    for (int i = 0; i < ring.length; i += 2) {
+      int next = (i + 2) % ring.length;
+      area += (long) ring[i] * ring[next + 1] - (long) ring[next] * ring[i + 1];
+    }
+    return area;
+  }
+
+  // twice the signed area of the unclosed ring in [start, end)
+  private static double getRingArea(double[] ring, int start, int end) {
+    double area = 0;
+    for (int i = start; i < end; i += 2) {
+      int next = i + 2 < end ? i + 2 : start;
+      area += ring[i] * ring[next + 1] - ring[next] * ring[i + 1];
+    }
+    return area;
+  }
+
+}